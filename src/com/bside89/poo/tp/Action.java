@@ -1,11 +1,9 @@
 package com.bside89.poo.tp;
 
-import org.jetbrains.annotations.NotNull;
-
 import static com.bside89.poo.tp.InGameText.*;
 
-import java.io.Serializable;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.util.function.Predicate;
 
 /**
  * Representa uma ação executada por um jogador.
@@ -17,9 +15,12 @@ import java.util.*;
  *
  *  Cada jogador só pode efetuar uma ação por turno.
  *  Uma ação que tenha sido consumada não pode ser desfeita.
- *  Cada objeto ação só poderá armazenar a ação de um único jogador
- *  em um dado turno. Quando é a vez do jogador adversário efetuar
- *  sua jogada, um novo objeto ação deve ser instanciado.
+ *  Um objeto ação executa uma ação de cada vez, e é reaproveitado
+ *  durante toda a partida: quando é a vez do próximo jogador efetuar
+ *  sua jogada, o objeto deve ser preparado por {@link #reset}.
+ *  O resultado de cada ação é obtido por {@link #toRecord()}, um
+ *  registro imutável que não referencia a arena nem os jogadores, e
+ *  que pode ser arquivado sem reter o estado da partida.
  *
  * @author Bruno Santos
  * @author Thais Hurtado
@@ -28,19 +29,20 @@ import java.util.*;
  * @see Player
  * @see Robot
  */
-class Action implements Serializable, Comparable<Action> {
+class Action {
 
     /**
      * String que armazena o registro de todos os eventos ao final de uma ação.
-     * Uma fila de eventos armazenará temporariamente cada evento (texto).
-     * Ao término da ação, todos os dados da fila serão concatenados nesta String.
+     * O texto de cada evento é acumulado temporariamente em um buffer.
+     * Ao término da ação, o conteúdo do buffer é copiado para esta String.
      */
     private String eventsLog;
 
     /**
-     * Fila que armazenará cada descrição de evento durante a ação.
+     * Buffer que acumula a descrição de cada evento durante a ação,
+     * reaproveitado pelas ações seguintes.
      */
-    private transient Queue<String> events;
+    private final StringBuilder events = new StringBuilder(256);
 
     /**
      * String estática a ser referênciada pela String eventsLog
@@ -48,6 +50,12 @@ class Action implements Serializable, Comparable<Action> {
      */
     private static final String NO_ACTION = "Ação ainda não realizada.";
 
+    /**
+     * Mensagem de erro para uma ação executada sem ter sido preparada por
+     * {@link #reset}.
+     */
+    private static final String NOT_RESET = "Ação já realizada ou ainda não preparada.";
+
     /**
      * Os jogadores participantes desta ação.
      */
@@ -62,27 +70,81 @@ class Action implements Serializable, Comparable<Action> {
      * Representam, respectivamente, o número desta ação e o turno onde a mesma foi
      * executada, ambos fornecidos pelo controlador do jogo.
      */
-    private final int NUM, TURN;
+    private int num, turn;
+
+    /**
+     * O comando executado por esta ação, ou <tt>null</tt> caso esta ação
+     * ainda não tenha sido consumada.
+     */
+    private Command command;
+
+    /**
+     * O resultado desta ação para o jogador ativo, registrado durante a ação
+     * para {@link #toRecord()}: o dano causado pelo ataque, o dano recebido de
+     * uma bomba ou infração, o dano recebido do vírus e os eventos ocorridos
+     * (veja {@link ActionRecord#getFlags()}).
+     */
+    private double damage, selfDamage, virusDamage;
+    private int flags;
 
     /**
-     * Constrói uma nova ação.
+     * Decide se o robô deve pegar uma arma encontrada na arena.
+     */
+    private final Predicate<Weapon> pickWeapon;
+
+    /**
+     * O percurso do disparo no modo de linha de visada, reaproveitado pelos
+     * ataques seguintes.
+     */
+    private final LineOfSight.Ray ray = new LineOfSight.Ray();
+
+    /**
+     * Constrói um objeto ação para uma partida. Caso o robô encontre uma arma,
+     * o jogador será perguntado (via entrada padrão) se deseja pegá-la.
      *
-     * @param   num     o número desta ação
-     * @param   turn    o turno da batalha no qual esta ação ocorreu
-     * @param   a       a arena onde ocorreu a ação
+     * @param   a       a arena onde ocorre a partida
      * @param   p1      o primeiro jogador
      * @param   p2      o segundo jogador
      */
-    Action(int turn, int num, Arena a, Player p1, Player p2) throws IllegalArgumentException {
+    Action(Arena a, Player p1, Player p2) {
+        this(a, p1, p2, Action::askWeapon);
+    }
 
-        assert (a != null && p1 != null && p2 != null && num > 0 && turn > 0);
-        this.events = new LinkedList<>();
+    /**
+     * Constrói um objeto ação, cuja decisão de pegar uma arma encontrada é
+     * tomada sem interação com o jogador (por exemplo, em partidas
+     * automáticas).
+     *
+     * @param   pickWeapon  devolve <tt>true</tt> caso o robô deva pegar a arma
+     *
+     * @see #Action(Arena, Player, Player)
+     */
+    Action(Arena a, Player p1, Player p2, Predicate<Weapon> pickWeapon) {
+        assert (a != null && p1 != null && p2 != null && pickWeapon != null);
+        this.pickWeapon = pickWeapon;
         this.eventsLog = NO_ACTION;
-        this.TURN = turn;
         this.A = a;
         this.P1 = p1;
         this.P2 = p2;
-        this.NUM = num;
+    }
+
+    /**
+     * Prepara este objeto para a próxima ação da partida, descartando o
+     * resultado da ação anterior (que deve ter sido obtido antes, por
+     * {@link #toRecord()}).
+     *
+     * @param   turn    o turno da batalha no qual a ação ocorre
+     * @param   num     o número da ação
+     */
+    void reset(int turn, int num) {
+        assert (num > 0 && turn > 0);
+        this.turn = turn;
+        this.num = num;
+        this.command = null;
+        this.damage = selfDamage = virusDamage = 0;
+        this.flags = 0;
+        this.eventsLog = NO_ACTION;
+        events.setLength(0);
     }
 
     /**
@@ -103,6 +165,7 @@ class Action implements Serializable, Comparable<Action> {
      *
      * Qualquer string que não esteja no formato descrito acima resultará no
      * lançamento de {@code IllegalArgumentException} pelo método.
+     * A interpretação da String é feita por {@link Command#parse(CharSequence)}.
      *
      * @param command o comando, que deve ser digitado pelo jogador
      *
@@ -114,54 +177,100 @@ class Action implements Serializable, Comparable<Action> {
      *                                  sintaxe descrita acima.
      */
     boolean make(String command) throws IllegalArgumentException {
+        return make(Command.parse(command));
+    }
 
-        assert (eventsLog.equals(NO_ACTION));
+    /**
+     * Executa um comando em sua forma binária (veja {@link Command#encode}).
+     *
+     * @param command o buffer contendo o comando codificado
+     *
+     * @return  <tt>true</tt> caso o comando seja o de encerramento da aplicação
+     *
+     * @throws IllegalArgumentException caso os bytes não representem um comando
+     *                                  válido
+     */
+    boolean make(ByteBuffer command) throws IllegalArgumentException {
+        return make(Command.decode(command));
+    }
+
+    /**
+     * Executa um comando já decodificado.
+     *
+     * @param command o comando a ser executado
+     *
+     * @return  <tt>true</tt> caso o comando seja o de encerramento da aplicação
+     *
+     * @throws IllegalStateException caso a ação já tenha sido consumada, sem
+     *                               uma chamada a {@link #reset} em seguida
+     *
+     * @see #make(String)
+     */
+    boolean make(Command command) throws IllegalStateException {
+        if (this.command != null || turn == 0)
+            throw new IllegalStateException(NOT_RESET);
+        long t0 = Metrics.now();
+        GameEvents.ActionMade event = new GameEvents.ActionMade();
+        event.begin();
+        this.command = command;
+        try {
+            return execute(command);
+        } finally {
+            Metrics.ACTION_MAKE.record(t0);
+            if (event.shouldCommit()) {
+                event.turn = turn;
+                event.num = num;
+                event.opcode = command.getOpName();
+                event.commit();
+            }
+        }
+    }
 
-        StringTokenizer tok = new StringTokenizer(command);
-        String act = "";
+    private boolean execute(Command command) {
 
-        events.add(String.format("Comando: %s\n", command));
-        events.add(actionHeader(TURN, NUM));
+        assert (eventsLog.equals(NO_ACTION));
+        Metrics.increment(Metrics.ACTIONS);
 
-        if (tok.hasMoreTokens()) act = tok.nextToken();
+        events.append("Comando: ").append(command).append('\n');
+        events.append(actionHeader(turn, num));
 
-        Player a = (NUM % 2 == 0) ? P2 : P1; // Jogador ativo nesta ação.
-        Player b = (NUM % 2 == 0) ? P1 : P2; // Jogador passivo nesta ação.
-        switch (act) {
+        Player a = (num % 2 == 0) ? P2 : P1; // Jogador ativo nesta ação.
+        Player b = (num % 2 == 0) ? P1 : P2; // Jogador passivo nesta ação.
+        switch (command.getOp()) {
 
-            case "attack":
+            case Command.OP_ATTACK:
                 makeAttack(a, b);
                 break;
 
-            case "move":
-                Queue<String> q = new ArrayDeque<>(3);
-                while (tok.hasMoreTokens()) q.add(tok.nextToken());
-                if (q.size() != 3)
-                    throw new IllegalArgumentException(ERR_INVALID_COMMAND);
-                int dx = Integer.parseInt(q.poll());
-                int dy = Integer.parseInt(q.poll());
-                int dz = Integer.parseInt(q.poll());
+            case Command.OP_MOVE:
                 try {
-                    makeMove(a, dx, dy, dz);
+                    Point3D previous = a.getRobot().getPosition();
+                    makeMove(a, command.getDx(), command.getDy(), command.getDz());
                     // Se a posição movida já está ocupada pelo outro robô
                     if (a.getRobot().getPosition().equals(b.getRobot().getPosition()))
-                        fixPosition(a);
+                        fixPosition(a, b, previous);
                 } catch (LimitMoveException | LimitArenaException e) {
                     System.err.println(e.getMessage());
                     foulPunish(a);
                 }
                 break;
 
-            case "exit":
-                events.add(actionExit());
+            case Command.OP_EXIT:
+                events.append(actionExit());
                 buildLog();
                 return true; // Envia o sinal para o método que invocou esta ação
 
             default:
                 throw new IllegalArgumentException(ERR_INVALID_COMMAND);
         }
-        if (a.getRobot().isInfected()) {
-            events.add(actionVirusDamaged(a.getRobot().receiveVirusDamage()));
+        // Um robô já derrotado nesta ação (por uma bomba ou infração) não
+        // recebe o dano do vírus.
+        if (a.getRobot().isInfected() && a.getRobot().getHp() > 0) {
+            virusDamage = a.getRobot().receiveVirusDamage();
+            if (a.getRobot().getHp() <= 0)
+                flags |= ActionRecord.VIRUS_KILL;
+            events.append(actionVirusDamaged(virusDamage));
+            Metrics.increment(Metrics.VIRUS_TICKS);
         }
         buildLog();
         return false;
@@ -177,9 +286,20 @@ class Action implements Serializable, Comparable<Action> {
     private void makeAttack(Player attacker, Player target) {
 
         Robot a = attacker.getRobot(), b = target.getRobot();
+        if (GameConfigs.isLineOfSight()) {
+            ray.clear();
+            double d = a.attack(b, A, ray);
+            damage = d;
+            if (ray.isBlocked())
+                events.append(actionShotBlocked(attacker, ray));
+            else
+                events.append(actionAttack(attacker, target, d));
+            return;
+        }
         double d = a.attack(b);
+        damage = d;
 
-        events.add(actionAttack(attacker, target, d));
+        events.append(actionAttack(attacker, target, d));
     }
 
     /**
@@ -204,7 +324,7 @@ class Action implements Serializable, Comparable<Action> {
     private void makeMove(Player p, int dx, int dy, int dz) throws LimitArenaException, LimitMoveException {
 
         Robot r = p.getRobot();
-        if (Math.abs(dx + dy + dz) > r.getMoveLimit())
+        if (!r.canMove(dx, dy, dz))
             throw new LimitMoveException(ERR_MOVE);
 
         int x = r.getPosition().getX();
@@ -220,7 +340,7 @@ class Action implements Serializable, Comparable<Action> {
         if (item != null) getSpecialEffect(item, p);
         r.setPosition(newPosition);
 
-        events.add(actionMove(p, newPosition));
+        events.append(actionMove(p, newPosition));
     }
 
     /**
@@ -237,30 +357,94 @@ class Action implements Serializable, Comparable<Action> {
         Robot r = p.getRobot();
         double hpBefore = r.getHp();
 
-        // 'itemAfter' é o ítem obtido após o seu efeito no robô 'r'.
-        //
         // O polimorfismo de 'item.effect(r)' produz três possíveis resultados:
         // 1. Se 'item' é uma bomba, o robô 'r' sofre um dano;
         // 2. Se 'item' é um vírus, o robô 'r' é infectado;
-        // 3. Se 'item' é uma arma, o robô pega esta nova arma.
+        // 3. Se 'item' é uma arma, o robô pega esta nova arma, caso o jogador
+        //    queira (a pergunta é feita antes do efeito, que não é desfeito).
         //
-        item.effect(r, A);
+        // Em cada caso, o item deixa a arena. Em uma arena compartilhada, o
+        // efeito não ocorre caso outro robô tenha pego o item antes.
 
         if (item instanceof Weapon) {
             Weapon w = (Weapon) item;
-            String question = String.format("Arma %s foi encontrada. Deseja pegá-la?\n", w);
-            boolean answer = InGameText.ask(question, 'y');
-            // Se robô não quer pegar a nova arma:
-            if (!answer) item.effect(r, A); // Desfaz a troca de arma do efeito 3, descrito acima.
-            events.add(actionWeaponFound(w, answer));
+            boolean answer = pickWeapon.test(w);
+            if (answer) {
+                applyEffect(item, r);
+                answer = r.getWeapon() == w;
+            }
+            if (answer) {
+                Metrics.increment(Metrics.PICKUPS);
+                flags |= ActionRecord.PICKUP;
+            }
+            events.append(actionWeaponFound(w, answer));
+        } else if (item instanceof Bomb && GameConfigs.getBombChainRadius() > 0) {
+            chainReaction((Bomb) item, p);
         } else {
+            applyEffect(item, r);
+
+            if (item instanceof Bomb) {
+                selfDamage += hpBefore - r.getHp();
+                flags |= ActionRecord.BOMB;
+                events.append(actionBOOM(hpBefore - r.getHp()));
+                Metrics.increment(Metrics.BOMBS);
+            } else if (item instanceof Virus) {
+                flags |= ActionRecord.INFECTED;
+                events.append(actionInfected());
+                Metrics.increment(Metrics.INFECTIONS);
+            }
+        }
+    }
 
-            if (item instanceof Bomb)
-                events.add(actionBOOM(hpBefore - r.getHp()));
-            else if (item instanceof Virus)
-                events.add(actionInfected());
+    /**
+     * Detona uma bomba no modo de explosões em área (veja
+     * {@link ChainReaction}). Cada bomba da cadeia causa, em cada robô a até
+     * o raio de explosão dela, o mesmo dano de uma bomba comum; o robô ativo
+     * é atingido na posição da bomba encontrada, para onde está se movendo.
+     * O dano causado ao outro robô é registrado como dano ao oponente.
+     */
+    private void chainReaction(Bomb bomb, Player p) {
+
+        Point3D target = bomb.getPosition();
+        long t0 = Metrics.now();
+        ChainReaction.Chain chain = ChainReaction.detonate(A, bomb, GameConfigs.getBombChainRadius(),
+                ChainReaction.DEFAULT_REACH);
+        Metrics.CHAIN.record(t0);
+        if (chain.size() == 0)
+            return; // Outro robô já a detonou.
+
+        Robot r = p.getRobot(), o = (p == P1 ? P2 : P1).getRobot();
+        double self = blast(r, chain.blastsReaching(target));
+        double hit = blast(o, chain.blastsReaching(o.getPosition()));
+        selfDamage += self;
+        damage += hit;
+        flags |= ActionRecord.BOMB;
+        events.append(actionChain(chain.size(), self, hit));
+        Metrics.increment(Metrics.BOMBS);
+        Metrics.add(Metrics.CHAIN_BOMBS, chain.size());
+    }
 
-            A.removeItem(item.getPosition()); // Remove da arena este 'item'.
+    private static double blast(Robot r, int blasts) {
+        double total = 0;
+        while (blasts-- > 0)
+            total += Bomb.SIGMA * Math.random();
+        if (total > 0)
+            r.receiveDamage(total);
+        return total;
+    }
+
+    /**
+     * Aplica o efeito de um item especial sobre um robô, registrando-o como
+     * um evento do JFR.
+     */
+    private void applyEffect(SpecialItem item, Robot r) {
+        GameEvents.ItemEffect event = new GameEvents.ItemEffect();
+        event.begin();
+        item.effect(r, A);
+        if (event.shouldCommit()) {
+            event.itemType = item.getClass().getSimpleName();
+            event.robot = r.getName();
+            event.commit();
         }
     }
 
@@ -280,62 +464,76 @@ class Action implements Serializable, Comparable<Action> {
      */
     private void foulPunish(Player p) {
         p.addFoul(); // Acrescenta a contagem de infrações do jogador
+        Metrics.increment(Metrics.FOULS);
         final double damage = Math.pow(2, p.getFouls());
         p.getRobot().receiveDamage(damage); // Jogador recebe dano devido à infração.
-        events.add(actionFoul(damage));
+        selfDamage += damage;
+        flags |= ActionRecord.FOUL;
+        events.append(actionFoul(damage));
     }
 
     /**
      * Corrige o problema de um jogador tentar se mover para a posição na qual
      * o robô adversário já está situado.
-     * Neste caso o algoritmo abaixo irá deslocar o robô uma unidade adjacente
-     * a ele, sendo esta unidade escolhida aleatoriamente.
+     * Neste caso o robô é deslocado para a posição vaga mais próxima, escolhida
+     * de forma determinística por {@link FreeCellResolver}.
      *
      * O método garante que a nova posição do robô estará dentro dos limites
-     * da arena.
+     * da arena e não estará ocupada pelo robô adversário. Caso não exista
+     * posição vaga nas proximidades, o robô volta à posição anterior ao
+     * movimento.
      *
-     * @param p o jogador (robô) que deve ter sua posição corrigida
+     * @param p         o jogador (robô) que deve ter sua posição corrigida
+     * @param other     o jogador adversário
+     * @param previous  a posição do robô antes do movimento
      */
-    private void fixPosition(Player p) {
-        boolean lock = true;
-        Random r = new Random();
-        Point3D q, o = p.getRobot().getPosition();
-        do {
-            try {
-                int i = r.nextInt(3); // Seleciona um dos 3 casos do switch.
-                int n = -1 + r.nextInt(3); // Seleciona -1, 0 ou 1.
-                int x = o.getX(), y = o.getY(), z = o.getZ();
-                switch (i) {
-                    case 0:
-                        q = new Point3D(x + n, y, z);
-                        break;
-                    case 1:
-                        q = new Point3D(x, y + n, z);
-                        break;
-                    case 2:
-                        q = new Point3D(x, y, z + n);
-                        break;
-                    default: return;
-                }
-                A.at(q);
-                lock = false;
-            } catch (IllegalArgumentException e) {
-                q = null;
-            }
-        } while (lock);
+    private void fixPosition(Player p, Player other, Point3D previous) {
+        GameEvents.FixPosition event = new GameEvents.FixPosition();
+        event.begin();
+        Point3D o = p.getRobot().getPosition();
+        Point3D busy = other.getRobot().getPosition();
+        Point3D q = FreeCellResolver.resolve(A, o, (x, y, z) ->
+                x == busy.getX() && y == busy.getY() && z == busy.getZ());
+        if (q == null) q = previous;
+        if (event.shouldCommit()) {
+            event.distance = o.distance(q);
+            event.commit();
+        }
         p.getRobot().setPosition(q);
-        events.add(actionRepeatedMove(o, q));
+        events.append(actionRepeatedMove(o, q));
+    }
+
+    private static boolean askWeapon(Weapon w) {
+        String question = String.format("Arma %s foi encontrada. Deseja pegá-la?\n", w);
+        return InGameText.ask(question, 'y');
+    }
+
+    /**
+     * Obtém o registro desta ação, para arquivamento (veja {@link MatchArchive}).
+     * Os pontos de vida e as posições dos robôs são os do momento da chamada,
+     * então este método deve ser chamado logo após {@link #make}.
+     *
+     * @return o registro desta ação
+     *
+     * @throws IllegalStateException caso esta ação ainda não tenha sido
+     *                               consumada
+     */
+    ActionRecord toRecord() throws IllegalStateException {
+        if (command == null)
+            throw new IllegalStateException(NO_ACTION);
+        Robot r1 = P1.getRobot(), r2 = P2.getRobot();
+        Weapon w = (num % 2 == 0 ? r2 : r1).getWeapon();
+        return new ActionRecord(turn, num, command, r1.getHp(), r2.getHp(), r1.getPosition(),
+                r2.getPosition(), w == null ? "" : w.getName(), damage, selfDamage, virusDamage, flags,
+                eventsLog);
     }
 
     /**
      * Gera a String de LOG final desta ação, consumando-a.
      */
     private void buildLog() {
-        StringBuilder e = new StringBuilder();
-        while (!events.isEmpty())
-            e.append(events.poll());
-        eventsLog = e.toString();
-        events = null;
+        eventsLog = events.toString();
+        events.setLength(0);
     }
 
     private static String actionAttack(Player attacker, Player target, double damage) {
@@ -343,6 +541,12 @@ class Action implements Serializable, Comparable<Action> {
                 attacker.getID(), target.getID(), damage);
     }
 
+    private static String actionShotBlocked(Player attacker, LineOfSight.Ray ray) {
+        return String.format("Disparo do Player %d bloqueado %s na posição %s.\n", attacker.getID(),
+                ray.getKind() == ItemStore.KIND_BOMB ? "por uma bomba, que explodiu," : "por uma arma",
+                ray.getBlocker());
+    }
+
     private static String actionMove(Player p, Point3D newPosition) {
         return String.format("Player %d moveu-se para a posição %s.\n", p.getID(), newPosition);
     }
@@ -355,6 +559,11 @@ class Action implements Serializable, Comparable<Action> {
         return String.format("Bomba encontrada! Recebeu %.1f de dano.\n", damage);
     }
 
+    private static String actionChain(int bombs, double self, double hit) {
+        return String.format("Bomba encontrada! %d bomba(s) explodiram em cadeia. Recebeu %.1f de dano;"
+                + " o oponente recebeu %.1f.\n", bombs, self, hit);
+    }
+
     private static String actionInfected() {
         return "Virus encontrado! Robô foi infectado.\n";
     }
@@ -379,46 +588,6 @@ class Action implements Serializable, Comparable<Action> {
         return "O jogo foi encerrado.\n";
     }
 
-    /**
-     * Compara duas ações diferentes, onde o primeiro critério é o
-     * turno na qual esta ação ocorreu e o segundo critério é o
-     * número correspondente desta ação.
-     *
-     * @param o a outra ação a ser comparada com esta
-     *
-     * @return -1 caso esta ação seja menor do que a outra
-     *          1 caso esta ação seja maior do que a outra
-     *          0 caos ambas as ações sejam iguais
-     */
-    @Override
-    public int compareTo(@NotNull Action o) {
-        if (TURN > o.TURN)
-            return 1;
-        if (TURN < o.TURN)
-            return -1;
-        if (NUM > o.NUM)
-            return 1;
-        if (NUM < o.NUM)
-            return -1;
-        return 0;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-
-        Action action = (Action) o;
-        return NUM == action.NUM && TURN == action.TURN;
-    }
-
-    @Override
-    public int hashCode() {
-        int result = NUM;
-        result = 31 * result + TURN;
-        return result;
-    }
-
     @Override
     public String toString() {
         return eventsLog;
@@ -0,0 +1,269 @@
+package com.bside89.poo.tp;
+
+import org.jetbrains.annotations.NotNull;
+
+import static com.bside89.poo.tp.DeltaStream.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Registro imutável de uma ação já executada, para arquivamento e análise.
+ *
+ * Ao contrário de {@link Action}, que referencia a arena e os jogadores (e,
+ * portanto, todo o estado da partida), um registro contém apenas valores: o
+ * turno, o número da ação, o comando executado, o estado dos dois robôs ao
+ * final da ação, o resultado da ação para o jogador ativo (arma, danos e
+ * eventos) e o texto de log da ação.
+ *
+ * @author Bruno Santos
+ *
+ * @see Action#toRecord()
+ * @see MatchArchive
+ */
+final class ActionRecord implements Serializable, Comparable<ActionRecord> {
+
+    /**
+     * Eventos ocorridos com o jogador ativo durante a ação (veja
+     * {@link #getFlags()}). {@link #VIRUS_KILL} indica que o robô ativo
+     * estava vivo antes do dano do vírus, e foi derrotado por ele.
+     */
+    static final int FOUL = 1, BOMB = 2, INFECTED = 4, PICKUP = 8, VIRUS_KILL = 16;
+
+    private final int TURN, NUM;
+    private final Command COMMAND;
+    private final double HP1, HP2;
+    private final Point3D POSITION1, POSITION2;
+    private final String WEAPON;
+    private final double DAMAGE, SELF_DAMAGE, VIRUS_DAMAGE;
+    private final int FLAGS;
+    private final String LOG;
+
+    /**
+     * @param weapon        o nome da arma do robô ativo ao final da ação, ou
+     *                      uma String vazia caso ele não tenha arma
+     * @param damage        o dano causado pelo ataque ao robô adversário
+     * @param selfDamage    o dano recebido pelo robô ativo de uma bomba ou de
+     *                      uma infração
+     * @param virusDamage   o dano recebido pelo robô ativo devido ao vírus
+     * @param flags         os eventos ocorridos com o jogador ativo
+     *                      ({@link #FOUL}, {@link #BOMB}, {@link #INFECTED},
+     *                      {@link #PICKUP}, {@link #VIRUS_KILL})
+     */
+    ActionRecord(int turn, int num, Command command, double hp1, double hp2, Point3D position1,
+                 Point3D position2, String weapon, double damage, double selfDamage, double virusDamage,
+                 int flags, String log) {
+        assert (command != null && position1 != null && position2 != null && weapon != null && log != null);
+        this.TURN = turn;
+        this.NUM = num;
+        this.COMMAND = command;
+        this.HP1 = hp1;
+        this.HP2 = hp2;
+        this.POSITION1 = position1;
+        this.POSITION2 = position2;
+        this.WEAPON = weapon;
+        this.DAMAGE = damage;
+        this.SELF_DAMAGE = selfDamage;
+        this.VIRUS_DAMAGE = virusDamage;
+        this.FLAGS = flags;
+        this.LOG = log;
+    }
+
+    /**
+     * Grava este registro em sua forma binária. A arma é gravada como um
+     * número, cujo nome é guardado à parte (veja {@link MatchArchive}).
+     *
+     * @param weaponId o número da arma do robô ativo
+     */
+    void writeTo(DataOutput d, int weaponId) throws IOException {
+        writeVarint(d, TURN);
+        writeVarint(d, NUM);
+        d.writeByte(COMMAND.getOp());
+        writeVarint(d, COMMAND.getDx());
+        writeVarint(d, COMMAND.getDy());
+        writeVarint(d, COMMAND.getDz());
+        d.writeDouble(HP1);
+        d.writeDouble(HP2);
+        writePoint(d, POSITION1);
+        writePoint(d, POSITION2);
+        writeVarint(d, weaponId);
+        d.writeDouble(DAMAGE);
+        d.writeDouble(SELF_DAMAGE);
+        d.writeDouble(VIRUS_DAMAGE);
+        d.writeByte(FLAGS);
+        byte[] log = LOG.getBytes(StandardCharsets.UTF_8);
+        writeVarint(d, log.length);
+        d.write(log);
+    }
+
+    /**
+     * Lê um registro gravado por {@link #writeTo}.
+     *
+     * @param weapons   os nomes das armas, indexados pelo número gravado
+     * @param withLog   <tt>false</tt> para não decodificar o texto de log (o
+     *                  registro lido terá um log vazio), o que torna a leitura
+     *                  bem mais rápida quando o texto não é necessário
+     *
+     * @throws IOException caso os bytes não representem um registro válido
+     */
+    static ActionRecord readFrom(DataInput d, List<String> weapons, boolean withLog) throws IOException {
+        int turn = readVarint(d), num = readVarint(d);
+        Command command;
+        try {
+            command = Command.of(d.readByte(), readVarint(d), readVarint(d), readVarint(d));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        double hp1 = d.readDouble(), hp2 = d.readDouble();
+        Point3D position1 = readPoint(d), position2 = readPoint(d);
+        int weaponId = readVarint(d);
+        if (weaponId < 0 || weaponId >= weapons.size())
+            throw new IOException("Arma desconhecida: " + weaponId);
+        double damage = d.readDouble(), selfDamage = d.readDouble(), virusDamage = d.readDouble();
+        int flags = d.readUnsignedByte();
+        int length = readVarint(d);
+        String log = "";
+        if (withLog) {
+            byte[] bytes = new byte[length];
+            d.readFully(bytes);
+            log = new String(bytes, StandardCharsets.UTF_8);
+        } else if (d.skipBytes(length) != length) {
+            throw new IOException("Registro incompleto: turno " + turn + ", ação " + num);
+        }
+        return new ActionRecord(turn, num, command, hp1, hp2, position1, position2, weapons.get(weaponId),
+                damage, selfDamage, virusDamage, flags, log);
+    }
+
+    private static void writePoint(DataOutput d, Point3D p) throws IOException {
+        writeVarint(d, p.getX());
+        writeVarint(d, p.getY());
+        writeVarint(d, p.getZ());
+    }
+
+    private static Point3D readPoint(DataInput d) throws IOException {
+        return new Point3D(readVarint(d), readVarint(d), readVarint(d));
+    }
+
+    int getTurn() {
+        return TURN;
+    }
+
+    int getNum() {
+        return NUM;
+    }
+
+    Command getCommand() {
+        return COMMAND;
+    }
+
+    /**
+     * @param player o número do jogador (1 ou 2)
+     *
+     * @return os pontos de vida do robô do jogador ao final da ação
+     */
+    double getHp(int player) {
+        return player == 1 ? HP1 : HP2;
+    }
+
+    /**
+     * @param player o número do jogador (1 ou 2)
+     *
+     * @return a posição do robô do jogador ao final da ação
+     */
+    Point3D getPosition(int player) {
+        return player == 1 ? POSITION1 : POSITION2;
+    }
+
+    /**
+     * @return o número do jogador ativo nesta ação (1 ou 2)
+     */
+    int getActivePlayer() {
+        return NUM % 2 == 0 ? 2 : 1;
+    }
+
+    /**
+     * @return o nome da arma do robô ativo ao final da ação
+     */
+    String getWeapon() {
+        return WEAPON;
+    }
+
+    /**
+     * @return o dano causado pelo ataque ao robô adversário (zero caso a ação
+     *         não seja um ataque)
+     */
+    double getDamage() {
+        return DAMAGE;
+    }
+
+    /**
+     * @return o dano recebido pelo robô ativo de uma bomba ou de uma infração
+     */
+    double getSelfDamage() {
+        return SELF_DAMAGE;
+    }
+
+    /**
+     * @return o dano recebido pelo robô ativo devido ao vírus
+     */
+    double getVirusDamage() {
+        return VIRUS_DAMAGE;
+    }
+
+    int getFlags() {
+        return FLAGS;
+    }
+
+    boolean hasFlag(int flag) {
+        return (FLAGS & flag) != 0;
+    }
+
+    String getLog() {
+        return LOG;
+    }
+
+    /**
+     * Compara dois registros pelo turno e, em seguida, pelo número da ação.
+     */
+    @Override
+    public int compareTo(@NotNull ActionRecord o) {
+        if (TURN != o.TURN)
+            return TURN > o.TURN ? 1 : -1;
+        return Integer.compare(NUM, o.NUM);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        ActionRecord other = (ActionRecord) o;
+        return TURN == other.TURN && NUM == other.NUM && COMMAND.equals(other.COMMAND)
+                && Double.compare(HP1, other.HP1) == 0 && Double.compare(HP2, other.HP2) == 0
+                && POSITION1.equals(other.POSITION1) && POSITION2.equals(other.POSITION2)
+                && WEAPON.equals(other.WEAPON) && Double.compare(DAMAGE, other.DAMAGE) == 0
+                && Double.compare(SELF_DAMAGE, other.SELF_DAMAGE) == 0
+                && Double.compare(VIRUS_DAMAGE, other.VIRUS_DAMAGE) == 0 && FLAGS == other.FLAGS
+                && LOG.equals(other.LOG);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = TURN;
+        result = 31 * result + NUM;
+        result = 31 * result + COMMAND.hashCode();
+        result = 31 * result + LOG.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return LOG;
+    }
+
+}
@@ -1,8 +1,9 @@
 package com.bside89.poo.tp;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 
@@ -21,20 +22,48 @@ import java.util.Random;
  * No entanto, seu mapa de itens especiais suporta operações de inserção
  * e remoção de itens.
  *
+ * Os itens são guardados em um {@link ItemStore}: na memória do Java, em
+ * arenas comuns, ou em um arquivo mapeado em memória ({@link MappedItemStore}),
+ * em arenas com pelo menos {@link GameConfigs#getOffHeapCellThreshold()}
+ * posições ou criadas por {@link #createMapped}. Arenas criadas a partir de
+ * um modelo ({@link #fromTemplate}) compartilham os itens do modelo e guardam
+ * apenas as próprias alterações.
+ *
+ * Uma arena comum deve ser usada por uma única thread. Arenas criadas por
+ * {@link #concurrent} podem ser compartilhadas por robôs que agem ao mesmo
+ * tempo, em threads diferentes: cada operação sobre os itens é atômica, e
+ * pegar um item ({@link #removeItem}) ou trocar de arma ({@link #swapItem})
+ * só tem sucesso para um dos robôs que disputam a mesma posição.
+ *
  * @author Bruno Santos
  * @author Thais Hurtado
  *
  * @see Point3D
  * @see ArenaEntity
  * @see SpecialItem
+ * @see ItemStore
  */
 class Arena implements Serializable {
 
-    private Map<Point3D, SpecialItem> itemsMap;
+    private final ItemStore items;
     private final int WIDTH, LENGTH, HEIGHT;
 
+    /**
+     * Fluxo de alterações para espectadores, caso algum esteja conectado.
+     */
+    private transient DeltaStream deltas;
+
     Arena(int width, int length, int height, Collection<? extends Weapon> weaponsVariety) throws
             IllegalArgumentException {
+        this(width, length, height, weaponsVariety, null);
+    }
+
+    /**
+     * @param items o armazenamento (vazio) dos itens, ou <tt>null</tt> para
+     *              escolhê-lo de acordo com o volume da arena
+     */
+    private Arena(int width, int length, int height, Collection<? extends Weapon> weaponsVariety,
+                  ItemStore items) throws IllegalArgumentException {
 
         assert (weaponsVariety != null);
         final int MIN_DIM = GameConfigs.getArenaMinDimension();
@@ -43,22 +72,109 @@ class Arena implements Serializable {
         this.WIDTH = width;
         this.LENGTH = length;
         this.HEIGHT = height;
-        this.itemsMap = new HashMap<>();
+        this.items = items != null ? items : newItemStore(width, length, height);
         fill(weaponsVariety);
     }
 
+    /**
+     * Constrói uma arena sobre itens já existentes, sem gerá-los.
+     */
+    private Arena(int width, int length, int height, ItemStore items) {
+        this.WIDTH = width;
+        this.LENGTH = length;
+        this.HEIGHT = height;
+        this.items = items;
+    }
+
+    /**
+     * Cria uma arena cujos itens são guardados no arquivo informado, que pode
+     * depois ser reaberto com {@link #openMapped}.
+     *
+     * @throws IOException caso o arquivo não possa ser criado
+     */
+    static Arena createMapped(int width, int length, int height, Collection<? extends Weapon> weaponsVariety,
+                              String path) throws IOException {
+        MappedItemStore items = MappedItemStore.create(path, width, length, height);
+        Arena arena = new Arena(width, length, height, weaponsVariety, items);
+        items.force();
+        return arena;
+    }
+
+    /**
+     * Reabre uma arena criada por {@link #createMapped}, com os mesmos itens.
+     *
+     * @throws IOException caso o arquivo não possa ser lido ou não seja um
+     *                     arquivo de arena
+     */
+    static Arena openMapped(String path) throws IOException {
+        MappedItemStore items = MappedItemStore.open(path);
+        return new Arena(items.getWidth(), items.getLength(), items.getHeight(), items);
+    }
+
+    /**
+     * Cria uma arena com os itens de um modelo. As alterações na nova arena
+     * não afetam o modelo (veja {@link OverlayItemStore}).
+     *
+     * @param template os itens do modelo
+     */
+    static Arena fromTemplate(MappedItemStore template) {
+        return new Arena(template.getWidth(), template.getLength(), template.getHeight(),
+                new OverlayItemStore(template));
+    }
+
+    /**
+     * Cria uma arena que pode ser usada por várias threads ao mesmo tempo
+     * (veja {@link StripedItemStore}). Os espectadores
+     * ({@link #setDeltaStream}) não são suportados nesse modo.
+     */
+    static Arena concurrent(int width, int length, int height, Collection<? extends Weapon> weaponsVariety)
+            throws IllegalArgumentException {
+        return concurrent(width, length, height, weaponsVariety, StripedItemStore.DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes a quantidade de faixas de bloqueio (uma potência de 2)
+     *
+     * @see #concurrent(int, int, int, Collection)
+     */
+    static Arena concurrent(int width, int length, int height, Collection<? extends Weapon> weaponsVariety,
+                            int stripes) throws IllegalArgumentException {
+        return new Arena(width, length, height, weaponsVariety, new StripedItemStore(stripes));
+    }
+
+    private static ItemStore newItemStore(int width, int length, int height) {
+        if ((long) width * length * height < GameConfigs.getOffHeapCellThreshold())
+            return new HeapItemStore();
+        try {
+            return MappedItemStore.createTemporary(width, length, height);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     private void fill(Collection<? extends Weapon> weaponsVariety) {
 
-        assert (weaponsVariety != null && itemsMap != null);
+        assert (weaponsVariety != null && items != null);
 
+        long t0 = Metrics.now();
+        GameEvents.ArenaFill event = new GameEvents.ArenaFill();
+        event.begin();
         final double QTY_COEF = GameConfigs.getArenaFillCoefficient();
-        int n = (int) (WIDTH * LENGTH * HEIGHT * QTY_COEF * Math.random());
+        long n = (long) ((long) WIDTH * LENGTH * HEIGHT * QTY_COEF * Math.random());
 
         while (n-- > 0) {
             SpecialItem item = SpecialItem.random(weaponsVariety);
             Point3D p = randomPoint(); // 'p' sempre será um ponto vago na arena.
             item.setPosition(p);
-            itemsMap.put(p, item);
+            items.put(p, item);
+        }
+        Metrics.ARENA_FILL.record(t0);
+        if (event.shouldCommit()) {
+            event.width = WIDTH;
+            event.length = LENGTH;
+            event.height = HEIGHT;
+            event.items = (int) Math.min(items.size(), Integer.MAX_VALUE);
+            event.commit();
         }
     }
 
@@ -78,22 +194,108 @@ class Arena implements Serializable {
             int j = r.nextInt(LENGTH);
             int k = r.nextInt(HEIGHT);
             p = new Point3D(i, j, k);
-        } while (itemsMap.containsKey(p)); // Garante uma posição vaga.
+        } while (items.contains(p)); // Garante uma posição vaga.
         return p;
     }
 
     SpecialItem at(Point3D p) throws IllegalArgumentException {
+        long t0 = Metrics.now();
         if (!containsPoint(p))
             throw new IllegalArgumentException();
-        return itemsMap.get(p);
+        SpecialItem item = items.get(p);
+        Metrics.ARENA_AT.record(t0);
+        return item;
+    }
+
+    /**
+     * Obtém o tipo do item de uma posição (veja {@link ItemStore#kindAt}).
+     * A posição não é verificada: deve estar dentro da arena.
+     */
+    int kindAt(int x, int y, int z) {
+        return items.kindAt(x, y, z);
     }
 
     void putItem(SpecialItem item) {
-        itemsMap.put(item.getPosition(), item);
+        items.put(item.getPosition(), item);
+        if (deltas != null) deltas.itemAdded(item);
     }
 
+    /**
+     * Remove o item de uma posição. Em uma arena compartilhada, apenas um
+     * dos robôs que removem o mesmo item ao mesmo tempo o recebe.
+     *
+     * @return o item removido, ou <tt>null</tt> caso a posição já estivesse
+     *         vaga
+     */
     SpecialItem removeItem(Point3D inPosition) {
-        return itemsMap.remove(inPosition);
+        SpecialItem item = items.remove(inPosition);
+        if (item != null && deltas != null) deltas.itemRemoved(inPosition);
+        return item;
+    }
+
+    /**
+     * Remove o item de uma posição, caso ele seja do tipo informado (veja
+     * {@link ItemStore#removeKind}). A posição não é verificada: deve estar
+     * dentro da arena.
+     *
+     * @return <tt>true</tt> caso o item tenha sido removido
+     */
+    boolean removeItem(int x, int y, int z, int kind) {
+        if (!items.removeKind(x, y, z, kind))
+            return false;
+        if (deltas != null) deltas.itemRemoved(new Point3D(x, y, z));
+        return true;
+    }
+
+    /**
+     * Substitui atomicamente o item de uma posição, caso ela ainda contenha o
+     * item esperado (veja {@link ItemStore#replace}).
+     *
+     * @param replacement o novo item, já com a posição definida, ou
+     *                    <tt>null</tt> para esvaziar a posição
+     *
+     * @return <tt>true</tt> caso o item tenha sido substituído
+     */
+    boolean swapItem(Point3D p, SpecialItem expected, SpecialItem replacement) {
+        if (!containsPoint(p) || !items.replace(p, expected, replacement))
+            return false;
+        if (deltas != null) {
+            if (expected != null) deltas.itemRemoved(p);
+            if (replacement != null) deltas.itemAdded(replacement);
+        }
+        return true;
+    }
+
+    /**
+     * @return uma visão somente-leitura de todos os itens desta arena,
+     *         indexados por posição (em arenas fora da memória do Java, uma
+     *         cópia obtida percorrendo toda a arena)
+     */
+    Map<Point3D, SpecialItem> getItems() {
+        return items.toMap();
+    }
+
+    /**
+     * @return a quantidade de itens desta arena
+     */
+    long getItemCount() {
+        return items.size();
+    }
+
+    void setDeltaStream(DeltaStream deltas) {
+        this.deltas = deltas;
+    }
+
+    int getWidth() {
+        return WIDTH;
+    }
+
+    int getLength() {
+        return LENGTH;
+    }
+
+    int getHeight() {
+        return HEIGHT;
     }
 
     @Override
@@ -104,12 +306,12 @@ class Arena implements Serializable {
             return false;
         Arena other = (Arena) o;
         return WIDTH == other.WIDTH && LENGTH == other.LENGTH
-                && HEIGHT == other.HEIGHT && itemsMap.equals(other.itemsMap);
+                && HEIGHT == other.HEIGHT && items.equals(other.items);
     }
 
     @Override
     public int hashCode() {
-        int result = itemsMap.hashCode();
+        int result = items.hashCode();
         result = 31 * result + WIDTH;
         result = 31 * result + LENGTH;
         result = 31 * result + HEIGHT;
@@ -119,7 +321,7 @@ class Arena implements Serializable {
     @Override
     public String toString() {
         return String.format("%s: <Dim %d x %d x %d> <Itens %d>", getClass().getSimpleName(),
-                WIDTH, LENGTH, HEIGHT, itemsMap.size());
+                WIDTH, LENGTH, HEIGHT, items.size());
     }
 
 }
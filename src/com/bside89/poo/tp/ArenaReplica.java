@@ -0,0 +1,178 @@
+package com.bside89.poo.tp;
+
+import static com.bside89.poo.tp.DeltaStream.*;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cópia local do estado de uma partida, mantida por um espectador a partir de
+ * um {@link DeltaStream}.
+ *
+ * A réplica guarda apenas o necessário para exibir a partida: a descrição de
+ * cada item da arena e o estado de cada robô. Enquanto nenhum quadro-chave
+ * tiver sido recebido (espectador que se conectou no meio da partida), os
+ * registros incrementais são lidos e descartados.
+ *
+ * @author Bruno Santos
+ *
+ * @see DeltaStream
+ */
+final class ArenaReplica {
+
+    private final Map<Point3D, String> items = new HashMap<>();
+    private int width, length, height;
+    private int turn, num;
+    private boolean synced;
+
+    // Estado de cada robô, indexado por ID - 1.
+    private final String[] name = new String[2];
+    private final Point3D[] position = new Point3D[2];
+    private final double[] hp = new double[2], armor = new double[2];
+    private final boolean[] infected = new boolean[2];
+    private final String[] weapon = new String[2];
+
+    /**
+     * Lê e aplica os registros de uma ação, até o registro {@code END_ACTION}
+     * ou o fim de um quadro-chave.
+     *
+     * @param in o fluxo de entrada
+     *
+     * @return <tt>true</tt> caso a réplica esteja sincronizada com a partida
+     *
+     * @throws IOException caso o fluxo termine ou contenha dados inválidos
+     */
+    boolean readAction(DataInput in) throws IOException {
+        while (true) {
+            byte type = in.readByte();
+            switch (type) {
+                case KEYFRAME:
+                    readKeyframe(in);
+                    return synced;
+                case ITEM_ADDED: {
+                    Point3D p = readPoint(in);
+                    String item = readItem(in);
+                    if (synced) items.put(p, item);
+                    break;
+                }
+                case ITEM_REMOVED: {
+                    Point3D p = readPoint(in);
+                    if (synced) items.remove(p);
+                    break;
+                }
+                case ROBOT_MOVED: {
+                    int i = readVarint(in) - 1;
+                    position[i] = readPoint(in);
+                    break;
+                }
+                case HP_CHANGED: {
+                    int i = readVarint(in) - 1;
+                    hp[i] = readVarLong(in) / 100.0;
+                    break;
+                }
+                case INFECTED:
+                case CURED:
+                    infected[readVarint(in) - 1] = type == INFECTED;
+                    break;
+                case WEAPON_CHANGED: {
+                    int i = readVarint(in) - 1;
+                    weapon[i] = readWeapon(in);
+                    break;
+                }
+                case END_ACTION:
+                    turn = readVarint(in);
+                    num = readVarint(in);
+                    return synced;
+                default:
+                    throw new IOException("Registro desconhecido: " + type);
+            }
+        }
+    }
+
+    private void readKeyframe(DataInput in) throws IOException {
+        turn = readVarint(in);
+        num = readVarint(in);
+        width = readVarint(in);
+        length = readVarint(in);
+        height = readVarint(in);
+        items.clear();
+        for (int n = readVarint(in); n > 0; n--) {
+            Point3D p = readPoint(in);
+            items.put(p, readItem(in));
+        }
+        for (int k = 0; k < 2; k++) {
+            int i = readVarint(in) - 1;
+            name[i] = in.readUTF();
+            position[i] = readPoint(in);
+            hp[i] = readVarLong(in) / 100.0;
+            armor[i] = readVarLong(in) / 100.0;
+            infected[i] = in.readBoolean();
+            weapon[i] = readWeapon(in);
+        }
+        synced = true;
+    }
+
+    private static Point3D readPoint(DataInput in) throws IOException {
+        return new Point3D(readVarint(in), readVarint(in), readVarint(in));
+    }
+
+    private static String readItem(DataInput in) throws IOException {
+        switch (in.readByte()) {
+            case ITEM_BOMB:
+                return Bomb.class.getSimpleName();
+            case ITEM_VIRUS:
+                return Virus.class.getSimpleName();
+            case ITEM_WEAPON:
+                return readWeapon(in);
+            default:
+                throw new IOException("Item desconhecido.");
+        }
+    }
+
+    private static String readWeapon(DataInput in) throws IOException {
+        if (!in.readBoolean())
+            return null;
+        String name = in.readUTF();
+        return String.format("%s (%.2f)", name, readVarLong(in) / 100.0);
+    }
+
+    boolean isSynced() {
+        return synced;
+    }
+
+    int getItemCount() {
+        return items.size();
+    }
+
+    /**
+     * @return a descrição do item na posição p, ou <tt>null</tt> caso esteja vaga
+     */
+    String itemAt(Point3D p) {
+        return items.get(p);
+    }
+
+    Point3D getPosition(int playerId) {
+        return position[playerId - 1];
+    }
+
+    double getHp(int playerId) {
+        return hp[playerId - 1];
+    }
+
+    @Override
+    public String toString() {
+        if (!synced)
+            return getClass().getSimpleName() + ": <Aguardando quadro-chave>";
+        StringBuilder s = new StringBuilder(String.format("TURN %d - ACTION %d\n", turn, num));
+        for (int i = 0; i < 2; i++) {
+            s.append(String.format("PLAYER %d: %s c/ %s em P%s: <HP %.2f> <A %.2f>%s\n", i + 1, name[i],
+                    weapon[i], position[i], hp[i], armor[i], infected[i] ? " (infectado)" : ""));
+        }
+        s.append(String.format("Arena: <Dim %d x %d x %d> <Itens %d>\n", width, length, height,
+                items.size()));
+        return s.toString();
+    }
+
+}
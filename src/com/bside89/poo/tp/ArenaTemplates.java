@@ -0,0 +1,122 @@
+package com.bside89.poo.tp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Biblioteca de modelos de arena, gravados em um diretório.
+ *
+ * Um modelo é uma arena gerada uma única vez e gravada com um nome, no
+ * formato compacto de {@link MappedItemStore} (um byte por posição). Em vez de
+ * gerar uma nova arena a cada partida, um torneio pode criar as arenas a
+ * partir dos modelos: o arquivo de cada modelo é mapeado em memória uma única
+ * vez, somente para leitura, e cada arena criada guarda apenas as próprias
+ * alterações ({@link OverlayItemStore}). Assim, o custo de criar uma arena
+ * não depende de seu volume, e os itens pegos em uma partida não afetam as
+ * outras.
+ *
+ * Cada modelo é gravado no arquivo {@code <diretório>/<nome>.arena}.
+ *
+ * @author Bruno Santos
+ *
+ * @see Arena#fromTemplate
+ */
+final class ArenaTemplates {
+
+    static final String EXTENSION = ".arena";
+
+    private final File dir;
+
+    /**
+     * Modelos já mapeados em memória, por nome.
+     */
+    private final Map<String, MappedItemStore> opened = new ConcurrentHashMap<>();
+
+    /**
+     * @param dirPath o caminho do diretório da biblioteca, criado caso não
+     *                exista
+     *
+     * @throws IOException caso o diretório não possa ser criado
+     */
+    ArenaTemplates(String dirPath) throws IOException {
+        this.dir = new File(dirPath);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Não foi possível criar o diretório " + dirPath);
+    }
+
+    private File file(String name) throws IllegalArgumentException {
+        if (!name.matches("[\\w-]+"))
+            throw new IllegalArgumentException(name);
+        return new File(dir, name + EXTENSION);
+    }
+
+    /**
+     * Gera uma arena e a grava como um modelo, substituindo o modelo de mesmo
+     * nome caso exista. As arenas já criadas a partir do modelo substituído
+     * continuam válidas.
+     *
+     * @param name  o nome do modelo (letras, dígitos, '_' ou '-')
+     *
+     * @throws IOException caso o modelo não possa ser gravado
+     */
+    void save(String name, int width, int length, int height, Collection<? extends Weapon> weaponsVariety)
+            throws IOException {
+
+        File target = file(name);
+        // O modelo é gerado em um arquivo temporário e depois renomeado, para
+        // não alterar um arquivo que possa estar mapeado em memória.
+        // O prefixo fixo garante os 3 caracteres exigidos por createTempFile.
+        File tmp = File.createTempFile("template-" + name, ".tmp", dir);
+        try {
+            Arena.createMapped(width, length, height, weaponsVariety, tmp.getPath());
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        opened.remove(name);
+    }
+
+    /**
+     * Cria uma nova arena a partir de um modelo. O modelo é mapeado em
+     * memória na primeira chamada; as chamadas seguintes não acessam o disco.
+     *
+     * @param name o nome do modelo
+     *
+     * @throws IOException caso o modelo não exista ou não possa ser lido
+     */
+    Arena instantiate(String name) throws IOException {
+        MappedItemStore template = opened.get(name);
+        if (template == null) {
+            template = MappedItemStore.open(file(name).getPath(), true);
+            MappedItemStore previous = opened.putIfAbsent(name, template);
+            if (previous != null)
+                template = previous;
+        }
+        return Arena.fromTemplate(template);
+    }
+
+    boolean contains(String name) {
+        return file(name).isFile();
+    }
+
+    /**
+     * @return os nomes dos modelos da biblioteca, em ordem alfabética
+     */
+    SortedSet<String> names() {
+        SortedSet<String> names = new TreeSet<>();
+        File[] files = dir.listFiles((d, n) -> n.endsWith(EXTENSION));
+        if (files != null)
+            for (File f : files)
+                names.add(f.getName().substring(0, f.getName().length() - EXTENSION.length()));
+        return names;
+    }
+
+}
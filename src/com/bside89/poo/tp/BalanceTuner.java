@@ -0,0 +1,464 @@
+package com.bside89.poo.tp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Ajuste automático do balanceamento dos robôs e armas.
+ *
+ * O elenco é uma lista de equipamentos (um robô com sua arma inicial), e o
+ * objetivo é que, em cada confronto entre dois equipamentos do elenco, cada
+ * lado vença entre {@link #LOW} e {@link #HIGH} das partidas automáticas
+ * ({@link MatchBatch}). Os valores ajustados são o HP e a armadura de cada
+ * robô e o coeficiente de dano (sigma) de cada arma do elenco, sempre
+ * inteiros, como nos arquivos de listagem. As armas encontradas nas arenas
+ * mantêm os valores originais, para que o resultado de um confronto não
+ * dependa do restante do elenco.
+ *
+ * A busca é uma estratégia evolutiva (1+λ): a cada geração, λ variações da
+ * melhor configuração conhecida alteram um único valor por um fator
+ * log-normal (limitado a {@value #MAX_FACTOR} vezes o valor original, ou
+ * a uma fração equivalente dele); a melhor variação substitui a
+ * configuração atual caso a aproxime do objetivo. O tamanho dos passos
+ * cresce a cada sucesso e diminui a cada fracasso (regra de 1/5). A busca
+ * termina quando todos os confrontos estão dentro da faixa, quando os
+ * passos ficam pequenos demais para alterar os valores ou quando o prazo se
+ * esgota.
+ *
+ * Cada confronto é avaliado com K partidas, metade com cada equipamento
+ * como jogador 1, divididas em lotes distribuídos entre todos os núcleos.
+ * As sementes dependem apenas da posição do lote, de modo que o resultado de
+ * um confronto depende apenas dos dois equipamentos: os resultados ficam em
+ * um {@link ResultCache}, e os confrontos que uma variação não altera não são
+ * simulados novamente (nem entre execuções, com o cache em disco).
+ *
+ * Uso:
+ * <pre>
+ *   java com.bside89.poo.tp.BalanceTuner diretório K [robô:arma]...
+ * </pre>
+ * Sem equipamentos, o elenco é formado por cada robô do catálogo com a arma
+ * de mesma posição no catálogo de armas. Os catálogos ajustados são gravados
+ * no diretório, como robots.txt e weapons.txt. O prazo, em horas, é lido de
+ * {@code mechawars.tuner.hours} (12, por padrão).
+ *
+ * @author Bruno Santos
+ *
+ * @see MatchBatch
+ * @see ParameterSweep
+ */
+final class BalanceTuner {
+
+    /**
+     * A faixa de taxas de vitória aceitas em cada confronto.
+     */
+    static final double LOW = 0.45, HIGH = 0.55;
+
+    /**
+     * Quantidade máxima de partidas simuladas simultaneamente por uma thread,
+     * o que limita a memória ocupada pelas arenas.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Quantidade máxima de ações por partida. Partidas inacabadas contam
+     * como meia vitória para cada lado.
+     */
+    private static final int MAX_ACTIONS = 100000;
+
+    /**
+     * Tamanho inicial e mínimo dos passos, como desvio padrão do logaritmo
+     * do fator aplicado a um valor.
+     */
+    private static final double INITIAL_STEP = 0.3, MIN_STEP = 0.002;
+
+    /**
+     * Fator máximo entre um valor ajustado e o valor original, em cada
+     * sentido.
+     */
+    private static final int MAX_FACTOR = 4;
+
+    /**
+     * Um robô com sua arma inicial.
+     */
+    static final class Loadout {
+
+        private final Robot robot;
+        private final Weapon weapon;
+
+        Loadout(Robot robot, Weapon weapon) {
+            if (robot == null || weapon == null)
+                throw new IllegalArgumentException();
+            this.robot = robot;
+            this.weapon = weapon;
+        }
+
+        Robot getRobot() {
+            return robot;
+        }
+
+        Weapon getWeapon() {
+            return weapon;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            Loadout other = (Loadout) o;
+            return robot.equals(other.robot) && weapon.equals(other.weapon);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * robot.hashCode() + weapon.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return robot.getName() + ":" + weapon.getName();
+        }
+    }
+
+    /**
+     * Uma configuração do elenco: os valores de cada robô e arma, por nome.
+     */
+    private static final class Config {
+
+        final String[] robots, weapons;
+        final int[] hp, armor, sigma;
+        double fitness = Double.NaN;
+
+        Config(String[] robots, int[] hp, int[] armor, String[] weapons, int[] sigma) {
+            this.robots = robots;
+            this.hp = hp;
+            this.armor = armor;
+            this.weapons = weapons;
+            this.sigma = sigma;
+        }
+
+        Config copy() {
+            return new Config(robots, hp.clone(), armor.clone(), weapons, sigma.clone());
+        }
+
+        Robot robot(String name) {
+            int i = Arrays.asList(robots).indexOf(name);
+            return new Robot(name, hp[i], armor[i]);
+        }
+
+        Weapon weapon(String name) {
+            int i = Arrays.asList(weapons).indexOf(name);
+            return new Weapon(name, sigma[i]);
+        }
+    }
+
+    private final List<String[]> roster;
+    private final Collection<? extends Weapon> weapons;
+    private final SimParams params;
+    private final int MATCHES;
+    private final long SEED;
+    private final ExecutorService pool;
+    private final SplittableRandom random;
+
+    private final ResultCache cache;
+    private long evaluations;
+
+    /**
+     * A configuração inicial, que limita as variações.
+     */
+    private Config origin;
+
+    /**
+     * @param weaponsVariety    as armas que podem ser encontradas nas arenas
+     * @param matchesPerPairing a quantidade K de partidas por confronto
+     * @param params            os parâmetros de balanceamento das partidas
+     * @param seed              a semente base das partidas e da busca
+     * @param threads           a quantidade de threads (normalmente, a de
+     *                          núcleos)
+     * @param cache             o cache dos resultados dos confrontos
+     */
+    BalanceTuner(List<Loadout> roster, Collection<? extends Weapon> weaponsVariety, int matchesPerPairing,
+                 SimParams params, long seed, int threads, ResultCache cache) {
+        if (roster.size() < 2 || matchesPerPairing < 2 || threads <= 0 || cache == null)
+            throw new IllegalArgumentException();
+        this.roster = new ArrayList<>();
+        for (Loadout e : roster)
+            this.roster.add(new String[]{e.getRobot().getName(), e.getWeapon().getName()});
+        this.weapons = weaponsVariety;
+        this.params = params;
+        this.MATCHES = matchesPerPairing;
+        this.SEED = seed;
+        this.pool = Executors.newFixedThreadPool(threads);
+        this.random = new SplittableRandom(seed);
+        this.cache = cache;
+    }
+
+    /**
+     * Ajusta o elenco.
+     *
+     * @param initial   o elenco inicial
+     * @param deadline  o prazo, em {@link System#nanoTime()}
+     *
+     * @return o elenco ajustado, na mesma ordem
+     */
+    List<Loadout> tune(List<Loadout> initial, long deadline) throws InterruptedException {
+
+        Config best = origin = config(initial);
+        evaluate(Collections.singletonList(best));
+        int lambda = Math.max(2, ((ThreadPoolExecutor) pool).getCorePoolSize());
+        double step = INITIAL_STEP;
+        for (int generation = 1; best.fitness > 0 && step >= MIN_STEP && System.nanoTime() < deadline;
+             generation++) {
+            List<Config> offspring = new ArrayList<>(lambda);
+            for (int i = 0; i < lambda; i++)
+                offspring.add(mutate(best, step));
+            evaluate(offspring);
+            Config candidate = Collections.min(offspring, Comparator.comparingDouble(c -> c.fitness));
+            if (candidate.fitness < best.fitness) {
+                best = candidate;
+                step *= 1.5;
+            } else {
+                step *= Math.pow(1.5, -0.25);
+            }
+            System.out.printf("geração %d: erro %.6f, passo %.4f, %d confrontos simulados, %.1f%% em cache\n",
+                    generation, best.fitness, step, evaluations, 100 * cache.getHitRate());
+        }
+
+        List<Loadout> tuned = new ArrayList<>(roster.size());
+        for (String[] e : roster)
+            tuned.add(new Loadout(best.robot(e[0]), best.weapon(e[1])));
+        return tuned;
+    }
+
+    private Config config(List<Loadout> initial) {
+        Map<String, Robot> robots = new LinkedHashMap<>();
+        Map<String, Weapon> weapons = new LinkedHashMap<>();
+        for (Loadout e : initial) {
+            robots.put(e.getRobot().getName(), e.getRobot());
+            weapons.put(e.getWeapon().getName(), e.getWeapon());
+        }
+        int[] hp = new int[robots.size()], armor = new int[robots.size()], sigma = new int[weapons.size()];
+        int i = 0;
+        for (Robot r : robots.values()) {
+            hp[i] = (int) Math.round(r.getHp());
+            armor[i++] = (int) Math.round(r.getArmor());
+        }
+        i = 0;
+        for (Weapon w : weapons.values())
+            sigma[i++] = (int) Math.round(w.getSigma());
+        return new Config(robots.keySet().toArray(new String[0]), hp, armor,
+                weapons.keySet().toArray(new String[0]), sigma);
+    }
+
+    /**
+     * Altera um único valor de uma configuração, sorteado.
+     */
+    private Config mutate(Config c, double step) {
+        Config m = c.copy();
+        int[][] genes = {m.hp, m.armor, m.sigma}, originals = {origin.hp, origin.armor, origin.sigma};
+        int n = m.hp.length + m.armor.length + m.sigma.length, g = random.nextInt(n), k = 0;
+        while (g >= genes[k].length)
+            g -= genes[k++].length;
+        int[] values = genes[k];
+        int original = originals[k][g];
+        // Gaussiana padrão, pelo método de Box-Muller.
+        double gaussian = Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+        int value = (int) Math.round(values[g] * Math.exp(step * gaussian));
+        // Garante que a variação altere o valor.
+        if (value == values[g])
+            value += gaussian < 0 ? -1 : 1;
+        values[g] = Math.max(Math.max(1, original / MAX_FACTOR), Math.min(original * MAX_FACTOR, value));
+        return m;
+    }
+
+    /**
+     * Calcula o erro de cada configuração: a soma dos quadrados das
+     * distâncias entre as taxas de vitória dos confrontos e a faixa aceita.
+     * Os confrontos que não estão em cache são simulados em paralelo.
+     *
+     * @return as taxas de vitória do jogador 1 em cada confronto avaliado
+     *         (jogador 1 e jogador 2, com os valores de cada lado)
+     */
+    private Map<List<Loadout>, Double> evaluate(List<Config> configs) throws InterruptedException {
+
+        Map<List<Loadout>, Double> scores = new HashMap<>();
+        Map<List<Loadout>, List<Future<ResultCache.Result>>> tasks = new HashMap<>();
+        int half = MATCHES / 2;
+        for (Config c : configs)
+            forEachPairing(c, (p1, p2) -> {
+                for (List<Loadout> matchup : Arrays.asList(Arrays.asList(p1, p2), Arrays.asList(p2, p1))) {
+                    if (scores.containsKey(matchup) || tasks.containsKey(matchup))
+                        continue;
+                    ResultCache.Result r = cache.get(key(matchup));
+                    if (r != null) {
+                        scores.put(matchup, r.getP1Score());
+                        continue;
+                    }
+                    List<Future<ResultCache.Result>> chunks = new ArrayList<>();
+                    for (int done = 0; done < half; done += BATCH_SIZE) {
+                        final int start = done, n = Math.min(BATCH_SIZE, half - done);
+                        chunks.add(pool.submit(() -> simulate(matchup.get(0), matchup.get(1), n, start)));
+                    }
+                    tasks.put(matchup, chunks);
+                    evaluations++;
+                }
+            });
+        try {
+            for (Map.Entry<List<Loadout>, List<Future<ResultCache.Result>>> e : tasks.entrySet()) {
+                ResultCache.Result r = null;
+                for (Future<ResultCache.Result> f : e.getValue())
+                    r = r == null ? f.get() : r.plus(f.get());
+                cache.put(key(e.getKey()), r);
+                scores.put(e.getKey(), r.getP1Score());
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        for (Config c : configs) {
+            double[] error = {0};
+            forEachPairing(c, (p1, p2) -> {
+                double rate = (scores.get(Arrays.asList(p1, p2)) + 1 - scores.get(Arrays.asList(p2, p1))) / 2;
+                double d = Math.max(0, Math.max(LOW - rate, rate - HIGH));
+                error[0] += d * d;
+            });
+            c.fitness = error[0];
+        }
+        return scores;
+    }
+
+    /**
+     * @return a chave de um confronto (jogador 1 e jogador 2) no cache
+     */
+    private ResultCache.Key key(List<Loadout> matchup) {
+        Loadout p1 = matchup.get(0), p2 = matchup.get(1);
+        int dim = params.getArenaDimension();
+        return ResultCache.fingerprint(p1.getRobot(), p1.getWeapon(), p2.getRobot(), p2.getWeapon(), weapons,
+                dim, dim, dim, params, SEED, MATCHES / 2, MAX_ACTIONS);
+    }
+
+    private interface PairingConsumer {
+        void accept(Loadout p1, Loadout p2);
+    }
+
+    private void forEachPairing(Config c, PairingConsumer action) {
+        for (int i = 0; i < roster.size(); i++)
+            for (int j = i + 1; j < roster.size(); j++) {
+                String[] a = roster.get(i), b = roster.get(j);
+                action.accept(new Loadout(c.robot(a[0]), c.weapon(a[1])),
+                        new Loadout(c.robot(b[0]), c.weapon(b[1])));
+            }
+    }
+
+    /**
+     * Simula um lote de partidas de um confronto.
+     *
+     * @param start a posição do lote entre as partidas do confronto, que
+     *              define a semente
+     *
+     */
+    private ResultCache.Result simulate(Loadout p1, Loadout p2, int n, int start) {
+        int dim = params.getArenaDimension();
+        MatchBatch batch = new MatchBatch(n, dim, dim, dim, p1.getRobot(), p1.getWeapon(), p2.getRobot(),
+                p2.getWeapon(), weapons, SEED * 31 + start, params);
+        batch.run(MAX_ACTIONS);
+        return ResultCache.Result.of(batch);
+    }
+
+    /**
+     * @return as taxas de vitória, em cada confronto do elenco, do
+     *         equipamento que aparece primeiro, metade das partidas como
+     *         jogador 1 e metade como jogador 2
+     */
+    double[][] winRates(List<Loadout> loadouts) throws InterruptedException {
+        Map<List<Loadout>, Double> scores = evaluate(Collections.singletonList(config(loadouts)));
+        int n = loadouts.size();
+        double[][] rates = new double[n][n];
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++) {
+                if (i == j) {
+                    rates[i][j] = 0.5;
+                    continue;
+                }
+                Loadout a = loadouts.get(i), b = loadouts.get(j);
+                rates[i][j] = (scores.get(Arrays.asList(a, b)) + 1 - scores.get(Arrays.asList(b, a))) / 2;
+            }
+        return rates;
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        if (args.length < 2) {
+            System.err.println("Uso: BalanceTuner diretório K [robô:arma]...");
+            System.exit(2);
+        }
+        GameConfigs.loadConfigs(String.format("datafiles%sconfig.txt", File.separator));
+        Catalogs.Lazy catalogs = new Catalogs.Lazy(String.format("datafiles%srobots.txt", File.separator),
+                String.format("datafiles%sweapons.txt", File.separator));
+        SortedSet<Robot> robots = catalogs.robots();
+        SortedSet<Weapon> weapons = catalogs.weapons();
+
+        List<Loadout> roster = new ArrayList<>();
+        if (args.length > 2) {
+            for (int i = 2; i < args.length; i++) {
+                String[] rw = args[i].split(":", 2);
+                roster.add(new Loadout(Catalogs.byName(robots, rw[0]), Catalogs.byName(weapons, rw[1])));
+            }
+        } else {
+            Iterator<Weapon> w = weapons.iterator();
+            for (Robot r : robots)
+                if (w.hasNext())
+                    roster.add(new Loadout(r, w.next()));
+        }
+
+        long t0 = System.nanoTime();
+        long deadline = t0 + (long) (Double.parseDouble(System.getProperty("mechawars.tuner.hours", "12")) * 3.6e12);
+        List<Loadout> tuned;
+        double[][] rates;
+        try (ResultCache cache = ResultCache.open()) {
+            BalanceTuner tuner = new BalanceTuner(roster, weapons, Integer.parseInt(args[1]), SimParams.defaults(),
+                    42, Runtime.getRuntime().availableProcessors(), cache);
+            try {
+                tuned = tuner.tune(roster, deadline);
+                rates = tuner.winRates(tuned);
+            } finally {
+                tuner.shutdown();
+            }
+            System.out.println(cache);
+        }
+
+        File dir = new File(args[0]);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Não foi possível criar o diretório: " + dir);
+        try (PrintWriter r = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dir, "robots.txt")), StandardCharsets.ISO_8859_1));
+             PrintWriter w = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dir, "weapons.txt")), StandardCharsets.ISO_8859_1))) {
+            r.println("# Robôs ajustados por BalanceTuner: <Nome> <HP> <Armor>");
+            w.println("# Armas ajustadas por BalanceTuner: <Nome> <Sigma>");
+            Set<String> written = new HashSet<>();
+            for (Loadout e : tuned) {
+                if (written.add("r:" + e.getRobot().getName()))
+                    r.printf("%s %d %d\n", e.getRobot().getName(), Math.round(e.getRobot().getHp()),
+                            Math.round(e.getRobot().getArmor()));
+                if (written.add("w:" + e.getWeapon().getName()))
+                    w.printf("%s %d\n", e.getWeapon().getName(), Math.round(e.getWeapon().getSigma()));
+            }
+        }
+        for (int i = 0; i < tuned.size(); i++) {
+            StringBuilder s = new StringBuilder(String.format("%-26s", tuned.get(i)));
+            for (int j = 0; j < tuned.size(); j++)
+                s.append(String.format(" %5.3f", rates[i][j]));
+            System.out.println(s);
+        }
+        System.out.printf("Ajuste concluído em %.1f s.\n", (System.nanoTime() - t0) / 1e9);
+    }
+
+}
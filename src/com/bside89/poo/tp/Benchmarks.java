@@ -0,0 +1,1496 @@
+package com.bside89.poo.tp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.File;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Medições de desempenho dos caminhos críticos do jogo.
+ *
+ * Cada medição é executada em uma única thread, com uma fase de aquecimento
+ * (para que o JIT compile o código medido) seguida da fase de medição
+ * propriamente dita. Os resultados são impressos em operações por segundo,
+ * isto é, vazão por núcleo.
+ *
+ * Uso: java com.bside89.poo.tp.Benchmarks [nome...]
+ *
+ * Sem argumentos, todas as medições são executadas.
+ *
+ * @author Bruno Santos
+ */
+public final class Benchmarks {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    /**
+     * Variável que recebe os resultados das medições, impedindo que o JIT
+     * elimine o código medido como código morto.
+     */
+    private static volatile double sink;
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private Benchmarks(){}
+
+    public static void main(String[] args) {
+
+        String[] names = args.length > 0 ? args : new String[]{"damage", "lockstep", "codec", "delta", "metrics", "fixposition",
+                "offheap", "templates", "save", "archive", "query", "contention", "tick", "raycast",
+                "chain", "epidemic", "effects", "resultcache", "startup", "longmatch"};
+        for (String name : names) {
+            switch (name) {
+                case "damage":
+                    benchDamage();
+                    break;
+                case "lockstep":
+                    benchLockstep();
+                    break;
+                case "codec":
+                    benchCodec();
+                    break;
+                case "delta":
+                    benchDelta();
+                    break;
+                case "metrics":
+                    benchMetrics();
+                    break;
+                case "fixposition":
+                    benchFixPosition();
+                    break;
+                case "offheap":
+                    benchOffHeap();
+                    break;
+                case "templates":
+                    benchTemplates();
+                    break;
+                case "save":
+                    benchSave();
+                    break;
+                case "archive":
+                    benchArchive();
+                    break;
+                case "query":
+                    benchQuery();
+                    break;
+                case "contention":
+                    benchContention();
+                    break;
+                case "tick":
+                    benchTick();
+                    break;
+                case "raycast":
+                    benchRaycast();
+                    break;
+                case "chain":
+                    benchChain();
+                    break;
+                case "epidemic":
+                    benchEpidemic();
+                    break;
+                case "effects":
+                    benchEffects();
+                    break;
+                case "resultcache":
+                    benchResultCache();
+                    break;
+                case "startup":
+                    benchStartup();
+                    break;
+                case "longmatch":
+                    benchLongMatch();
+                    break;
+                case "startup-worker":
+                    // Processo filho de benchStartup().
+                    startupWorker(System.getProperty("mechawars.bench.startup.mode", "text"));
+                    return;
+                default:
+                    System.err.println("Medição desconhecida: " + name);
+            }
+        }
+    }
+
+    /**
+     * Compara o cálculo de dano par a par de {@link Robot#attack(Robot)} com o
+     * cálculo em lote de {@link DamageKernel}.
+     */
+    private static void benchDamage() {
+
+        final int n = 1 << 16;
+        Random r = new Random(42);
+        SplittableRandom sr = new SplittableRandom(42);
+        double[] sigma = new double[n], armor = new double[n];
+        double[] rand1 = new double[n], rand2 = new double[n], out = new double[n];
+        int[] ax = new int[n], ay = new int[n], az = new int[n];
+        int[] tx = new int[n], ty = new int[n], tz = new int[n];
+        Robot[] attackers = new Robot[n], targets = new Robot[n];
+
+        for (int i = 0; i < n; i++) {
+            sigma[i] = 70 + r.nextInt(240);
+            armor[i] = 55 + r.nextInt(225);
+            ax[i] = r.nextInt(60); ay[i] = r.nextInt(60); az[i] = r.nextInt(60);
+            tx[i] = ax[i] + 1 + r.nextInt(10); ty[i] = ay[i]; tz[i] = az[i];
+            attackers[i] = new Robot("A" + i, Double.MAX_VALUE, armor[i],
+                    new Weapon("W" + i, sigma[i]), new Point3D(ax[i], ay[i], az[i]));
+            targets[i] = new Robot("T" + i, Double.MAX_VALUE, armor[i],
+                    null, new Point3D(tx[i], ty[i], tz[i]));
+        }
+
+        double scalarMean = 0, batchMean = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long t0 = System.nanoTime();
+            double acc = 0;
+            for (int i = 0; i < n; i++)
+                acc += attackers[i].attack(targets[i]);
+            long t1 = System.nanoTime();
+            DamageKernel.resolve(n, sigma, ax, ay, az, tx, ty, tz, armor, sr, rand1, rand2, out);
+            long t2 = System.nanoTime();
+            DamageKernel.resolve(n, sigma, ax, ay, az, tx, ty, tz, armor, rand1, rand2, out);
+            long t3 = System.nanoTime();
+            double acc2 = 0;
+            for (int i = 0; i < n; i++)
+                acc2 += out[i];
+            sink = acc + acc2;
+            if (round >= WARMUP_ROUNDS) {
+                report("damage/scalar", n, t1 - t0);
+                report("damage/batch", n, t2 - t1);
+                report("damage/batch-kernel", n, t3 - t2);
+                scalarMean += acc / n / ROUNDS;
+                batchMean += acc2 / n / ROUNDS;
+            }
+        }
+        // Ambos os caminhos devem ter a mesma distribuição de dano.
+        System.out.printf("damage/mean: scalar %.4f, batch %.4f\n", scalarMean, batchMean);
+    }
+
+    /**
+     * Mede a vazão, em ações simuladas por segundo, de um lote de partidas de
+     * {@link MatchBatch}.
+     */
+    private static void benchLockstep() {
+
+        final int matches = 2048, dim = GameConfigs.getArenaMinDimension();
+        List<Weapon> weapons = Arrays.asList(new Weapon("LaserCannon", 200), new Weapon("Missiles", 100),
+                new Weapon("Railgun", 300));
+        Robot r1 = new Robot("Epyon", 2700, 250), r2 = new Robot("Virgo", 4100, 120);
+
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            MatchBatch batch = new MatchBatch(matches, dim, dim, dim, r1, weapons.get(0), r2,
+                    weapons.get(1), weapons, round);
+            long t0 = System.nanoTime();
+            batch.run(Integer.MAX_VALUE);
+            long t1 = System.nanoTime();
+            sink = batch.getActions();
+            if (round >= WARMUP_ROUNDS)
+                report("lockstep/actions", batch.getActions(), t1 - t0);
+        }
+    }
+
+    /**
+     * Compara a interpretação de comandos com {@link StringTokenizer} (como
+     * era feita em {@code Action.make()}) com o parser de {@link Command} e
+     * com a decodificação da forma binária.
+     */
+    private static void benchCodec() {
+
+        final int n = 1 << 16;
+        Random r = new Random(42);
+        String[] text = new String[n];
+        ByteBuffer binary = ByteBuffer.allocate(n * Command.MAX_ENCODED_LENGTH);
+        for (int i = 0; i < n; i++) {
+            Command c = r.nextInt(4) == 0 ? Command.ATTACK
+                    : Command.move(r.nextInt(21) - 10, r.nextInt(21) - 10, r.nextInt(21) - 10);
+            text[i] = c.toString();
+            c.encode(binary);
+        }
+        binary.flip();
+        System.out.printf("codec/bytes-per-command: text %.2f, binary %.2f\n",
+                Arrays.stream(text).mapToInt(String::length).average().orElse(0),
+                (double) binary.limit() / n);
+
+        int[] args = new int[3];
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long t0 = System.nanoTime();
+            long acc = 0;
+            for (String e : text) {
+                StringTokenizer tok = new StringTokenizer(e);
+                String act = tok.nextToken();
+                if (act.equals("move")) {
+                    Queue<String> q = new ArrayDeque<>(3);
+                    while (tok.hasMoreTokens()) q.add(tok.nextToken());
+                    acc += Integer.parseInt(q.poll()) + Integer.parseInt(q.poll())
+                            + Integer.parseInt(q.poll());
+                }
+            }
+            long t1 = System.nanoTime();
+            for (String e : text)
+                acc += Command.parse(e, args) + args[0] + args[1] + args[2];
+            long t2 = System.nanoTime();
+            binary.rewind();
+            for (int i = 0; i < n; i++)
+                acc += Command.decode(binary).getDx();
+            long t3 = System.nanoTime();
+            sink = acc;
+            if (round >= WARMUP_ROUNDS) {
+                report("codec/tokenizer", n, t1 - t0);
+                report("codec/text", n, t2 - t1);
+                report("codec/binary", n, t3 - t2);
+            }
+        }
+    }
+
+    /**
+     * Mede a quantidade de bytes por ação do fluxo incremental de
+     * {@link DeltaStream}, comparada ao tamanho de um estado completo da
+     * partida, e confere que um {@link ArenaReplica} reproduz a arena.
+     */
+    private static void benchDelta() {
+
+        final int dim = GameConfigs.getArenaMinDimension();
+        List<Weapon> weapons = Arrays.asList(new Weapon("LaserCannon", 200), new Weapon("Missiles", 100),
+                new Weapon("Railgun", 300));
+        Random r = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Arena arena = new Arena(dim, dim, dim, weapons);
+        Player p1 = newPlayer(1, new Robot("Epyon", 2700, 250), weapons.get(0), arena);
+        Player p2 = newPlayer(2, new Robot("Virgo", 4100, 120), weapons.get(1), arena);
+        DeltaStream deltas = new DeltaStream(out, 64);
+        deltas.start(0, 0, arena, p1, p2);
+        playMatch(r, arena, p1, p2, deltas);
+        deltas.stop();
+
+        ArenaReplica replica = new ArenaReplica();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+            while (in.available() > 0)
+                replica.readAction(in);
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+        System.out.printf("delta/bytes-per-action: %.1f (estado completo: %d bytes)\n",
+                deltas.getBytesPerAction(), deltas.getSnapshotBytes());
+        System.out.printf("delta/keyframes: %d (%d bytes)\n", deltas.getKeyframes(),
+                deltas.getKeyframeBytes());
+        System.out.printf("delta/replica: %s\n",
+                replica.getItemCount() == arena.getItemCount() ? "consistente" : "DIVERGENTE");
+    }
+
+    /**
+     * Mede o custo das métricas de {@link Metrics} em partidas executadas por
+     * {@link Action}, alternando rodadas com as métricas ativadas e desativadas.
+     */
+    private static void benchMetrics() {
+
+        final int dim = GameConfigs.getArenaMinDimension(), matches = 200;
+        List<Weapon> weapons = Arrays.asList(new Weapon("LaserCannon", 200), new Weapon("Missiles", 100),
+                new Weapon("Railgun", 300));
+        Metrics.registerMBean();
+        boolean before = Metrics.enabled();
+        long[] nanos = new long[2], ops = new long[2];
+
+        for (int round = 0; round < 2 * (WARMUP_ROUNDS + ROUNDS); round++) {
+            int on = round % 2;
+            Metrics.getInstance().setEnabled(on == 1);
+            Random r = new Random(round / 2); // Mesmas partidas nas duas modalidades.
+            for (int i = 0; i < matches; i++) {
+                Arena arena = new Arena(dim, dim, dim, weapons);
+                Player p1 = newPlayer(1, new Robot("Epyon", 2700, 250), weapons.get(0), arena);
+                Player p2 = newPlayer(2, new Robot("Virgo", 4100, 120), weapons.get(1), arena);
+                long t0 = System.nanoTime();
+                long n = playMatch(r, arena, p1, p2, null);
+                if (round >= 2 * WARMUP_ROUNDS) {
+                    nanos[on] += System.nanoTime() - t0;
+                    ops[on] += n;
+                }
+            }
+        }
+        Metrics.getInstance().setEnabled(before);
+        report("metrics/off", ops[0], nanos[0]);
+        report("metrics/on", ops[1], nanos[1]);
+        double off = ops[0] * 1e9 / nanos[0], on = ops[1] * 1e9 / nanos[1];
+        System.out.printf("metrics/overhead: %.2f%%\n", 100 * (off - on) / off);
+        System.out.print(Metrics.getInstance().dump());
+    }
+
+    /**
+     * Mede a latência de {@link FreeCellResolver} em disposições patológicas:
+     * origem em um canto da arena ou no meio dela, com todas as posições ao
+     * redor ocupadas, exceto uma na distância máxima (pior caso) ou nenhuma
+     * (busca sem sucesso).
+     */
+    private static void benchFixPosition() {
+
+        final int dim = GameConfigs.getArenaMinDimension(), n = 1 << 16;
+        final int r = FreeCellResolver.MAX_RADIUS, mid = dim / 2;
+        int[][] origins = {{0, 0, 0}, {mid, mid, mid}};
+        String[] names = {"corner", "center"};
+
+        for (int k = 0; k < origins.length; k++) {
+            int ox = origins[k][0], oy = origins[k][1], oz = origins[k][2];
+            boolean[] busy = new boolean[dim * dim * dim];
+            for (int i = -r; i <= r; i++)
+                for (int j = -r; j <= r; j++)
+                    for (int l = -r; l <= r; l++) {
+                        int x = ox + i, y = oy + j, z = oz + l;
+                        if (x >= 0 && y >= 0 && z >= 0 && x < dim && y < dim && z < dim)
+                            busy[x + dim * (y + dim * z)] = true;
+                    }
+            FreeCellResolver.Occupancy full = (x, y, z) -> busy[x + dim * (y + dim * z)];
+            // Libera apenas a última posição da tabela de busca.
+            int last = FreeCellResolver.worstCase() - 1;
+            int fx = ox + FreeCellResolver.dx(last), fy = oy + FreeCellResolver.dy(last);
+            int fz = oz + FreeCellResolver.dz(last);
+            FreeCellResolver.Occupancy worst = (x, y, z) -> (x != fx || y != fy || z != fz)
+                    && busy[x + dim * (y + dim * z)];
+
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                long acc = 0;
+                long t0 = System.nanoTime();
+                for (int i = 0; i < n; i++)
+                    acc += FreeCellResolver.find(ox, oy, oz, dim, dim, dim, worst);
+                long t1 = System.nanoTime();
+                for (int i = 0; i < n; i++)
+                    acc += FreeCellResolver.find(ox, oy, oz, dim, dim, dim, full);
+                long t2 = System.nanoTime();
+                sink = acc;
+                if (round >= WARMUP_ROUNDS) {
+                    report("fixposition/" + names[k] + "-worst", n, t1 - t0);
+                    report("fixposition/" + names[k] + "-none", n, t2 - t1);
+                }
+            }
+        }
+        System.out.printf("fixposition/max-probes: %d\n", FreeCellResolver.worstCase());
+    }
+
+    /**
+     * Compara uma arena grande com os itens na memória do Java
+     * ({@link HeapItemStore}) e fora dela ({@link MappedItemStore}): tempo de
+     * geração, vazão de {@link Arena#at}, memória retida e pausas do coletor
+     * de lixo durante a geração e as consultas.
+     *
+     * A dimensão da arena pode ser alterada pela propriedade
+     * {@code mechawars.bench.offheap.dim}.
+     */
+    private static void benchOffHeap() {
+
+        final int dim = Integer.getInteger("mechawars.bench.offheap.dim", 400), n = 1 << 22;
+        List<Weapon> weapons = Arrays.asList(new Weapon("LaserCannon", 200), new Weapon("Missiles", 100),
+                new Weapon("Railgun", 300));
+        long threshold = GameConfigs.getOffHeapCellThreshold();
+        String[] modes = {"heap", "mapped"};
+
+        // Soma e máximo das pausas, a partir das notificações do coletor.
+        AtomicLong pauses = new AtomicLong(), totalPause = new AtomicLong(), maxPause = new AtomicLong();
+        NotificationListener listener = (notification, handback) -> {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+                return;
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            if (!info.getGcAction().equals("end of minor GC") && !info.getGcAction().equals("end of major GC"))
+                return; // Ciclos concorrentes não são pausas.
+            long ms = info.getGcInfo().getDuration();
+            pauses.incrementAndGet();
+            totalPause.addAndGet(ms);
+            maxPause.accumulateAndGet(ms, Math::max);
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+
+        for (String mode : modes) {
+            GameConfigs.setOffHeapCellThreshold(mode.equals("heap") ? Long.MAX_VALUE : 0);
+            System.gc();
+            sleep();
+            pauses.set(0);
+            totalPause.set(0);
+            maxPause.set(0);
+
+            long t0 = System.nanoTime();
+            Arena arena = new Arena(dim, dim, dim, weapons);
+            long t1 = System.nanoTime();
+            Random r = new Random(42);
+            long hits = 0;
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                long t2 = System.nanoTime();
+                for (int i = 0; i < n; i++)
+                    if (arena.at(new Point3D(r.nextInt(dim), r.nextInt(dim), r.nextInt(dim))) != null)
+                        hits++;
+                if (round >= WARMUP_ROUNDS)
+                    report("offheap/" + mode + "-at", n, System.nanoTime() - t2);
+            }
+            sink = hits;
+            sleep();
+            long gcCount = pauses.get(), gcTotal = totalPause.get(), gcMax = maxPause.get();
+            System.gc();
+            Runtime rt = Runtime.getRuntime();
+            long retained = rt.totalMemory() - rt.freeMemory();
+
+            System.out.printf("offheap/%s: %d^3 posições, %,d itens, geração em %.1f s, heap retido %,d MB\n",
+                    mode, dim, arena.getItemCount(), (t1 - t0) / 1e9, retained >> 20);
+            System.out.printf("offheap/%s-gc: %d pausas, total %d ms, máxima %d ms\n",
+                    mode, gcCount, gcTotal, gcMax);
+            sink += arena.hashCode();
+        }
+        GameConfigs.setOffHeapCellThreshold(threshold);
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            try {
+                ((NotificationEmitter) gc).removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                throw new InternalError(e);
+            }
+        }
+    }
+
+    /**
+     * Compara a geração de uma arena grande com a criação de uma arena a
+     * partir de um modelo de {@link ArenaTemplates}, e confere que uma
+     * alteração em uma arena não afeta o modelo nem as outras arenas.
+     */
+    private static void benchTemplates() {
+
+        final int dim = Integer.getInteger("mechawars.bench.offheap.dim", 400), n = 1 << 12;
+        List<Weapon> weapons = Arrays.asList(new Weapon("LaserCannon", 200), new Weapon("Missiles", 100),
+                new Weapon("Railgun", 300));
+        try {
+            Path dir = Files.createTempDirectory("templates");
+            ArenaTemplates library = new ArenaTemplates(dir.toString());
+
+            long t0 = System.nanoTime();
+            library.save("bench", dim, dim, dim, weapons);
+            long t1 = System.nanoTime();
+            System.out.printf("templates/save: %.2f s (%d^3 posições)\n", (t1 - t0) / 1e9, dim);
+
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                long acc = 0;
+                long t2 = System.nanoTime();
+                for (int i = 0; i < n; i++)
+                    acc += library.instantiate("bench").getItemCount();
+                sink = acc;
+                if (round >= WARMUP_ROUNDS)
+                    report("templates/instantiate", n, System.nanoTime() - t2);
+            }
+
+            Arena a = library.instantiate("bench"), b = library.instantiate("bench");
+            Random r = new Random(42);
+            Point3D p;
+            do {
+                p = new Point3D(r.nextInt(dim), r.nextInt(dim), r.nextInt(dim));
+            } while (a.at(p) == null);
+            a.removeItem(p);
+            System.out.printf("templates/copy-on-write: %s\n", a.at(p) == null && b.at(p) != null
+                    && library.instantiate("bench").at(p) != null ? "isolado" : "VAZAMENTO");
+
+            for (String name : library.names())
+                Files.delete(dir.resolve(name + ArenaTemplates.EXTENSION));
+            Files.delete(dir);
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    /**
+     * Compara a latência, vista pela thread do jogo, da gravação síncrona de
+     * cada registro com a submissão a um {@link SaveWriter}, sobre um disco
+     * lento simulado (cada escrita leva {@code mechawars.bench.save.diskMillis}
+     * milissegundos). O jogo gera uma ação a cada 50 microssegundos.
+     * A primeira rodada serve apenas de aquecimento.
+     */
+    private static void benchSave() {
+        for (int round = 0; round < 2; round++)
+            benchSave(round == 1);
+    }
+
+    private static void benchSave(boolean print) {
+
+        final int n = 2000;
+        final long diskMillis = Long.getLong("mechawars.bench.save.diskMillis", 2);
+        final long pace = 50_000;
+        OutputStream slowDisk = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                try {
+                    Thread.sleep(diskMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Random r = new Random(42);
+        Command[] records = new Command[n];
+        for (int i = 0; i < n; i++)
+            records[i] = Command.move(r.nextInt(3) - 1, r.nextInt(3) - 1, r.nextInt(3) - 1);
+
+        Histogram sync = new Histogram("save/sync"), async = new Histogram("save/async");
+        try (ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(slowDisk, true))) {
+            for (Command e : records) {
+                long t0 = System.nanoTime();
+                out.writeObject(e);
+                out.flush();
+                sync.recordValue(System.nanoTime() - t0);
+                spin(pace);
+            }
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+        long t1;
+        try (SaveWriter writer = new SaveWriter(slowDisk, SaveWriter.DEFAULT_CAPACITY,
+                SaveWriter.DEFAULT_BATCH_SIZE, e -> { throw new InternalError(e); })) {
+            for (Command e : records) {
+                long t0 = System.nanoTime();
+                writer.submit(e);
+                async.recordValue(System.nanoTime() - t0);
+                spin(pace);
+            }
+            t1 = System.nanoTime();
+        }
+        long drain = System.nanoTime() - t1;
+        if (!print)
+            return;
+        for (Histogram h : new Histogram[]{sync, async})
+            System.out.printf("%-24s p50 %,9d ns  p99 %,11d ns  máx %,11d ns\n", h.getName(),
+                    h.percentile(50), h.percentile(99), h.getMax());
+        System.out.printf("save/close: %.1f ms para gravar os registros pendentes\n", drain / 1e6);
+    }
+
+    /**
+     * Compara o acesso a um turno de uma partida longa em um
+     * {@link MatchArchive} com a leitura sequencial de um fluxo de objetos
+     * serializados (o formato de saves.ser), até o mesmo turno.
+     */
+    private static void benchArchive() {
+
+        final int turns = Integer.getInteger("mechawars.bench.archive.turns", 500_000), n = 1 << 14;
+        Random r = new Random(42);
+        try {
+            Path archivePath = Files.createTempFile("match", ".mwa");
+            Path flatPath = Files.createTempFile("match", ".ser");
+            long t0 = System.nanoTime();
+            try (MatchArchive.Writer archive = new MatchArchive.Writer(archivePath.toString());
+                 ObjectOutputStream flat = new ObjectOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(flatPath.toFile())))) {
+                double hp1 = 1e9, hp2 = 1e9;
+                for (int turn = 1; turn <= turns; turn++) {
+                    for (int num = 1; num <= 2; num++) {
+                        ActionRecord e = randomRecord(r, turn, num, hp1 -= r.nextInt(100), hp2 -= r.nextInt(100));
+                        archive.append(e);
+                        flat.writeObject(e);
+                        flat.reset(); // Como se cada ação fosse um objeto independente.
+                    }
+                }
+            }
+            long t1 = System.nanoTime();
+            System.out.printf("archive/write: %,d ações em %.1f s; %,d bytes (fluxo de objetos: %,d bytes)\n",
+                    2L * turns, (t1 - t0) / 1e9, Files.size(archivePath), Files.size(flatPath));
+
+            try (MatchArchive archive = MatchArchive.open(archivePath.toString())) {
+                Histogram latency = new Histogram("archive/get");
+                for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                    long acc = 0;
+                    for (int i = 0; i < n; i++) {
+                        long t2 = System.nanoTime();
+                        acc += archive.get(1 + r.nextInt(turns), 1 + r.nextInt(2)).getTurn();
+                        if (round >= WARMUP_ROUNDS)
+                            latency.recordValue(System.nanoTime() - t2);
+                    }
+                    sink = acc;
+                }
+                System.out.printf("%-24s p50 %,9d ns  p99 %,11d ns  (%d blocos)\n", latency.getName(),
+                        latency.percentile(50), latency.percentile(99), archive.getBlockCount());
+            }
+
+            long t3 = System.nanoTime();
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                    new FileInputStream(flatPath.toFile())))) {
+                ActionRecord e;
+                do e = (ActionRecord) in.readObject(); while (e.getTurn() < turns);
+                sink = e.getTurn();
+            } catch (ClassNotFoundException e) {
+                throw new InternalError(e);
+            }
+            System.out.printf("archive/flat-scan: %.1f ms até o turno %,d\n", (System.nanoTime() - t3) / 1e6,
+                    turns);
+            Files.delete(archivePath);
+            Files.delete(flatPath);
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    /**
+     * Mede a vazão de uma arena compartilhada ({@link Arena#concurrent}) com
+     * vários robôs agindo ao mesmo tempo, um por thread: cada operação
+     * consulta uma posição sorteada e, havendo um item, aplica o seu efeito
+     * (pegar uma arma, explodir uma bomba, ser infectado); caso contrário,
+     * coloca uma bomba na posição, caso ela continue vaga.
+     *
+     * Compara uma única faixa (um monitor para toda a arena) com as faixas de
+     * {@link StripedItemStore}, com os robôs espalhados pela arena ou todos na
+     * mesma região. Ao final, confere que nenhuma bomba explodiu duas vezes (ou
+     * deixou de sair da arena ao explodir).
+     */
+    private static void benchContention() {
+
+        final int dim = 128, n = 1 << 18;
+        List<Weapon> weapons = Arrays.asList(new Weapon("LaserCannon", 200), new Weapon("Missiles", 100),
+                new Weapon("Railgun", 300));
+        for (String mode : new String[]{"spread", "hot"}) {
+            final int range = mode.equals("hot") ? 1 << StripedItemStore.REGION_BITS : dim;
+            for (int stripes : new int[]{1, StripedItemStore.DEFAULT_STRIPES}) {
+                for (int threads = 1; threads <= 8; threads *= 2) {
+                    Arena arena = Arena.concurrent(dim, dim, dim, weapons, stripes);
+                    long bombs = countBombs(arena);
+                    AtomicLong placed = new AtomicLong(), exploded = new AtomicLong();
+                    Thread[] workers = new Thread[threads];
+                    for (int t = 0; t < threads; t++) {
+                        final int seed = t;
+                        workers[t] = new Thread(() -> {
+                            SplittableRandom r = new SplittableRandom(seed);
+                            Robot robot = new Robot("R" + seed, 1e12, 1,
+                                    (Weapon) weapons.get(0).clone(), new Point3D(0, 0, 0));
+                            long p = 0, e = 0;
+                            for (int i = 0; i < n; i++) {
+                                Point3D q = new Point3D(r.nextInt(range), r.nextInt(range), r.nextInt(range));
+                                SpecialItem item = arena.at(q);
+                                if (item == null) {
+                                    if (arena.swapItem(q, null, new Bomb(q)))
+                                        p++;
+                                } else {
+                                    double hp = robot.getHp();
+                                    item.effect(robot, arena);
+                                    if (item instanceof Bomb && robot.getHp() < hp)
+                                        e++; // Apenas o robô que a explodiu recebe o dano.
+                                }
+                            }
+                            placed.addAndGet(p);
+                            exploded.addAndGet(e);
+                        });
+                    }
+                    long t0 = System.nanoTime();
+                    for (Thread e : workers)
+                        e.start();
+                    for (Thread e : workers) {
+                        try {
+                            e.join();
+                        } catch (InterruptedException ex) {
+                            throw new InternalError(ex);
+                        }
+                    }
+                    long nanos = System.nanoTime() - t0;
+                    long expected = bombs + placed.get() - exploded.get(), actual = countBombs(arena);
+                    if (expected != actual)
+                        throw new AssertionError("Bombas: esperadas " + expected + ", encontradas " + actual);
+                    report(String.format("contention/%s-%d-%dt", mode, stripes, threads), (long) n * threads,
+                            nanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mede o {@link TickScheduler} com muitos robôs (10.000, por padrão, ou o
+     * valor da propriedade mechawars.bench.tick.robots): primeiro a vazão de
+     * resolução de ciclos, sem limite de frequência, e depois a execução em
+     * tempo real a {@link TickScheduler#DEFAULT_RATE} Hz por alguns segundos,
+     * com uma thread submetendo comandos sorteados para todos os robôs a cada
+     * ciclo.
+     */
+    private static void benchTick() {
+
+        final int n = Integer.getInteger("mechawars.bench.tick.robots", 10_000), dim = 200, seconds = 5;
+        List<Weapon> weapons = Arrays.asList(new Weapon("LaserCannon", 200), new Weapon("Missiles", 100),
+                new Weapon("Railgun", 300));
+        Arena arena = new Arena(dim, dim, dim, weapons);
+        List<Robot> robots = new ArrayList<>();
+        Set<Point3D> used = new HashSet<>();
+        SplittableRandom r = new SplittableRandom(42);
+        while (robots.size() < n) {
+            Point3D p = arena.randomPoint();
+            if (used.add(p))
+                robots.add(new Robot("R" + robots.size(), 1e12, 100, (Weapon) weapons.get(r.nextInt(3)).clone(), p));
+        }
+        TickScheduler scheduler = new TickScheduler(arena, robots, TickScheduler.DEFAULT_RATE, 42);
+
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long nanos = 0;
+            for (int t = 0; t < 20; t++) {
+                submitRandom(r, scheduler);
+                long t0 = System.nanoTime();
+                scheduler.step();
+                nanos += System.nanoTime() - t0;
+            }
+            if (round >= WARMUP_ROUNDS)
+                report("tick/step-" + n, 20, nanos);
+        }
+
+        Metrics.TICK.reset();
+        long late = scheduler.getLateTicks(), first = scheduler.getTick();
+        Thread driver = new Thread(() -> {
+            SplittableRandom q = new SplittableRandom(7);
+            while (!Thread.currentThread().isInterrupted()) {
+                submitRandom(q, scheduler);
+                LockSupport.parkNanos(scheduler.getTickNanos());
+            }
+        });
+        long t0 = System.nanoTime();
+        scheduler.start();
+        driver.start();
+        try {
+            Thread.sleep(seconds * 1000L);
+        } catch (InterruptedException e) {
+            throw new InternalError(e);
+        }
+        scheduler.close();
+        driver.interrupt();
+        double elapsed = (System.nanoTime() - t0) / 1e9;
+        long ticks = scheduler.getTick() - first;
+        System.out.printf("tick/realtime-%d: %.1f ciclos/s (alvo %d), %d atrasados, %d descartados;"
+                        + " resolução p50 %.2f ms, p99 %.2f ms, máx %.2f ms\n", n, ticks / elapsed,
+                TickScheduler.DEFAULT_RATE, scheduler.getLateTicks() - late, scheduler.getSkippedTicks(),
+                Metrics.TICK.percentile(50) / 1e6, Metrics.TICK.percentile(99) / 1e6, Metrics.TICK.getMax() / 1e6);
+    }
+
+    /**
+     * Submete um comando sorteado para cada robô: um ataque a outro robô ou um
+     * movimento de uma posição.
+     */
+    private static void submitRandom(SplittableRandom r, TickScheduler scheduler) {
+        int n = scheduler.getRobotCount();
+        for (int i = 0; i < n; i++) {
+            if (r.nextBoolean()) {
+                int target = r.nextInt(n - 1);
+                scheduler.submitAttack(i, target < i ? target : target + 1);
+            } else {
+                scheduler.submit(i, Command.move(r.nextInt(3) - 1, r.nextInt(3) - 1, r.nextInt(3) - 1));
+            }
+        }
+    }
+
+    /**
+     * Mede a vazão de {@link LineOfSight#trace} em uma arena com os itens
+     * guardados na memória do Java e em uma arena fora dela (um byte por
+     * posição), com disparos entre posições sorteadas a até 32 posições de
+     * distância em cada eixo, e a memória alocada por disparo.
+     */
+    private static void benchRaycast() {
+
+        final int dim = 200, range = 32, n = 1 << 20;
+        List<Weapon> weapons = Arrays.asList(new Weapon("LaserCannon", 200), new Weapon("Missiles", 100),
+                new Weapon("Railgun", 300));
+        long threshold = GameConfigs.getOffHeapCellThreshold();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        SplittableRandom r = new SplittableRandom(42);
+        int[] from = new int[3 * n], to = new int[3 * n];
+        for (int i = 0; i < 3 * n; i++) {
+            from[i] = r.nextInt(dim);
+            to[i] = Math.max(0, Math.min(dim - 1, from[i] + r.nextInt(2 * range + 1) - range));
+        }
+        for (String mode : new String[]{"heap", "mapped"}) {
+            GameConfigs.setOffHeapCellThreshold(mode.equals("heap") ? Long.MAX_VALUE : 0);
+            Arena arena = new Arena(dim, dim, dim, weapons);
+            LineOfSight.Ray ray = new LineOfSight.Ray();
+            long blocked = 0, cells = 0, bytes = 0;
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                long b0 = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                long t0 = System.nanoTime();
+                for (int i = 0; i < 3 * n; i += 3) {
+                    if (!LineOfSight.trace(arena, from[i], from[i + 1], from[i + 2], to[i], to[i + 1], to[i + 2], ray))
+                        blocked++;
+                    cells += ray.getCells();
+                }
+                long nanos = System.nanoTime() - t0;
+                if (round >= WARMUP_ROUNDS) {
+                    bytes += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - b0;
+                    report("raycast/" + mode, n, nanos);
+                }
+            }
+            long rays = (long) n * (WARMUP_ROUNDS + ROUNDS);
+            System.out.printf("raycast/%s: %,d itens, %.1f posições por disparo, %.1f%% bloqueados,"
+                            + " %.1f bytes alocados por disparo\n", mode, arena.getItemCount(),
+                    (double) cells / rays, 100.0 * blocked / rays, (double) bytes / ((long) n * ROUNDS));
+            sink = cells;
+        }
+        GameConfigs.setOffHeapCellThreshold(threshold);
+    }
+
+    /**
+     * Mede o pior caso de {@link ChainReaction}: uma arena em que 90% das
+     * posições têm bombas, com raio de explosão 1 e alcance igual ao lado da
+     * arena, de modo que uma única cadeia percorre quase toda a arena. A
+     * arena guarda os itens fora da memória do Java (com lado 160, por
+     * padrão, ou o valor da propriedade mechawars.bench.chain.dim) e, para
+     * comparação, na memória do Java (com lado 64).
+     *
+     * Confere também que as bombas que restam na arena são exatamente as que
+     * não foram detonadas.
+     */
+    private static void benchChain() {
+
+        final int mappedDim = Integer.getInteger("mechawars.bench.chain.dim", 160);
+        long threshold = GameConfigs.getOffHeapCellThreshold();
+        double fill = GameConfigs.getArenaFillCoefficient();
+        GameConfigs.setArenaFillCoefficient(0);
+
+        for (String mode : new String[]{"heap", "mapped"}) {
+            int dim = mode.equals("heap") ? 64 : mappedDim;
+            GameConfigs.setOffHeapCellThreshold(mode.equals("heap") ? Long.MAX_VALUE : 0);
+            long cells = 0, bombs = 0, nanos = 0;
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                Arena arena = new Arena(dim, dim, dim, new ArrayList<>());
+                SplittableRandom r = new SplittableRandom(round);
+                for (int i = 0; i < dim; i++)
+                    for (int j = 0; j < dim; j++)
+                        for (int k = 0; k < dim; k++)
+                            if (r.nextDouble() < 0.9)
+                                arena.putItem(new Bomb(new Point3D(i, j, k)));
+                Point3D center = new Point3D(dim / 2, dim / 2, dim / 2);
+                if (!(arena.at(center) instanceof Bomb))
+                    arena.putItem(new Bomb(center));
+                long before = arena.getItemCount();
+
+                long t0 = System.nanoTime();
+                ChainReaction.Chain chain = ChainReaction.detonate(arena, (Bomb) arena.at(center), 1, dim);
+                long t1 = System.nanoTime();
+                if (arena.getItemCount() != before - chain.size())
+                    throw new AssertionError("chain/" + mode + ": " + arena.getItemCount() + " bombas restantes, "
+                            + (before - chain.size()) + " esperadas");
+                if (round >= WARMUP_ROUNDS) {
+                    report("chain/" + mode + "-bombs", chain.size(), t1 - t0);
+                    cells += chain.getCells();
+                    bombs += chain.size();
+                    nanos += t1 - t0;
+                }
+            }
+            System.out.printf("chain/%s: %d^3 posições, %,d bombas e %,d posições por cadeia,"
+                            + " %,.0f posições/s, %.1f ms por cadeia\n", mode, dim, bombs / ROUNDS, cells / ROUNDS,
+                    cells * 1e9 / nanos, nanos / 1e6 / ROUNDS);
+        }
+        GameConfigs.setOffHeapCellThreshold(threshold);
+        GameConfigs.setArenaFillCoefficient(fill);
+    }
+
+    /**
+     * Simula uma epidemia ({@link Epidemic}) em uma população grande (um
+     * milhão de robôs, por padrão, ou o valor da propriedade
+     * mechawars.bench.epidemic.robots), em uma arena em que um quarto das
+     * posições tem robôs, com 10% dos robôs se movendo a cada ciclo. A
+     * epidemia começa com 10 robôs infectados e é executada até acabar (no
+     * máximo 1000 ciclos). Imprime a evolução da epidemia e a vazão da
+     * simulação, em posições consultadas ou alteradas por segundo.
+     */
+    private static void benchEpidemic() {
+
+        final int n = Integer.getInteger("mechawars.bench.epidemic.robots", 1_000_000);
+        final int dim = Math.max(GameConfigs.getArenaMinDimension(), (int) Math.ceil(Math.cbrt(n / 0.25)));
+        double fill = GameConfigs.getArenaFillCoefficient();
+        GameConfigs.setArenaFillCoefficient(0);
+        Arena arena = new Arena(dim, dim, dim, new ArrayList<>());
+        GameConfigs.setArenaFillCoefficient(fill);
+
+        SplittableRandom r = new SplittableRandom(42);
+        List<Robot> robots = new ArrayList<>(n);
+        double p = (double) n / ((long) dim * dim * dim);
+        for (int i = 0; i < dim && robots.size() < n; i++)
+            for (int j = 0; j < dim && robots.size() < n; j++)
+                for (int k = 0; k < dim && robots.size() < n; k++)
+                    if (r.nextDouble() < p)
+                        robots.add(new Robot("R" + robots.size(), 1e12, 1, null, new Point3D(i, j, k)));
+
+        TickScheduler scheduler = new TickScheduler(arena, robots, TickScheduler.DEFAULT_RATE, 42);
+        Epidemic epidemic = scheduler.startEpidemic(0.15, 0.3, 10);
+        for (int i = 0; i < 10; i++)
+            epidemic.infect(r.nextInt(robots.size()));
+
+        Metrics.EPIDEMIC.reset();
+        long t0 = System.nanoTime(), updates0 = epidemic.getCellUpdates();
+        int peak = 0, t = 0;
+        while (epidemic.getInfected() > 0 && t < 1000) {
+            for (int i = robots.size() / 10; i > 0; i--)
+                scheduler.submit(r.nextInt(robots.size()),
+                        Command.move(r.nextInt(3) - 1, r.nextInt(3) - 1, r.nextInt(3) - 1));
+            scheduler.step();
+            t = scheduler.getTick();
+            peak = Math.max(peak, epidemic.getInfected());
+            if (t % 25 == 0)
+                System.out.printf("epidemic/tick-%d: %,d infectados, %,d curados, %,d posições contaminadas\n",
+                        t, epidemic.getInfected(), epidemic.getRecovered(), epidemic.getContaminatedCells());
+        }
+        long nanos = System.nanoTime() - t0;
+        double epidemicNanos = Metrics.EPIDEMIC.getMean() * Metrics.EPIDEMIC.getCount();
+        long updates = epidemic.getCellUpdates() - updates0;
+        System.out.printf("epidemic: %,d robôs em %d^3 posições, %d ciclos, pico de %,d infectados,"
+                        + " %,d infecções (%.1f%% da população)\n", robots.size(), dim, t, peak,
+                epidemic.getInfections(), 100.0 * epidemic.getInfections() / robots.size());
+        System.out.printf("epidemic: %,d atualizações de posições, %,.0f atualizações/s na epidemia;"
+                        + " epidemia p50 %.2f ms, p99 %.2f ms por ciclo; ciclo completo %.2f ms\n", updates,
+                updates * 1e9 / epidemicNanos, Metrics.EPIDEMIC.percentile(50) / 1e6,
+                Metrics.EPIDEMIC.percentile(99) / 1e6, nanos / 1e6 / t);
+    }
+
+    /**
+     * Mede o {@link EffectScheduler} com um milhão de efeitos pendentes:
+     * efeitos periódicos que, a cada execução, se reagendam para um ciclo
+     * sorteado entre os próximos 1024, de modo que a quantidade de efeitos
+     * pendentes se mantém. Mede também o agendamento seguido do
+     * cancelamento de um efeito e, para comparação, o custo por ciclo de
+     * percorrer um milhão de robôs verificando se estão infectados.
+     */
+    private static void benchEffects() {
+
+        final int n = 1_000_000, horizon = 1024, ticks = 2048;
+        EffectScheduler effects = new EffectScheduler(n);
+        SplittableRandom r = new SplittableRandom(42);
+        long[] fired = new long[1];
+        EffectScheduler.Effect effect = tick -> {
+            fired[0]++;
+            return tick + 1 + r.nextInt(horizon);
+        };
+        for (int i = 0; i < n; i++)
+            effects.schedule(1 + r.nextInt(horizon), effect);
+
+        long tick = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long before = fired[0];
+            long t0 = System.nanoTime();
+            for (int t = 0; t < ticks; t++)
+                effects.runUntil(++tick);
+            long nanos = System.nanoTime() - t0;
+            if (effects.size() != n)
+                throw new AssertionError("effects: " + effects.size() + " efeitos pendentes");
+            if (round >= WARMUP_ROUNDS) {
+                report("effects/fire", fired[0] - before, nanos);
+                report("effects/tick", ticks, nanos);
+            }
+        }
+
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                effects.cancel(effects.schedule(tick + 1 + r.nextInt(horizon), effect));
+            if (round >= WARMUP_ROUNDS)
+                report("effects/schedule+cancel", n, System.nanoTime() - t0);
+        }
+
+        List<Robot> robots = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            robots.add(new Robot("R" + i, 1000, 1, null, new Point3D(i, 0, 0)));
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long t0 = System.nanoTime(), infected = 0;
+            for (int t = 0; t < 16; t++)
+                for (Robot e : robots)
+                    if (e.getHp() > 0 && e.isInfected())
+                        infected++;
+            if (round >= WARMUP_ROUNDS)
+                report("effects/scan-tick", 16, System.nanoTime() - t0);
+            sink = infected;
+        }
+    }
+
+    /**
+     * Mede o {@link ResultCache}: o cálculo das impressões digitais, as
+     * consultas que encontram o resultado em memória e as que precisam ler o
+     * disco (com 65.536 resultados no arquivo e apenas 1.024 em memória), em
+     * comparação com a simulação das 64 partidas de um resultado.
+     */
+    private static void benchResultCache() {
+
+        final int n = 1 << 16, memory = 1 << 10, matches = 64;
+        List<Weapon> weapons = Arrays.asList(new Weapon("LaserCannon", 200), new Weapon("Missiles", 100),
+                new Weapon("Railgun", 300));
+        Robot r1 = new Robot("Taurus", 3000, 200), r2 = new Robot("Epyon", 2700, 250);
+        SimParams params = SimParams.defaults();
+        int dim = params.getArenaDimension();
+
+        ResultCache.Key[] keys = new ResultCache.Key[n];
+        try {
+            Path path = Files.createTempFile("results", ".cache");
+            try (ResultCache cache = new ResultCache(memory, path.toString())) {
+                for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                    long t0 = System.nanoTime();
+                    for (int i = 0; i < n; i++)
+                        keys[i] = ResultCache.fingerprint(r1, weapons.get(0), r2, weapons.get(2), weapons,
+                                dim, dim, dim, params, i, matches, 100000);
+                    if (round >= WARMUP_ROUNDS)
+                        report("resultcache/fingerprint", n, System.nanoTime() - t0);
+                }
+                for (int i = 0; i < n; i++)
+                    cache.put(keys[i], new ResultCache.Result(matches, i % matches, matches - i % matches, 0, i, i));
+
+                SplittableRandom r = new SplittableRandom(42);
+                for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                    long t0 = System.nanoTime(), found = 0;
+                    for (int i = 0; i < n; i++)
+                        found += cache.get(keys[n - 1 - (i & (memory - 1))]).getMatches();
+                    long t1 = System.nanoTime();
+                    for (int i = 0; i < n; i++)
+                        found += cache.get(keys[r.nextInt(n)]).getMatches();
+                    long t2 = System.nanoTime();
+                    if (round >= WARMUP_ROUNDS) {
+                        report("resultcache/memory-hit", n, t1 - t0);
+                        report("resultcache/disk-hit", n, t2 - t1);
+                    }
+                    sink = found;
+                }
+                System.out.println(cache);
+            }
+            Files.delete(path);
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long t0 = System.nanoTime();
+            MatchBatch batch = new MatchBatch(matches, dim, dim, dim, r1, weapons.get(0), r2, weapons.get(2),
+                    weapons, round, params);
+            batch.run(100000);
+            if (round >= WARMUP_ROUNDS)
+                report("resultcache/simulate", 1, System.nanoTime() - t0);
+            sink = ResultCache.Result.of(batch).getP1Score();
+        }
+    }
+
+    /**
+     * Mede o tempo até a primeira ação de um processo de simulação de curta
+     * duração, do início da JVM até a primeira ação de uma partida
+     * automática: com os catálogos lidos dos arquivos de listagem, com o
+     * catálogo binário carregado sob demanda ({@link Catalogs.Lazy}) e, a
+     * partir do Java 13, também com um arquivo de classes pré-processadas
+     * (AppCDS) gerado por uma execução anterior.
+     *
+     * Como o AppCDS só aceita classes em arquivos JAR, os diretórios do
+     * classpath são empacotados em um JAR temporário, usado em todos os
+     * modos.
+     */
+    private static void benchStartup() {
+
+        final int runs = 10;
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        int version = Integer.parseInt(System.getProperty("java.specification.version").replaceFirst("^1\\.", ""));
+        try {
+            Path jar = Files.createTempFile("mechawars", ".jar");
+            String classpath = jar(System.getProperty("java.class.path"), jar);
+            Path archive = Files.createTempFile("mechawars", ".jsa");
+            List<String[]> modes = new ArrayList<>();
+            modes.add(new String[]{"text"});
+            modes.add(new String[]{"fast"});
+            if (version >= 13) {
+                // Gera o arquivo de classes na saída de uma execução.
+                Files.delete(archive);
+                startup(java, classpath, "fast", "-XX:ArchiveClassesAtExit=" + archive);
+                if (Files.exists(archive))
+                    modes.add(new String[]{"fast", "-XX:SharedArchiveFile=" + archive});
+            } else {
+                System.out.println("startup: AppCDS por execução exige o Java 13 ou posterior");
+            }
+            for (String[] mode : modes) {
+                String name = "startup/" + mode[0] + (mode.length > 1 ? "+cds" : "");
+                startup(java, classpath, mode); // Gera o catálogo binário, no modo rápido.
+                long[] nanos = new long[runs];
+                for (int i = 0; i < runs; i++)
+                    nanos[i] = startup(java, classpath, mode);
+                Arrays.sort(nanos);
+                System.out.printf("%-30s %8.1f ms (mediana de %d execuções, mín. %.1f ms)\n", name,
+                        nanos[runs / 2] / 1e6, runs, nanos[0] / 1e6);
+            }
+            Files.deleteIfExists(archive);
+            Files.delete(jar);
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    /**
+     * Empacota os diretórios de um classpath em um JAR.
+     *
+     * @return o classpath com o JAR no lugar dos diretórios
+     */
+    private static String jar(String classpath, Path jar) throws IOException {
+        StringBuilder s = new StringBuilder(jar.toString());
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            Set<String> entries = new HashSet<>();
+            for (String entry : classpath.split(File.pathSeparator)) {
+                Path dir = Paths.get(entry);
+                if (!Files.isDirectory(dir)) {
+                    s.append(File.pathSeparator).append(entry);
+                    continue;
+                }
+                List<Path> files = new ArrayList<>();
+                try (Stream<Path> walk = Files.walk(dir)) {
+                    walk.filter(Files::isRegularFile).forEach(files::add);
+                }
+                for (Path f : files) {
+                    String name = dir.relativize(f).toString().replace(File.separatorChar, '/');
+                    if (!entries.add(name))
+                        continue;
+                    out.putNextEntry(new JarEntry(name));
+                    Files.copy(f, out);
+                    out.closeEntry();
+                }
+            }
+        }
+        return s.toString();
+    }
+
+    /**
+     * Executa um processo filho até a primeira ação.
+     *
+     * @param mode o modo ("text" ou "fast") seguido de opções da JVM
+     *
+     * @return o tempo até a primeira ação, em nanossegundos
+     */
+    private static long startup(String java, String classpath, String... mode) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", classpath));
+        command.addAll(Arrays.asList(mode).subList(1, mode.length));
+        command.add("-Dmechawars.bench.startup.mode=" + mode[0]);
+        command.add("-Dmechawars.metrics=false");
+        command.add(Benchmarks.class.getName());
+        command.add("startup-worker");
+        long t0 = System.nanoTime();
+        Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            String line = in.readLine();
+            long nanos = System.nanoTime() - t0;
+            if (!"ok".equals(line))
+                throw new IOException("startup-worker: " + line);
+            while (in.readLine() != null) ;
+            p.waitFor();
+            return nanos;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Carrega as configurações e os catálogos e executa a primeira ação de
+     * uma partida automática, como um processo de simulação.
+     */
+    private static void startupWorker(String mode) {
+        try {
+            GameConfigs.loadConfigs(String.format("datafiles%sconfig.txt", File.separator));
+            String robotsPath = String.format("datafiles%srobots.txt", File.separator);
+            String weaponsPath = String.format("datafiles%sweapons.txt", File.separator);
+            Set<Robot> robots;
+            Set<Weapon> weapons;
+            if (mode.equals("fast")) {
+                Catalogs.Lazy catalogs = new Catalogs.Lazy(robotsPath, weaponsPath);
+                robots = catalogs.robots();
+                weapons = catalogs.weapons();
+            } else {
+                robots = Catalogs.loadRobots(robotsPath);
+                weapons = Catalogs.loadWeapons(weaponsPath);
+            }
+            Iterator<Robot> r = robots.iterator();
+            Iterator<Weapon> w = weapons.iterator();
+            int dim = GameConfigs.getArenaMinDimension();
+            MatchBatch batch = new MatchBatch(1, dim, dim, dim, r.next(), w.next(), r.next(), w.next(), weapons, 42);
+            byte[] op = new byte[1];
+            int[] dx = new int[1], dy = new int[1], dz = new int[1];
+            batch.randomCommands(op, dx, dy, dz);
+            batch.step(op, dx, dy, dz);
+            System.out.println(batch.getActions() == 1 ? "ok" : "nenhuma ação");
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    private static long countBombs(Arena arena) {
+        long n = 0;
+        for (SpecialItem e : arena.getItems().values())
+            if (e instanceof Bomb)
+                n++;
+        return n;
+    }
+
+    private static final String[] QUERY_ROBOTS = {"Alpha", "Beta", "Gamma", "Delta", "Epsilon", "Zeta"};
+    private static final String[] QUERY_WEAPONS = {"Laser", "Plasma", "Railgun", "Missil", "Serra"};
+
+    /**
+     * Mede a vazão de {@link MatchQuery} sobre um acervo de partidas
+     * arquivadas, gerado para a medição: uma varredura completa e consultas
+     * com filtros por turno, robô e arma, que descartam arquivos e blocos pelo
+     * índice.
+     *
+     * O tamanho do acervo (a quantidade total de ações) pode ser ajustado pela
+     * propriedade mechawars.bench.query.actions.
+     */
+    private static void benchQuery() {
+
+        final long total = Long.getLong("mechawars.bench.query.actions", 4_000_000L);
+        final int archives = 256, threads = Runtime.getRuntime().availableProcessors();
+        final int turns = (int) (total / archives / 2);
+        Random r = new Random(42);
+        try {
+            Path dir = Files.createTempDirectory("corpus");
+            List<String> paths = new ArrayList<>();
+            long bytes = 0, t0 = System.nanoTime();
+            for (int i = 0; i < archives; i++) {
+                Path path = dir.resolve("match" + i + ".mwa");
+                try (MatchArchive.Writer archive = new MatchArchive.Writer(path.toString())) {
+                    int robot = r.nextInt(QUERY_ROBOTS.length);
+                    archive.setRobots(QUERY_ROBOTS[robot], QUERY_ROBOTS[(robot + 1) % QUERY_ROBOTS.length]);
+                    double hp1 = 1e9, hp2 = 1e9;
+                    for (int turn = 1; turn <= turns; turn++) {
+                        for (int num = 1; num <= 2; num++) {
+                            if (turn == turns && num == 2) {
+                                // A última ação derrota um dos robôs: pelo ataque ou pelo vírus.
+                                boolean virus = r.nextInt(4) == 0;
+                                archive.append(new ActionRecord(turn, num, virus ? Command.move(0, 0, 1)
+                                        : Command.ATTACK, virus ? 1 : 0, virus ? 0 : 1, new Point3D(0, 0, 0),
+                                        new Point3D(1, 1, 1), QUERY_WEAPONS[0], virus ? 0 : 10, 0,
+                                        virus ? 5 : 0, virus ? ActionRecord.VIRUS_KILL : 0, ""));
+                            } else {
+                                archive.append(randomRecord(r, turn, num, hp1 -= r.nextInt(100),
+                                        hp2 -= r.nextInt(100)));
+                            }
+                        }
+                    }
+                }
+                paths.add(path.toString());
+                bytes += Files.size(path);
+            }
+            System.out.printf("query/corpus: %,d arquivos, %,d ações, %,d bytes (gerado em %.1f s)\n",
+                    archives, 2L * turns * archives, bytes, (System.nanoTime() - t0) / 1e9);
+
+            MatchQuery[] queries = {
+                    new MatchQuery(),
+                    new MatchQuery().turns(1, turns / 10),
+                    new MatchQuery().robot(QUERY_ROBOTS[0]),
+                    new MatchQuery().weapon(QUERY_WEAPONS[1])
+            };
+            String[] names = {"query/full", "query/turns", "query/robot", "query/weapon"};
+            for (int q = 0; q < queries.length; q++) {
+                MatchQuery.Result result = null;
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < 3; round++) {
+                    long t1 = System.nanoTime();
+                    result = queries[q].run(paths, threads);
+                    best = Math.min(best, System.nanoTime() - t1);
+                }
+                System.out.printf("%-24s %,15.0f ações/s  (%,d selecionadas; %,d/%,d arquivos e %,d/%,d blocos"
+                                + " descartados; %d threads)\n", names[q], 2.0 * turns * archives * 1e9 / best,
+                        result.getActions(), result.getArchivesSkipped(), result.getArchives(),
+                        result.getBlocksSkipped(), result.getBlocksSkipped() + result.getBlocks(), threads);
+                if (q == 0)
+                    System.out.printf("  dano médio %s\n  infrações/ação %s\n  bombas/turno %.4f;"
+                                    + " derrotas pelo vírus %.0f%%\n", result.averageDamage(),
+                            result.foulRate(), result.bombHitsPerTurn(), 100 * result.virusKillShare());
+            }
+            for (String e : paths)
+                Files.delete(Paths.get(e));
+            Files.delete(dir);
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    private static ActionRecord randomRecord(Random r, int turn, int num, double hp1, double hp2) {
+        Command command;
+        String log;
+        String weapon = QUERY_WEAPONS[r.nextInt(QUERY_WEAPONS.length)];
+        double damage = 0, selfDamage = 0, virusDamage = r.nextInt(10) == 0 ? 5 * r.nextDouble() : 0;
+        int flags = 0;
+        if (r.nextBoolean()) {
+            command = Command.ATTACK;
+            damage = 100 * r.nextDouble();
+            log = String.format("Player %d atacou Player %d. Dano: %.1f.\n", num, 3 - num, damage);
+        } else {
+            command = Command.move(r.nextInt(3) - 1, r.nextInt(3) - 1, r.nextInt(3) - 1);
+            log = String.format("Player %d moveu-se para a posição (%d, %d, %d).\n", num, r.nextInt(30),
+                    r.nextInt(30), r.nextInt(30));
+            int item = r.nextInt(100);
+            if (item < 2) {
+                flags = ActionRecord.BOMB;
+                selfDamage = 50 * r.nextDouble();
+            } else if (item < 3) {
+                flags = ActionRecord.FOUL;
+                selfDamage = 2;
+            }
+        }
+        return new ActionRecord(turn, num, command, hp1, hp2, new Point3D(r.nextInt(30), r.nextInt(30),
+                r.nextInt(30)), new Point3D(r.nextInt(30), r.nextInt(30), r.nextInt(30)), weapon, damage,
+                selfDamage, virusDamage, flags,
+                String.format("Comando: %s\nTURN %d - ACTION %d\n%s", command, turn, num, log));
+    }
+
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end);
+    }
+
+    /**
+     * Aguarda a entrega das notificações do coletor de lixo.
+     */
+    private static void sleep() {
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Joga uma partida automática até o fim, com comandos sorteados por
+     * {@link #randomCommand}.
+     *
+     * @return a quantidade de ações executadas
+     */
+    private static long playMatch(Random r, Arena arena, Player p1, Player p2, DeltaStream deltas) {
+        Action action = new Action(arena, p1, p2, w -> true);
+        int turn = 0, num = 0;
+        long n = 0;
+        while (!p1.isDefeated() && !p2.isDefeated()) {
+            if (num % 2 == 0) turn++;
+            num = num % 2 + 1;
+            Robot robot = (num == 1 ? p1 : p2).getRobot();
+            action.reset(turn, num);
+            action.make(randomCommand(r, robot, arena));
+            if (deltas != null) deltas.endAction(turn, num);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Mede a memória ocupada ao longo de uma partida longa, jogada por um
+     * único objeto {@link Action}, reaproveitado a cada ação. O registro de
+     * cada ação é submetido a um {@link SaveWriter} e a um
+     * {@link MatchArchive.Writer} (cujos bytes são descartados), como em
+     * {@link MechaWars#runGame()}. A memória ocupada após uma coleta de lixo,
+     * medida a cada décimo da partida (com a fila do {@link SaveWriter}
+     * vazia), deve permanecer estável. Os robôs têm pontos de vida suficientes
+     * para não serem derrotados.
+     *
+     * O tamanho da partida pode ser ajustado pela propriedade
+     * mechawars.bench.longmatch.actions.
+     */
+    private static void benchLongMatch() {
+
+        final long total = Long.getLong("mechawars.bench.longmatch.actions", 10_000_000L);
+        final long step = Math.max(1, total / 10);
+        final int dim = GameConfigs.getArenaMinDimension();
+        List<Weapon> weapons = Arrays.asList(new Weapon("LaserCannon", 200), new Weapon("Missiles", 100),
+                new Weapon("Railgun", 300));
+        Random r = new Random(42);
+        Arena arena = new Arena(dim, dim, dim, weapons);
+        Player p1 = newPlayer(1, new Robot("Epyon", 1e15, 100), weapons.get(0), arena);
+        Player p2 = newPlayer(2, new Robot("Virgo", 1e15, 100), weapons.get(1), arena);
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        Action action = new Action(arena, p1, p2, w -> true);
+        long min = Long.MAX_VALUE, max = 0, nanos = 0;
+        try (SaveWriter saver = new SaveWriter(discard, SaveWriter.DEFAULT_CAPACITY,
+                SaveWriter.DEFAULT_BATCH_SIZE, e -> { throw new InternalError(e); });
+             MatchArchive.Writer archive = new MatchArchive.Writer(discard,
+                     MatchArchive.Writer.DEFAULT_BLOCK_SIZE)) {
+            archive.setRobots(p1.getRobot().getName(), p2.getRobot().getName());
+            int turn = 0, num = 0;
+            long t0 = System.nanoTime();
+            for (long n = 1; n <= total; n++) {
+                if (num % 2 == 0) turn++;
+                num = num % 2 + 1;
+                Robot robot = (num == 1 ? p1 : p2).getRobot();
+                action.reset(turn, num);
+                action.make(randomCommand(r, robot, arena));
+                ActionRecord record = action.toRecord();
+                saver.submit(record);
+                archive.append(record);
+                if (n % step == 0) {
+                    nanos += System.nanoTime() - t0;
+                    while (saver.pending() > 0)
+                        Thread.yield();
+                    System.gc();
+                    long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+                    min = Math.min(min, used);
+                    max = Math.max(max, used);
+                    System.out.printf("longmatch/heap: %,14d ações  %,9d KiB\n", n, used / 1024);
+                    t0 = System.nanoTime();
+                }
+            }
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+        report("longmatch/actions", total, nanos);
+        System.out.printf("longmatch/heap-range: %,d a %,d KiB\n", min / 1024, max / 1024);
+    }
+
+    private static Player newPlayer(int id, Robot robot, Weapon weapon, Arena arena) {
+        Player p = new Player(id, robot);
+        robot.setWeapon((Weapon) weapon.clone());
+        robot.setPosition(arena.randomPoint());
+        return p;
+    }
+
+    /**
+     * Sorteia um comando válido: ataque ou um movimento de uma posição que
+     * não deixe a arena.
+     */
+    private static Command randomCommand(Random r, Robot robot, Arena arena) {
+        if (r.nextBoolean())
+            return Command.ATTACK;
+        Point3D p = robot.getPosition();
+        int dx = r.nextInt(3) - 1, dy = r.nextInt(3) - 1, dz = r.nextInt(3) - 1;
+        if (p.getX() + dx < 0 || p.getX() + dx >= arena.getWidth()
+                || p.getY() + dy < 0 || p.getY() + dy >= arena.getLength()
+                || p.getZ() + dz < 0 || p.getZ() + dz >= arena.getHeight())
+            return Command.ATTACK;
+        return Command.move(dx, dy, dz);
+    }
+
+    private static void report(String name, long ops, long nanos) {
+        System.out.printf("%-24s %,15.0f ops/s\n", name, ops * 1e9 / nanos);
+    }
+
+}
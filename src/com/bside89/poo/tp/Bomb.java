@@ -18,7 +18,7 @@ class Bomb extends SpecialItem {
     /**
      * Coeficiente de dano estático de qualquer objeto bomba.
      */
-    private static final double SIGMA = 300;
+    static final double SIGMA = 300;
 
     Bomb() {
         super();
@@ -40,8 +40,11 @@ class Bomb extends SpecialItem {
      */
     @Override
     void effect(Robot r, Arena a) {
+        // A bomba deixa de existir na arena. Caso outro robô já a tenha
+        // removido, ela já explodiu.
+        if (!a.swapItem(this.position, this, null))
+            return;
         r.receiveDamage(SIGMA * Math.random());
-        a.removeItem(this.position); // A bomba deixa de existir na arena.
         this.position = OUTLIER_POINT;
     }
 
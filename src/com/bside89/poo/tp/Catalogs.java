@@ -0,0 +1,275 @@
+package com.bside89.poo.tp;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Carregamento dos catálogos de robôs e armas a partir dos arquivos de
+ * listagem (robots.txt e weapons.txt).
+ *
+ * Os catálogos são devolvidos como conjuntos ordenados por nome.
+ *
+ * Para uma inicialização rápida (por exemplo, em processos de simulação de
+ * curta duração), os catálogos podem ser carregados sob demanda
+ * ({@link Lazy}), a partir de um catálogo binário com os dois catálogos,
+ * que dispensa a interpretação dos arquivos de listagem. O catálogo binário
+ * é gravado no diretório temporário do sistema ({@code java.io.tmpdir}), e
+ * não junto dos arquivos de listagem, com um nome derivado dos caminhos
+ * destes (veja {@link #binaryFile}). Ele é gerado por {@link #main} e
+ * regenerado automaticamente quando o conteúdo de algum dos arquivos de
+ * listagem é alterado.
+ *
+ * @author Bruno Santos
+ *
+ * @see Robot
+ * @see Weapon
+ */
+final class Catalogs {
+
+    static final Comparator<Nameable> BY_NAME = (o1, o2) -> o1.getName().compareTo(o2.getName());
+
+    private static final int MAGIC = 0x4D574354; // "MWCT"
+    private static final int VERSION = 2;
+
+    /**
+     * Os catálogos de robôs e armas, carregados no primeiro uso: do catálogo
+     * binário, caso ele corresponda aos arquivos de listagem atuais, ou dos
+     * próprios arquivos, regenerando o catálogo binário.
+     *
+     * Cada catálogo é carregado uma única vez, e os conjuntos devolvidos são
+     * os mesmos a cada chamada.
+     */
+    static final class Lazy {
+
+        private final File robotsFile, weaponsFile, binaryFile;
+        private SortedSet<Robot> robots;
+        private SortedSet<Weapon> weapons;
+
+        /**
+         * @param robotsPath    o caminho do arquivo de listagem de robôs
+         * @param weaponsPath   o caminho do arquivo de listagem de armas
+         *
+         * @throws FileNotFoundException caso algum dos arquivos não exista
+         */
+        Lazy(String robotsPath, String weaponsPath) throws FileNotFoundException {
+            this.robotsFile = new File(robotsPath);
+            this.weaponsFile = new File(weaponsPath);
+            if (!robotsFile.isFile())
+                throw new FileNotFoundException(robotsPath);
+            if (!weaponsFile.isFile())
+                throw new FileNotFoundException(weaponsPath);
+            this.binaryFile = binaryFile(robotsFile, weaponsFile);
+        }
+
+        /**
+         * @throws IOException      caso os arquivos não possam ser lidos
+         * @throws BadConfigError   caso algum registro esteja mal formatado
+         */
+        synchronized SortedSet<Robot> robots() throws IOException {
+            load();
+            return robots;
+        }
+
+        /**
+         * @throws IOException      caso os arquivos não possam ser lidos
+         * @throws BadConfigError   caso algum registro esteja mal formatado
+         */
+        synchronized SortedSet<Weapon> weapons() throws IOException {
+            load();
+            return weapons;
+        }
+
+        private void load() throws IOException {
+            if (robots != null)
+                return;
+            if (readBinary(binaryFile, robotsFile, weaponsFile, this))
+                return;
+            robots = loadRobots(robotsFile.getPath());
+            weapons = loadWeapons(weaponsFile.getPath());
+            try {
+                writeBinary(binaryFile, robotsFile, weaponsFile, robots, weapons);
+            } catch (IOException e) {
+                // O catálogo binário é apenas uma otimização.
+                binaryFile.delete();
+            }
+        }
+    }
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private Catalogs(){}
+
+    /**
+     * Obtém o catálogo de robôs. Cada registro tem a sintaxe
+     * {@code <Nome> <HP> <Armor>}.
+     *
+     * @param filePath o caminho do arquivo de listagem de robôs
+     *
+     * @throws IOException      caso o arquivo não possa ser lido
+     * @throws BadConfigError   caso algum registro esteja mal formatado
+     */
+    static SortedSet<Robot> loadRobots(String filePath) throws IOException {
+        return load(filePath, in -> new Robot(in.next(), in.nextInt(), in.nextInt()));
+    }
+
+    /**
+     * Obtém o catálogo de armas. Cada registro tem a sintaxe
+     * {@code <Nome> <Sigma>}.
+     *
+     * @param filePath o caminho do arquivo de listagem de armas
+     *
+     * @throws IOException      caso o arquivo não possa ser lido
+     * @throws BadConfigError   caso algum registro esteja mal formatado
+     */
+    static SortedSet<Weapon> loadWeapons(String filePath) throws IOException {
+        return load(filePath, in -> new Weapon(in.next(), in.nextInt()));
+    }
+
+    /**
+     * Lê um arquivo de listagem, ignorando linhas vazias e comentários
+     * (iniciados por '#'), e constrói um objeto a partir de cada registro.
+     */
+    private static <T extends Nameable> SortedSet<T> load(String filePath, Function<Scanner, T> parser)
+            throws IOException {
+
+        SortedSet<T> set = new TreeSet<>(BY_NAME);
+        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                if (line.equals("") || line.charAt(0) == '#')
+                    continue;
+                set.add(parser.apply(new Scanner(line)));
+            }
+        } catch (NoSuchElementException e) {
+            // Isto ocorrerá caso haja alterações incorretas dos
+            // arquivos de coleções
+            throw new BadConfigError(e.getMessage(), e);
+        }
+        return set;
+    }
+
+    /**
+     * @return o catálogo binário correspondente a um par de arquivos de
+     *         listagem, no diretório temporário do sistema
+     */
+    static File binaryFile(File robotsFile, File weaponsFile) {
+        String key = robotsFile.getAbsolutePath() + File.pathSeparator + weaponsFile.getAbsolutePath();
+        return new File(System.getProperty("java.io.tmpdir"),
+                String.format("mechawars-catalogs-%08x.bin", key.hashCode()));
+    }
+
+    /**
+     * @return o CRC-32 do conteúdo de um arquivo
+     */
+    private static long checksum(File f) throws IOException {
+        try (CheckedInputStream in = new CheckedInputStream(new FileInputStream(f), new CRC32())) {
+            byte[] buf = new byte[8192];
+            while (in.read(buf) >= 0) ;
+            return in.getChecksum().getValue();
+        }
+    }
+
+    /**
+     * Grava o catálogo binário, com a identificação (tamanho e CRC-32 do
+     * conteúdo) dos arquivos de listagem de origem. A data de modificação
+     * não é usada: uma alteração que mantenha o tamanho do arquivo, feita no
+     * mesmo segundo, não a modificaria.
+     */
+    private static void writeBinary(File binary, File robotsFile, File weaponsFile, Collection<Robot> robots,
+                                    Collection<Weapon> weapons) throws IOException {
+        // Um nome exclusivo: vários processos podem gravar o mesmo catálogo.
+        File tmp = File.createTempFile(binary.getName(), ".tmp", binary.getAbsoluteFile().getParentFile());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (File f : new File[]{robotsFile, weaponsFile}) {
+                out.writeLong(f.length());
+                out.writeLong(checksum(f));
+            }
+            out.writeInt(robots.size());
+            for (Robot e : robots) {
+                out.writeUTF(e.getName());
+                out.writeDouble(e.getHp());
+                out.writeDouble(e.getArmor());
+            }
+            out.writeInt(weapons.size());
+            for (Weapon e : weapons) {
+                out.writeUTF(e.getName());
+                out.writeDouble(e.getSigma());
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(binary)) {
+            binary.delete();
+            if (!tmp.renameTo(binary)) {
+                tmp.delete();
+                throw new IOException(binary.getPath());
+            }
+        }
+    }
+
+    /**
+     * Lê o catálogo binário, caso ele exista e corresponda aos arquivos de
+     * listagem.
+     *
+     * @return <tt>false</tt> caso o catálogo binário não possa ser usado
+     */
+    private static boolean readBinary(File binary, File robotsFile, File weaponsFile, Lazy into) {
+        if (!binary.isFile())
+            return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binary)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return false;
+            for (File f : new File[]{robotsFile, weaponsFile}) {
+                long length = in.readLong(), crc = in.readLong();
+                if (length != f.length() || crc != checksum(f))
+                    return false;
+            }
+            SortedSet<Robot> robots = new TreeSet<>(BY_NAME);
+            for (int n = in.readInt(); n > 0; n--)
+                robots.add(new Robot(in.readUTF(), in.readDouble(), in.readDouble()));
+            SortedSet<Weapon> weapons = new TreeSet<>(BY_NAME);
+            for (int n = in.readInt(); n > 0; n--)
+                weapons.add(new Weapon(in.readUTF(), in.readDouble()));
+            into.robots = robots;
+            into.weapons = weapons;
+            return true;
+        } catch (IOException e) {
+            return false; // Catálogo binário incompleto ou corrompido.
+        }
+    }
+
+    /**
+     * Obtém um item de um catálogo pelo nome.
+     *
+     * @throws IllegalArgumentException caso não exista item com este nome
+     */
+    static <T extends Nameable> T byName(Collection<T> catalog, String name) throws IllegalArgumentException {
+        for (T e : catalog)
+            if (e.getName().equals(name))
+                return e;
+        throw new IllegalArgumentException(name);
+    }
+
+    /**
+     * Gera o catálogo binário a partir dos arquivos de listagem, para que a
+     * primeira execução já o encontre pronto.
+     *
+     * Uso:
+     * <pre>
+     *   java com.bside89.poo.tp.Catalogs [robots.txt weapons.txt]
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        String robotsPath = args.length > 0 ? args[0] : String.format("datafiles%srobots.txt", File.separator);
+        String weaponsPath = args.length > 1 ? args[1] : String.format("datafiles%sweapons.txt", File.separator);
+        File robotsFile = new File(robotsPath), weaponsFile = new File(weaponsPath);
+        File binary = binaryFile(robotsFile, weaponsFile);
+        writeBinary(binary, robotsFile, weaponsFile, loadRobots(robotsPath), loadWeapons(weaponsPath));
+        System.out.println(binary);
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.bside89.poo.tp;
+
+import java.util.Arrays;
+
+/**
+ * Mapa de posições da arena (codificadas em um long por {@link #key}) para
+ * números inteiros, por exemplo, números de robôs, com endereçamento aberto
+ * em vetores primitivos: as operações não alocam memória (exceto quando o
+ * mapa cresce), o que evita pausas do coletor de lixo com muitos robôs.
+ *
+ * @author Bruno Santos
+ *
+ * @see TickScheduler
+ * @see Epidemic
+ */
+final class CellMap {
+
+    private static final long FREE = -1;
+
+    /**
+     * Valor devolvido por {@link #get} para uma posição ausente.
+     */
+    static final int NONE = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask, size;
+
+    /**
+     * @param capacity a quantidade esperada de posições; o mapa cresce caso
+     *                 ela seja ultrapassada
+     */
+    CellMap(int capacity) {
+        allocate(Integer.highestOneBit(Math.max(2, capacity) * 4 - 1));
+    }
+
+    private void allocate(int slots) {
+        keys = new long[slots];
+        values = new int[slots];
+        mask = slots - 1;
+        Arrays.fill(keys, FREE);
+    }
+
+    /**
+     * Codifica uma posição, com até 21 bits por coordenada.
+     */
+    static long key(int x, int y, int z) {
+        return (long) x << 42 | (long) y << 21 | z;
+    }
+
+    static long key(Point3D p) {
+        return key(p.getX(), p.getY(), p.getZ());
+    }
+
+    private int home(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32) & mask;
+    }
+
+    private int slot(long key) {
+        int i = home(key);
+        while (keys[i] != FREE && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * @return o valor da posição, ou {@link #NONE} caso ela esteja ausente
+     */
+    int get(long key) {
+        int i = slot(key);
+        return keys[i] == FREE ? NONE : values[i];
+    }
+
+    /**
+     * @return <tt>false</tt> caso a posição já esteja ocupada
+     */
+    boolean putIfAbsent(long key, int value) {
+        int i = slot(key);
+        if (keys[i] != FREE)
+            return false;
+        insert(i, key, value);
+        return true;
+    }
+
+    /**
+     * Associa um valor à posição, substituindo o valor anterior.
+     */
+    void put(long key, int value) {
+        int i = slot(key);
+        if (keys[i] != FREE)
+            values[i] = value;
+        else
+            insert(i, key, value);
+    }
+
+    private void insert(int i, long key, int value) {
+        keys[i] = key;
+        values[i] = value;
+        // Mantém no máximo metade das entradas ocupadas.
+        if (++size > mask >> 1) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            allocate(2 * oldKeys.length);
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == FREE)
+                    continue;
+                int k = slot(oldKeys[j]);
+                keys[k] = oldKeys[j];
+                values[k] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Libera a posição, caso esteja associada ao valor informado.
+     */
+    void remove(long key, int value) {
+        int i = slot(key);
+        if (keys[i] == FREE || values[i] != value)
+            return;
+        keys[i] = FREE;
+        size--;
+        // Desloca para a posição liberada as chaves seguintes que não
+        // seriam mais encontradas, sem usar marcadores de remoção.
+        for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int h = home(keys[j]);
+            if (i <= j ? i < h && h <= j : i < h || h <= j)
+                continue;
+            keys[i] = keys[j];
+            values[i] = values[j];
+            keys[j] = FREE;
+            i = j;
+        }
+    }
+
+    /**
+     * @return a quantidade de posições no mapa
+     */
+    int size() {
+        return size;
+    }
+
+}
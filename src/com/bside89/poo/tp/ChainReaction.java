@@ -0,0 +1,162 @@
+package com.bside89.poo.tp;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Reação em cadeia de bombas, usada pelo modo de explosões em área (veja
+ * {@link GameConfigs#getBombChainRadius()}).
+ *
+ * Uma bomba detonada atinge todas as posições a até um raio de distância em
+ * cada eixo (um cubo centrado nela), e as bombas atingidas também são
+ * detonadas. A propagação é uma busca em largura a partir da primeira bomba,
+ * limitada a um cubo de alcance ao redor dela e aos limites da arena: a fila
+ * guarda apenas índices (inteiros) de posições dentro desse cubo, e um
+ * conjunto de bits marca as posições já examinadas, de modo que cada posição
+ * é lida da arena no máximo uma vez, mesmo em arenas densas, em que uma única
+ * cadeia pode atingir milhões de posições.
+ *
+ * As bombas detonadas deixam a arena. Em uma arena compartilhada, uma bomba
+ * removida por outro robô durante a propagação não é detonada pela cadeia.
+ *
+ * @author Bruno Santos
+ *
+ * @see Bomb
+ * @see Action
+ */
+final class ChainReaction {
+
+    /**
+     * Alcance padrão da propagação: a distância máxima, em cada eixo, entre a
+     * primeira bomba e as bombas detonadas pela cadeia.
+     */
+    static final int DEFAULT_REACH = 128;
+
+    /**
+     * Resultado de uma reação em cadeia.
+     */
+    static final class Chain {
+
+        private final int radius;
+        private final int X0, Y0, Z0, LENGTH, HEIGHT;
+        private final int[] bombs;
+        private final int size;
+        private final long cells;
+
+        private Chain(int radius, int x0, int y0, int z0, int length, int height, int[] bombs, int size,
+                      long cells) {
+            this.radius = radius;
+            this.X0 = x0;
+            this.Y0 = y0;
+            this.Z0 = z0;
+            this.LENGTH = length;
+            this.HEIGHT = height;
+            this.bombs = bombs;
+            this.size = size;
+            this.cells = cells;
+        }
+
+        /**
+         * @return a quantidade de bombas detonadas, incluindo a primeira
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return a quantidade de posições examinadas durante a propagação
+         */
+        long getCells() {
+            return cells;
+        }
+
+        /**
+         * @return a posição da i-ésima bomba detonada, em ordem de detonação
+         */
+        Point3D getBomb(int i) {
+            if (i < 0 || i >= size)
+                throw new IndexOutOfBoundsException();
+            int c = bombs[i];
+            return new Point3D(X0 + c / (LENGTH * HEIGHT), Y0 + c / HEIGHT % LENGTH, Z0 + c % HEIGHT);
+        }
+
+        /**
+         * Conta as explosões que atingem uma posição.
+         *
+         * @return a quantidade de bombas detonadas a até o raio de explosão
+         *         da posição, em cada eixo
+         */
+        int blastsReaching(Point3D p) {
+            // Coordenadas relativas ao cubo de alcance.
+            int x = p.getX() - X0, y = p.getY() - Y0, z = p.getZ() - Z0;
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int c = bombs[i];
+                if (Math.abs(c / (LENGTH * HEIGHT) - x) <= radius && Math.abs(c / HEIGHT % LENGTH - y) <= radius
+                        && Math.abs(c % HEIGHT - z) <= radius)
+                    n++;
+            }
+            return n;
+        }
+    }
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private ChainReaction(){}
+
+    /**
+     * Detona uma bomba e propaga a reação em cadeia.
+     *
+     * @param a         a arena
+     * @param bomb      a bomba detonada, ainda na arena
+     * @param radius    o raio de explosão de cada bomba, maior que zero
+     * @param reach     o alcance da propagação (veja {@link #DEFAULT_REACH})
+     *
+     * @return o resultado da reação, vazio caso a bomba já tenha deixado a
+     *         arena
+     */
+    static Chain detonate(Arena a, Bomb bomb, int radius, int reach) {
+
+        if (radius <= 0 || reach < 0)
+            throw new IllegalArgumentException();
+        Point3D origin = bomb.getPosition();
+        int ox = origin.getX(), oy = origin.getY(), oz = origin.getZ();
+        int x0 = Math.max(0, ox - reach), x1 = Math.min(a.getWidth() - 1, ox + reach);
+        int y0 = Math.max(0, oy - reach), y1 = Math.min(a.getLength() - 1, oy + reach);
+        int z0 = Math.max(0, oz - reach), z1 = Math.min(a.getHeight() - 1, oz + reach);
+        int w = x1 - x0 + 1, l = y1 - y0 + 1, h = z1 - z0 + 1;
+        if ((long) w * l * h > Integer.MAX_VALUE)
+            throw new IllegalArgumentException();
+
+        int[] queue = new int[64];
+        int head = 0, tail = 0;
+        long cells = 0;
+        if (a.swapItem(origin, bomb, null)) {
+            BitSet visited = new BitSet(w * l * h);
+            int first = ((ox - x0) * l + (oy - y0)) * h + (oz - z0);
+            visited.set(first);
+            cells++;
+            queue[tail++] = first;
+            while (head < tail) {
+                int c = queue[head++];
+                int cx = c / (l * h), cy = c / h % l, cz = c % h;
+                for (int i = Math.max(0, cx - radius), iMax = Math.min(w - 1, cx + radius); i <= iMax; i++)
+                    for (int j = Math.max(0, cy - radius), jMax = Math.min(l - 1, cy + radius); j <= jMax; j++) {
+                        int row = (i * l + j) * h;
+                        for (int k = Math.max(0, cz - radius), kMax = Math.min(h - 1, cz + radius); k <= kMax; k++) {
+                            if (visited.get(row + k))
+                                continue;
+                            visited.set(row + k);
+                            cells++;
+                            if (!a.removeItem(x0 + i, y0 + j, z0 + k, ItemStore.KIND_BOMB))
+                                continue;
+                            if (tail == queue.length)
+                                queue = Arrays.copyOf(queue, 2 * tail);
+                            queue[tail++] = row + k;
+                        }
+                    }
+            }
+        }
+        return new Chain(radius, x0, y0, z0, l, h, queue, tail, cells);
+    }
+
+}
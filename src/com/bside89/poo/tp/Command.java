@@ -0,0 +1,355 @@
+package com.bside89.poo.tp;
+
+import static com.bside89.poo.tp.InGameText.*;
+
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Representação tipada de um comando de jogador, já decodificado.
+ *
+ * Um comando pode ser representado de duas formas:
+ *  - Texto, digitado pelo jogador: "attack", "move dx dy dz" ou "exit";
+ *  - Binário, compacto: um byte de opcode seguido dos três deslocamentos,
+ *    cada um codificado como um varint com sinal (zigzag). Um comando de
+ *    ataque ou de encerramento ocupa 4 bytes; um movimento pequeno também.
+ *
+ * O parser de texto não utiliza {@link java.util.StringTokenizer} nem cria
+ * Strings intermediárias: os comandos "attack" e "exit" são constantes, e
+ * {@link #parse(CharSequence, int[])} não aloca memória alguma.
+ *
+ * @author Bruno Santos
+ *
+ * @see Action
+ */
+final class Command implements Serializable {
+
+    static final byte OP_ATTACK = 1;
+    static final byte OP_MOVE = 2;
+    static final byte OP_EXIT = 3;
+
+    /**
+     * Tamanho máximo, em bytes, de um comando codificado: um opcode e três
+     * varints de no máximo 5 bytes cada.
+     */
+    static final int MAX_ENCODED_LENGTH = 1 + 3 * 5;
+
+    static final Command ATTACK = new Command(OP_ATTACK, 0, 0, 0);
+    static final Command EXIT = new Command(OP_EXIT, 0, 0, 0);
+
+    private final byte OP;
+    private final int DX, DY, DZ;
+
+    private Command(byte op, int dx, int dy, int dz) {
+        this.OP = op;
+        this.DX = dx;
+        this.DY = dy;
+        this.DZ = dz;
+    }
+
+    static Command move(int dx, int dy, int dz) {
+        return new Command(OP_MOVE, dx, dy, dz);
+    }
+
+    /**
+     * Obtém o comando correspondente a um opcode e seus argumentos.
+     *
+     * @throws IllegalArgumentException caso o opcode seja inválido
+     */
+    static Command of(byte op, int dx, int dy, int dz) throws IllegalArgumentException {
+        switch (op) {
+            case OP_ATTACK:
+                return ATTACK;
+            case OP_MOVE:
+                return move(dx, dy, dz);
+            case OP_EXIT:
+                return EXIT;
+            default:
+                throw new IllegalArgumentException(ERR_INVALID_COMMAND);
+        }
+    }
+
+    /**
+     * Interpreta a forma textual de um comando, com a mesma sintaxe aceita até
+     * então por {@code Action.make(String)}.
+     *
+     * @param s o comando digitado pelo jogador
+     *
+     * @return o comando correspondente
+     *
+     * @throws IllegalArgumentException caso o comando não obedeça a sintaxe
+     */
+    static Command parse(CharSequence s) throws IllegalArgumentException {
+        int[] args = new int[3];
+        return of(parse(s, args), args[0], args[1], args[2]);
+    }
+
+    /**
+     * Interpreta a forma textual de um comando sem alocar memória.
+     *
+     * Assim como no {@link java.util.StringTokenizer}, os termos são separados
+     * por espaços em branco. Termos excedentes após "attack" e "exit" são
+     * ignorados; "move" exige exatamente três números inteiros.
+     *
+     * @param s     o comando digitado pelo jogador
+     * @param args  array de ao menos 3 posições que receberá os deslocamentos
+     *              de um comando de movimento
+     *
+     * @return o opcode do comando
+     *
+     * @throws IllegalArgumentException caso o comando não obedeça a sintaxe
+     */
+    static byte parse(CharSequence s, int[] args) throws IllegalArgumentException {
+
+        final int len = s.length();
+        int i = skipSpaces(s, 0);
+        int end = skipToken(s, i);
+
+        byte op;
+        if (matches(s, i, end, "attack"))
+            op = OP_ATTACK;
+        else if (matches(s, i, end, "exit"))
+            op = OP_EXIT;
+        else if (matches(s, i, end, "move"))
+            op = OP_MOVE;
+        else
+            throw new IllegalArgumentException(ERR_INVALID_COMMAND);
+        if (op != OP_MOVE)
+            return op;
+
+        for (int k = 0; k < 3; k++) {
+            i = skipSpaces(s, end);
+            end = skipToken(s, i);
+            args[k] = parseInt(s, i, end);
+        }
+        if (skipSpaces(s, end) != len)
+            throw new IllegalArgumentException(ERR_INVALID_COMMAND);
+        return op;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static int skipSpaces(CharSequence s, int i) {
+        while (i < s.length() && isSpace(s.charAt(i))) i++;
+        return i;
+    }
+
+    private static int skipToken(CharSequence s, int i) {
+        while (i < s.length() && !isSpace(s.charAt(i))) i++;
+        return i;
+    }
+
+    private static boolean matches(CharSequence s, int start, int end, String word) {
+        if (end - start != word.length())
+            return false;
+        for (int i = start; i < end; i++)
+            if (s.charAt(i) != word.charAt(i - start))
+                return false;
+        return true;
+    }
+
+    /**
+     * Equivalente a {@link Integer#parseInt(String)} sobre o intervalo
+     * [start, end) de s, sem criar uma substring.
+     */
+    private static int parseInt(CharSequence s, int start, int end) throws IllegalArgumentException {
+
+        if (start == end)
+            throw new IllegalArgumentException(ERR_INVALID_COMMAND);
+        boolean negative = s.charAt(start) == '-';
+        if (negative || s.charAt(start) == '+')
+            start++;
+        if (start == end)
+            throw new IllegalArgumentException(ERR_INVALID_COMMAND);
+
+        // Acumula negativamente, para que Integer.MIN_VALUE seja representável.
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                throw new IllegalArgumentException(ERR_INVALID_COMMAND);
+            result = result * 10 - digit;
+            if (result < Integer.MIN_VALUE)
+                throw new IllegalArgumentException(ERR_INVALID_COMMAND);
+        }
+        if (!negative) {
+            if (result == Integer.MIN_VALUE)
+                throw new IllegalArgumentException(ERR_INVALID_COMMAND);
+            result = -result;
+        }
+        return (int) result;
+    }
+
+    /**
+     * Codifica este comando em sua forma binária.
+     *
+     * @param buf o buffer de destino, com ao menos {@link #MAX_ENCODED_LENGTH}
+     *            bytes restantes
+     *
+     * @return a quantidade de bytes escritos
+     */
+    int encode(ByteBuffer buf) {
+        int start = buf.position();
+        buf.put(OP);
+        putVarint(buf, DX);
+        putVarint(buf, DY);
+        putVarint(buf, DZ);
+        return buf.position() - start;
+    }
+
+    /**
+     * Decodifica um comando a partir de sua forma binária.
+     *
+     * @param buf o buffer de origem, posicionado no início do comando
+     *
+     * @return o comando decodificado
+     *
+     * @throws IllegalArgumentException caso os bytes não representem um
+     *                                  comando válido
+     */
+    static Command decode(ByteBuffer buf) throws IllegalArgumentException {
+        try {
+            byte op = buf.get();
+            int dx = getVarint(buf), dy = getVarint(buf), dz = getVarint(buf);
+            return of(op, dx, dy, dz);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException(ERR_INVALID_COMMAND, e);
+        }
+    }
+
+    private static void putVarint(ByteBuffer buf, int value) {
+        writeVarLong(b -> buf.put((byte) b), value);
+    }
+
+    private static int getVarint(ByteBuffer buf) throws IllegalArgumentException {
+        long v = readVarLong(buf::get, 5);
+        if (v != (int) v)
+            throw new IllegalArgumentException(ERR_INVALID_COMMAND);
+        return (int) v;
+    }
+
+    /**
+     * Destino dos bytes de um varint.
+     *
+     * @param <X> a exceção lançada pelo destino
+     */
+    interface ByteSink<X extends Exception> {
+        void put(int b) throws X;
+    }
+
+    /**
+     * Origem dos bytes de um varint.
+     *
+     * @param <X> a exceção lançada pela origem
+     */
+    interface ByteSource<X extends Exception> {
+        byte get() throws X;
+    }
+
+    /**
+     * Codifica um inteiro como um varint com sinal (zigzag): o valor é
+     * escrito em grupos de 7 bits, do menos significativo ao mais
+     * significativo, e valores pequenos, positivos ou não, ficam curtos.
+     *
+     * Esta é a única implementação do formato, usada pela forma binária dos
+     * comandos e pelos fluxos de {@link DeltaStream} e {@link ActionRecord}.
+     */
+    static <X extends Exception> void writeVarLong(ByteSink<X> out, long value) throws X {
+        long v = (value << 1) ^ (value >> 63); // Zigzag
+        while ((v & ~0x7FL) != 0) {
+            out.put((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((int) v);
+    }
+
+    /**
+     * Decodifica um varint com sinal escrito por {@link #writeVarLong}.
+     *
+     * @param maxBytes  o tamanho máximo do varint: 5 para um int, 10 para um
+     *                  long
+     *
+     * @throws IllegalArgumentException caso o varint ultrapasse o tamanho
+     *                                  máximo
+     */
+    static <X extends Exception> long readVarLong(ByteSource<X> in, int maxBytes) throws X {
+        long v = 0;
+        for (int shift = 0; shift < 7 * maxBytes; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return (v >>> 1) ^ -(v & 1);
+        }
+        throw new IllegalArgumentException(ERR_INVALID_COMMAND);
+    }
+
+    byte getOp() {
+        return OP;
+    }
+
+    /**
+     * @return o nome do comando: "attack", "move" ou "exit"
+     */
+    String getOpName() {
+        switch (OP) {
+            case OP_ATTACK:
+                return "attack";
+            case OP_MOVE:
+                return "move";
+            default:
+                return "exit";
+        }
+    }
+
+    int getDx() {
+        return DX;
+    }
+
+    int getDy() {
+        return DY;
+    }
+
+    int getDz() {
+        return DZ;
+    }
+
+    /**
+     * Garante que as constantes continuem únicas após a desserialização.
+     */
+    private Object readResolve() {
+        return OP == OP_MOVE ? this : of(OP, DX, DY, DZ);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        Command other = (Command) o;
+        return OP == other.OP && DX == other.DX && DY == other.DY && DZ == other.DZ;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = OP;
+        result = 31 * result + DX;
+        result = 31 * result + DY;
+        result = 31 * result + DZ;
+        return result;
+    }
+
+    /**
+     * @return a forma textual deste comando
+     */
+    @Override
+    public String toString() {
+        if (OP == OP_MOVE)
+            return String.format("move %d %d %d", DX, DY, DZ);
+        return getOpName();
+    }
+
+}
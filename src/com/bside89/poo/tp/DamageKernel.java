@@ -0,0 +1,100 @@
+package com.bside89.poo.tp;
+
+import java.util.SplittableRandom;
+
+/**
+ * Resolução de ataques em lote.
+ *
+ * Enquanto {@link Robot#attack(Robot)} calcula o dano de um único par de robôs,
+ * esta classe resolve de uma só vez os ataques de vários pares atacante/alvo,
+ * como ocorre quando muitas partidas são simuladas em paralelo.
+ *
+ * Todos os dados são mantidos em arrays primitivos (estrutura de arrays), e o
+ * laço principal não possui desvios nem alocações, o que permite ao compilador
+ * JIT vetorizá-lo automaticamente (SIMD). Os números aleatórios são gerados em
+ * uma passada separada, antes do laço de cálculo.
+ *
+ * O dano de cada ataque é calculado pelo próprio {@link Robot#calcDamage}
+ * (expandido em linha pelo JIT), portanto, para os mesmos números aleatórios,
+ * o resultado é idêntico ao do caminho escalar.
+ *
+ * @author Bruno Santos
+ *
+ * @see Robot
+ */
+final class DamageKernel {
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private DamageKernel(){}
+
+    /**
+     * Calcula o dano de {@code n} ataques.
+     *
+     * O ataque i é efetuado por um robô em (ax[i], ay[i], az[i]), armado com uma
+     * arma de coeficiente sigma[i], contra um robô em (tx[i], ty[i], tz[i]) com
+     * armadura armor[i]. Os arrays rand1 e rand2 devem conter números aleatórios
+     * entre 0 e 1.
+     *
+     * @param n     a quantidade de ataques a serem resolvidos
+     * @param out   o array que receberá os danos calculados; caso seja
+     *              <tt>null</tt>, um novo array será alocado
+     *
+     * @return o array de danos (nunca negativos), indexado como os demais
+     *
+     * @throws IllegalArgumentException caso algum dos arrays tenha menos de
+     *                                  {@code n} posições
+     */
+    static double[] resolve(int n, double[] sigma, int[] ax, int[] ay, int[] az, int[] tx, int[] ty,
+                            int[] tz, double[] armor, double[] rand1, double[] rand2, double[] out)
+            throws IllegalArgumentException {
+
+        if (out == null)
+            out = new double[n];
+        checkLength(n, sigma, armor, rand1, rand2, out);
+        checkLength(n, ax, ay, az, tx, ty, tz);
+
+        for (int i = 0; i < n; i++) {
+            double dx = ax[i] - tx[i];
+            double dy = ay[i] - ty[i];
+            double dz = az[i] - tz[i];
+            double dist = Math.sqrt(dx*dx + dy*dy + dz*dz);
+            out[i] = Robot.calcDamage(sigma[i], dist, armor[i], rand1[i], rand2[i]);
+        }
+        return out;
+    }
+
+    /**
+     * Calcula o dano de {@code n} ataques, gerando os números aleatórios a partir
+     * do gerador informado.
+     *
+     * Os arrays rand1 e rand2 servem apenas como área de trabalho e podem ser
+     * reaproveitados entre chamadas, evitando alocações.
+     *
+     * @see #resolve(int, double[], int[], int[], int[], int[], int[], int[], double[],
+     *      double[], double[], double[])
+     */
+    static double[] resolve(int n, double[] sigma, int[] ax, int[] ay, int[] az, int[] tx, int[] ty,
+                            int[] tz, double[] armor, SplittableRandom random, double[] rand1,
+                            double[] rand2, double[] out) throws IllegalArgumentException {
+
+        checkLength(n, rand1, rand2);
+        for (int i = 0; i < n; i++) {
+            rand1[i] = random.nextDouble();
+            rand2[i] = random.nextDouble();
+        }
+        return resolve(n, sigma, ax, ay, az, tx, ty, tz, armor, rand1, rand2, out);
+    }
+
+    private static void checkLength(int n, double[]... arrays) {
+        for (double[] e : arrays)
+            if (e.length < n)
+                throw new IllegalArgumentException();
+    }
+
+    private static void checkLength(int n, int[]... arrays) {
+        for (int[] e : arrays)
+            if (e.length < n)
+                throw new IllegalArgumentException();
+    }
+
+}
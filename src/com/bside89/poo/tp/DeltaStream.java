@@ -0,0 +1,307 @@
+package com.bside89.poo.tp;
+
+import java.io.*;
+import java.util.Map;
+
+/**
+ * Fluxo incremental de alterações de uma partida, destinado a espectadores.
+ *
+ * Em vez de transmitir o estado completo da partida após cada ação (como faz
+ * {@code InGameText.printGameStatus()} na tela), este fluxo transmite apenas o
+ * que mudou: itens adicionados ou removidos da arena, robôs que se moveram,
+ * alterações de HP, de arma e de infecção. Cada ação termina com um registro
+ * {@link #END_ACTION}.
+ *
+ * A cada {@code keyframeInterval} ações é transmitido um quadro-chave
+ * ({@link #KEYFRAME}), com o estado completo da partida, para que espectadores
+ * que se conectem no meio da partida possam sincronizar sem reproduzi-la desde
+ * o início. Um {@link ArenaReplica} aplica este fluxo a uma cópia local.
+ *
+ * Formato: cada registro é um byte de tipo seguido de seus campos; inteiros são
+ * varints com sinal (zigzag, os mesmos da forma binária de {@link Command}; veja
+ * {@link Command#writeVarLong}), HPs e coeficientes de dano são transmitidos em
+ * centésimos e nomes de armas em UTF-8 modificado ({@link DataOutput#writeUTF}).
+ *
+ * Caso a escrita no fluxo de saída falhe, o fluxo é desativado e a partida
+ * continua normalmente.
+ *
+ * @author Bruno Santos
+ *
+ * @see ArenaReplica
+ */
+final class DeltaStream {
+
+    static final byte KEYFRAME = 1;
+    static final byte ITEM_ADDED = 2;
+    static final byte ITEM_REMOVED = 3;
+    static final byte ROBOT_MOVED = 4;
+    static final byte HP_CHANGED = 5;
+    static final byte INFECTED = 6;
+    static final byte CURED = 7;
+    static final byte WEAPON_CHANGED = 8;
+    static final byte END_ACTION = 9;
+
+    static final byte ITEM_BOMB = 0;
+    static final byte ITEM_VIRUS = 1;
+    static final byte ITEM_WEAPON = 2;
+
+    private final OutputStream out;
+    private final int KEYFRAME_INTERVAL;
+
+    /**
+     * Buffer onde os registros de uma ação são acumulados antes de serem
+     * enviados, de uma só vez, ao fluxo de saída.
+     */
+    private final ByteArrayOutputStream buffer;
+    private final DataOutputStream data;
+
+    private Arena arena;
+    private Player[] players;
+
+    // Último estado transmitido de cada robô, indexado por ID - 1.
+    private final Point3D[] lastPosition = new Point3D[2];
+    private final long[] lastHp = new long[2];
+    private final boolean[] lastInfected = new boolean[2];
+    private final Weapon[] lastWeapon = new Weapon[2];
+
+    private long actions, deltaBytes, keyframeBytes, keyframes;
+    private int lastKeyframeSize;
+    private boolean failed;
+
+    /**
+     * @param out               o fluxo de saída (por exemplo, um socket)
+     * @param keyframeInterval  a quantidade de ações entre dois quadros-chave
+     */
+    DeltaStream(OutputStream out, int keyframeInterval) {
+        assert (out != null && keyframeInterval > 0);
+        this.out = out;
+        this.KEYFRAME_INTERVAL = keyframeInterval;
+        this.buffer = new ByteArrayOutputStream(256);
+        this.data = new DataOutputStream(buffer);
+    }
+
+    /**
+     * Passa a observar a partida e transmite o primeiro quadro-chave.
+     */
+    void start(int turn, int num, Arena a, Player p1, Player p2) {
+        this.arena = a;
+        this.players = new Player[]{p1, p2};
+        a.setDeltaStream(this);
+        keyframe(turn, num);
+    }
+
+    /**
+     * Deixa de observar a partida.
+     */
+    void stop() {
+        if (arena != null) arena.setDeltaStream(null);
+        arena = null;
+    }
+
+    void itemAdded(SpecialItem item) {
+        if (failed) return;
+        try {
+            data.writeByte(ITEM_ADDED);
+            writePoint(data, item.getPosition());
+            writeItem(data, item);
+        } catch (IOException e) {
+            // Não ocorre: a escrita é feita em memória.
+            throw new InternalError(e);
+        }
+    }
+
+    void itemRemoved(Point3D position) {
+        if (failed) return;
+        try {
+            data.writeByte(ITEM_REMOVED);
+            writePoint(data, position);
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    /**
+     * Encerra os registros de uma ação: compara o estado dos robôs com o último
+     * transmitido, acrescenta as diferenças e envia tudo ao fluxo de saída.
+     * Periodicamente, um quadro-chave é enviado logo em seguida.
+     *
+     * @param turn  o turno da ação encerrada
+     * @param num   o número da ação encerrada
+     */
+    void endAction(int turn, int num) {
+        if (failed) return;
+        try {
+            for (int i = 0; i < 2; i++) {
+                Robot r = players[i].getRobot();
+                int id = players[i].getID();
+                if (!r.getPosition().equals(lastPosition[i])) {
+                    data.writeByte(ROBOT_MOVED);
+                    writeVarint(data, id);
+                    writePoint(data, r.getPosition());
+                }
+                if (centi(r.getHp()) != lastHp[i]) {
+                    data.writeByte(HP_CHANGED);
+                    writeVarint(data, id);
+                    writeVarLong(data, centi(r.getHp()));
+                }
+                if (r.isInfected() != lastInfected[i]) {
+                    data.writeByte(r.isInfected() ? INFECTED : CURED);
+                    writeVarint(data, id);
+                }
+                if (r.getWeapon() != lastWeapon[i]) {
+                    data.writeByte(WEAPON_CHANGED);
+                    writeVarint(data, id);
+                    writeWeapon(data, r.getWeapon());
+                }
+                remember(i, r);
+            }
+            data.writeByte(END_ACTION);
+            writeVarint(data, turn);
+            writeVarint(data, num);
+            deltaBytes += buffer.size();
+            send();
+            if (++actions % KEYFRAME_INTERVAL == 0)
+                keyframe(turn, num);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void keyframe(int turn, int num) {
+        if (failed) return;
+        try {
+            lastKeyframeSize = writeSnapshot(data, turn, num);
+            keyframeBytes += lastKeyframeSize;
+            keyframes++;
+            send();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Escreve o estado completo da partida em um quadro-chave.
+     *
+     * @return a quantidade de bytes escritos
+     */
+    private int writeSnapshot(DataOutputStream d, int turn, int num) throws IOException {
+        int start = d.size();
+        d.writeByte(KEYFRAME);
+        writeVarint(d, turn);
+        writeVarint(d, num);
+        writeVarint(d, arena.getWidth());
+        writeVarint(d, arena.getLength());
+        writeVarint(d, arena.getHeight());
+        Map<Point3D, SpecialItem> items = arena.getItems();
+        writeVarint(d, items.size());
+        for (Map.Entry<Point3D, SpecialItem> e : items.entrySet()) {
+            writePoint(d, e.getKey());
+            writeItem(d, e.getValue());
+        }
+        for (int i = 0; i < 2; i++) {
+            Robot r = players[i].getRobot();
+            writeVarint(d, players[i].getID());
+            d.writeUTF(r.getName());
+            writePoint(d, r.getPosition());
+            writeVarLong(d, centi(r.getHp()));
+            writeVarLong(d, centi(r.getArmor()));
+            d.writeBoolean(r.isInfected());
+            writeWeapon(d, r.getWeapon());
+            remember(i, r);
+        }
+        return d.size() - start;
+    }
+
+    private void remember(int i, Robot r) {
+        lastPosition[i] = r.getPosition();
+        lastHp[i] = centi(r.getHp());
+        lastInfected[i] = r.isInfected();
+        lastWeapon[i] = r.getWeapon();
+    }
+
+    private void send() throws IOException {
+        buffer.writeTo(out);
+        out.flush();
+        buffer.reset();
+    }
+
+    private void fail(IOException e) {
+        System.err.println(e.getMessage());
+        failed = true;
+        stop();
+    }
+
+    /**
+     * @return o tamanho, em bytes, do último quadro-chave, isto é, o custo de
+     *         transmitir o estado completo da partida
+     */
+    int getSnapshotBytes() {
+        return lastKeyframeSize;
+    }
+
+    /**
+     * @return a quantidade média de bytes transmitidos por ação, sem contar
+     *         os quadros-chave
+     */
+    double getBytesPerAction() {
+        return actions == 0 ? 0 : (double) deltaBytes / actions;
+    }
+
+    long getKeyframeBytes() {
+        return keyframeBytes;
+    }
+
+    long getKeyframes() {
+        return keyframes;
+    }
+
+    private static long centi(double value) {
+        return Math.round(value * 100);
+    }
+
+    private static void writeItem(DataOutput d, SpecialItem item) throws IOException {
+        if (item instanceof Bomb) {
+            d.writeByte(ITEM_BOMB);
+        } else if (item instanceof Virus) {
+            d.writeByte(ITEM_VIRUS);
+        } else {
+            d.writeByte(ITEM_WEAPON);
+            writeWeapon(d, (Weapon) item);
+        }
+    }
+
+    private static void writeWeapon(DataOutput d, Weapon w) throws IOException {
+        d.writeBoolean(w != null);
+        if (w != null) {
+            d.writeUTF(w.getName());
+            writeVarLong(d, centi(w.getSigma()));
+        }
+    }
+
+    private static void writePoint(DataOutput d, Point3D p) throws IOException {
+        writeVarint(d, p.getX());
+        writeVarint(d, p.getY());
+        writeVarint(d, p.getZ());
+    }
+
+    static void writeVarint(DataOutput d, int value) throws IOException {
+        writeVarLong(d, value);
+    }
+
+    static void writeVarLong(DataOutput d, long value) throws IOException {
+        Command.writeVarLong(d::writeByte, value);
+    }
+
+    static int readVarint(DataInput d) throws IOException {
+        return (int) readVarLong(d);
+    }
+
+    static long readVarLong(DataInput d) throws IOException {
+        try {
+            return Command.readVarLong(d::readByte, 10);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Varint mal formado.");
+        }
+    }
+
+}
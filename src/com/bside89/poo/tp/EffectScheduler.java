@@ -0,0 +1,352 @@
+package com.bside89.poo.tp;
+
+import java.util.Arrays;
+
+/**
+ * Agenda de efeitos com hora marcada, em ciclos (veja {@link TickScheduler}):
+ * o dano periódico do vírus, bombas de detonação retardada, bônus
+ * temporários de armadura etc.
+ *
+ * Os efeitos pendentes ficam em uma roda de tempo hierárquica:
+ * {@value #LEVELS} rodas de {@value #WHEEL_SIZE} intervalos, em que cada
+ * intervalo de uma roda cobre uma volta inteira da roda anterior. Um efeito
+ * fica na roda mais baixa que alcança o ciclo dele, e desce de roda à medida
+ * que o ciclo se aproxima (no máximo {@value #LEVELS} - 1 vezes). Agendar,
+ * cancelar e reagendar um efeito custa O(1), e cada ciclo custa O(1) mais
+ * O(1) por efeito executado: nada é percorrido a cada ciclo além dos próprios
+ * efeitos vencidos, e os efeitos periódicos de todo ciclo, como o dano do
+ * vírus, custam o mesmo que uma varredura dos robôs infectados.
+ *
+ * Cada intervalo é uma lista duplamente encadeada, em vetores primitivos
+ * indexados pelas entradas dos efeitos. Os efeitos do mesmo ciclo são
+ * executados na ordem em que chegaram ao intervalo do ciclo: uma ordem
+ * determinística, mas não necessariamente a ordem de agendamento.
+ *
+ * Cada efeito agendado é identificado por um número (um long) que combina a
+ * entrada do efeito, reaproveitada após a execução, e uma geração; um número
+ * antigo, de um efeito já executado ou cancelado, não afeta o efeito que
+ * passou a ocupar a mesma entrada.
+ *
+ * Os objetos desta classe não são seguros para uso por várias threads.
+ *
+ * @author Bruno Santos
+ *
+ * @see TickScheduler
+ */
+final class EffectScheduler {
+
+    /**
+     * Um efeito com hora marcada.
+     */
+    interface Effect {
+
+        /**
+         * Executa o efeito.
+         *
+         * @param tick o ciclo corrente
+         *
+         * @return o ciclo da próxima execução, para um efeito periódico, ou
+         *         um valor negativo para encerrá-lo (um ciclo que não seja
+         *         posterior ao ciclo agendado também o encerra)
+         */
+        long fire(long tick);
+    }
+
+    /**
+     * Número que não identifica nenhum efeito.
+     */
+    static final long NONE = -1;
+
+    static final int LEVELS = 4, WHEEL_SIZE = 256;
+    private static final int WHEEL_BITS = 8, WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /**
+     * Alcance da roda mais alta, em ciclos.
+     */
+    private static final long SPAN = 1L << LEVELS * WHEEL_BITS;
+
+    /**
+     * A lista dos efeitos vencidos, depois dos intervalos das rodas.
+     */
+    private static final int READY = LEVELS * WHEEL_SIZE;
+
+    /**
+     * Valores de {@link #lists} para uma entrada livre e para uma entrada em
+     * execução.
+     */
+    private static final int FREE = -1, FIRING = -2;
+
+    /**
+     * As entradas: efeito, ciclo de execução, lista em que estão (um
+     * intervalo, {@link #READY}, {@link #FREE} ou {@link #FIRING}), vizinhos
+     * na lista e geração.
+     */
+    private Effect[] effects;
+    private long[] ticks;
+    private int[] lists, next, prev, generations;
+
+    /**
+     * A primeira e a última entrada de cada lista, ou -1.
+     */
+    private final int[] heads = new int[READY + 1], tails = new int[READY + 1];
+
+    /**
+     * A pilha de entradas livres.
+     */
+    private int[] free;
+    private int size, freeSize;
+
+    /**
+     * O último ciclo alcançado, e se os efeitos dele estão em execução.
+     */
+    private long now;
+    private boolean firing;
+
+    EffectScheduler() {
+        this(16);
+    }
+
+    /**
+     * @param capacity a quantidade esperada de efeitos pendentes; a agenda
+     *                 cresce caso ela seja ultrapassada
+     */
+    EffectScheduler(int capacity) {
+        capacity = Math.max(1, capacity);
+        effects = new Effect[capacity];
+        ticks = new long[capacity];
+        lists = new int[capacity];
+        next = new int[capacity];
+        prev = new int[capacity];
+        generations = new int[capacity];
+        free = new int[capacity];
+        Arrays.fill(lists, FREE);
+        for (int i = 0; i < capacity; i++)
+            free[freeSize++] = capacity - 1 - i;
+        Arrays.fill(heads, -1);
+        Arrays.fill(tails, -1);
+    }
+
+    private void grow() {
+        int old = effects.length, capacity = 2 * old;
+        effects = Arrays.copyOf(effects, capacity);
+        ticks = Arrays.copyOf(ticks, capacity);
+        lists = Arrays.copyOf(lists, capacity);
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        free = Arrays.copyOf(free, capacity);
+        Arrays.fill(lists, old, capacity, FREE);
+        for (int i = capacity - 1; i >= old; i--)
+            free[freeSize++] = i;
+    }
+
+    /**
+     * Agenda um efeito.
+     *
+     * @param tick o ciclo de execução; um ciclo já alcançado por
+     *             {@link #runUntil} equivale ao ciclo seguinte, exceto
+     *             durante a execução dos efeitos
+     *
+     * @return o número do efeito agendado
+     */
+    long schedule(long tick, Effect effect) {
+        if (effect == null)
+            throw new IllegalArgumentException();
+        if (freeSize == 0)
+            grow();
+        int e = free[--freeSize];
+        effects[e] = effect;
+        ticks[e] = tick;
+        place(e);
+        size++;
+        return (long) generations[e] << 32 | e;
+    }
+
+    /**
+     * @return a entrada do efeito, ou -1 caso ele já tenha sido executado ou
+     *         cancelado
+     */
+    private int entry(long id) {
+        int e = (int) id;
+        if (id < 0 || e >= effects.length || lists[e] == FREE || generations[e] != (int) (id >>> 32))
+            return -1;
+        return e;
+    }
+
+    /**
+     * @return <tt>true</tt> caso o efeito ainda não tenha sido executado (ou,
+     *         se periódico, encerrado) nem cancelado
+     */
+    boolean isPending(long id) {
+        return entry(id) >= 0;
+    }
+
+    /**
+     * Cancela um efeito pendente.
+     *
+     * @return <tt>false</tt> caso o efeito já tenha sido executado ou
+     *         cancelado
+     */
+    boolean cancel(long id) {
+        int e = entry(id);
+        if (e < 0)
+            return false;
+        if (lists[e] != FIRING)
+            unlink(e);
+        release(e);
+        return true;
+    }
+
+    /**
+     * Altera o ciclo de execução de um efeito pendente. O efeito passa a ser
+     * o último agendado para o novo ciclo.
+     *
+     * @return <tt>false</tt> caso o efeito já tenha sido executado ou
+     *         cancelado
+     */
+    boolean reschedule(long id, long tick) {
+        int e = entry(id);
+        if (e < 0)
+            return false;
+        if (lists[e] != FIRING)
+            unlink(e);
+        ticks[e] = tick;
+        place(e);
+        return true;
+    }
+
+    /**
+     * Avança até um ciclo, inclusive, executando os efeitos vencidos. Um
+     * efeito periódico é reagendado para o ciclo devolvido por ele, com o
+     * mesmo número, e executado novamente caso o ciclo também já tenha
+     * chegado.
+     *
+     * @return a quantidade de execuções
+     */
+    int runUntil(long tick) {
+        int n = 0;
+        firing = true;
+        try {
+            while (true) {
+                for (int e; (e = heads[READY]) != -1; n++) {
+                    unlink(e);
+                    lists[e] = FIRING;
+                    int generation = generations[e];
+                    long due = ticks[e];
+                    long following = effects[e].fire(now);
+                    // O efeito pode ter sido cancelado ou reagendado durante
+                    // a própria execução.
+                    if (generations[e] != generation || lists[e] != FIRING)
+                        continue;
+                    if (following > due) {
+                        ticks[e] = following;
+                        place(e);
+                    } else {
+                        release(e);
+                    }
+                }
+                if (now >= tick)
+                    return n;
+                if (size == 0) {
+                    now = tick; // Nada a percorrer.
+                    return n;
+                }
+                advance();
+            }
+        } finally {
+            firing = false;
+        }
+    }
+
+    /**
+     * Avança um ciclo: desce os efeitos dos intervalos das rodas superiores
+     * que começam no ciclo, e passa os efeitos do ciclo para a lista dos
+     * vencidos.
+     */
+    private void advance() {
+        now++;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = level * WHEEL_BITS;
+            if ((now & (1L << shift) - 1) != 0)
+                continue;
+            int list = level * WHEEL_SIZE + (int) (now >>> shift & WHEEL_MASK);
+            int e = heads[list];
+            heads[list] = tails[list] = -1;
+            while (e != -1) {
+                int following = next[e];
+                place(e);
+                e = following;
+            }
+        }
+        int list = (int) (now & WHEEL_MASK);
+        int first = heads[list];
+        if (first == -1)
+            return;
+        for (int e = first; e != -1; e = next[e])
+            lists[e] = READY;
+        if (tails[READY] == -1) {
+            heads[READY] = first;
+        } else {
+            next[tails[READY]] = first;
+            prev[first] = tails[READY];
+        }
+        tails[READY] = tails[list];
+        heads[list] = tails[list] = -1;
+    }
+
+    /**
+     * Insere uma entrada no final da lista correspondente ao ciclo dela.
+     */
+    private void place(int e) {
+        long tick = ticks[e];
+        int list;
+        if (tick <= now && firing) {
+            list = READY;
+        } else {
+            // Um ciclo além da roda mais alta fica no último intervalo dela,
+            // e é recolocado quando o intervalo é alcançado.
+            tick = Math.max(now + 1, Math.min(tick, now + SPAN - 1));
+            long delta = tick - now;
+            int level = 0;
+            while (delta >>> (level + 1) * WHEEL_BITS != 0)
+                level++;
+            list = level * WHEEL_SIZE + (int) (tick >>> level * WHEEL_BITS & WHEEL_MASK);
+        }
+        lists[e] = list;
+        next[e] = -1;
+        prev[e] = tails[list];
+        if (tails[list] == -1)
+            heads[list] = e;
+        else
+            next[tails[list]] = e;
+        tails[list] = e;
+    }
+
+    private void unlink(int e) {
+        int list = lists[e];
+        if (prev[e] == -1)
+            heads[list] = next[e];
+        else
+            next[prev[e]] = next[e];
+        if (next[e] == -1)
+            tails[list] = prev[e];
+        else
+            prev[next[e]] = prev[e];
+    }
+
+    private void release(int e) {
+        effects[e] = null;
+        lists[e] = FREE;
+        generations[e] = (generations[e] + 1) & Integer.MAX_VALUE; // Mantém os números positivos.
+        free[freeSize++] = e;
+        size--;
+    }
+
+    /**
+     * @return a quantidade de efeitos pendentes
+     */
+    int size() {
+        return size;
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.bside89.poo.tp;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+import static com.bside89.poo.tp.CellMap.key;
+
+/**
+ * Epidemia de vírus entre os robôs de um {@link TickScheduler} (veja
+ * {@link TickScheduler#startEpidemic}).
+ *
+ * A cada ciclo, cada robô infectado:
+ *  - contamina a posição em que está, por uma quantidade fixa de ciclos; um
+ *    robô que entra em uma posição contaminada é infectado com uma
+ *    probabilidade fixa;
+ *  - infecta, com outra probabilidade fixa, cada robô nas posições vizinhas
+ *    (a até uma posição de distância em cada eixo);
+ *  - recebe o dano do vírus, como em {@link Robot#receiveVirusDamage()}.
+ *
+ * Cada novo vírus dura de 1 a {@link Virus#N} ciclos. Um robô curado fica
+ * imune e não é infectado novamente.
+ *
+ * A simulação é incremental: cada ciclo percorre apenas a frente da
+ * epidemia (os robôs infectados, em um vetor de números de robôs) e as
+ * posições cuja contaminação expira no ciclo (em uma fila ordenada pelo
+ * ciclo de expiração), e nunca a população inteira nem a arena inteira. As
+ * posições contaminadas e as posições dos robôs ficam em {@link CellMap}s.
+ *
+ * Os objetos desta classe não são seguros para uso por várias threads: a
+ * epidemia deve ser iniciada ({@link #infect}) antes de
+ * {@link TickScheduler#start()}.
+ *
+ * @author Bruno Santos
+ *
+ * @see TickScheduler
+ * @see Virus
+ */
+final class Epidemic {
+
+    private final Arena arena;
+    private final Robot[] robots;
+    private final CellMap occupied;
+    private final double contactRate, cellRate;
+    private final int cellTtl;
+    private final SplittableRandom random;
+
+    /**
+     * Os robôs infectados. Os robôs infectados durante um ciclo entram no
+     * final, e só contagiam outros robôs a partir do ciclo seguinte.
+     */
+    private int[] front = new int[64];
+    private int frontSize;
+    private final BitSet inFront = new BitSet(), recovered = new BitSet();
+
+    /**
+     * O ciclo de expiração de cada posição contaminada.
+     */
+    private final CellMap contaminated = new CellMap(1024);
+
+    /**
+     * As contaminações, em ordem de expiração: uma fila circular de posições
+     * e ciclos de expiração. Uma posição contaminada novamente aparece mais
+     * de uma vez, e só deixa de estar contaminada na última expiração.
+     */
+    private long[] expiringCells = new long[1024];
+    private int[] expiringTicks = new int[1024];
+    private int head, tail;
+
+    private long infections, recoveries, cellUpdates;
+
+    /**
+     * @param contactRate   a probabilidade de contágio, por ciclo, de um robô
+     *                      vizinho de um robô infectado
+     * @param cellRate      a probabilidade de contágio de um robô que entra
+     *                      em uma posição contaminada
+     * @param cellTtl       a quantidade de ciclos que uma posição permanece
+     *                      contaminada
+     */
+    Epidemic(Arena arena, Robot[] robots, CellMap occupied, double contactRate, double cellRate, int cellTtl,
+             long seed) {
+        if (contactRate < 0 || contactRate > 1 || cellRate < 0 || cellRate > 1 || cellTtl <= 0)
+            throw new IllegalArgumentException();
+        this.arena = arena;
+        this.robots = robots;
+        this.occupied = occupied;
+        this.contactRate = contactRate;
+        this.cellRate = cellRate;
+        this.cellTtl = cellTtl;
+        this.random = new SplittableRandom(seed);
+        for (int i = 0; i < robots.length; i++)
+            if (robots[i].getHp() > 0 && robots[i].isInfected())
+                enter(i);
+    }
+
+    /**
+     * Infecta um robô, por exemplo, para iniciar a epidemia.
+     *
+     * @param robot o número do robô
+     *
+     * @return <tt>false</tt> caso o robô esteja derrotado, imune ou já
+     *         infectado
+     */
+    boolean infect(int robot) {
+        if (!isSusceptible(robot))
+            return false;
+        Robot r = robots[robot];
+        r.getInfectionBy(new Virus(r.getPosition(), 1 + random.nextInt(Virus.N)));
+        infections++;
+        Metrics.increment(Metrics.INFECTIONS);
+        enter(robot);
+        return true;
+    }
+
+    private boolean isSusceptible(int robot) {
+        Robot r = robots[robot];
+        return r.getHp() > 0 && !r.isInfected() && !recovered.get(robot);
+    }
+
+    private void enter(int robot) {
+        if (frontSize == front.length)
+            front = Arrays.copyOf(front, 2 * frontSize);
+        front[frontSize++] = robot;
+        inFront.set(robot);
+    }
+
+    /**
+     * Informa que um robô entrou em uma posição. Um robô infectado por um
+     * item da arena passa a fazer parte da epidemia; um robô suscetível pode
+     * ser infectado pela posição, caso ela esteja contaminada.
+     *
+     * @param robot o número do robô
+     * @param cell  a posição, codificada por {@link CellMap#key}
+     */
+    void entered(int robot, long cell) {
+        if (robots[robot].isInfected()) {
+            if (!inFront.get(robot))
+                enter(robot);
+            return;
+        }
+        cellUpdates++;
+        if (contaminated.get(cell) != CellMap.NONE && random.nextDouble() < cellRate)
+            infect(robot);
+    }
+
+    /**
+     * Executa a epidemia em um ciclo.
+     *
+     * @param tick o número do ciclo, crescente
+     */
+    void step(int tick) {
+
+        long t0 = Metrics.now();
+        while (head != tail && expiringTicks[head] <= tick) {
+            long cell = expiringCells[head];
+            contaminated.remove(cell, expiringTicks[head]);
+            head = (head + 1) & (expiringCells.length - 1);
+            cellUpdates++;
+        }
+
+        int n = frontSize, kept = 0, contaminations = 0;
+        for (int j = 0; j < n; j++) {
+            int i = front[j];
+            Robot r = robots[i];
+            if (r.getHp() <= 0 || !r.isInfected()) {
+                leave(i); // Derrotado, ou curado fora da epidemia.
+                continue;
+            }
+            Point3D p = r.getPosition();
+            contaminate(key(p), tick + cellTtl);
+            contaminations++;
+            spread(p.getX(), p.getY(), p.getZ());
+            r.receiveVirusDamage();
+            // Um robô curado já fica imune, antes de ser alcançado pelos
+            // robôs seguintes da frente.
+            if (r.getHp() > 0 && r.isInfected())
+                front[kept++] = i;
+            else
+                leave(i);
+        }
+        Metrics.add(Metrics.VIRUS_TICKS, contaminations);
+        Metrics.add(Metrics.CONTAMINATIONS, contaminations);
+        // Os robôs infectados neste ciclo ficam logo após os que continuam.
+        System.arraycopy(front, n, front, kept, frontSize - n);
+        frontSize = kept + frontSize - n;
+        Metrics.EPIDEMIC.record(t0);
+    }
+
+    private void spread(int x, int y, int z) {
+        int x0 = Math.max(0, x - 1), x1 = Math.min(arena.getWidth() - 1, x + 1);
+        int y0 = Math.max(0, y - 1), y1 = Math.min(arena.getLength() - 1, y + 1);
+        int z0 = Math.max(0, z - 1), z1 = Math.min(arena.getHeight() - 1, z + 1);
+        for (int i = x0; i <= x1; i++)
+            for (int j = y0; j <= y1; j++)
+                for (int k = z0; k <= z1; k++) {
+                    cellUpdates++;
+                    int v = occupied.get(key(i, j, k));
+                    if (v != CellMap.NONE && isSusceptible(v) && random.nextDouble() < contactRate)
+                        infect(v);
+                }
+    }
+
+    private void contaminate(long cell, int expiry) {
+        contaminated.put(cell, expiry);
+        int capacity = expiringCells.length;
+        if (((tail + 1) & (capacity - 1)) == head) {
+            // Fila cheia: dobra a capacidade, mantendo a ordem.
+            long[] cells = new long[2 * capacity];
+            int[] ticks = new int[2 * capacity];
+            int n = 0;
+            for (int i = head; i != tail; i = (i + 1) & (capacity - 1), n++) {
+                cells[n] = expiringCells[i];
+                ticks[n] = expiringTicks[i];
+            }
+            expiringCells = cells;
+            expiringTicks = ticks;
+            head = 0;
+            tail = n;
+        }
+        expiringCells[tail] = cell;
+        expiringTicks[tail] = expiry;
+        tail = (tail + 1) & (expiringCells.length - 1);
+        cellUpdates++;
+    }
+
+    private void leave(int robot) {
+        inFront.clear(robot);
+        if (robots[robot].getHp() > 0) {
+            recovered.set(robot);
+            recoveries++;
+        }
+    }
+
+    /**
+     * @return a quantidade de robôs infectados
+     */
+    int getInfected() {
+        return frontSize;
+    }
+
+    /**
+     * @return a quantidade de robôs curados (e imunes)
+     */
+    long getRecovered() {
+        return recoveries;
+    }
+
+    /**
+     * @return a quantidade de infecções, desde o início da epidemia
+     */
+    long getInfections() {
+        return infections;
+    }
+
+    /**
+     * @return a quantidade de posições contaminadas
+     */
+    int getContaminatedCells() {
+        return contaminated.size();
+    }
+
+    /**
+     * @return a quantidade de posições consultadas ou alteradas pela
+     *         epidemia, desde o início
+     */
+    long getCellUpdates() {
+        return cellUpdates;
+    }
+
+}
@@ -0,0 +1,583 @@
+package com.bside89.poo.tp;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Medição da memória ocupada pelas estruturas do jogo, para detectar
+ * regressões: as arenas (por posição e por tipo de item) e os registros das
+ * ações de uma partida.
+ *
+ * O tamanho de cada objeto é calculado a partir do layout dos campos na JVM
+ * em execução, como na ferramenta JOL: os deslocamentos dos campos,
+ * o tamanho do cabeçalho e das referências e o alinhamento são os da própria
+ * JVM (obtidos de {@code sun.misc.Unsafe}, carregada por reflexão, sem
+ * depender dela para compilar). O tamanho de uma estrutura é a
+ * soma dos tamanhos de todos os objetos alcançáveis a partir dela, exceto os
+ * compartilhados com o restante do jogo (por exemplo, o catálogo de armas),
+ * que são excluídos antes da medição (veja {@link Walker}).
+ *
+ * Cada medição é comparada com a de um arquivo de referência: um valor que
+ * ultrapasse o de referência em mais do que a tolerância é uma regressão, e
+ * o código de saída é 1, o que interrompe um script de build que execute
+ * esta classe. Os valores só são comparados caso o layout da JVM seja o
+ * mesmo do arquivo de referência.
+ *
+ * Uso:
+ * <pre>
+ *   java com.bside89.poo.tp.Footprint
+ * </pre>
+ * O arquivo de referência é lido de {@code mechawars.footprint.baseline}
+ * (datafiles/footprint.txt, por padrão), e é regravado com as medições
+ * atuais caso {@code mechawars.footprint.update} seja <tt>true</tt>. A
+ * tolerância, uma fração, é lida de {@code mechawars.footprint.tolerance}
+ * (0.1, por padrão).
+ *
+ * @author Bruno Santos
+ *
+ * @see Arena
+ * @see ActionRecord
+ */
+final class Footprint {
+
+    /**
+     * As dimensões das arenas medidas e as quantidades de ações das partidas
+     * medidas.
+     */
+    private static final int[] ARENA_SCALES = {25, 50, 100};
+    private static final int[] MATCH_SCALES = {1_000, 10_000, 100_000};
+
+    /**
+     * Os métodos de {@code sun.misc.Unsafe} usados, já associados à sua
+     * instância: objectFieldOffset, arrayBaseOffset, arrayIndexScale e
+     * getObject.
+     */
+    private static final MethodHandle FIELD_OFFSET, ARRAY_BASE, ARRAY_SCALE, GET_OBJECT;
+
+    /**
+     * O layout da JVM: tamanho do cabeçalho de um objeto, de uma referência e
+     * alinhamento dos objetos.
+     */
+    static final int HEADER, REFERENCE, ALIGNMENT;
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            FIELD_OFFSET = lookup.unreflect(unsafeClass.getMethod("objectFieldOffset", Field.class))
+                    .bindTo(unsafe);
+            ARRAY_BASE = lookup.unreflect(unsafeClass.getMethod("arrayBaseOffset", Class.class))
+                    .bindTo(unsafe);
+            ARRAY_SCALE = lookup.unreflect(unsafeClass.getMethod("arrayIndexScale", Class.class))
+                    .bindTo(unsafe);
+            GET_OBJECT = lookup.unreflect(unsafeClass.getMethod("getObject", Object.class, long.class))
+                    .bindTo(unsafe);
+            HEADER = (int) fieldOffset(Probe.class.getDeclaredField("b"));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        REFERENCE = arrayIndexScale(Object[].class);
+        int alignment = 8;
+        try {
+            alignment = Integer.parseInt(ManagementFactory.getPlatformMXBean(
+                    com.sun.management.HotSpotDiagnosticMXBean.class).getVMOption("ObjectAlignmentInBytes")
+                    .getValue());
+        } catch (RuntimeException e) {
+            // Outra JVM: o alinhamento padrão.
+        }
+        ALIGNMENT = alignment;
+    }
+
+    /**
+     * Classe com um único campo, cujo deslocamento é o tamanho do cabeçalho.
+     */
+    private static final class Probe {
+        byte b;
+    }
+
+    /**
+     * O layout de uma classe: o tamanho de uma instância e os deslocamentos
+     * dos campos de referência, inclusive os herdados.
+     */
+    private static final class Shape {
+
+        final long size;
+        final long[] references;
+
+        Shape(long size, long[] references) {
+            this.size = size;
+            this.references = references;
+        }
+    }
+
+    private static final ClassValue<Shape> SHAPES = new ClassValue<Shape>() {
+        @Override
+        protected Shape computeValue(Class<?> c) {
+            long end = HEADER, sum = HEADER;
+            List<Long> references = new ArrayList<>();
+            boolean exact = true;
+            for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+                for (Field f : k.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers()))
+                        continue;
+                    long size = f.getType().isPrimitive() ? primitiveSize(f.getType()) : REFERENCE;
+                    sum += size;
+                    if (!exact)
+                        continue;
+                    long offset;
+                    try {
+                        offset = fieldOffset(f);
+                    } catch (UnsupportedOperationException e) {
+                        // Classes ocultas (lambdas) e records: o tamanho é
+                        // estimado, e os campos não são percorridos.
+                        exact = false;
+                        references.clear();
+                        continue;
+                    }
+                    end = Math.max(end, offset + size);
+                    if (!f.getType().isPrimitive())
+                        references.add(offset);
+                }
+            }
+            long[] offsets = new long[references.size()];
+            for (int i = 0; i < offsets.length; i++)
+                offsets[i] = references.get(i);
+            return new Shape(align(exact ? end : sum), offsets);
+        }
+    };
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private Footprint(){}
+
+    private static long primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class)
+            return 8;
+        if (type == int.class || type == float.class)
+            return 4;
+        if (type == short.class || type == char.class)
+            return 2;
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * @return o tamanho de um objeto, sem os objetos referenciados por ele
+     */
+    static long sizeOf(Object o) {
+        Class<?> c = o.getClass();
+        if (!c.isArray())
+            return SHAPES.get(c).size;
+        return align(arrayBaseOffset(c) + (long) Array.getLength(o) * arrayIndexScale(c));
+    }
+
+    private static long fieldOffset(Field f) {
+        try {
+            return (long) FIELD_OFFSET.invokeExact(f);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    private static int arrayBaseOffset(Class<?> c) {
+        try {
+            return (int) ARRAY_BASE.invokeExact(c);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    private static int arrayIndexScale(Class<?> c) {
+        try {
+            return (int) ARRAY_SCALE.invokeExact(c);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    private static Object getObject(Object o, long offset) {
+        try {
+            return (Object) GET_OBJECT.invokeExact(o, offset);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    /**
+     * O resultado de uma medição: a quantidade e o tamanho total dos objetos,
+     * no total e por classe.
+     */
+    static final class Graph {
+
+        private final Map<Class<?>, long[]> classes = new HashMap<>();
+        private long objects, bytes;
+
+        private void add(Class<?> c, long size) {
+            long[] e = classes.computeIfAbsent(c, k -> new long[2]);
+            e[0]++;
+            e[1] += size;
+            objects++;
+            bytes += size;
+        }
+
+        long getObjects() {
+            return objects;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return o tamanho total dos objetos de uma classe
+         */
+        long getBytes(Class<?> c) {
+            long[] e = classes.get(c);
+            return e == null ? 0 : e[1];
+        }
+
+        /**
+         * @return as classes que mais ocupam memória, uma por linha, da
+         *         maior para a menor
+         */
+        String table(int limit) {
+            List<Map.Entry<Class<?>, long[]>> entries = new ArrayList<>(classes.entrySet());
+            entries.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+            StringBuilder s = new StringBuilder();
+            for (Map.Entry<Class<?>, long[]> e : entries.subList(0, Math.min(limit, entries.size())))
+                s.append(String.format("  %,12d objetos %,14d bytes  %s\n", e.getValue()[0], e.getValue()[1],
+                        e.getKey().getName()));
+            return s.toString();
+        }
+    }
+
+    /**
+     * Percorre grafos de objetos, contando cada objeto uma única vez: um
+     * objeto já excluído ou medido por este percorredor não é contado
+     * novamente. Classes, carregadores de classes e threads nunca são
+     * percorridos.
+     *
+     * Os objetos desta classe não são seguros para uso por várias threads.
+     */
+    static final class Walker {
+
+        private final Map<Object, Boolean> seen = new IdentityHashMap<>();
+        private final ArrayDeque<Object> stack = new ArrayDeque<>();
+
+        /**
+         * Exclui das medições seguintes todos os objetos alcançáveis a partir
+         * de um objeto.
+         */
+        Walker exclude(Object root) {
+            walk(root, null);
+            return this;
+        }
+
+        /**
+         * Mede os objetos alcançáveis a partir de um objeto.
+         */
+        Graph measure(Object root) {
+            Graph graph = new Graph();
+            walk(root, graph);
+            return graph;
+        }
+
+        private void walk(Object root, Graph graph) {
+            push(root);
+            while (!stack.isEmpty()) {
+                Object o = stack.pop();
+                Class<?> c = o.getClass();
+                if (graph != null)
+                    graph.add(c, sizeOf(o));
+                if (c.isArray()) {
+                    if (!c.getComponentType().isPrimitive())
+                        for (Object e : (Object[]) o)
+                            push(e);
+                    continue;
+                }
+                for (long offset : SHAPES.get(c).references)
+                    push(getObject(o, offset));
+            }
+        }
+
+        private void push(Object o) {
+            if (o == null || o instanceof Class || o instanceof ClassLoader || o instanceof Thread)
+                return;
+            if (seen.put(o, Boolean.TRUE) == null)
+                stack.push(o);
+        }
+    }
+
+    /**
+     * Mede arenas cúbicas, com a quantidade esperada de itens do
+     * preenchimento aleatório (metade do coeficiente de preenchimento), em
+     * posições e de tipos sorteados.
+     */
+    private static void measureArenas(Collection<Weapon> weapons, Map<String, Double> results) {
+
+        long threshold = GameConfigs.getOffHeapCellThreshold();
+        double fill = GameConfigs.getArenaFillCoefficient();
+        GameConfigs.setOffHeapCellThreshold(Long.MAX_VALUE); // Mede o mapa de itens em memória.
+        GameConfigs.setArenaFillCoefficient(0);
+        try {
+            for (int dim : ARENA_SCALES) {
+                long cells = (long) dim * dim * dim;
+                long heap = usedHeap();
+                Arena arena = new Arena(dim, dim, dim, weapons);
+                for (long n = (long) (cells * fill / 2); n > 0; n--) {
+                    SpecialItem item = SpecialItem.random(weapons);
+                    item.setPosition(arena.randomPoint());
+                    arena.putItem(item);
+                }
+                heap = usedHeap() - heap;
+
+                Graph graph = new Walker().exclude(weapons).measure(arena);
+                long items = arena.getItemCount();
+                System.out.printf("arena/%d^3: %,d bytes para %,d posições e %,d itens: %.2f bytes/posição,"
+                                + " %.1f bytes/item (heap: %,d bytes)\n", dim, graph.getBytes(), cells, items,
+                        (double) graph.getBytes() / cells, (double) graph.getBytes() / items, heap);
+                results.put("arena.bytesPerCell." + dim, (double) graph.getBytes() / cells);
+                results.put("arena.bytesPerItem." + dim, (double) graph.getBytes() / items);
+                if (dim != ARENA_SCALES[ARENA_SCALES.length - 1])
+                    continue;
+
+                System.out.print(graph.table(8));
+                // Cada item separadamente: o item, a posição e o nome da arma;
+                // o restante é o custo do mapa de itens.
+                Walker walker = new Walker().exclude(weapons);
+                Map<Class<?>, long[]> types = new TreeMap<>(Comparator.comparing(Class::getSimpleName));
+                long total = 0;
+                for (SpecialItem item : arena.getItems().values()) {
+                    long size = walker.measure(item).getBytes();
+                    long[] e = types.computeIfAbsent(item.getClass(), k -> new long[2]);
+                    e[0]++;
+                    e[1] += size;
+                    total += size;
+                }
+                for (Map.Entry<Class<?>, long[]> e : types.entrySet()) {
+                    double size = (double) e.getValue()[1] / e.getValue()[0];
+                    System.out.printf("item/%-10s %,9d itens  %6.1f bytes/item\n", e.getKey().getSimpleName(),
+                            e.getValue()[0], size);
+                    results.put("item.bytes." + e.getKey().getSimpleName(), size);
+                }
+                double map = (double) (graph.getBytes() - total) / items;
+                System.out.printf("item/mapa              %6.1f bytes/item\n", map);
+                results.put("item.bytes.map", map);
+            }
+        } finally {
+            GameConfigs.setOffHeapCellThreshold(threshold);
+            GameConfigs.setArenaFillCoefficient(fill);
+        }
+    }
+
+    /**
+     * Mede os registros das ações de partidas automáticas, jogadas por um
+     * único objeto {@link Action}, como os de uma partida lida de um
+     * {@link MatchArchive}, e o próprio objeto {@link Action}.
+     */
+    private static void measureMatches(Collection<Weapon> weapons, Map<String, Double> results) {
+
+        int dim = GameConfigs.getArenaMinDimension();
+        Random r = new Random(42);
+        for (int actions : MATCH_SCALES) {
+            Arena arena = new Arena(dim, dim, dim, weapons);
+            Iterator<Weapon> w = weapons.iterator();
+            Player p1 = newPlayer(1, new Robot("Epyon", 1e15, 100), w.next(), arena);
+            Player p2 = newPlayer(2, new Robot("Virgo", 1e15, 100), w.hasNext() ? w.next() : weapons.iterator()
+                    .next(), arena);
+            Action action = new Action(arena, p1, p2, x -> r.nextBoolean());
+            List<ActionRecord> records = new ArrayList<>(actions);
+            int turn = 0, num = 0;
+            for (int n = 0; n < actions; n++) {
+                if (num % 2 == 0) turn++;
+                num = num % 2 + 1;
+                action.reset(turn, num);
+                Robot robot = (num == 1 ? p1 : p2).getRobot();
+                action.make(randomCommand(r, robot, arena));
+                records.add(action.toRecord());
+            }
+
+            // Os objetos compartilhados com a partida (nomes das armas,
+            // posição atual dos robôs) e os comandos constantes não são
+            // contados.
+            Walker walker = new Walker().exclude(weapons).exclude(arena).exclude(p1).exclude(p2)
+                    .exclude(Command.ATTACK).exclude(Command.EXIT);
+            Graph graph = walker.measure(records);
+            double perRecord = (double) graph.getBytes() / actions;
+            double log = (double) (graph.getBytes(String.class) + graph.getBytes(byte[].class)
+                    + graph.getBytes(char[].class)) / actions;
+            System.out.printf("match/%,d: %,d bytes: %.1f bytes/ação, dos quais %.1f do texto de log\n", actions,
+                    graph.getBytes(), perRecord, log);
+            results.put("match.bytesPerAction." + actions, perRecord);
+            if (actions != MATCH_SCALES[MATCH_SCALES.length - 1])
+                continue;
+
+            System.out.print(graph.table(8));
+            long executor = new Walker().exclude(weapons).exclude(arena).exclude(p1).exclude(p2)
+                    .measure(action).getBytes();
+            System.out.printf("match/executor: %,d bytes por partida\n", executor);
+            results.put("match.executorBytes", (double) executor);
+        }
+    }
+
+    private static Player newPlayer(int id, Robot robot, Weapon weapon, Arena arena) {
+        robot.setWeapon((Weapon) weapon.clone());
+        robot.setPosition(arena.randomPoint());
+        return new Player(id, robot);
+    }
+
+    /**
+     * Sorteia um comando válido: ataque ou um movimento de uma posição que
+     * não deixe a arena.
+     */
+    private static Command randomCommand(Random r, Robot robot, Arena arena) {
+        if (r.nextBoolean())
+            return Command.ATTACK;
+        Point3D p = robot.getPosition();
+        int dx = r.nextInt(3) - 1, dy = r.nextInt(3) - 1, dz = r.nextInt(3) - 1;
+        if (p.getX() + dx < 0 || p.getX() + dx >= arena.getWidth()
+                || p.getY() + dy < 0 || p.getY() + dy >= arena.getLength()
+                || p.getZ() + dz < 0 || p.getZ() + dz >= arena.getHeight())
+            return Command.ATTACK;
+        return Command.move(dx, dy, dz);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 2; i++)
+            System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return a descrição do layout da JVM em execução
+     */
+    private static String layout() {
+        return String.format("%d/%d/%d", HEADER, REFERENCE, ALIGNMENT);
+    }
+
+    /**
+     * Compara as medições com as do arquivo de referência.
+     *
+     * @return a quantidade de regressões
+     */
+    private static int compare(Map<String, Double> results, Map<String, Double> baseline, double tolerance) {
+        int regressions = 0;
+        for (Map.Entry<String, Double> e : results.entrySet()) {
+            Double expected = baseline.get(e.getKey());
+            if (expected == null) {
+                System.out.printf("footprint: %s sem valor de referência\n", e.getKey());
+                continue;
+            }
+            double change = expected == 0 ? (e.getValue() == 0 ? 0 : 1) : e.getValue() / expected - 1;
+            if (change > tolerance) {
+                regressions++;
+                System.out.printf("footprint: REGRESSÃO em %s: %.2f bytes (referência %.2f, %+.1f%%)\n",
+                        e.getKey(), e.getValue(), expected, 100 * change);
+            } else if (change < -tolerance) {
+                System.out.printf("footprint: %s diminuiu para %.2f bytes (referência %.2f, %+.1f%%);"
+                        + " atualize a referência\n", e.getKey(), e.getValue(), expected, 100 * change);
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Lê um arquivo de referência: uma linha "layout" (veja
+     * {@link #layout()}) seguida de uma medição por linha, no formato
+     * "nome valor". Linhas iniciadas por '#' são ignoradas.
+     *
+     * @return as medições, ou <tt>null</tt> caso o layout seja outro
+     */
+    private static Map<String, Double> readBaseline(String path) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path),
+                StandardCharsets.UTF_8))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.isEmpty() || line.charAt(0) == '#')
+                    continue;
+                String[] e = line.trim().split("\\s+");
+                if (e.length != 2)
+                    throw new IOException("Linha inválida em " + path + ": " + line);
+                if (e[0].equals("layout")) {
+                    if (!e[1].equals(layout()))
+                        return null;
+                    continue;
+                }
+                try {
+                    baseline.put(e[0], Double.parseDouble(e[1]));
+                } catch (NumberFormatException x) {
+                    throw new IOException("Linha inválida em " + path + ": " + line, x);
+                }
+            }
+        }
+        return baseline;
+    }
+
+    private static void writeBaseline(String path, Map<String, Double> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(path),
+                StandardCharsets.UTF_8))) {
+            out.println("# Memória ocupada pelas estruturas do jogo, em bytes (veja Footprint).");
+            out.println("# Layout da JVM: cabeçalho/referência/alinhamento.");
+            out.println("layout " + layout());
+            for (Map.Entry<String, Double> e : results.entrySet())
+                out.printf(Locale.ROOT, "%s %.2f\n", e.getKey(), e.getValue());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        String path = System.getProperty("mechawars.footprint.baseline",
+                String.format("datafiles%sfootprint.txt", File.separator));
+        double tolerance = Double.parseDouble(System.getProperty("mechawars.footprint.tolerance", "0.1"));
+        GameConfigs.loadConfigs(String.format("datafiles%sconfig.txt", File.separator));
+        Catalogs.Lazy catalogs = new Catalogs.Lazy(String.format("datafiles%srobots.txt", File.separator),
+                String.format("datafiles%sweapons.txt", File.separator));
+        Collection<Weapon> weapons = catalogs.weapons();
+
+        System.out.printf("footprint: layout %s (cabeçalho/referência/alinhamento)\n", layout());
+        Map<String, Double> results = new TreeMap<>();
+        measureArenas(weapons, results);
+        measureMatches(weapons, results);
+
+        if (Boolean.getBoolean("mechawars.footprint.update")) {
+            writeBaseline(path, results);
+            System.out.println("footprint: referência gravada em " + path);
+            return;
+        }
+        if (!new File(path).exists()) {
+            System.out.println("footprint: sem arquivo de referência em " + path);
+            return;
+        }
+        Map<String, Double> baseline = readBaseline(path);
+        if (baseline == null) {
+            System.out.println("footprint: referência gravada com outro layout da JVM; comparação ignorada");
+            return;
+        }
+        int regressions = compare(results, baseline, tolerance);
+        System.out.printf("footprint: %d regressão(ões), tolerância %.0f%%\n", regressions, 100 * tolerance);
+        if (regressions > 0)
+            System.exit(1);
+    }
+
+}
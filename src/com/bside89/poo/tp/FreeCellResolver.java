@@ -0,0 +1,125 @@
+package com.bside89.poo.tp;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Busca determinística da posição vaga mais próxima de uma posição da arena.
+ *
+ * Utilizada quando um robô se move para uma posição já ocupada por outro robô.
+ * A busca percorre uma tabela de deslocamentos pré-calculada, ordenada por
+ * distância (camadas, ou "shells", cada vez mais distantes da origem) e, dentro
+ * de uma mesma distância, em ordem fixa. Assim, o resultado é sempre o mesmo
+ * para a mesma situação, e o pior caso é limitado pelo tamanho da tabela:
+ * nunca mais do que {@code (2 * MAX_RADIUS + 1)^3 - 1} posições são testadas.
+ *
+ * Uma posição é considerada vaga quando está dentro da arena e não está
+ * ocupada por um robô, segundo o {@link Occupancy} informado. Itens especiais
+ * não impedem a ocupação.
+ *
+ * @author Bruno Santos
+ *
+ * @see Action
+ */
+final class FreeCellResolver {
+
+    /**
+     * Distância máxima (em cada eixo) entre a origem e a posição encontrada.
+     */
+    static final int MAX_RADIUS = 3;
+
+    /**
+     * Informa se uma posição está ocupada por um robô.
+     */
+    interface Occupancy {
+        boolean isOccupied(int x, int y, int z);
+    }
+
+    private static final int[] DX, DY, DZ;
+
+    static {
+        final int side = 2 * MAX_RADIUS + 1;
+        Integer[] order = new Integer[side * side * side];
+        int[][] offsets = new int[order.length][];
+        int n = 0;
+        for (int i = -MAX_RADIUS; i <= MAX_RADIUS; i++)
+            for (int j = -MAX_RADIUS; j <= MAX_RADIUS; j++)
+                for (int k = -MAX_RADIUS; k <= MAX_RADIUS; k++) {
+                    offsets[n] = new int[]{i, j, k};
+                    order[n] = n;
+                    n++;
+                }
+        // Ordena pela distância euclidiana; empates mantêm a ordem de geração.
+        Arrays.sort(order, Comparator.comparingInt(o -> {
+            int[] d = offsets[o];
+            return d[0] * d[0] + d[1] * d[1] + d[2] * d[2];
+        }));
+        // A primeira posição da ordem é a própria origem, que não é candidata.
+        DX = new int[n - 1];
+        DY = new int[n - 1];
+        DZ = new int[n - 1];
+        for (int i = 1; i < n; i++) {
+            int[] d = offsets[order[i]];
+            DX[i - 1] = d[0];
+            DY[i - 1] = d[1];
+            DZ[i - 1] = d[2];
+        }
+    }
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private FreeCellResolver(){}
+
+    /**
+     * Obtém a posição vaga mais próxima de uma posição.
+     *
+     * @param a         a arena
+     * @param origin    a posição de origem (ocupada)
+     * @param occupied  informa quais posições estão ocupadas por robôs
+     *
+     * @return a posição vaga mais próxima, ou <tt>null</tt> caso não exista
+     *         nenhuma a até {@link #MAX_RADIUS} posições de distância
+     */
+    static Point3D resolve(Arena a, Point3D origin, Occupancy occupied) {
+        int x = origin.getX(), y = origin.getY(), z = origin.getZ();
+        int i = find(x, y, z, a.getWidth(), a.getLength(), a.getHeight(), occupied);
+        return i < 0 ? null : new Point3D(x + DX[i], y + DY[i], z + DZ[i]);
+    }
+
+    /**
+     * Versão de {@link #resolve} que não aloca memória, para arenas
+     * representadas apenas por suas dimensões.
+     *
+     * @return o índice do deslocamento encontrado (veja {@link #dx(int)},
+     *         {@link #dy(int)} e {@link #dz(int)}), ou -1 caso não exista
+     *         posição vaga
+     */
+    static int find(int x, int y, int z, int width, int length, int height, Occupancy occupied) {
+        for (int i = 0; i < DX.length; i++) {
+            int nx = x + DX[i], ny = y + DY[i], nz = z + DZ[i];
+            if (nx >= 0 && ny >= 0 && nz >= 0 && nx < width && ny < length && nz < height
+                    && !occupied.isOccupied(nx, ny, nz))
+                return i;
+        }
+        return -1;
+    }
+
+    static int dx(int i) {
+        return DX[i];
+    }
+
+    static int dy(int i) {
+        return DY[i];
+    }
+
+    static int dz(int i) {
+        return DZ[i];
+    }
+
+    /**
+     * @return a quantidade máxima de posições testadas por {@link #resolve}
+     */
+    static int worstCase() {
+        return DX.length;
+    }
+
+}
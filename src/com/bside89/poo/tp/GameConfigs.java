@@ -19,10 +19,22 @@ public final class GameConfigs {
 
     // Valores padrão:
     private static final int VALUES = 3; // Qtd. de atributos da classe
+    private static final int OPTIONAL_VALUES = 2; // Modos de jogo, opcionais
     private static int arenaMinDimension = 30;
     private static double arenaFillCoefficient = 0.2;
     private static String fileSaveStateName = "datafiles" + File.separator + "saves.ser";
 
+    private static boolean lineOfSight = false;
+    private static int bombChainRadius = 0;
+
+    // Não lidos do arquivo de configurações:
+    private static long offHeapCellThreshold = 1L << 24;
+
+    /**
+     * Lê as configurações do jogo. Os modos de jogo (linha de visada e raio
+     * das explosões em área) são opcionais, e seguem o nome do arquivo de
+     * gravação; quando ausentes, os valores padrão são mantidos.
+     */
     static void loadConfigs(String filePath) {
 
         try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
@@ -35,12 +47,20 @@ public final class GameConfigs {
                 for (StringTokenizer tok = new StringTokenizer(line); tok.hasMoreTokens(); )
                     q.add(tok.nextToken());
             }
-            if (q.size() != VALUES)
+            if (q.size() < VALUES || q.size() > VALUES + OPTIONAL_VALUES)
                 throw new IOException(ERR_GAME_CONFIG);
 
             arenaMinDimension = Integer.parseInt(q.poll());
             arenaFillCoefficient = Double.parseDouble(q.poll());
             fileSaveStateName = "datafiles" + File.separator + q.poll();
+            if (!q.isEmpty())
+                lineOfSight = parseBoolean(q.poll());
+            if (!q.isEmpty()) {
+                int radius = Integer.parseInt(q.poll());
+                if (radius < 0)
+                    throw new IOException(ERR_GAME_CONFIG);
+                bombChainRadius = radius;
+            }
 
         } catch (IOException e) {
             System.err.println(e.getMessage());
@@ -48,6 +68,12 @@ public final class GameConfigs {
         }
     }
 
+    private static boolean parseBoolean(String s) throws IOException {
+        if (s.equals("true")) return true;
+        if (s.equals("false")) return false;
+        throw new IOException(ERR_GAME_CONFIG);
+    }
+
     static int getArenaMinDimension() {
         return arenaMinDimension;
     }
@@ -56,8 +82,52 @@ public final class GameConfigs {
         return arenaFillCoefficient;
     }
 
+    static void setArenaFillCoefficient(double arenaFillCoefficient) {
+        GameConfigs.arenaFillCoefficient = arenaFillCoefficient;
+    }
+
     static String getFileSaveStateName() {
         return fileSaveStateName;
     }
 
+    /**
+     * @return a quantidade de posições a partir da qual os itens de uma arena
+     *         são guardados fora da memória do Java (veja {@link MappedItemStore})
+     */
+    static long getOffHeapCellThreshold() {
+        return offHeapCellThreshold;
+    }
+
+    static void setOffHeapCellThreshold(long offHeapCellThreshold) {
+        GameConfigs.offHeapCellThreshold = offHeapCellThreshold;
+    }
+
+    /**
+     * @return <tt>true</tt> caso os ataques exijam linha de visada entre os
+     *         robôs (veja {@link LineOfSight}); desligado por padrão
+     */
+    static boolean isLineOfSight() {
+        return lineOfSight;
+    }
+
+    static void setLineOfSight(boolean lineOfSight) {
+        GameConfigs.lineOfSight = lineOfSight;
+    }
+
+    /**
+     * @return o raio de explosão das bombas no modo de explosões em área, em
+     *         que uma bomba atinge os robôs e detona as bombas próximas (veja
+     *         {@link ChainReaction}), ou 0 caso o modo esteja desligado (o
+     *         padrão)
+     */
+    static int getBombChainRadius() {
+        return bombChainRadius;
+    }
+
+    static void setBombChainRadius(int bombChainRadius) {
+        if (bombChainRadius < 0)
+            throw new IllegalArgumentException();
+        GameConfigs.bombChainRadius = bombChainRadius;
+    }
+
 }
@@ -0,0 +1,130 @@
+package com.bside89.poo.tp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Eventos do Java Flight Recorder (JFR) emitidos pelo jogo.
+ *
+ * Com uma gravação ativa (por exemplo, {@code -XX:StartFlightRecording}),
+ * estes eventos mostram onde o tempo de uma partida foi gasto: na geração da
+ * arena, em cada ação, nos efeitos dos itens especiais, na correção de
+ * posição ou na gravação do estado. Sem gravação, ou com os eventos
+ * desativados, o custo é desprezível.
+ *
+ * Os eventos podem ser analisados com as ferramentas padrão do JFR, como
+ * {@code jfr print --events com.bside89.poo.tp.*} ou o JDK Mission Control.
+ *
+ * Requer Java 8u262 ou superior (onde a API {@code jdk.jfr} está disponível).
+ *
+ * @author Bruno Santos
+ */
+final class GameEvents {
+
+    private static final String CATEGORY = "Mecha Wars";
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private GameEvents(){}
+
+    @Name("com.bside89.poo.tp.ArenaFill")
+    @Label("Arena Fill")
+    @Description("Geração dos itens especiais de uma arena")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ArenaFill extends Event {
+
+        @Label("Width")
+        int width;
+
+        @Label("Length")
+        int length;
+
+        @Label("Height")
+        int height;
+
+        @Label("Items")
+        int items;
+    }
+
+    @Name("com.bside89.poo.tp.Action")
+    @Label("Action")
+    @Description("Execução de um comando por um jogador")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ActionMade extends Event {
+
+        @Label("Turn")
+        int turn;
+
+        @Label("Number")
+        int num;
+
+        @Label("Opcode")
+        String opcode;
+    }
+
+    @Name("com.bside89.poo.tp.ItemEffect")
+    @Label("Item Effect")
+    @Description("Efeito de um item especial sobre um robô")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ItemEffect extends Event {
+
+        @Label("Item Type")
+        String itemType;
+
+        @Label("Robot")
+        String robot;
+    }
+
+    @Name("com.bside89.poo.tp.FixPosition")
+    @Label("Fix Position")
+    @Description("Correção da posição de um robô movido para a posição do adversário")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class FixPosition extends Event {
+
+        @Label("Distance")
+        @Description("Distância entre a posição ocupada e a posição corrigida")
+        double distance;
+    }
+
+    @Name("com.bside89.poo.tp.Save")
+    @Label("Save")
+    @Description("Gravação do estado da partida")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Save extends Event {
+
+        @Label("Path")
+        String path;
+
+        @Label("Records")
+        int records;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.bside89.poo.tp.Tick")
+    @Label("Tick")
+    @Description("Resolução de um ciclo de TickScheduler")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Tick extends Event {
+
+        @Label("Tick")
+        int tick;
+
+        @Label("Overrun")
+        @Description("A resolução ultrapassou o prazo do ciclo")
+        boolean overrun;
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.bside89.poo.tp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Armazenamento de itens especiais em um mapa na memória do Java (heap).
+ *
+ * É o armazenamento padrão das arenas: cada item é um objeto mantido pelo
+ * mapa, então {@link #get} devolve sempre o mesmo objeto que foi colocado.
+ *
+ * @author Bruno Santos
+ *
+ * @see ItemStore
+ */
+final class HeapItemStore implements ItemStore {
+
+    private final Map<Point3D, SpecialItem> itemsMap = new HashMap<>();
+
+    @Override
+    public SpecialItem get(Point3D p) {
+        return itemsMap.get(p);
+    }
+
+    @Override
+    public boolean contains(Point3D p) {
+        return itemsMap.containsKey(p);
+    }
+
+    @Override
+    public void put(Point3D p, SpecialItem item) {
+        itemsMap.put(p, item);
+    }
+
+    @Override
+    public SpecialItem remove(Point3D p) {
+        return itemsMap.remove(p);
+    }
+
+    @Override
+    public boolean removeKind(int x, int y, int z, int kind) {
+        Point3D p = new Point3D(x, y, z);
+        SpecialItem item = itemsMap.get(p);
+        if (item == null || ItemStore.kindOf(item) != kind)
+            return false;
+        itemsMap.remove(p);
+        return true;
+    }
+
+    @Override
+    public long size() {
+        return itemsMap.size();
+    }
+
+    @Override
+    public Map<Point3D, SpecialItem> toMap() {
+        return Collections.unmodifiableMap(itemsMap);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        return itemsMap.equals(((HeapItemStore) o).itemsMap);
+    }
+
+    @Override
+    public int hashCode() {
+        return itemsMap.hashCode();
+    }
+
+}
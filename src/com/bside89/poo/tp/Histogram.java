@@ -0,0 +1,127 @@
+package com.bside89.poo.tp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latências com faixas log-lineares, no estilo do HdrHistogram.
+ *
+ * Cada potência de 2 é dividida em {@code 2^SUB_BITS} faixas de mesma largura,
+ * o que garante um erro relativo de no máximo 12,5% em qualquer valor, de
+ * nanossegundos a horas, com um array de tamanho fixo. O registro de um valor
+ * não aloca memória e pode ser feito por várias threads simultaneamente.
+ *
+ * @author Bruno Santos
+ *
+ * @see Metrics
+ */
+final class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+
+    private final String NAME;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name) {
+        this.NAME = name;
+    }
+
+    /**
+     * Registra a duração de uma operação iniciada no instante {@code start},
+     * obtido por {@link Metrics#now()}. Nada é registrado caso as métricas
+     * estejam desativadas.
+     *
+     * @param start o instante de início da operação
+     */
+    void record(long start) {
+        if (start != 0 && Metrics.enabled())
+            recordValue(System.nanoTime() - start);
+    }
+
+    /**
+     * Registra um valor (em nanossegundos, no caso de latências).
+     */
+    void recordValue(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value));
+    }
+
+    private static int index(long v) {
+        if (v < SUB)
+            return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB)
+            return index;
+        int exp = index / SUB + SUB_BITS - 1;
+        return (1L << exp) | ((long) (index % SUB) << (exp - SUB_BITS));
+    }
+
+    /**
+     * Obtém o percentil q do histograma.
+     *
+     * @param q o percentil desejado, entre 0 e 100
+     *
+     * @return o maior valor equivalente ao percentil q, ou 0 caso o histograma
+     *         esteja vazio
+     */
+    long percentile(double q) {
+        long n = total.sum();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * q / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return i + 1 < BUCKETS ? Math.min(max.get(), lowerBound(i + 1) - 1) : max.get();
+        }
+        return max.get();
+    }
+
+    long getCount() {
+        return total.sum();
+    }
+
+    double getMean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    String getName() {
+        return NAME;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-20s <n %d> <média %.0f> <p50 %d> <p99 %d> <p99.9 %d> <máx %d>", NAME,
+                getCount(), getMean(), percentile(50), percentile(99), percentile(99.9), getMax());
+    }
+
+}
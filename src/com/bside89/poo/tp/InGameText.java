@@ -21,6 +21,7 @@ class InGameText {
     static final String ERR_INVALID_OPTION = "ERRO: Opção inválida. Tente novamente.";
     static final String ERR_INVALID_DIM = "Dimensão deve ser maior que " +
             GameConfigs.getArenaMinDimension() + ".";
+    static final String ERR_SAVE_STATE = "ERRO: Não foi possível salvar o estado da partida: ";
     static final String ERR_GAME_CONFIG = "Erro durante carregamento de configurações do arquivo.";
     static final String USE_DEFAULT_CONFIGS = "As configurações padrão serão utilizadas.";
 
@@ -0,0 +1,126 @@
+package com.bside89.poo.tp;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Armazenamento dos itens especiais de uma {@link Arena}, indexados por
+ * posição.
+ *
+ * Cada posição contém no máximo um item. As posições informadas são sempre
+ * posições válidas da arena (a verificação de limites é feita pela arena).
+ *
+ * @author Bruno Santos
+ *
+ * @see HeapItemStore
+ * @see MappedItemStore
+ * @see StripedItemStore
+ */
+interface ItemStore extends Serializable {
+
+    /**
+     * Tipos de item devolvidos por {@link #kindAt}.
+     */
+    int KIND_EMPTY = 0, KIND_BOMB = 1, KIND_VIRUS = 2, KIND_WEAPON = 3;
+
+    /**
+     * @return o item da posição, ou <tt>null</tt> caso ela esteja vaga
+     */
+    SpecialItem get(Point3D p);
+
+    /**
+     * @return <tt>true</tt> se existe um item na posição
+     */
+    boolean contains(Point3D p);
+
+    /**
+     * Coloca um item na posição, substituindo o item que lá estiver.
+     */
+    void put(Point3D p, SpecialItem item);
+
+    /**
+     * Remove o item da posição.
+     *
+     * @return o item removido, ou <tt>null</tt> caso a posição já estivesse
+     *         vaga
+     */
+    SpecialItem remove(Point3D p);
+
+    /**
+     * Substitui o item da posição, caso ela ainda contenha o item esperado.
+     *
+     * A implementação padrão não é atômica, e considera iguais dois itens do
+     * mesmo tipo (e, no caso de armas, iguais por {@code equals}), já que
+     * alguns armazenamentos, como {@link MappedItemStore}, guardam apenas o
+     * tipo de cada item e o recriam a cada leitura. Armazenamentos usados por
+     * várias threads devem sobrescrevê-la, comparando o próprio objeto.
+     *
+     * @param expected      o item esperado, ou <tt>null</tt> caso a posição
+     *                      deva estar vaga
+     * @param replacement   o novo item, ou <tt>null</tt> para esvaziar a
+     *                      posição
+     *
+     * @return <tt>true</tt> caso o item tenha sido substituído
+     */
+    default boolean replace(Point3D p, SpecialItem expected, SpecialItem replacement) {
+        SpecialItem current = get(p);
+        if (current == null ? expected != null : expected == null || current.getClass() != expected.getClass()
+                || current instanceof Weapon && !current.equals(expected))
+            return false;
+        if (replacement == null)
+            remove(p);
+        else
+            put(p, replacement);
+        return true;
+    }
+
+    /**
+     * Obtém o tipo do item de uma posição, sem criar objetos nos
+     * armazenamentos que guardam apenas o tipo de cada item (veja
+     * {@link MappedItemStore}). Utilizado por percursos que consultam muitas
+     * posições, como {@link LineOfSight}.
+     *
+     * @return {@link #KIND_EMPTY}, {@link #KIND_BOMB}, {@link #KIND_VIRUS} ou
+     *         {@link #KIND_WEAPON}
+     */
+    default int kindAt(int x, int y, int z) {
+        return kindOf(get(new Point3D(x, y, z)));
+    }
+
+    /**
+     * Remove o item de uma posição, caso ele seja do tipo informado (veja
+     * {@link #kindAt}). Como {@link #kindAt}, é destinado a percursos que
+     * alteram muitas posições, como {@link ChainReaction}.
+     *
+     * @return <tt>true</tt> caso o item tenha sido removido
+     */
+    default boolean removeKind(int x, int y, int z, int kind) {
+        Point3D p = new Point3D(x, y, z);
+        SpecialItem item = get(p);
+        return item != null && kindOf(item) == kind && replace(p, item, null);
+    }
+
+    /**
+     * @return o tipo de um item (veja {@link #kindAt})
+     */
+    static int kindOf(SpecialItem item) {
+        if (item == null)
+            return KIND_EMPTY;
+        if (item instanceof Bomb)
+            return KIND_BOMB;
+        if (item instanceof Virus)
+            return KIND_VIRUS;
+        return KIND_WEAPON;
+    }
+
+    /**
+     * @return a quantidade de itens armazenados
+     */
+    long size();
+
+    /**
+     * @return uma visão somente-leitura dos itens, indexados por posição
+     */
+    Map<Point3D, SpecialItem> toMap();
+
+}
@@ -0,0 +1,148 @@
+package com.bside89.poo.tp;
+
+/**
+ * Linha de visada entre duas posições da arena, usada pelo modo de combate
+ * com linha de visada (veja {@link GameConfigs#isLineOfSight()}).
+ *
+ * O disparo percorre, posição por posição, a reta discreta entre o atacante e
+ * o alvo (algoritmo de Bresenham em três dimensões): a cada passo avança uma
+ * posição no eixo de maior deslocamento, e nos demais eixos apenas quando o
+ * erro acumulado o exige. A quantidade de passos é, portanto, o maior dos
+ * deslocamentos, e o caminho é sempre o mesmo para as mesmas posições (o
+ * caminho de A até B, porém, pode diferir do de B até A).
+ *
+ * As posições intermediárias com bombas ou armas bloqueiam o disparo; vírus
+ * não o bloqueiam. As posições do atacante e do alvo não são consultadas.
+ *
+ * O percurso não cria objetos: o resultado é gravado em um {@link Ray}
+ * fornecido por quem chama, e as posições são consultadas por
+ * {@link Arena#kindAt}, que em arenas fora da memória do Java lê diretamente
+ * um byte por posição.
+ *
+ * @author Bruno Santos
+ *
+ * @see Robot#attack(Robot, Arena, Ray)
+ */
+final class LineOfSight {
+
+    /**
+     * Tipos de item (veja {@link ItemStore#kindAt}) que bloqueiam o disparo.
+     */
+    private static final int BLOCKING = 1 << ItemStore.KIND_BOMB | 1 << ItemStore.KIND_WEAPON;
+
+    /**
+     * Resultado de um percurso. Pode ser reaproveitado entre percursos.
+     */
+    static final class Ray {
+
+        private int cells, kind, x, y, z;
+
+        /**
+         * @return a quantidade de posições percorridas: até o alvo, inclusive,
+         *         caso o disparo não tenha sido bloqueado, ou até a posição
+         *         que o bloqueou, inclusive
+         */
+        int getCells() {
+            return cells;
+        }
+
+        boolean isBlocked() {
+            return kind != ItemStore.KIND_EMPTY;
+        }
+
+        /**
+         * @return o tipo do item que bloqueou o disparo (veja
+         *         {@link ItemStore#kindAt}), ou {@link ItemStore#KIND_EMPTY}
+         */
+        int getKind() {
+            return kind;
+        }
+
+        /**
+         * @return a posição que bloqueou o disparo, ou <tt>null</tt> caso ele
+         *         não tenha sido bloqueado
+         */
+        Point3D getBlocker() {
+            return isBlocked() ? new Point3D(x, y, z) : null;
+        }
+
+        /**
+         * Descarta o percurso anterior, para que este objeto seja reaproveitado
+         * por outro disparo.
+         */
+        void clear() {
+            cells = 0;
+            kind = ItemStore.KIND_EMPTY;
+        }
+    }
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private LineOfSight(){}
+
+    /**
+     * Percorre a linha de visada entre duas posições da arena.
+     *
+     * @param a     a arena
+     * @param from  a posição do atacante, dentro da arena
+     * @param to    a posição do alvo, dentro da arena
+     * @param ray   onde o resultado é gravado
+     *
+     * @return <tt>true</tt> caso o alvo seja alcançado
+     */
+    static boolean trace(Arena a, Point3D from, Point3D to, Ray ray) {
+        return trace(a, from.getX(), from.getY(), from.getZ(), to.getX(), to.getY(), to.getZ(), ray);
+    }
+
+    /**
+     * Percorre a linha de visada entre duas posições da arena, informadas
+     * por coordenadas.
+     *
+     * @see #trace(Arena, Point3D, Point3D, Ray)
+     */
+    static boolean trace(Arena a, int x0, int y0, int z0, int x1, int y1, int z1, Ray ray) {
+
+        int dx = Math.abs(x1 - x0), dy = Math.abs(y1 - y0), dz = Math.abs(z1 - z0);
+        int sx = x1 < x0 ? -1 : 1, sy = y1 < y0 ? -1 : 1, sz = z1 < z0 ? -1 : 1;
+        int n = Math.max(dx, Math.max(dy, dz));
+
+        // Erros acumulados de cada eixo, em unidades de 1/(2n) de posição.
+        int ex = 2 * dx - n, ey = 2 * dy - n, ez = 2 * dz - n;
+        int x = x0, y = y0, z = z0;
+        for (int i = 1; i < n; i++) {
+            if (ex > 0) { x += sx; ex -= 2 * n; }
+            if (ey > 0) { y += sy; ey -= 2 * n; }
+            if (ez > 0) { z += sz; ez -= 2 * n; }
+            ex += 2 * dx;
+            ey += 2 * dy;
+            ez += 2 * dz;
+            int kind = a.kindAt(x, y, z);
+            if ((BLOCKING >>> kind & 1) != 0) {
+                ray.cells = i;
+                ray.kind = kind;
+                ray.x = x;
+                ray.y = y;
+                ray.z = z;
+                return false;
+            }
+        }
+        ray.cells = n;
+        ray.kind = ItemStore.KIND_EMPTY;
+        return true;
+    }
+
+    /**
+     * Detona a bomba que bloqueou um disparo, removendo-a da arena. Em uma
+     * arena compartilhada, apenas um dos disparos que a atingem ao mesmo
+     * tempo a detona.
+     *
+     * @return <tt>true</tt> caso a bomba tenha sido detonada por este disparo
+     */
+    static boolean detonate(Arena a, Ray ray) {
+        if (ray.getKind() != ItemStore.KIND_BOMB)
+            return false;
+        Point3D p = ray.getBlocker();
+        SpecialItem item = a.at(p);
+        return item instanceof Bomb && a.swapItem(p, item, null);
+    }
+
+}
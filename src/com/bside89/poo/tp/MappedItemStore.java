@@ -0,0 +1,393 @@
+package com.bside89.poo.tp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Armazenamento de itens especiais fora da memória do Java (off-heap), em um
+ * arquivo mapeado em memória, com um byte por posição da arena.
+ *
+ * Destinado a arenas grandes demais para o {@link HeapItemStore}: uma arena
+ * de um bilhão de posições ocupa um arquivo de cerca de 1 GB, cujas páginas
+ * são carregadas e descarregadas pelo sistema operacional conforme o uso, sem
+ * nenhum custo para o coletor de lixo.
+ *
+ * Cada byte contém o tipo do item da posição: vazio, bomba, vírus ou o índice
+ * de uma arma em uma tabela de tipos de armas gravada no cabeçalho do arquivo
+ * (no máximo {@link #MAX_WEAPON_TYPES} tipos). Como apenas o tipo é gravado,
+ * {@link #get} devolve um novo objeto a cada chamada, e o estado interno de
+ * um vírus não é preservado (os vírus de uma arena ainda não infectaram
+ * ninguém, então não há estado a preservar).
+ *
+ * O arquivo pode ser reaberto com {@link #open}, sem gerar a arena novamente,
+ * inclusive somente para leitura, para servir de modelo a várias arenas
+ * (veja {@link ArenaTemplates}).
+ * A serialização de um objeto desta classe grava apenas o caminho do arquivo.
+ *
+ * Formato do arquivo:
+ * <pre>
+ *   cabeçalho ({@value #HEADER_BYTES} bytes):
+ *     int magic, int versão, int largura, int comprimento, int altura,
+ *     int quantidade de tipos de armas, long quantidade de itens,
+ *     tabela de armas: (short tamanho, nome em UTF-8, double sigma)...
+ *   posições: um byte por posição P(x, y, z), no índice (x * comprimento + y) * altura + z
+ * </pre>
+ *
+ * @author Bruno Santos
+ *
+ * @see ItemStore
+ * @see Arena
+ */
+final class MappedItemStore implements ItemStore {
+
+    private static final int MAGIC = 0x4D574152; // "MWAR"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4096;
+    private static final int WEAPONS_OFFSET = 20, SIZE_OFFSET = 24, TABLE_OFFSET = 32;
+
+    /**
+     * Um MappedByteBuffer é limitado a 2 GB, então o arquivo é mapeado em
+     * blocos de 1 GB.
+     */
+    private static final int CHUNK_BITS = 30;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private static final byte EMPTY = 0, BOMB = 1, VIRUS = 2, WEAPON = 3;
+
+    static final int MAX_WEAPON_TYPES = 256 - WEAPON;
+
+    private final String path;
+    private final int WIDTH, LENGTH, HEIGHT;
+    private final transient MappedByteBuffer header;
+    private final transient MappedByteBuffer[] chunks;
+    private final transient List<Weapon> weaponTypes = new ArrayList<>();
+    private transient long size;
+    private transient boolean readOnly;
+
+    private MappedItemStore(String path, int width, int length, int height, FileChannel channel,
+                            FileChannel.MapMode mode) throws IOException {
+
+        this.path = path;
+        this.WIDTH = width;
+        this.LENGTH = length;
+        this.HEIGHT = height;
+        this.header = channel.map(mode, 0, HEADER_BYTES);
+        long cells = (long) width * length * height;
+        this.chunks = new MappedByteBuffer[(int) ((cells + CHUNK_MASK) >>> CHUNK_BITS)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long) i << CHUNK_BITS;
+            chunks[i] = channel.map(mode, HEADER_BYTES + start,
+                    Math.min(cells - start, 1L << CHUNK_BITS));
+        }
+    }
+
+    /**
+     * Cria um armazenamento vazio, substituindo o arquivo caso ele exista.
+     *
+     * @param path  o caminho do arquivo
+     *
+     * @throws IOException caso o arquivo não possa ser criado
+     */
+    static MappedItemStore create(String path, int width, int length, int height) throws IOException {
+
+        if (width <= 0 || length <= 0 || height <= 0)
+            throw new IllegalArgumentException();
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            // O arquivo é esparso: as posições não gravadas valem zero (vazias).
+            raf.setLength(0);
+            raf.setLength(HEADER_BYTES + (long) width * length * height);
+            MappedItemStore store = new MappedItemStore(path, width, length, height, raf.getChannel(),
+                    FileChannel.MapMode.READ_WRITE);
+            store.header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, width).putInt(12, length)
+                    .putInt(16, height).putInt(WEAPONS_OFFSET, 0).putLong(SIZE_OFFSET, 0);
+            return store;
+        }
+    }
+
+    /**
+     * Cria um armazenamento vazio em um arquivo temporário, apagado ao final
+     * da execução.
+     */
+    static MappedItemStore createTemporary(int width, int length, int height) throws IOException {
+        File f = File.createTempFile("arena", ".cells");
+        f.deleteOnExit();
+        return create(f.getPath(), width, length, height);
+    }
+
+    /**
+     * Reabre um armazenamento gravado anteriormente.
+     *
+     * @param path o caminho do arquivo
+     *
+     * @throws IOException caso o arquivo não possa ser lido ou não seja um
+     *                     arquivo de arena
+     */
+    static MappedItemStore open(String path) throws IOException {
+        return open(path, false);
+    }
+
+    /**
+     * Reabre um armazenamento gravado anteriormente. O mapeamento é feito
+     * sob demanda pelo sistema operacional, então o custo não depende do
+     * volume da arena.
+     *
+     * @param path      o caminho do arquivo
+     * @param readOnly  <tt>true</tt> para impedir alterações (qualquer
+     *                  tentativa lança {@link java.nio.ReadOnlyBufferException})
+     *
+     * @throws IOException caso o arquivo não possa ser lido ou não seja um
+     *                     arquivo de arena
+     */
+    static MappedItemStore open(String path, boolean readOnly) throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(path, readOnly ? "r" : "rw")) {
+            ByteBuffer h = ByteBuffer.allocate(TABLE_OFFSET);
+            raf.getChannel().read(h, 0);
+            if (raf.length() < HEADER_BYTES || h.getInt(0) != MAGIC || h.getInt(4) != VERSION)
+                throw new IOException("Arquivo de arena inválido: " + path);
+            int width = h.getInt(8), length = h.getInt(12), height = h.getInt(16);
+            if (raf.length() != HEADER_BYTES + (long) width * length * height)
+                throw new IOException("Arquivo de arena truncado: " + path);
+
+            MappedItemStore store = new MappedItemStore(path, width, length, height, raf.getChannel(),
+                    readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE);
+            store.readOnly = readOnly;
+            store.size = h.getLong(SIZE_OFFSET);
+            ByteBuffer table = store.header.duplicate();
+            table.position(TABLE_OFFSET);
+            for (int i = h.getInt(WEAPONS_OFFSET); i > 0; i--) {
+                byte[] name = new byte[table.getShort()];
+                table.get(name);
+                store.weaponTypes.add(new Weapon(new String(name, StandardCharsets.UTF_8), table.getDouble()));
+            }
+            return store;
+        }
+    }
+
+    int getWidth() {
+        return WIDTH;
+    }
+
+    int getLength() {
+        return LENGTH;
+    }
+
+    int getHeight() {
+        return HEIGHT;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    @Override
+    public int kindAt(int x, int y, int z) {
+        int code = read(((long) x * LENGTH + y) * HEIGHT + z) & 0xFF;
+        return code >= WEAPON ? KIND_WEAPON : code; // Os códigos coincidem com os tipos.
+    }
+
+    @Override
+    public boolean removeKind(int x, int y, int z, int kind) {
+        long i = ((long) x * LENGTH + y) * HEIGHT + z;
+        int code = read(i) & 0xFF;
+        if (code == EMPTY || (code >= WEAPON ? KIND_WEAPON : code) != kind)
+            return false;
+        write(i, EMPTY);
+        setSize(size - 1);
+        return true;
+    }
+
+    private long index(Point3D p) {
+        return ((long) p.getX() * LENGTH + p.getY()) * HEIGHT + p.getZ();
+    }
+
+    private byte read(long i) {
+        return chunks[(int) (i >>> CHUNK_BITS)].get((int) (i & CHUNK_MASK));
+    }
+
+    private void write(long i, byte code) {
+        chunks[(int) (i >>> CHUNK_BITS)].put((int) (i & CHUNK_MASK), code);
+    }
+
+    private void setSize(long size) {
+        this.size = size;
+        header.putLong(SIZE_OFFSET, size);
+    }
+
+    /**
+     * Constrói um novo item a partir de seu tipo.
+     */
+    private SpecialItem decode(byte code, Point3D p) {
+        switch (code) {
+            case EMPTY:
+                return null;
+            case BOMB:
+                return new Bomb(p);
+            case VIRUS:
+                Virus v = new Virus(); // Como em SpecialItem.random().
+                v.setPosition(p);
+                return v;
+            default:
+                Weapon w = (Weapon) weaponTypes.get((code & 0xFF) - WEAPON).clone();
+                w.setPosition(p);
+                return w;
+        }
+    }
+
+    private byte encode(SpecialItem item) {
+        if (item instanceof Bomb)
+            return BOMB;
+        if (item instanceof Virus)
+            return VIRUS;
+        if (item instanceof Weapon)
+            return weaponCode((Weapon) item);
+        throw new IllegalArgumentException(String.valueOf(item));
+    }
+
+    /**
+     * Obtém o tipo de uma arma, incluindo-a na tabela de tipos caso ainda não
+     * esteja nela.
+     *
+     * @throws IllegalStateException caso a tabela de tipos esteja cheia
+     */
+    private byte weaponCode(Weapon w) throws IllegalStateException {
+
+        int i = weaponTypes.indexOf(w);
+        if (i < 0) {
+            ByteBuffer table = header.duplicate();
+            table.position(TABLE_OFFSET);
+            for (Weapon e : weaponTypes)
+                table.position(table.position() + 2 + e.getName().getBytes(StandardCharsets.UTF_8).length + 8);
+            byte[] name = w.getName().getBytes(StandardCharsets.UTF_8);
+            if (weaponTypes.size() == MAX_WEAPON_TYPES || table.remaining() < 2 + name.length + 8)
+                throw new IllegalStateException("Tabela de tipos de armas cheia: " + path);
+            table.putShort((short) name.length).put(name).putDouble(w.getSigma());
+            weaponTypes.add(new Weapon(w.getName(), w.getSigma()));
+            header.putInt(WEAPONS_OFFSET, weaponTypes.size());
+            i = weaponTypes.size() - 1;
+        }
+        return (byte) (i + WEAPON);
+    }
+
+    @Override
+    public SpecialItem get(Point3D p) {
+        return decode(read(index(p)), p);
+    }
+
+    @Override
+    public boolean contains(Point3D p) {
+        return read(index(p)) != EMPTY;
+    }
+
+    @Override
+    public void put(Point3D p, SpecialItem item) {
+        byte code = encode(item);
+        long i = index(p);
+        if (read(i) == EMPTY)
+            setSize(size + 1);
+        write(i, code);
+    }
+
+    @Override
+    public SpecialItem remove(Point3D p) {
+        long i = index(p);
+        byte code = read(i);
+        if (code == EMPTY)
+            return null;
+        write(i, EMPTY);
+        setSize(size - 1);
+        return decode(code, p);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Percorre todas as posições da arena: o custo é proporcional ao volume da
+     * arena, e o mapa devolvido é uma cópia.
+     */
+    @Override
+    public Map<Point3D, SpecialItem> toMap() {
+        Map<Point3D, SpecialItem> map = new HashMap<>();
+        long i = 0;
+        for (int x = 0; x < WIDTH; x++)
+            for (int y = 0; y < LENGTH; y++)
+                for (int z = 0; z < HEIGHT; z++, i++) {
+                    byte code = read(i);
+                    if (code != EMPTY) {
+                        Point3D p = new Point3D(x, y, z);
+                        map.put(p, decode(code, p));
+                    }
+                }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Grava no arquivo as alterações ainda não gravadas pelo sistema
+     * operacional.
+     */
+    void force() {
+        if (readOnly)
+            return;
+        header.force();
+        for (MappedByteBuffer e : chunks)
+            e.force();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        return path.equals(((MappedItemStore) o).path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    private Object writeReplace() {
+        force();
+        return new SerializationProxy(path, readOnly);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("Proxy required");
+    }
+
+    /**
+     * Forma serializada: apenas o caminho do arquivo e o modo de acesso. O
+     * arquivo é reaberto na desserialização.
+     */
+    private static final class SerializationProxy implements Serializable {
+
+        private final String path;
+        private final boolean readOnly;
+
+        SerializationProxy(String path, boolean readOnly) {
+            this.path = path;
+            this.readOnly = readOnly;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return open(path, readOnly);
+            } catch (IOException e) {
+                throw new InvalidObjectException(e.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,549 @@
+package com.bside89.poo.tp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Arquivo compactado e indexado das ações de uma partida, com acesso direto
+ * a qualquer turno.
+ *
+ * Os registros ({@link ActionRecord}) são agrupados em blocos de cerca de
+ * {@link Writer#DEFAULT_BLOCK_SIZE} bytes, compactados independentemente com
+ * deflate. Ao final do arquivo, um índice informa, para cada bloco, sua
+ * posição no arquivo e a primeira e a última ação (turno, número) que ele
+ * contém. Assim, ler uma ação exige apenas uma busca binária no índice e a
+ * descompactação de um único bloco, independentemente do tamanho do arquivo.
+ *
+ * O índice também informa quais armas aparecem em cada bloco, e o arquivo
+ * guarda os nomes dos robôs dos dois jogadores; assim, uma consulta (veja
+ * {@link MatchQuery}) pode descartar blocos e arquivos inteiros sem
+ * descompactá-los.
+ *
+ * O arquivo é mapeado em memória para leitura: os blocos compactados são lidos
+ * diretamente das páginas do arquivo, sem chamadas de leitura. Como o
+ * {@link Inflater} do Java 8 só aceita vetores de bytes, cada bloco lido é
+ * copiado uma vez para um vetor antes de ser descompactado.
+ *
+ * Formato do arquivo:
+ * <pre>
+ *   int magic, int versão
+ *   blocos: (int tamanho compactado, int tamanho original, int registros, bytes compactados)...
+ *   índice: (long posição, int primeiro turno, int primeiro número,
+ *            int último turno, int último número, int registros,
+ *            long máscara de armas)... por bloco
+ *   dados da partida: UTF robô 1, UTF robô 2, int quantidade de armas,
+ *                     UTF nome de cada arma
+ *   rodapé: long posição do índice, int quantidade de blocos, int magic
+ * </pre>
+ *
+ * Objetos desta classe podem ser usados por várias threads ao mesmo tempo.
+ *
+ * @author Bruno Santos
+ *
+ * @see ActionRecord
+ */
+final class MatchArchive implements Closeable {
+
+    private static final int MAGIC = 0x4D574158; // "MWAX"
+    private static final int VERSION = 3;
+    private static final int BLOCK_HEADER = 12, INDEX_ENTRY = 36, FOOTER = 16;
+
+    /**
+     * Bits da máscara de armas de cada bloco: a arma de número i corresponde
+     * ao bit min(i, 63), ou seja, o último bit é compartilhado pelas armas de
+     * número 63 em diante.
+     */
+    private static final int MASK_BITS = 64;
+
+    /**
+     * Tamanho máximo de cada região mapeada em memória. Um MappedByteBuffer
+     * é limitado a 2 GB, então arquivos maiores são mapeados em várias
+     * regiões, cada uma contendo apenas blocos inteiros.
+     */
+    private static final long REGION_SIZE = 1L << 30;
+
+    private final String path;
+    private final MappedByteBuffer[] regions;
+    private final int[] blockRegion, blockOffset, firstTurn, firstNum, lastTurn, lastNum, blockRecords;
+    private final long[] weaponMask;
+    private final long recordCount;
+    private final String robot1, robot2;
+    private final List<String> weapons;
+
+    /**
+     * O último bloco descompactado, já que leituras sequenciais costumam
+     * acessar o mesmo bloco várias vezes.
+     */
+    private volatile CachedBlock cache;
+
+    private static final class CachedBlock {
+        final int block;
+        final List<ActionRecord> records;
+
+        CachedBlock(int block, List<ActionRecord> records) {
+            this.block = block;
+            this.records = records;
+        }
+    }
+
+    private MatchArchive(String path, FileChannel channel) throws IOException {
+
+        this.path = path;
+        long size = channel.size();
+        ByteBuffer buf = ByteBuffer.allocate(FOOTER);
+        if (size < 8 + FOOTER || channel.read(buf, size - FOOTER) != FOOTER || buf.getInt(12) != MAGIC)
+            throw new IOException("Arquivo de partida inválido: " + path);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        channel.read(header, 0);
+        if (header.getInt(4) != VERSION)
+            throw new IOException("Versão de arquivo de partida não suportada: " + header.getInt(4));
+        long indexOffset = buf.getLong(0);
+        int blocks = buf.getInt(8);
+        long metaOffset = indexOffset + (long) blocks * INDEX_ENTRY;
+        if (indexOffset < 8 || blocks < 0 || metaOffset > size - FOOTER)
+            throw new IOException("Índice corrompido: " + path);
+
+        ByteBuffer index = ByteBuffer.allocate(blocks * INDEX_ENTRY);
+        channel.read(index, indexOffset);
+        index.flip();
+        long[] offsets = new long[blocks];
+        blockRegion = new int[blocks];
+        blockOffset = new int[blocks];
+        firstTurn = new int[blocks];
+        firstNum = new int[blocks];
+        lastTurn = new int[blocks];
+        lastNum = new int[blocks];
+        blockRecords = new int[blocks];
+        weaponMask = new long[blocks];
+        long records = 0;
+        for (int i = 0; i < blocks; i++) {
+            offsets[i] = index.getLong();
+            firstTurn[i] = index.getInt();
+            firstNum[i] = index.getInt();
+            lastTurn[i] = index.getInt();
+            lastNum[i] = index.getInt();
+            blockRecords[i] = index.getInt();
+            weaponMask[i] = index.getLong();
+            records += blockRecords[i];
+        }
+        this.recordCount = records;
+
+        ByteBuffer meta = ByteBuffer.allocate((int) (size - FOOTER - metaOffset));
+        channel.read(meta, metaOffset);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()));
+        this.robot1 = in.readUTF();
+        this.robot2 = in.readUTF();
+        String[] names = new String[in.readInt()];
+        for (int k = 0; k < names.length; k++)
+            names[k] = in.readUTF();
+        this.weapons = Collections.unmodifiableList(Arrays.asList(names));
+
+        // Agrupa os blocos em regiões de no máximo REGION_SIZE bytes.
+        List<MappedByteBuffer> mapped = new ArrayList<>();
+        int i = 0;
+        while (i < blocks) {
+            long start = offsets[i];
+            int j = i;
+            while (j < blocks && (j + 1 < blocks ? offsets[j + 1] : indexOffset) - start <= REGION_SIZE)
+                j++;
+            if (j == i)
+                throw new IOException("Bloco grande demais: " + path);
+            long end = j < blocks ? offsets[j] : indexOffset;
+            for (int k = i; k < j; k++) {
+                blockRegion[k] = mapped.size();
+                blockOffset[k] = (int) (offsets[k] - start);
+            }
+            mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            i = j;
+        }
+        this.regions = mapped.toArray(new MappedByteBuffer[0]);
+    }
+
+    /**
+     * Abre um arquivo para leitura. Apenas o índice é lido; os blocos são
+     * lidos sob demanda.
+     *
+     * @throws IOException caso o arquivo não possa ser lido ou não seja um
+     *                     arquivo de partida
+     */
+    static MatchArchive open(String path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            return new MatchArchive(path, raf.getChannel());
+        }
+    }
+
+    int getBlockCount() {
+        return firstTurn.length;
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    int getFirstTurn(int block) {
+        return firstTurn[block];
+    }
+
+    int getLastTurn(int block) {
+        return lastTurn[block];
+    }
+
+    /**
+     * @param player o número do jogador (1 ou 2)
+     *
+     * @return o nome do robô do jogador, ou uma String vazia caso não tenha
+     *         sido informado na gravação
+     */
+    String getRobot(int player) {
+        return player == 1 ? robot1 : robot2;
+    }
+
+    /**
+     * @return os nomes das armas que aparecem nos registros deste arquivo
+     */
+    List<String> getWeapons() {
+        return weapons;
+    }
+
+    /**
+     * Informa, a partir do índice, se algum registro de um bloco pode ter a
+     * arma informada. Uma resposta <tt>false</tt> é exata; uma resposta
+     * <tt>true</tt> pode ser um falso positivo caso o arquivo tenha mais de
+     * 63 armas.
+     */
+    boolean mayContainWeapon(int block, String weapon) {
+        int id = weapons.indexOf(weapon);
+        return id >= 0 && (weaponMask[block] & maskBit(id)) != 0;
+    }
+
+    private static long maskBit(int weaponId) {
+        return 1L << Math.min(weaponId, MASK_BITS - 1);
+    }
+
+    /**
+     * Obtém uma ação.
+     *
+     * @param turn  o turno
+     * @param num   o número da ação no turno
+     *
+     * @return o registro da ação, ou <tt>null</tt> caso ela não exista
+     *
+     * @throws IOException caso o bloco da ação esteja corrompido
+     */
+    ActionRecord get(int turn, int num) throws IOException {
+        int b = findBlock(turn, num);
+        if (b < 0 || compare(lastTurn[b], lastNum[b], turn, num) < 0)
+            return null;
+        for (ActionRecord e : readBlock(b))
+            if (e.getTurn() == turn && e.getNum() == num)
+                return e;
+        return null;
+    }
+
+    /**
+     * Obtém todas as ações de um intervalo de turnos, em ordem. Apenas os
+     * blocos que contêm o intervalo são descompactados.
+     *
+     * @param fromTurn  o primeiro turno (inclusive)
+     * @param toTurn    o último turno (inclusive)
+     *
+     * @throws IOException caso algum bloco esteja corrompido
+     */
+    List<ActionRecord> range(int fromTurn, int toTurn) throws IOException {
+        List<ActionRecord> result = new ArrayList<>();
+        for (int b = Math.max(0, findBlock(fromTurn, 0)); b < getBlockCount() && firstTurn[b] <= toTurn; b++) {
+            if (lastTurn[b] < fromTurn)
+                continue;
+            for (ActionRecord e : readBlock(b))
+                if (e.getTurn() >= fromTurn && e.getTurn() <= toTurn)
+                    result.add(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return o índice do último bloco cuja primeira ação não é posterior a
+     *         (turn, num), ou -1 caso não exista
+     */
+    private int findBlock(int turn, int num) {
+        int lo = 0, hi = getBlockCount() - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(firstTurn[mid], firstNum[mid], turn, num) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private static int compare(int turn1, int num1, int turn2, int num2) {
+        return turn1 != turn2 ? Integer.compare(turn1, turn2) : Integer.compare(num1, num2);
+    }
+
+    /**
+     * Descompacta um bloco.
+     *
+     * @return os registros do bloco, em ordem
+     *
+     * @throws IOException caso o bloco esteja corrompido
+     */
+    List<ActionRecord> readBlock(int block) throws IOException {
+        CachedBlock c = cache;
+        if (c != null && c.block == block)
+            return c.records;
+        List<ActionRecord> records = readBlock(block, true);
+        cache = new CachedBlock(block, records);
+        return records;
+    }
+
+    /**
+     * Descompacta um bloco, sem passar pelo bloco em cache.
+     *
+     * @param withLog <tt>false</tt> para não decodificar os textos de log
+     *                (veja {@link ActionRecord#readFrom})
+     *
+     * @return os registros do bloco, em ordem
+     *
+     * @throws IOException caso o bloco esteja corrompido
+     */
+    List<ActionRecord> readBlock(int block, boolean withLog) throws IOException {
+
+        ByteBuffer buf = regions[blockRegion[block]].duplicate();
+        buf.position(blockOffset[block]);
+        int compressed = buf.getInt(), raw = buf.getInt(), count = buf.getInt();
+        byte[] input = new byte[compressed], output = new byte[raw];
+        buf.get(input);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            if (inflater.inflate(output) != raw || !inflater.finished())
+                throw new IOException("Bloco " + block + " corrompido: " + path);
+        } catch (DataFormatException e) {
+            throw new IOException("Bloco " + block + " corrompido: " + path, e);
+        } finally {
+            inflater.end();
+        }
+
+        DataInputStream in = new DataInputStream(new BlockInput(output));
+        List<ActionRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            records.add(ActionRecord.readFrom(in, weapons, withLog));
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * O mapeamento em memória é liberado pelo coletor de lixo; este método
+     * apenas descarta o bloco em cache.
+     */
+    @Override
+    public void close() {
+        cache = null;
+    }
+
+    /**
+     * Leitura de um bloco descompactado. Ao contrário de
+     * {@link ByteArrayInputStream}, cujos métodos são sincronizados, esta
+     * classe é usada por uma única thread; a leitura dos registros, byte a
+     * byte, fica bem mais rápida.
+     */
+    private static final class BlockInput extends InputStream {
+
+        private final byte[] buf;
+        private int pos;
+
+        BlockInput(byte[] buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return pos < buf.length ? buf[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= buf.length)
+                return len == 0 ? 0 : -1;
+            int n = Math.min(len, buf.length - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long k = Math.max(0, Math.min(n, buf.length - pos));
+            pos += (int) k;
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return buf.length - pos;
+        }
+    }
+
+    /**
+     * Gravação de um arquivo de partida. Os registros devem ser adicionados
+     * em ordem (turno, número). Os nomes dos robôs podem ser informados a
+     * qualquer momento antes de {@link #close()}.
+     */
+    static final class Writer implements Closeable {
+
+        static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+        private final DataOutputStream out;
+        private final int blockSize;
+        private final ByteArrayOutputStream block;
+        private final DataOutputStream blockOut;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final DataOutputStream indexOut = new DataOutputStream(index);
+        private final Map<String, Integer> weaponIds = new HashMap<>();
+        private final List<String> weapons = new ArrayList<>();
+        private String robot1 = "", robot2 = "";
+        private byte[] compressed = new byte[0];
+        private long position, blockWeapons;
+        private int blocks, count;
+        private int firstTurn, firstNum, lastTurn = Integer.MIN_VALUE, lastNum;
+        private boolean closed;
+
+        /**
+         * @param path o caminho do arquivo, substituído caso exista
+         *
+         * @throws IOException caso o arquivo não possa ser criado
+         */
+        Writer(String path) throws IOException {
+            this(new FileOutputStream(path), DEFAULT_BLOCK_SIZE);
+        }
+
+        /**
+         * @param out       o fluxo de saída, fechado por {@link #close()}
+         * @param blockSize o tamanho aproximado, antes da compactação, de cada
+         *                  bloco
+         */
+        Writer(OutputStream out, int blockSize) throws IOException {
+            if (blockSize <= 0)
+                throw new IllegalArgumentException();
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.blockSize = blockSize;
+            this.block = new ByteArrayOutputStream(blockSize + blockSize / 4);
+            this.blockOut = new DataOutputStream(block);
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+            this.position = 8;
+        }
+
+        /**
+         * Informa os nomes dos robôs dos dois jogadores.
+         */
+        void setRobots(String robot1, String robot2) {
+            assert (robot1 != null && robot2 != null);
+            this.robot1 = robot1;
+            this.robot2 = robot2;
+        }
+
+        /**
+         * Adiciona um registro ao arquivo.
+         *
+         * @throws IllegalArgumentException caso o registro não seja posterior
+         *                                  ao último registro adicionado
+         */
+        void append(ActionRecord record) throws IOException, IllegalArgumentException {
+            if (compare(record.getTurn(), record.getNum(), lastTurn, lastNum) <= 0)
+                throw new IllegalArgumentException("Registro fora de ordem: turno " + record.getTurn()
+                        + ", ação " + record.getNum());
+            if (count == 0) {
+                firstTurn = record.getTurn();
+                firstNum = record.getNum();
+            }
+            lastTurn = record.getTurn();
+            lastNum = record.getNum();
+            Integer id = weaponIds.get(record.getWeapon());
+            if (id == null) {
+                id = weapons.size();
+                weaponIds.put(record.getWeapon(), id);
+                weapons.add(record.getWeapon());
+            }
+            blockWeapons |= maskBit(id);
+            record.writeTo(blockOut, id);
+            count++;
+            if (block.size() >= blockSize)
+                flushBlock();
+        }
+
+        private void flushBlock() throws IOException {
+            if (count == 0)
+                return;
+            byte[] raw = block.toByteArray();
+            if (compressed.length < raw.length)
+                compressed = new byte[raw.length];
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n == compressed.length)
+                    compressed = Arrays.copyOf(compressed, 2 * n);
+                n += deflater.deflate(compressed, n, compressed.length - n);
+            }
+
+            indexOut.writeLong(position);
+            indexOut.writeInt(firstTurn);
+            indexOut.writeInt(firstNum);
+            indexOut.writeInt(lastTurn);
+            indexOut.writeInt(lastNum);
+            indexOut.writeInt(count);
+            indexOut.writeLong(blockWeapons);
+            out.writeInt(n);
+            out.writeInt(raw.length);
+            out.writeInt(count);
+            out.write(compressed, 0, n);
+            position += BLOCK_HEADER + n;
+            blocks++;
+            block.reset();
+            blockWeapons = 0;
+            count = 0;
+        }
+
+        /**
+         * Grava o último bloco e o índice, e fecha o arquivo.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                flushBlock();
+                index.writeTo(out);
+                out.writeUTF(robot1);
+                out.writeUTF(robot2);
+                out.writeInt(weapons.size());
+                for (String e : weapons)
+                    out.writeUTF(e);
+                out.writeLong(position);
+                out.writeInt(blocks);
+                out.writeInt(MAGIC);
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+    }
+
+}
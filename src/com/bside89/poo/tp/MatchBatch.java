@@ -0,0 +1,425 @@
+package com.bside89.poo.tp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Motor de simulação que executa várias partidas simultaneamente, em passo único
+ * (lockstep).
+ *
+ * Em vez de um objeto {@link Arena}, dois {@link Player} e um {@link Action} por
+ * jogada, todas as partidas de um lote são mantidas em arrays primitivos:
+ *  - cada arena é um array de bytes com um código por posição (vazia, bomba,
+ *    vírus ou o índice de uma arma no catálogo);
+ *  - os atributos dos robôs (posição, HP, armadura, arma, vírus e infrações)
+ *    ficam em arrays indexados por 2*m + k, onde m é a partida e k o jogador
+ *    (0 ou 1).
+ *
+ * A cada chamada de {@link #step}, todas as partidas em andamento avançam uma
+ * ação, exatamente como uma iteração do laço de {@link MechaWars#runGame()}.
+ * Os comandos já chegam decodificados em opcodes e cada etapa da ação
+ * (movimento, efeito de itens, ataque e dano de vírus) é executada como uma
+ * passada sobre todo o lote, sem despacho por ação.
+ *
+ * As regras são as mesmas do jogo interativo, com uma diferença inerente à
+ * ausência de um jogador humano: o robô só pega uma arma encontrada caso ela
+ * seja mais forte do que a sua.
+ *
+ * Objetos desta classe não são thread-safe. Para usar vários núcleos, cada
+ * thread deve simular seu próprio lote.
+ *
+ * @author Bruno Santos
+ *
+ * @see DamageKernel
+ */
+final class MatchBatch {
+
+    static final byte OP_NONE = 0;
+    static final byte OP_ATTACK = Command.OP_ATTACK;
+    static final byte OP_MOVE = Command.OP_MOVE;
+    static final byte OP_EXIT = Command.OP_EXIT;
+
+    private static final byte CELL_EMPTY = 0;
+    private static final byte CELL_BOMB = 1;
+    private static final byte CELL_VIRUS = 2;
+    private static final byte CELL_WEAPON = 3; // Códigos >= CELL_WEAPON são armas.
+
+    private final int SIZE, WIDTH, LENGTH, HEIGHT;
+    private final Weapon[] catalog;
+    private final byte[][] cells;
+    private final SplittableRandom random;
+    private final SimParams params;
+
+    // Estado dos robôs, indexado por 2*m + k.
+    private final int[] x, y, z, weapon, moveLimit, fouls, virusLife;
+    private final double[] hp, armor;
+
+    // Estado das partidas, indexado por m.
+    private final int[] turn, actionNum, winner, pendingCell;
+    private int running;
+    private long actions;
+
+    // Áreas de trabalho do passe de ataque.
+    private final int[] atkTarget, ax, ay, az, tx, ty, tz;
+    private final double[] atkSigma, atkArmor, rand1, rand2, damage;
+
+    /**
+     * Constrói um lote de partidas entre os mesmos dois robôs.
+     *
+     * @param size              a quantidade de partidas do lote
+     * @param width             a largura de cada arena
+     * @param length            o comprimento de cada arena
+     * @param height            a altura de cada arena
+     * @param r1                o robô do jogador 1
+     * @param w1                a arma inicial do jogador 1
+     * @param r2                o robô do jogador 2
+     * @param w2                a arma inicial do jogador 2
+     * @param weaponsVariety    as armas que podem ser encontradas nas arenas
+     * @param seed              a semente do gerador de números aleatórios
+     *
+     * @throws IllegalArgumentException caso as dimensões sejam menores do que
+     *                                  a dimensão mínima de uma arena
+     */
+    MatchBatch(int size, int width, int length, int height, Robot r1, Weapon w1, Robot r2, Weapon w2,
+               Collection<? extends Weapon> weaponsVariety, long seed) throws IllegalArgumentException {
+        this(size, width, length, height, r1, w1, r2, w2, weaponsVariety, seed, SimParams.defaults());
+    }
+
+    /**
+     * Constrói um lote de partidas com parâmetros de balanceamento próprios.
+     * A dimensão mínima das arenas passa a ser a de {@code params}.
+     *
+     * @param params os parâmetros de balanceamento
+     *
+     * @see #MatchBatch(int, int, int, int, Robot, Weapon, Robot, Weapon, Collection, long)
+     */
+    MatchBatch(int size, int width, int length, int height, Robot r1, Weapon w1, Robot r2, Weapon w2,
+               Collection<? extends Weapon> weaponsVariety, long seed, SimParams params) throws
+            IllegalArgumentException {
+
+        assert (size > 0 && r1 != null && r2 != null && w1 != null && w2 != null && params != null);
+        final int MIN_DIM = params.getArenaDimension();
+        if (width < MIN_DIM || length < MIN_DIM || height < MIN_DIM)
+            throw new IllegalArgumentException();
+        this.SIZE = size;
+        this.WIDTH = width;
+        this.LENGTH = length;
+        this.HEIGHT = height;
+        this.random = new SplittableRandom(seed);
+        this.params = params;
+
+        List<Weapon> weapons = new ArrayList<>(weaponsVariety);
+        if (!weapons.contains(w1)) weapons.add(w1);
+        if (!weapons.contains(w2)) weapons.add(w2);
+        if (weapons.size() > Byte.MAX_VALUE - CELL_WEAPON)
+            throw new IllegalArgumentException();
+        this.catalog = weapons.toArray(new Weapon[0]);
+
+        cells = new byte[size][];
+        x = new int[2 * size]; y = new int[2 * size]; z = new int[2 * size];
+        weapon = new int[2 * size]; moveLimit = new int[2 * size];
+        fouls = new int[2 * size]; virusLife = new int[2 * size];
+        hp = new double[2 * size]; armor = new double[2 * size];
+        turn = new int[size]; actionNum = new int[size];
+        winner = new int[size]; pendingCell = new int[size];
+        atkTarget = new int[size];
+        ax = new int[size]; ay = new int[size]; az = new int[size];
+        tx = new int[size]; ty = new int[size]; tz = new int[size];
+        atkSigma = new double[size]; atkArmor = new double[size];
+        rand1 = new double[size]; rand2 = new double[size]; damage = new double[size];
+
+        Arrays.fill(pendingCell, -1);
+        Robot[] robots = {r1, r2};
+        int[] weapons0 = {weapons.indexOf(w1), weapons.indexOf(w2)};
+        for (int m = 0; m < size; m++) {
+            cells[m] = new byte[width * length * height];
+            fill(cells[m]);
+            for (int k = 0; k < 2; k++) {
+                int i = 2 * m + k;
+                hp[i] = robots[k].getHp();
+                armor[i] = robots[k].getArmor();
+                moveLimit[i] = params.calcMoveLimit(robots[k].getHp(), robots[k].getArmor());
+                weapon[i] = weapons0[k];
+                int cell;
+                do {
+                    cell = random.nextInt(cells[m].length);
+                } while (cells[m][cell] != CELL_EMPTY || (k == 1 && cell == index(i - 1)));
+                x[i] = cell % width;
+                y[i] = (cell / width) % length;
+                z[i] = cell / (width * length);
+            }
+        }
+        running = size;
+    }
+
+    /**
+     * Preenche uma arena com itens especiais, com as mesmas proporções de
+     * {@link Arena}.
+     */
+    private void fill(byte[] arena) {
+
+        final double QTY_COEF = params.getFillCoefficient();
+        int n = (int) (arena.length * QTY_COEF * random.nextDouble());
+
+        while (n-- > 0) {
+            int cell;
+            do {
+                cell = random.nextInt(arena.length);
+            } while (arena[cell] != CELL_EMPTY); // Garante uma posição vaga.
+            int kind = random.nextInt(3);
+            arena[cell] = kind < 2 ? (byte) (CELL_BOMB + kind)
+                    : (byte) (CELL_WEAPON + random.nextInt(catalog.length));
+        }
+    }
+
+    /**
+     * Avança uma ação em todas as partidas em andamento.
+     *
+     * Para cada partida m, op[m] é o comando do jogador ativo e, no caso de
+     * movimento, dx[m], dy[m] e dz[m] são os deslocamentos. Partidas já
+     * encerradas são ignoradas.
+     *
+     * @param op    os opcodes ({@link #OP_ATTACK}, {@link #OP_MOVE},
+     *              {@link #OP_EXIT} ou {@link #OP_NONE})
+     * @param dx    os deslocamentos no eixo x
+     * @param dy    os deslocamentos no eixo y
+     * @param dz    os deslocamentos no eixo z
+     */
+    void step(byte[] op, int[] dx, int[] dy, int[] dz) {
+
+        // Passe 1: avança turno e número da ação, e trata o encerramento.
+        for (int m = 0; m < SIZE; m++) {
+            if (winner[m] != 0)
+                continue;
+            if (actionNum[m] % 2 == 0) turn[m]++;
+            actionNum[m] = actionNum[m] % 2 + 1;
+            actions++;
+            if (op[m] == OP_EXIT)
+                hp[active(m)] = 0; // Jogador que chamou "exit" deve perder o jogo.
+        }
+
+        // Passe 2: movimentos.
+        for (int m = 0; m < SIZE; m++)
+            if (winner[m] == 0 && op[m] == OP_MOVE)
+                move(m, active(m), dx[m], dy[m], dz[m]);
+
+        // Passe 3: efeitos dos itens encontrados durante os movimentos.
+        for (int m = 0; m < SIZE; m++) {
+            if (pendingCell[m] >= 0) {
+                effect(m, active(m), pendingCell[m]);
+                pendingCell[m] = -1;
+            }
+        }
+
+        // Passe 4: ataques, resolvidos em lote.
+        int n = 0;
+        for (int m = 0; m < SIZE; m++) {
+            if (winner[m] != 0 || op[m] != OP_ATTACK)
+                continue;
+            int a = active(m), b = a ^ 1;
+            if (weapon[a] < 0)
+                continue; // Robô desarmado não ataca.
+            atkTarget[n] = b;
+            atkSigma[n] = catalog[weapon[a]].getSigma();
+            atkArmor[n] = armor[b];
+            ax[n] = x[a]; ay[n] = y[a]; az[n] = z[a];
+            tx[n] = x[b]; ty[n] = y[b]; tz[n] = z[b];
+            n++;
+        }
+        DamageKernel.resolve(n, atkSigma, ax, ay, az, tx, ty, tz, atkArmor, random, rand1, rand2, damage);
+        for (int i = 0; i < n; i++)
+            receiveDamage(atkTarget[i], damage[i]);
+
+        // Passe 5: dano de vírus no jogador ativo.
+        for (int m = 0; m < SIZE; m++) {
+            if (winner[m] != 0 || op[m] == OP_EXIT)
+                continue;
+            int a = active(m);
+            if (virusLife[a] > 0) {
+                receiveDamage(a, params.getVirusM() * random.nextDouble());
+                virusLife[a]--;
+            }
+        }
+
+        // Passe 6: verifica o fim das partidas.
+        for (int m = 0; m < SIZE; m++) {
+            if (winner[m] == 0 && (hp[2 * m] == 0 || hp[2 * m + 1] == 0)) {
+                winner[m] = hp[2 * m] == 0 ? 2 : 1;
+                running--;
+            }
+        }
+    }
+
+    /**
+     * Equivalente a {@code Action.makeMove()}. Um movimento inválido é punido
+     * como uma infração; um movimento válido deixa pendente o efeito do item
+     * da nova posição, caso exista.
+     */
+    private void move(int m, int a, int dx, int dy, int dz) {
+
+        // Aritmética em long: deslocamentos enormes não devem transbordar.
+        long nx = (long) x[a] + dx, ny = (long) y[a] + dy, nz = (long) z[a] + dz;
+        if (Robot.moveLength(dx, dy, dz) > moveLimit[a] || !containsPoint(nx, ny, nz)) {
+            fouls[a]++;
+            receiveDamage(a, Math.pow(2, fouls[a]));
+            return;
+        }
+        int px = x[a], py = y[a], pz = z[a];
+        x[a] = (int) nx;
+        y[a] = (int) ny;
+        z[a] = (int) nz;
+        int cell = index(a);
+        if (cells[m][cell] != CELL_EMPTY)
+            pendingCell[m] = cell;
+
+        int b = a ^ 1;
+        if (x[a] == x[b] && y[a] == y[b] && z[a] == z[b])
+            fixPosition(a, px, py, pz);
+    }
+
+    /**
+     * Desloca o robô para a posição vaga mais próxima, segundo
+     * {@link FreeCellResolver}, ou de volta à posição anterior ao movimento
+     * caso não exista nenhuma.
+     */
+    private void fixPosition(int a, int px, int py, int pz) {
+        final int b = a ^ 1;
+        int i = FreeCellResolver.find(x[a], y[a], z[a], WIDTH, LENGTH, HEIGHT,
+                (i1, j1, k1) -> i1 == x[b] && j1 == y[b] && k1 == z[b]);
+        if (i < 0) {
+            x[a] = px;
+            y[a] = py;
+            z[a] = pz;
+        } else {
+            x[a] += FreeCellResolver.dx(i);
+            y[a] += FreeCellResolver.dy(i);
+            z[a] += FreeCellResolver.dz(i);
+        }
+    }
+
+    /**
+     * Equivalente a {@link SpecialItem#effect(Robot, Arena)}.
+     */
+    private void effect(int m, int a, int cell) {
+        byte code = cells[m][cell];
+        switch (code) {
+            case CELL_BOMB:
+                receiveDamage(a, params.getBombSigma() * random.nextDouble());
+                cells[m][cell] = CELL_EMPTY;
+                break;
+            case CELL_VIRUS:
+                virusLife[a] = (int) Math.floor(params.getVirusN() * random.nextDouble());
+                cells[m][cell] = CELL_EMPTY;
+                break;
+            default:
+                int found = code - CELL_WEAPON;
+                if (weapon[a] < 0 || catalog[found].getSigma() > catalog[weapon[a]].getSigma()) {
+                    cells[m][cell] = weapon[a] < 0 ? CELL_EMPTY : (byte) (CELL_WEAPON + weapon[a]);
+                    weapon[a] = found;
+                }
+        }
+    }
+
+    /**
+     * Preenche os arrays de comandos com as jogadas de um jogador automático
+     * simples: a partir do segundo turno ataca em metade das vezes, e nas
+     * demais move-se aleatoriamente dentro de seu limite de movimento.
+     */
+    void randomCommands(byte[] op, int[] dx, int[] dy, int[] dz) {
+        for (int m = 0; m < SIZE; m++) {
+            if (winner[m] != 0) {
+                op[m] = OP_NONE;
+                continue;
+            }
+            // Jogador e turno da próxima ação, como calculados no passe 1 de step().
+            int a = 2 * m + (actionNum[m] == 1 ? 1 : 0);
+            int nextTurn = actionNum[m] % 2 == 0 ? turn[m] + 1 : turn[m];
+            if (nextTurn > 1 && random.nextBoolean()) {
+                op[m] = OP_ATTACK;
+            } else {
+                int limit = Math.max(1, moveLimit[a] / 3);
+                op[m] = OP_MOVE;
+                dx[m] = random.nextInt(2 * limit + 1) - limit;
+                dy[m] = random.nextInt(2 * limit + 1) - limit;
+                dz[m] = random.nextInt(2 * limit + 1) - limit;
+            }
+        }
+    }
+
+    /**
+     * Simula todas as partidas com o jogador automático de
+     * {@link #randomCommands} até que terminem ou até o limite de passos.
+     *
+     * @param maxSteps a quantidade máxima de chamadas de {@link #step}
+     *
+     * @return a quantidade de partidas ainda em andamento
+     */
+    int run(int maxSteps) {
+        byte[] op = new byte[SIZE];
+        int[] dx = new int[SIZE], dy = new int[SIZE], dz = new int[SIZE];
+        for (int i = 0; i < maxSteps && running > 0; i++) {
+            randomCommands(op, dx, dy, dz);
+            step(op, dx, dy, dz);
+        }
+        return running;
+    }
+
+    private void receiveDamage(int a, double d) {
+        hp[a] -= d;
+        if (hp[a] < 0) hp[a] = 0;
+    }
+
+    private int active(int m) {
+        return 2 * m + actionNum[m] - 1;
+    }
+
+    private int index(int a) {
+        return x[a] + WIDTH * (y[a] + LENGTH * z[a]);
+    }
+
+    private boolean containsPoint(long i, long j, long k) {
+        return i >= 0 && j >= 0 && k >= 0 && i < WIDTH && j < LENGTH && k < HEIGHT;
+    }
+
+    int size() {
+        return SIZE;
+    }
+
+    int running() {
+        return running;
+    }
+
+    /**
+     * @return a quantidade total de ações executadas por este lote
+     */
+    long getActions() {
+        return actions;
+    }
+
+    int getTurn(int m) {
+        return turn[m];
+    }
+
+    /**
+     * @return 1 ou 2, o jogador vencedor da partida m, ou 0 caso ela esteja
+     *         em andamento
+     */
+    int getWinner(int m) {
+        return winner[m];
+    }
+
+    double getHp(int m, int player) {
+        return hp[2 * m + player - 1];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: <Partidas %d> <Em andamento %d> <Ações %d> <Vitórias P1 %d>",
+                getClass().getSimpleName(), SIZE, running, actions,
+                Arrays.stream(winner).filter(w -> w == 1).count());
+    }
+
+}
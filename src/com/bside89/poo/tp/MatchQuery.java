@@ -0,0 +1,374 @@
+package com.bside89.poo.tp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Consulta de estatísticas agregadas sobre um conjunto de partidas arquivadas
+ * (veja {@link MatchArchive}), por exemplo, todas as partidas de um torneio.
+ *
+ * Uma consulta seleciona ações por intervalo de turnos, pelo robô do jogador
+ * ativo e pela arma do jogador ativo, e calcula sobre as ações selecionadas:
+ *  - o dano médio por ataque de cada arma;
+ *  - a taxa de infrações de cada robô (infrações por ação);
+ *  - os acertos de bomba por turno;
+ *  - a parcela das derrotas causadas pelo vírus.
+ *
+ * Os filtros são aplicados o mais cedo possível: um arquivo cujos robôs ou
+ * armas não atendem à consulta é descartado sem que nenhum bloco seja lido, e
+ * um bloco fora do intervalo de turnos, ou sem a arma procurada, é descartado
+ * pelo índice, sem ser descompactado. Os blocos restantes são lidos em
+ * paralelo, sem os textos de log, em grupos de {@link #CHUNK_BLOCKS} blocos,
+ * e os resultados parciais de cada grupo são somados ao final.
+ *
+ * Exemplo:
+ * <pre>
+ *   MatchQuery.Result r = new MatchQuery().turns(1, 50).robot("Zeta").run(paths, 8);
+ *   double share = r.virusKillShare();
+ * </pre>
+ *
+ * @author Bruno Santos
+ *
+ * @see MatchArchive
+ */
+final class MatchQuery {
+
+    /**
+     * Quantidade máxima de blocos lidos por uma mesma tarefa.
+     */
+    static final int CHUNK_BLOCKS = 16;
+
+    /**
+     * Causas da derrota de um robô.
+     */
+    enum Kill {
+        ATTACK, BOMB, FOUL, VIRUS
+    }
+
+    private int fromTurn = 1, toTurn = Integer.MAX_VALUE;
+    private String robot, weapon;
+
+    /**
+     * Seleciona apenas as ações de um intervalo de turnos.
+     *
+     * @param fromTurn  o primeiro turno (inclusive)
+     * @param toTurn    o último turno (inclusive)
+     */
+    MatchQuery turns(int fromTurn, int toTurn) {
+        if (fromTurn > toTurn)
+            throw new IllegalArgumentException();
+        this.fromTurn = fromTurn;
+        this.toTurn = toTurn;
+        return this;
+    }
+
+    /**
+     * Seleciona apenas as ações cujo jogador ativo usa um robô.
+     *
+     * @param name o nome do robô
+     */
+    MatchQuery robot(String name) {
+        if (name == null)
+            throw new IllegalArgumentException();
+        this.robot = name;
+        return this;
+    }
+
+    /**
+     * Seleciona apenas as ações cujo robô ativo, ao final da ação, tem uma
+     * arma.
+     *
+     * @param name o nome da arma
+     */
+    MatchQuery weapon(String name) {
+        if (name == null)
+            throw new IllegalArgumentException();
+        this.weapon = name;
+        return this;
+    }
+
+    /**
+     * Executa a consulta.
+     *
+     * @param paths     os caminhos dos arquivos de partida
+     * @param threads   a quantidade de threads de leitura
+     *
+     * @return as estatísticas das ações selecionadas
+     *
+     * @throws IOException caso algum arquivo não possa ser lido
+     */
+    Result run(Collection<String> paths, int threads) throws IOException {
+        if (threads <= 0)
+            throw new IllegalArgumentException();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<MatchArchive>> opened = new ArrayList<>();
+            for (String e : paths)
+                opened.add(pool.submit(() -> MatchArchive.open(e)));
+
+            Result total = new Result();
+            List<Future<Result>> scans = new ArrayList<>();
+            for (Future<MatchArchive> e : opened) {
+                MatchArchive archive = e.get();
+                int[] blocks = plan(archive, total);
+                for (int i = 0; i < blocks.length; i += CHUNK_BLOCKS) {
+                    int[] chunk = Arrays.copyOfRange(blocks, i, Math.min(i + CHUNK_BLOCKS, blocks.length));
+                    scans.add(pool.submit(scan(archive, chunk)));
+                }
+            }
+            for (Future<Result> e : scans)
+                total.merge(e.get());
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Escolhe, pelo índice, os blocos de um arquivo que devem ser lidos,
+     * contabilizando os arquivos e blocos descartados.
+     */
+    private int[] plan(MatchArchive archive, Result total) {
+        int blocks = archive.getBlockCount();
+        total.archives++;
+        if (robot != null && !robot.equals(archive.getRobot(1)) && !robot.equals(archive.getRobot(2))
+                || weapon != null && !archive.getWeapons().contains(weapon) || blocks == 0) {
+            total.archivesSkipped++;
+            total.blocksSkipped += blocks;
+            return new int[0];
+        }
+        int first = Math.max(fromTurn, archive.getFirstTurn(0));
+        int last = Math.min(toTurn, archive.getLastTurn(blocks - 1));
+        if (first <= last)
+            total.turns += last - first + 1;
+
+        int[] selected = new int[blocks];
+        int n = 0;
+        for (int b = 0; b < blocks; b++) {
+            if (archive.getLastTurn(b) < fromTurn || archive.getFirstTurn(b) > toTurn
+                    || weapon != null && !archive.mayContainWeapon(b, weapon))
+                continue;
+            selected[n++] = b;
+        }
+        total.blocksSkipped += blocks - n;
+        return Arrays.copyOf(selected, n);
+    }
+
+    private Callable<Result> scan(MatchArchive archive, int[] blocks) {
+        return () -> {
+            Result result = new Result();
+            for (int b : blocks) {
+                result.blocks++;
+                for (ActionRecord e : archive.readBlock(b, false))
+                    if (accept(archive, e))
+                        result.add(archive.getRobot(e.getActivePlayer()), e);
+            }
+            return result;
+        };
+    }
+
+    private boolean accept(MatchArchive archive, ActionRecord e) {
+        return e.getTurn() >= fromTurn && e.getTurn() <= toTurn
+                && (robot == null || robot.equals(archive.getRobot(e.getActivePlayer())))
+                && (weapon == null || weapon.equals(e.getWeapon()));
+    }
+
+    /**
+     * Obtém a causa da derrota ocorrida em uma ação.
+     *
+     * @return a causa, ou <tt>null</tt> caso nenhum robô tenha sido derrotado
+     *         na ação (ou o jogador tenha encerrado o jogo)
+     */
+    static Kill killCause(ActionRecord e) {
+        int active = e.getActivePlayer();
+        // O adversário só é atingido por um ataque ou pela explosão em cadeia
+        // de uma bomba (veja ChainReaction).
+        if (e.getHp(3 - active) <= 0)
+            return e.hasFlag(ActionRecord.BOMB) ? Kill.BOMB : Kill.ATTACK;
+        if (e.getHp(active) > 0 || e.getCommand().getOp() == Command.OP_EXIT)
+            return null;
+        if (e.hasFlag(ActionRecord.VIRUS_KILL))
+            return Kill.VIRUS;
+        if (e.hasFlag(ActionRecord.BOMB))
+            return Kill.BOMB;
+        if (e.hasFlag(ActionRecord.FOUL))
+            return Kill.FOUL;
+        return null;
+    }
+
+    /**
+     * Estatísticas agregadas das ações selecionadas por uma consulta.
+     */
+    static final class Result {
+
+        private long archives, archivesSkipped, blocks, blocksSkipped, turns, actions, bombHits;
+
+        /**
+         * Por arma: quantidade de ataques e dano total.
+         */
+        private final Map<String, double[]> attacks = new HashMap<>();
+
+        /**
+         * Por robô: quantidade de ações e de infrações.
+         */
+        private final Map<String, long[]> fouls = new HashMap<>();
+
+        /**
+         * Acertos de bomba, indexados pelo turno.
+         */
+        private long[] bombHitsByTurn = new long[64];
+
+        private final long[] kills = new long[Kill.values().length];
+
+        private void add(String robot, ActionRecord e) {
+            actions++;
+            if (e.getCommand().getOp() == Command.OP_ATTACK) {
+                double[] a = attacks.computeIfAbsent(e.getWeapon(), k -> new double[2]);
+                a[0]++;
+                a[1] += e.getDamage();
+            }
+            long[] f = fouls.computeIfAbsent(robot, k -> new long[2]);
+            f[0]++;
+            if (e.hasFlag(ActionRecord.FOUL))
+                f[1]++;
+            if (e.hasFlag(ActionRecord.BOMB)) {
+                bombHits++;
+                if (e.getTurn() >= bombHitsByTurn.length)
+                    bombHitsByTurn = Arrays.copyOf(bombHitsByTurn,
+                            Math.max(e.getTurn() + 1, 2 * bombHitsByTurn.length));
+                bombHitsByTurn[e.getTurn()]++;
+            }
+            Kill k = killCause(e);
+            if (k != null)
+                kills[k.ordinal()]++;
+        }
+
+        private void merge(Result o) {
+            archives += o.archives;
+            archivesSkipped += o.archivesSkipped;
+            blocks += o.blocks;
+            blocksSkipped += o.blocksSkipped;
+            turns += o.turns;
+            actions += o.actions;
+            bombHits += o.bombHits;
+            o.attacks.forEach((k, v) -> {
+                double[] a = attacks.computeIfAbsent(k, x -> new double[2]);
+                a[0] += v[0];
+                a[1] += v[1];
+            });
+            o.fouls.forEach((k, v) -> {
+                long[] f = fouls.computeIfAbsent(k, x -> new long[2]);
+                f[0] += v[0];
+                f[1] += v[1];
+            });
+            if (o.bombHitsByTurn.length > bombHitsByTurn.length)
+                bombHitsByTurn = Arrays.copyOf(bombHitsByTurn, o.bombHitsByTurn.length);
+            for (int i = 0; i < o.bombHitsByTurn.length; i++)
+                bombHitsByTurn[i] += o.bombHitsByTurn[i];
+            for (int i = 0; i < kills.length; i++)
+                kills[i] += o.kills[i];
+        }
+
+        /**
+         * @return a quantidade de arquivos consultados, incluindo os
+         *         descartados
+         */
+        long getArchives() {
+            return archives;
+        }
+
+        /**
+         * @return a quantidade de arquivos descartados sem leitura de blocos
+         */
+        long getArchivesSkipped() {
+            return archivesSkipped;
+        }
+
+        /**
+         * @return a quantidade de blocos descompactados
+         */
+        long getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * @return a quantidade de blocos descartados pelo índice
+         */
+        long getBlocksSkipped() {
+            return blocksSkipped;
+        }
+
+        /**
+         * @return a quantidade de ações selecionadas
+         */
+        long getActions() {
+            return actions;
+        }
+
+        /**
+         * @return o dano médio por ataque de cada arma, por nome da arma
+         */
+        SortedMap<String, Double> averageDamage() {
+            SortedMap<String, Double> result = new TreeMap<>();
+            attacks.forEach((k, v) -> result.put(k, v[1] / v[0]));
+            return result;
+        }
+
+        /**
+         * @return a quantidade de infrações por ação de cada robô, por nome do
+         *         robô
+         */
+        SortedMap<String, Double> foulRate() {
+            SortedMap<String, Double> result = new TreeMap<>();
+            fouls.forEach((k, v) -> result.put(k, (double) v[1] / v[0]));
+            return result;
+        }
+
+        /**
+         * @return a média de acertos de bomba por turno de partida, nos turnos
+         *         do intervalo consultado
+         */
+        double bombHitsPerTurn() {
+            return turns == 0 ? 0 : (double) bombHits / turns;
+        }
+
+        /**
+         * @return os acertos de bomba em cada turno (o elemento i corresponde
+         *         ao turno i)
+         */
+        long[] bombHitsByTurn() {
+            int n = bombHitsByTurn.length;
+            while (n > 0 && bombHitsByTurn[n - 1] == 0)
+                n--;
+            return Arrays.copyOf(bombHitsByTurn, n);
+        }
+
+        long getKills(Kill cause) {
+            return kills[cause.ordinal()];
+        }
+
+        /**
+         * @return a parcela das derrotas causadas pelo vírus, entre 0 e 1
+         */
+        double virusKillShare() {
+            long total = 0;
+            for (long e : kills)
+                total += e;
+            return total == 0 ? 0 : (double) kills[Kill.VIRUS.ordinal()] / total;
+        }
+    }
+
+}
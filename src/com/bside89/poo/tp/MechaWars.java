@@ -20,35 +20,98 @@ import static com.bside89.poo.tp.InGameText.*;
  */
 public final class MechaWars {
 
-    private Queue<Action> actions;
     private int turn;
     private Arena arena;
     private Player p1, p2;
+    private final Catalogs.Lazy catalogs;
     private Set<Robot> robots;
     private Set<Weapon> weapons;
     private Scanner stdin;
+    private DeltaStream spectators;
+    private SaveWriter saver;
+    private MatchArchive.Writer archive;
 
     public MechaWars(String filePathRobots, String filePathWeapons, String filePathConfigs) throws
             IllegalArgumentException {
 
         // Inicializa todos os objetos com valores padrão
-        actions = new LinkedList<>();
         stdin = new Scanner(System.in);
         p1 = new Player(1);
         p2 = new Player(2);
 
-        // Ordena a coleção de robôs e armas por nome
-        Comparator<Nameable> nameComp = (o1, o2) -> o1.getName().compareTo(o2.getName());
-        robots = new TreeSet<>(nameComp);
-        weapons = new TreeSet<>(nameComp);
-
+        // Coleções de robôs e armas, ordenadas por nome, carregadas apenas
+        // quando são usadas pela primeira vez
         try {
-            loadConfigs(filePathConfigs);
-            fromFileToCollection('r', filePathRobots);
-            fromFileToCollection('w', filePathWeapons);
+            catalogs = new Catalogs.Lazy(filePathRobots, filePathWeapons);
         } catch (FileNotFoundException e) {
             throw new IllegalArgumentException(ERR_FILE_NOT_FOUND, e);
         }
+        loadConfigs(filePathConfigs);
+        Metrics.registerMBean();
+    }
+
+    private Set<Robot> robots() {
+        loadCatalogs();
+        return robots;
+    }
+
+    private Set<Weapon> weapons() {
+        loadCatalogs();
+        return weapons;
+    }
+
+    private void loadCatalogs() {
+        if (robots != null)
+            return;
+        try {
+            robots = catalogs.robots();
+            weapons = catalogs.weapons();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Imprime periodicamente, na saída de erro, o relatório de métricas do jogo
+     * (contadores e latências). As mesmas métricas estão disponíveis via JMX.
+     *
+     * @param periodSeconds o intervalo entre dois relatórios, em segundos
+     */
+    public void startMetricsDump(long periodSeconds) {
+        if (periodSeconds <= 0)
+            throw new IllegalArgumentException();
+        Metrics.startDump(System.err, periodSeconds);
+    }
+
+    /**
+     * Transmite a partida a espectadores remotos, na forma de um fluxo
+     * incremental de alterações (veja {@link DeltaStream}).
+     *
+     * Deve ser chamado antes de {@link #runGame()}.
+     *
+     * @param out               o fluxo de saída para os espectadores
+     * @param keyframeInterval  a quantidade de ações entre dois quadros-chave
+     *                          com o estado completo da partida
+     */
+    public void setSpectatorFeed(OutputStream out, int keyframeInterval) {
+        if (out == null || keyframeInterval <= 0)
+            throw new IllegalArgumentException();
+        spectators = new DeltaStream(out, keyframeInterval);
+    }
+
+    /**
+     * Grava as ações da partida, à medida que são executadas, em um arquivo
+     * compactado e indexado por turno (veja {@link MatchArchive}).
+     *
+     * Deve ser chamado antes de {@link #runGame()}.
+     *
+     * @param path o caminho do arquivo, substituído caso exista
+     *
+     * @throws IOException caso o arquivo não possa ser criado
+     */
+    public void setArchive(String path) throws IOException {
+        archive = new MatchArchive.Writer(path);
     }
 
     private void setup() {
@@ -68,7 +131,7 @@ public final class MechaWars {
                 int dim1 = in.nextInt();
                 int dim2 = in.nextInt();
                 int dim3 = in.nextInt();
-                arena = new Arena(dim1, dim2, dim3, weapons);
+                arena = new Arena(dim1, dim2, dim3, weapons());
                 lock = false;
             } catch (IllegalArgumentException e) {
                 System.err.println(ERR_INVALID_DIM);
@@ -84,12 +147,12 @@ public final class MechaWars {
             try {
                 int choice1 = stdin.nextInt() - 1;
                 int choice2 = stdin.nextInt() - 1;
-                Robot r = (choice1 == -1) ? Robots.random(robots) : Robots.get(robots, choice1);
-                Weapon w = (choice2 == -1) ? Weapons.random(weapons) : Weapons.get(weapons, choice2);
+                Robot r = (choice1 == -1) ? Robots.random(robots()) : Robots.get(robots(), choice1);
+                Weapon w = (choice2 == -1) ? Weapons.random(weapons()) : Weapons.get(weapons(), choice2);
                 r.setWeapon(w);
                 r.setPosition(arena.randomPoint());
                 p.setRobot(r);
-                robots.remove(r);
+                robots().remove(r);
                 lock = false;
             } catch (IndexOutOfBoundsException e) {
                 System.err.println(ERR_INVALID_OPTION);
@@ -98,53 +161,6 @@ public final class MechaWars {
         System.out.printf("Jogador %d configurado com sucesso.\n", p.getID());
     }
 
-    /**
-     * Obtém registros dos arquivos de listagem de robôs e armas e constrói um
-     * coleção (set) contendo todos estes registros.
-     *
-     * Um caractere indicador é enviado como parâmetro para indicar se a coleção
-     * construída será a de robôs ou a de armas.
-     *
-     * @param indic     um caractere indicador que aponta para o método qual
-     *                  das duas coleções (robôs ou armas) este método
-     *                  irá construir
-     *
-     * @param filePath  sting contendo o caminho do arquivo contendo
-     *                  os registros
-     *
-     * @throws FileNotFoundException    se o arquivo cujo caminho é filePath
-     *                                  não for encontrado.
-     */
-    private void fromFileToCollection(char indic, String filePath) throws FileNotFoundException {
-
-        assert (indic == 'r' || indic == 'w');
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-
-            for (String line = br.readLine(); line != null; line = br.readLine()) {
-
-                if (line.equals("") || line.charAt(0) == '#')
-                    continue;
-                Scanner in = new Scanner(line);
-                String name = in.next();
-                switch (indic) {
-                    case 'r':
-                        robots.add(new Robot(name, in.nextInt(), in.nextInt()));
-                        break;
-                    case 'w':
-                        weapons.add(new Weapon(name, in.nextInt()));
-                        break;
-                }
-            }
-        } catch (NoSuchElementException e) {
-            // Isto ocorrerá caso haja alterações incorretas dos
-            // arquivos de coleções
-            throw new BadConfigError(e.getMessage(), e);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-    }
-
     private void rollConfigOptions(Player p) {
 
         System.out.printf("Escolha para o jogador %d, respectivamente, robô e arma.\n", p.getID());
@@ -152,12 +168,12 @@ public final class MechaWars {
         System.out.println("---");
         int i = 0, j = 0;
         System.out.println("0: Robô aleatório.");
-        for (Robot e : robots)
+        for (Robot e : robots())
             System.out.format("%d: %-20s <HP %5.0f> <Armor %5.0f>\n", ++i,
                     e.getName(), e.getHp(), e.getArmor());
         System.out.println("---");
         System.out.println("0: Arma aleatória.");
-        for (Weapon e : weapons)
+        for (Weapon e : weapons())
             System.out.format("%d: %-20s <Damage %5.0f>\n", ++j, e.getName(), e.getSigma());
         System.out.println("---");
     }
@@ -172,60 +188,89 @@ public final class MechaWars {
      */
     public void runGame() {
         setup();
+        startSaveState();
+        Action action = new Action(arena, p1, p2);
         int actionNum = 0;
+        if (archive != null) archive.setRobots(p1.getRobot().getName(), p2.getRobot().getName());
+        if (spectators != null) spectators.start(turn, actionNum, arena, p1, p2);
 
-        while (!p1.isDefeated() && !p2.isDefeated()) {
-
-            boolean lock = true;
-            if (actionNum % 2 == 0) turn++;
-            actionNum++;
-            if (actionNum > 2) actionNum = 1;
-
-            Player activePlayer = actionNum == 1 ? p1 : p2;
-            printGameStatus(p1, p2, arena);
-            printGameOptions(turn, actionNum, activePlayer);
-            do {
-                try {
-                    Action action = new Action(turn, actionNum, arena, p1, p2);
-                    String command;
-                    do command = stdin.nextLine(); while (command.equals(""));
-                    boolean signal = action.make(command);
-                    if (signal) {
-                        // Jogador que chamou "exit" deve perder o jogo.
-                        activePlayer.getRobot().kill();
+        try {
+            while (!p1.isDefeated() && !p2.isDefeated()) {
+
+                boolean lock = true;
+                if (actionNum % 2 == 0) turn++;
+                actionNum++;
+                if (actionNum > 2) actionNum = 1;
+
+                Player activePlayer = actionNum == 1 ? p1 : p2;
+                printGameStatus(p1, p2, arena);
+                printGameOptions(turn, actionNum, activePlayer);
+                action.reset(turn, actionNum);
+                do {
+                    try {
+                        String command;
+                        do command = stdin.nextLine(); while (command.equals(""));
+                        boolean signal = action.make(command);
+                        if (signal) {
+                            // Jogador que chamou "exit" deve perder o jogo.
+                            activePlayer.getRobot().kill();
+                        }
+                        ActionRecord record = action.toRecord();
+                        saver.submit(record);
+                        if (archive != null) archiveAction(record);
+                        if (spectators != null) spectators.endAction(turn, actionNum);
+                        System.out.println("----------------------------------------------");
+                        System.out.print(action);
+                        System.out.println("----------------------------------------------");
+                        lock = false;
+                    } catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage());
                     }
-                    actions.add(action);
-                    System.out.println("----------------------------------------------");
-                    System.out.print(action);
-                    System.out.println("----------------------------------------------");
-                    lock = false;
-                } catch (IllegalArgumentException e) {
-                    System.err.println(e.getMessage());
-                }
-            } while (lock);
+                } while (lock);
+            }
+        } finally {
+            saver.close(); // Aguarda o fim da gravação.
         }
         printGameWinner((p1.isDefeated()) ? p2 : p1);
-        saveState();
+        if (spectators != null) spectators.stop();
+        if (archive != null) closeArchive();
         System.out.println("Pressione qualquer tecla p/ continuar...");
         stdin.nextLine();
     }
 
-    /**
-     * Salva o estado de todas as ações em um arquivo binário.
-     * O nome deste arquivo pode ser alterado nas constantes em InGameText
-     * (procurar pela constante FILE_SAVE_STATE)
-     */
-    private void saveState() {
+    private void archiveAction(ActionRecord record) {
         try {
-            FileOutputStream saveFile = new FileOutputStream(getFileSaveStateName());
-            ObjectOutputStream saveObj = new ObjectOutputStream(saveFile);
-            saveObj.reset(); // Apaga os dados antigos contidos no arquivo.
-            for (Action e : actions) {
-                saveObj.writeObject(e);
-            }
+            archive.append(record);
         } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
+            System.err.println(e.getMessage());
+            closeArchive();
         }
     }
+
+    private void closeArchive() {
+        try {
+            archive.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        archive = null;
+    }
+
+    /**
+     * Inicia a gravação do estado de todas as ações em um arquivo binário
+     * compactado. O nome deste arquivo pode ser alterado no arquivo de
+     * configurações.
+     *
+     * O registro de cada ação (veja {@link Action#toRecord()}) é submetido a
+     * um {@link SaveWriter} assim que a ação é consumada, e gravado em segundo
+     * plano; nenhuma ação fica retida em memória até o fim da partida, por
+     * mais longa que ela seja. O {@link SaveWriter} é fechado (aguardando o
+     * fim da gravação) ao término da partida, antes do aviso final de
+     * {@link #runGame()}, mesmo que ela seja interrompida por uma exceção.
+     * Uma falha de gravação é informada na saída de erro, sem encerrar o jogo.
+     */
+    private void startSaveState() {
+        saver = new SaveWriter(getFileSaveStateName(),
+                e -> System.err.println(ERR_SAVE_STATE + e.getMessage()));
+    }
 }
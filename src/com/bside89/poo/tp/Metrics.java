@@ -0,0 +1,230 @@
+package com.bside89.poo.tp;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Registro das métricas dos caminhos críticos do jogo.
+ *
+ * Os contadores são {@link LongAdder} (com células distribuídas entre as
+ * threads, evitando contenção) e as latências são registradas em
+ * {@link Histogram}. Ambos são campos estáticos, acessados diretamente pelo
+ * código instrumentado, de modo que nenhum registro aloca memória nem faz
+ * busca por nome.
+ *
+ * Uso típico de um temporizador:
+ *
+ * <pre>
+ *     long t0 = Metrics.now();
+ *     ...
+ *     Metrics.ACTION_MAKE.record(t0);
+ * </pre>
+ *
+ * As métricas podem ser consultadas via JMX (objeto
+ * {@code com.bside89.poo.tp:type=Metrics}) ou impressas periodicamente com
+ * {@link #startDump(PrintStream, long)}. Elas podem ser desativadas com a
+ * propriedade de sistema {@code mechawars.metrics=false}.
+ *
+ * @author Bruno Santos
+ *
+ * @see Histogram
+ * @see MetricsMXBean
+ */
+final class Metrics implements MetricsMXBean {
+
+    private static volatile boolean enabled = !"false".equals(System.getProperty("mechawars.metrics"));
+
+    static final LongAdder ACTIONS = new LongAdder();
+    static final LongAdder FOULS = new LongAdder();
+    static final LongAdder PICKUPS = new LongAdder();
+    static final LongAdder BOMBS = new LongAdder();
+    static final LongAdder INFECTIONS = new LongAdder();
+    static final LongAdder VIRUS_TICKS = new LongAdder();
+    static final LongAdder SAVE_FAILURES = new LongAdder();
+    static final LongAdder TICKS = new LongAdder();
+    static final LongAdder TICK_OVERRUNS = new LongAdder();
+    static final LongAdder TICKS_SKIPPED = new LongAdder();
+    static final LongAdder MOVE_CONFLICTS = new LongAdder();
+    static final LongAdder SHOTS_BLOCKED = new LongAdder();
+    static final LongAdder CHAIN_BOMBS = new LongAdder();
+    static final LongAdder CONTAMINATIONS = new LongAdder();
+    static final LongAdder RESULT_CACHE_HITS = new LongAdder();
+    static final LongAdder RESULT_CACHE_DISK_HITS = new LongAdder();
+    static final LongAdder RESULT_CACHE_MISSES = new LongAdder();
+    static final LongAdder RESULT_CACHE_EVICTIONS = new LongAdder();
+
+    static final Histogram ACTION_MAKE = new Histogram("action.make");
+    static final Histogram ARENA_AT = new Histogram("arena.at");
+    static final Histogram ARENA_FILL = new Histogram("arena.fill");
+    static final Histogram SAVE_STATE = new Histogram("game.saveState");
+    static final Histogram SAVE_SUBMIT = new Histogram("save.submit");
+    static final Histogram TICK = new Histogram("tick.resolve");
+    static final Histogram CHAIN = new Histogram("bomb.chain");
+    static final Histogram EPIDEMIC = new Histogram("epidemic.step");
+
+    private static final Map<String, LongAdder> COUNTERS = new LinkedHashMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new LinkedHashMap<>();
+
+    static {
+        COUNTERS.put("actions", ACTIONS);
+        COUNTERS.put("fouls", FOULS);
+        COUNTERS.put("pickups", PICKUPS);
+        COUNTERS.put("bombs", BOMBS);
+        COUNTERS.put("infections", INFECTIONS);
+        COUNTERS.put("virusTicks", VIRUS_TICKS);
+        COUNTERS.put("saveFailures", SAVE_FAILURES);
+        COUNTERS.put("ticks", TICKS);
+        COUNTERS.put("tickOverruns", TICK_OVERRUNS);
+        COUNTERS.put("ticksSkipped", TICKS_SKIPPED);
+        COUNTERS.put("moveConflicts", MOVE_CONFLICTS);
+        COUNTERS.put("shotsBlocked", SHOTS_BLOCKED);
+        COUNTERS.put("chainBombs", CHAIN_BOMBS);
+        COUNTERS.put("contaminations", CONTAMINATIONS);
+        COUNTERS.put("resultCacheHits", RESULT_CACHE_HITS);
+        COUNTERS.put("resultCacheDiskHits", RESULT_CACHE_DISK_HITS);
+        COUNTERS.put("resultCacheMisses", RESULT_CACHE_MISSES);
+        COUNTERS.put("resultCacheEvictions", RESULT_CACHE_EVICTIONS);
+        for (Histogram e : new Histogram[]{ACTION_MAKE, ARENA_AT, ARENA_FILL, SAVE_STATE, SAVE_SUBMIT, TICK,
+                CHAIN, EPIDEMIC})
+            HISTOGRAMS.put(e.getName(), e);
+    }
+
+    private static final Metrics INSTANCE = new Metrics();
+    private static boolean registered;
+    private static ScheduledExecutorService dumper;
+
+    private Metrics() {}
+
+    /**
+     * @return o instante atual, em nanossegundos, para uso com
+     *         {@link Histogram#record(long)}; 0 caso as métricas estejam
+     *         desativadas
+     */
+    static long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Incrementa um contador, caso as métricas estejam ativadas.
+     */
+    static void increment(LongAdder counter) {
+        if (enabled) counter.increment();
+    }
+
+    /**
+     * Soma um valor a um contador, caso as métricas estejam ativadas.
+     */
+    static void add(LongAdder counter, long n) {
+        if (enabled) counter.add(n);
+    }
+
+    static boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Registra as métricas no servidor JMX da plataforma. Chamadas repetidas
+     * não têm efeito.
+     */
+    static synchronized void registerMBean() {
+        if (registered)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+                    new ObjectName("com.bside89.poo.tp:type=Metrics"));
+            registered = true;
+        } catch (JMException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Imprime periodicamente o relatório de métricas, em uma thread daemon.
+     * Uma nova chamada substitui a impressão anterior.
+     *
+     * @param out           o fluxo onde o relatório será impresso
+     * @param periodSeconds o intervalo entre duas impressões, em segundos
+     */
+    static synchronized void startDump(PrintStream out, long periodSeconds) {
+        stopDump();
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> out.print(INSTANCE.dump()), periodSeconds, periodSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    static synchronized void stopDump() {
+        if (dumper != null) dumper.shutdownNow();
+        dumper = null;
+    }
+
+    static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        COUNTERS.forEach((k, v) -> m.put(k, v.sum()));
+        return Collections.unmodifiableMap(m);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50() {
+        return latencies(h -> h.percentile(50));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99() {
+        return latencies(h -> h.percentile(99));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMax() {
+        return latencies(Histogram::getMax);
+    }
+
+    private static Map<String, Long> latencies(ToLongFunction<Histogram> f) {
+        Map<String, Long> m = new LinkedHashMap<>();
+        HISTOGRAMS.forEach((k, v) -> m.put(k, f.applyAsLong(v)));
+        return Collections.unmodifiableMap(m);
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder s = new StringBuilder("---------------- MÉTRICAS ----------------\n");
+        COUNTERS.forEach((k, v) -> s.append(String.format("%-20s %d\n", k, v.sum())));
+        HISTOGRAMS.values().forEach(h -> s.append(h).append(" (ns)\n"));
+        return s.toString();
+    }
+
+    @Override
+    public void reset() {
+        COUNTERS.values().forEach(LongAdder::reset);
+        HISTOGRAMS.values().forEach(Histogram::reset);
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.bside89.poo.tp;
+
+import java.util.Map;
+
+/**
+ * Interface de gerenciamento (JMX) das métricas do jogo.
+ *
+ * As latências são expressas em nanossegundos.
+ *
+ * @author Bruno Santos
+ *
+ * @see Metrics
+ */
+public interface MetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getLatencyP50();
+
+    Map<String, Long> getLatencyP99();
+
+    Map<String, Long> getLatencyMax();
+
+    /**
+     * @return o relatório textual de todas as métricas
+     */
+    String dump();
+
+    /**
+     * Zera todos os contadores e histogramas.
+     */
+    void reset();
+
+}
@@ -0,0 +1,118 @@
+package com.bside89.poo.tp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Armazenamento de itens especiais em cópia-na-escrita (copy-on-write) sobre
+ * um armazenamento base, que nunca é alterado.
+ *
+ * As alterações (itens colocados ou removidos) ficam apenas em um pequeno
+ * mapa na memória do Java, então várias arenas podem compartilhar a mesma
+ * base, por exemplo um modelo de {@link ArenaTemplates}, sem que os itens
+ * pegos em uma partida desapareçam das outras. Criar um objeto desta classe
+ * não depende do volume da base.
+ *
+ * @author Bruno Santos
+ *
+ * @see ItemStore
+ * @see ArenaTemplates
+ */
+final class OverlayItemStore implements ItemStore {
+
+    private final ItemStore base;
+
+    /**
+     * Alterações sobre a base: o valor <tt>null</tt> indica uma posição cujo
+     * item foi removido.
+     */
+    private final Map<Point3D, SpecialItem> changes = new HashMap<>();
+    private long size;
+
+    OverlayItemStore(ItemStore base) {
+        assert (base != null);
+        this.base = base;
+        this.size = base.size();
+    }
+
+    @Override
+    public SpecialItem get(Point3D p) {
+        if (changes.containsKey(p))
+            return changes.get(p);
+        return base.get(p);
+    }
+
+    @Override
+    public boolean contains(Point3D p) {
+        if (changes.containsKey(p))
+            return changes.get(p) != null;
+        return base.contains(p);
+    }
+
+    @Override
+    public int kindAt(int x, int y, int z) {
+        // Sem alterações, evita criar a posição para consultar o mapa.
+        return changes.isEmpty() ? base.kindAt(x, y, z) : ItemStore.super.kindAt(x, y, z);
+    }
+
+    @Override
+    public void put(Point3D p, SpecialItem item) {
+        if (!contains(p))
+            size++;
+        changes.put(p, item);
+    }
+
+    @Override
+    public SpecialItem remove(Point3D p) {
+        SpecialItem item = get(p);
+        if (item == null)
+            return null;
+        changes.put(p, null);
+        size--;
+        return item;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return uma cópia dos itens da base com as alterações aplicadas
+     */
+    @Override
+    public Map<Point3D, SpecialItem> toMap() {
+        Map<Point3D, SpecialItem> map = new HashMap<>(base.toMap());
+        for (Map.Entry<Point3D, SpecialItem> e : changes.entrySet()) {
+            if (e.getValue() == null)
+                map.remove(e.getKey());
+            else
+                map.put(e.getKey(), e.getValue());
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @return a quantidade de posições alteradas em relação à base
+     */
+    int getChangeCount() {
+        return changes.size();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        OverlayItemStore other = (OverlayItemStore) o;
+        return base.equals(other.base) && changes.equals(other.changes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * base.hashCode() + changes.hashCode();
+    }
+
+}
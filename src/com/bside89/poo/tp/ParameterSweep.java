@@ -0,0 +1,354 @@
+package com.bside89.poo.tp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Varredura de parâmetros de balanceamento em paralelo.
+ *
+ * Para cada ponto de um planejamento (uma grade completa ou um hipercubo
+ * latino sobre os parâmetros de {@link SimParams}), são simuladas K partidas
+ * automáticas entre os mesmos dois robôs, com {@link MatchBatch}. Os pontos
+ * são distribuídos entre todos os núcleos disponíveis e cada resultado é
+ * acrescentado a um arquivo CSV assim que fica pronto.
+ *
+ * A varredura pode ser retomada: ao ser executada novamente com o mesmo
+ * arquivo de saída, os pontos já presentes no arquivo (com os mesmos valores
+ * de parâmetros) são ignorados (cada ponto usa uma semente derivada de seu
+ * índice, então o resultado é o mesmo de uma execução ininterrupta). Uma
+ * linha incompleta no final do arquivo, deixada por uma interrupção durante
+ * a escrita, é descartada. Os resultados também podem vir de um
+ * {@link ResultCache}, de modo que um ponto já simulado por outra varredura,
+ * com a mesma semente, não é simulado novamente.
+ *
+ * A primeira linha do arquivo, um comentário iniciado por '#', identifica o
+ * confronto (robôs e armas iniciais), K e a semente base da varredura; um
+ * arquivo de outro confronto, ou com outros K ou semente, não é retomado,
+ * para que as linhas de duas varreduras diferentes não se misturem.
+ *
+ * Uso:
+ * <pre>
+ *   java com.bside89.poo.tp.ParameterSweep saida.csv K robô1 arma1 robô2 arma2 [nome=v1,v2,...]...
+ *   java com.bside89.poo.tp.ParameterSweep saida.csv K robô1 arma1 robô2 arma2 lhs=N [nome=mín:máx]...
+ * </pre>
+ *
+ * @author Bruno Santos
+ *
+ * @see SimParams
+ * @see MatchBatch
+ */
+final class ParameterSweep {
+
+    /**
+     * Quantidade máxima de partidas simuladas simultaneamente por uma thread,
+     * o que limita a memória ocupada pelas arenas.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Quantidade máxima de ações por partida. Partidas que não terminam (por
+     * exemplo, quando nenhum ataque consegue vencer a armadura) são contadas
+     * como inacabadas.
+     */
+    private static final int MAX_ACTIONS = 100000;
+
+    private static final String HEADER_PREFIX = "point,seed,";
+    private static final String HEADER_SUFFIX =
+            ",matches,p1Wins,p2Wins,unfinished,p1WinRate,meanTurns,meanWinnerHp";
+
+    private final Robot R1, R2;
+    private final Weapon W1, W2;
+    private final Collection<? extends Weapon> weapons;
+    private final int MATCHES;
+    private final long SEED;
+    private ResultCache cache;
+
+    /**
+     * @param r1                o robô do jogador 1
+     * @param w1                a arma inicial do jogador 1
+     * @param r2                o robô do jogador 2
+     * @param w2                a arma inicial do jogador 2
+     * @param weaponsVariety    as armas que podem ser encontradas nas arenas
+     * @param matchesPerPoint   a quantidade K de partidas por ponto
+     * @param seed              a semente base da varredura
+     */
+    ParameterSweep(Robot r1, Weapon w1, Robot r2, Weapon w2, Collection<? extends Weapon> weaponsVariety,
+                   int matchesPerPoint, long seed) {
+        assert (matchesPerPoint > 0);
+        this.R1 = r1;
+        this.W1 = w1;
+        this.R2 = r2;
+        this.W2 = w2;
+        this.weapons = weaponsVariety;
+        this.MATCHES = matchesPerPoint;
+        this.SEED = seed;
+    }
+
+    /**
+     * Define o cache dos resultados dos pontos.
+     *
+     * @param cache o cache, ou <tt>null</tt> para simular todos os pontos
+     */
+    void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Gera uma grade completa: todas as combinações dos valores informados.
+     *
+     * @param base  os valores dos parâmetros que não variam
+     * @param axes  os valores de cada parâmetro que varia, por nome
+     */
+    static List<SimParams> grid(SimParams base, Map<String, double[]> axes) {
+        List<SimParams> points = new ArrayList<>();
+        points.add(base);
+        for (Map.Entry<String, double[]> e : axes.entrySet()) {
+            List<SimParams> next = new ArrayList<>(points.size() * e.getValue().length);
+            for (SimParams p : points)
+                for (double v : e.getValue())
+                    next.add(p.with(e.getKey(), v));
+            points = next;
+        }
+        return points;
+    }
+
+    /**
+     * Gera um hipercubo latino de n pontos: o intervalo de cada parâmetro é
+     * dividido em n faixas e cada faixa é amostrada exatamente uma vez, em
+     * ordem aleatória e independente para cada parâmetro.
+     *
+     * @param base      os valores dos parâmetros que não variam
+     * @param ranges    o intervalo {mínimo, máximo} de cada parâmetro, por nome
+     * @param n         a quantidade de pontos
+     * @param seed      a semente do sorteio
+     */
+    static List<SimParams> latinHypercube(SimParams base, Map<String, double[]> ranges, int n, long seed) {
+        Random r = new Random(seed);
+        SimParams[] points = new SimParams[n];
+        Arrays.fill(points, base);
+        for (Map.Entry<String, double[]> e : ranges.entrySet()) {
+            double min = e.getValue()[0], max = e.getValue()[1];
+            List<Integer> strata = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) strata.add(i);
+            Collections.shuffle(strata, r);
+            for (int i = 0; i < n; i++) {
+                double v = min + (max - min) * (strata.get(i) + r.nextDouble()) / n;
+                if (isInteger(e.getKey())) v = Math.round(v);
+                points[i] = points[i].with(e.getKey(), v);
+            }
+        }
+        return Arrays.asList(points);
+    }
+
+    private static boolean isInteger(String name) {
+        return name.equals("arenaMinDimension") || name.equals("virusN");
+    }
+
+    /**
+     * Executa a varredura, acrescentando os resultados ao arquivo CSV.
+     *
+     * @param points    os pontos a serem simulados
+     * @param csvPath   o caminho do arquivo de saída
+     * @param threads   a quantidade de threads (normalmente, a de núcleos)
+     *
+     * @return a quantidade de pontos simulados nesta execução
+     *
+     * @throws IOException caso o arquivo de saída não possa ser lido ou
+     *                     escrito, ou pertença a outra varredura
+     */
+    int run(List<SimParams> points, String csvPath, int threads) throws IOException {
+
+        Map<Integer, String> done = resume(csvPath);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(csvPath, true), StandardCharsets.UTF_8))) {
+
+            if (done.isEmpty() && new File(csvPath).length() == 0) {
+                out.write(matchup());
+                out.write(header());
+                out.flush();
+            }
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < points.size(); i++) {
+                String previous = done.get(i);
+                if (previous != null) {
+                    if (!previous.equals(columns(points.get(i))))
+                        throw new IOException("Arquivo de outra varredura: " + csvPath);
+                    continue;
+                }
+                final int point = i;
+                tasks.add(pool.submit(() -> {
+                    String row = simulate(point, points.get(point));
+                    synchronized (out) {
+                        out.write(row);
+                        out.flush();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> e : tasks)
+                e.get();
+            return tasks.size();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Simula as K partidas de um ponto e devolve a linha CSV do resultado.
+     */
+    private String simulate(int point, SimParams p) {
+        long seed = SEED + point;
+        int dim = p.getArenaDimension();
+        ResultCache.Result r = cache == null ? play(seed, p) : cache.get(ResultCache.fingerprint(R1, W1, R2, W2,
+                weapons, dim, dim, dim, p, seed, MATCHES, MAX_ACTIONS), () -> play(seed, p));
+        int p1Wins = r.getP1Wins(), p2Wins = r.getP2Wins();
+        int finished = p1Wins + p2Wins;
+        StringBuilder s = new StringBuilder().append(point).append(',').append(seed)
+                .append(columns(p)).append(',').append(MATCHES).append(',').append(p1Wins).append(',').append(p2Wins)
+                .append(',').append(r.getUnfinished())
+                .append(',').append(finished == 0 ? Double.NaN : (double) p1Wins / finished)
+                .append(',').append(finished == 0 ? Double.NaN : r.getMeanTurns())
+                .append(',').append(finished == 0 ? Double.NaN : r.getMeanWinnerHp())
+                .append('\n');
+        return s.toString();
+    }
+
+    /**
+     * Simula as K partidas de um ponto.
+     */
+    private ResultCache.Result play(long seed, SimParams p) {
+        int dim = p.getArenaDimension();
+        ResultCache.Result r = null;
+        for (int done = 0; done < MATCHES; done += BATCH_SIZE) {
+            int n = Math.min(BATCH_SIZE, MATCHES - done);
+            MatchBatch batch = new MatchBatch(n, dim, dim, dim, R1, W1, R2, W2, weapons,
+                    seed * 31 + done, p);
+            batch.run(MAX_ACTIONS);
+            r = r == null ? ResultCache.Result.of(batch) : r.plus(ResultCache.Result.of(batch));
+        }
+        return r;
+    }
+
+    /**
+     * @return as colunas CSV dos valores dos parâmetros de um ponto
+     */
+    private static String columns(SimParams p) {
+        StringBuilder s = new StringBuilder();
+        for (String name : SimParams.NAMES)
+            s.append(',').append(p.get(name));
+        return s.toString();
+    }
+
+    private static String header() {
+        return HEADER_PREFIX + String.join(",", SimParams.NAMES) + HEADER_SUFFIX + "\n";
+    }
+
+    /**
+     * @return a linha de comentário que identifica esta varredura
+     */
+    private String matchup() {
+        return String.format("# r1=%s,w1=%s,r2=%s,w2=%s,matches=%d,seed=%d\n", R1.getName(), W1.getName(),
+                R2.getName(), W2.getName(), MATCHES, SEED);
+    }
+
+    /**
+     * Lê os pontos já simulados de um arquivo de saída existente, descartando
+     * uma eventual linha incompleta no final.
+     *
+     * @return as colunas dos parâmetros de cada ponto já simulado, por índice
+     *
+     * @throws IOException caso o arquivo não possa ser lido, ou pertença a
+     *                     outra varredura
+     */
+    private Map<Integer, String> resume(String csvPath) throws IOException {
+        Map<Integer, String> done = new HashMap<>();
+        File f = new File(csvPath);
+        if (!f.exists() || f.length() == 0)
+            return done;
+
+        byte[] bytes = Files.readAllBytes(Paths.get(csvPath));
+        int valid = bytes.length;
+        while (valid > 0 && bytes[valid - 1] != '\n') valid--;
+        if (valid < bytes.length) {
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+        String[] lines = new String(bytes, 0, valid, StandardCharsets.UTF_8).split("\n");
+        if (lines.length == 0 || lines[0].isEmpty())
+            return done;
+        if (!(lines[0] + "\n").equals(matchup())
+                || (lines.length > 1 && !(lines[1] + "\n").equals(header())))
+            throw new IOException("Arquivo de outra varredura: " + csvPath);
+        if (lines.length == 1) {
+            // A linha de cabeçalho não chegou a ser gravada: recomeça o arquivo.
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.setLength(0);
+            }
+            return done;
+        }
+        for (int i = 2; i < lines.length; i++) {
+            String[] cells = lines[i].split(",", SimParams.NAMES.size() + 3);
+            String params = lines[i].substring(cells[0].length() + cells[1].length() + 1,
+                    lines[i].length() - cells[cells.length - 1].length() - 1);
+            done.put(Integer.parseInt(cells[0]), params);
+        }
+        return done;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 6) {
+            System.err.println("Uso: ParameterSweep saida.csv K robô1 arma1 robô2 arma2 "
+                    + "[nome=v1,v2,...]... | lhs=N [nome=mín:máx]...");
+            System.exit(2);
+        }
+        GameConfigs.loadConfigs(String.format("datafiles%sconfig.txt", File.separator));
+        Catalogs.Lazy catalogs = new Catalogs.Lazy(String.format("datafiles%srobots.txt", File.separator),
+                String.format("datafiles%sweapons.txt", File.separator));
+        Set<Robot> robots = catalogs.robots();
+        Set<Weapon> weapons = catalogs.weapons();
+
+        int lhs = 0;
+        Map<String, double[]> axes = new LinkedHashMap<>();
+        for (int i = 6; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            if (kv[0].equals("lhs")) {
+                lhs = Integer.parseInt(kv[1]);
+                continue;
+            }
+            String[] values = kv[1].split("[,:]");
+            axes.put(kv[0], Arrays.stream(values).mapToDouble(Double::parseDouble).toArray());
+        }
+        SimParams base = SimParams.defaults();
+        List<SimParams> points = lhs > 0 ? latinHypercube(base, axes, lhs, 42) : grid(base, axes);
+
+        ParameterSweep sweep = new ParameterSweep(Catalogs.byName(robots, args[2]),
+                Catalogs.byName(weapons, args[3]), Catalogs.byName(robots, args[4]),
+                Catalogs.byName(weapons, args[5]), weapons, Integer.parseInt(args[1]), 42);
+        try (ResultCache cache = ResultCache.open()) {
+            sweep.setCache(cache);
+            long t0 = System.nanoTime();
+            int n = sweep.run(points, args[0], Runtime.getRuntime().availableProcessors());
+            System.out.printf("%d de %d pontos simulados em %.1f s.\n", n, points.size(),
+                    (System.nanoTime() - t0) / 1e9);
+            System.out.println(cache);
+        }
+    }
+
+}
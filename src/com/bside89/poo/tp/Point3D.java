@@ -56,12 +56,16 @@ class Point3D implements Cloneable, Serializable {
         return X == other.X && Y == other.Y && Z == other.Z;
     }
 
+    /**
+     * Os coeficientes são ímpares grandes, e não 31: com 31, pontos de uma
+     * arena grande (por exemplo, 200 x 200 x 200) compartilham poucas dezenas
+     * de milhares de valores de hash, e as buscas em um {@link java.util.HashMap}
+     * percorrem longas cadeias de colisões.
+     */
     @Override
     public int hashCode() {
-        int result = X;
-        result = 31 * result + Y;
-        result = 31 * result + Z;
-        return result;
+        int h = X * 0x9E3779B1 + Y * 0x85EBCA77 + Z * 0xC2B2AE3D;
+        return h ^ (h >>> 16);
     }
 
     @Override
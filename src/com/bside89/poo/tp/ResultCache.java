@@ -0,0 +1,542 @@
+package com.bside89.poo.tp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Cache de resultados de partidas automáticas ({@link MatchBatch}), usado
+ * por varreduras ({@link ParameterSweep}) e pelo ajuste de balanceamento
+ * ({@link BalanceTuner}), que simulam repetidamente as mesmas combinações.
+ *
+ * Cada resultado é endereçado pelo seu conteúdo: uma impressão digital
+ * ({@link Key}, 128 bits do SHA-256) de tudo o que o determina — os dois
+ * robôs e armas iniciais (com os mesmos atributos usados por
+ * {@link Robot#equals} e {@link Weapon#equals}), as armas das arenas, as
+ * dimensões, os parâmetros de balanceamento, a semente, a quantidade de
+ * partidas e o limite de ações. A impressão digital não depende da execução,
+ * de modo que serve de chave entre execuções.
+ *
+ * O cache tem dois níveis:
+ *  - em memória, os resultados usados mais recentemente, até uma quantidade
+ *    máxima (LRU);
+ *  - em disco, opcional, todos os resultados já calculados, em um arquivo de
+ *    registros de tamanho fixo acrescentados ao final. Ao abrir o arquivo,
+ *    apenas as chaves e posições dos registros são lidas; um resultado é
+ *    lido do disco quando não está em memória, e volta para a memória.
+ *    Um registro incompleto no final do arquivo, deixado por uma interrupção
+ *    durante a escrita, é descartado. O arquivo é bloqueado enquanto o cache
+ *    está aberto: um segundo cache sobre o mesmo arquivo (de outro processo
+ *    ou deste) gravaria seus registros nas mesmas posições, e por isso usa
+ *    apenas a memória.
+ *
+ * Os acertos, acertos em disco, faltas e descartes são contados em
+ * {@link Metrics} e também em cada cache.
+ *
+ * Formato do arquivo:
+ * <pre>
+ *   int magic, int versão
+ *   registros: (long chave, long chave, int partidas, int vitórias 1,
+ *               int vitórias 2, int inacabadas, double turnos, double HP)...
+ * </pre>
+ *
+ * Objetos desta classe podem ser usados por várias threads ao mesmo tempo.
+ *
+ * @author Bruno Santos
+ *
+ * @see MatchBatch
+ */
+final class ResultCache implements Closeable {
+
+    private static final int MAGIC = 0x4D575243; // "MWRC"
+    private static final int VERSION = 1;
+
+    /**
+     * Versão das regras de {@link MatchBatch}, incluída nas impressões
+     * digitais: deve ser incrementada sempre que as mesmas partidas passarem
+     * a ter resultados diferentes, para que os resultados antigos não sejam
+     * reaproveitados.
+     */
+    private static final int RULES = 2;
+    private static final int HEADER = 8, RECORD = 48;
+
+    /**
+     * Estimativa da memória ocupada por um resultado no nível em memória:
+     * chave, resultado e entrada do mapa, com os cabeçalhos dos objetos.
+     */
+    static final int ENTRY_BYTES = 32 + 48 + 40;
+
+    /**
+     * Estimativa da memória ocupada pela posição de um registro no índice do
+     * nível em disco.
+     */
+    static final int INDEX_BYTES = 32 + 16 + 40;
+
+    /**
+     * Impressão digital de uma combinação simulada.
+     */
+    static final class Key {
+
+        private final long hi, lo;
+
+        Key(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            Key other = (Key) o;
+            return hi == other.hi && lo == other.lo;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (lo ^ lo >>> 32);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x%016x", hi, lo);
+        }
+    }
+
+    /**
+     * Resultado de um conjunto de partidas entre os mesmos dois jogadores.
+     */
+    static final class Result {
+
+        private final int matches, p1Wins, p2Wins, unfinished;
+        private final double turns, winnerHp;
+
+        /**
+         * @param turns     a soma dos turnos das partidas terminadas
+         * @param winnerHp  a soma do HP final dos vencedores
+         */
+        Result(int matches, int p1Wins, int p2Wins, int unfinished, double turns, double winnerHp) {
+            if (p1Wins + p2Wins + unfinished != matches)
+                throw new IllegalArgumentException();
+            this.matches = matches;
+            this.p1Wins = p1Wins;
+            this.p2Wins = p2Wins;
+            this.unfinished = unfinished;
+            this.turns = turns;
+            this.winnerHp = winnerHp;
+        }
+
+        /**
+         * Reúne os resultados de lotes de partidas de um mesmo confronto.
+         */
+        static Result of(MatchBatch... batches) {
+            int p1Wins = 0, p2Wins = 0, unfinished = 0, matches = 0;
+            double turns = 0, winnerHp = 0;
+            for (MatchBatch batch : batches)
+                for (int m = 0; m < batch.size(); m++, matches++) {
+                    int w = batch.getWinner(m);
+                    if (w == 0) {
+                        unfinished++;
+                        continue;
+                    }
+                    if (w == 1) p1Wins++; else p2Wins++;
+                    turns += batch.getTurn(m);
+                    winnerHp += batch.getHp(m, w);
+                }
+            return new Result(matches, p1Wins, p2Wins, unfinished, turns, winnerHp);
+        }
+
+        /**
+         * @return a soma deste resultado com outro do mesmo confronto
+         */
+        Result plus(Result o) {
+            return new Result(matches + o.matches, p1Wins + o.p1Wins, p2Wins + o.p2Wins,
+                    unfinished + o.unfinished, turns + o.turns, winnerHp + o.winnerHp);
+        }
+
+        int getMatches() {
+            return matches;
+        }
+
+        int getP1Wins() {
+            return p1Wins;
+        }
+
+        int getP2Wins() {
+            return p2Wins;
+        }
+
+        int getUnfinished() {
+            return unfinished;
+        }
+
+        /**
+         * @return a taxa de vitórias do jogador 1, contando as partidas
+         *         inacabadas como meia vitória para cada lado
+         */
+        double getP1Score() {
+            return (p1Wins + unfinished / 2.0) / matches;
+        }
+
+        /**
+         * @return a média de turnos das partidas terminadas, ou NaN
+         */
+        double getMeanTurns() {
+            return turns / (p1Wins + p2Wins);
+        }
+
+        /**
+         * @return a média do HP final dos vencedores, ou NaN
+         */
+        double getMeanWinnerHp() {
+            return winnerHp / (p1Wins + p2Wins);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            Result other = (Result) o;
+            return matches == other.matches && p1Wins == other.p1Wins && p2Wins == other.p2Wins
+                    && unfinished == other.unfinished && turns == other.turns && winnerHp == other.winnerHp;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(matches, p1Wins, p2Wins, unfinished, turns, winnerHp);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: <Partidas %d> <Vitórias %d x %d> <Inacabadas %d>",
+                    getClass().getSimpleName(), matches, p1Wins, p2Wins, unfinished);
+        }
+    }
+
+    /**
+     * Quantidade padrão de resultados em memória.
+     */
+    static final int DEFAULT_ENTRIES = 1 << 16;
+
+    private final int MAX_ENTRIES;
+    private final LinkedHashMap<Key, Result> memory;
+    private final Map<Key, Long> index = new HashMap<>();
+    private final FileChannel file;
+    private long end;
+    private long hits, diskHits, misses, evictions;
+
+    /**
+     * Constrói um cache apenas em memória.
+     *
+     * @param maxEntries a quantidade máxima de resultados em memória
+     */
+    ResultCache(int maxEntries) {
+        this.MAX_ENTRIES = maxEntries;
+        this.memory = lru();
+        this.file = null;
+    }
+
+    /**
+     * Constrói um cache com um nível em disco, criando o arquivo caso ele não
+     * exista. Caso o arquivo esteja bloqueado por outro cache, o cache usa
+     * apenas a memória (e informa isso na saída de erro).
+     *
+     * @param maxEntries    a quantidade máxima de resultados em memória
+     * @param path          o caminho do arquivo
+     *
+     * @throws IOException caso o arquivo não possa ser lido ou criado, ou não
+     *                     seja um arquivo de cache
+     */
+    ResultCache(int maxEntries, String path) throws IOException {
+        this.MAX_ENTRIES = maxEntries;
+        this.memory = lru();
+        FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null; // Bloqueado por outro cache deste processo.
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            channel = null;
+            System.err.println("Arquivo de cache em uso, apenas a memória será usada: " + path);
+        }
+        this.file = channel;
+        if (file == null)
+            return;
+        try {
+            load(path);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Abre o cache padrão das ferramentas de linha de comando: o arquivo
+     * informado pela propriedade de sistema {@code mechawars.cache}
+     * (mechawars-results.cache, no diretório temporário do sistema, por
+     * padrão, para não deixar o arquivo na árvore de trabalho), ou apenas
+     * memória caso a propriedade esteja vazia.
+     *
+     * @throws IOException caso o arquivo não possa ser lido ou criado
+     */
+    static ResultCache open() throws IOException {
+        String path = System.getProperty("mechawars.cache",
+                new File(System.getProperty("java.io.tmpdir"), "mechawars-results.cache").getPath());
+        return path.isEmpty() ? new ResultCache(DEFAULT_ENTRIES) : new ResultCache(DEFAULT_ENTRIES, path);
+    }
+
+    private LinkedHashMap<Key, Result> lru() {
+        if (MAX_ENTRIES <= 0)
+            throw new IllegalArgumentException();
+        return new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+                if (size() <= MAX_ENTRIES)
+                    return false;
+                evictions++;
+                Metrics.increment(Metrics.RESULT_CACHE_EVICTIONS);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Lê as chaves dos registros do arquivo, ou grava o cabeçalho de um
+     * arquivo novo.
+     */
+    private void load(String path) throws IOException {
+        long size = file.size();
+        if (size < HEADER) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            file.truncate(0);
+            file.write(header, 0);
+            end = HEADER;
+            return;
+        }
+        ByteBuffer b = ByteBuffer.allocate(1 << 16);
+        readFully(b, 0, HEADER);
+        if (b.getInt() != MAGIC || b.getInt() != VERSION)
+            throw new IOException("Arquivo de cache inválido: " + path);
+        end = HEADER + (size - HEADER) / RECORD * RECORD;
+        if (end < size)
+            file.truncate(end); // Registro incompleto.
+        for (long pos = HEADER; pos < end; ) {
+            int n = (int) Math.min(b.capacity() / RECORD * RECORD, end - pos);
+            readFully(b, pos, n);
+            for (int i = 0; i < n; i += RECORD, pos += RECORD) {
+                index.put(new Key(b.getLong(i), b.getLong(i + 8)), pos);
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer b, long position, int n) throws IOException {
+        b.clear().limit(n);
+        while (b.hasRemaining())
+            if (file.read(b, position + b.position()) < 0)
+                throw new EOFException();
+        b.flip();
+    }
+
+    /**
+     * Calcula a impressão digital de uma combinação de partidas.
+     *
+     * @param weaponsVariety    as armas que podem ser encontradas nas arenas
+     * @param seed              a semente das partidas
+     * @param matches           a quantidade de partidas
+     * @param maxActions        o limite de ações por partida
+     */
+    static Key fingerprint(Robot r1, Weapon w1, Robot r2, Weapon w2, Collection<? extends Weapon> weaponsVariety,
+                           int width, int length, int height, SimParams params, long seed, int matches,
+                           int maxActions) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(RULES);
+            for (Robot r : new Robot[]{r1, r2}) {
+                out.writeUTF(r.getName());
+                out.writeDouble(r.getHp());
+                out.writeDouble(r.getArmor());
+            }
+            for (Weapon w : new Weapon[]{w1, w2})
+                write(out, w);
+            // As armas das arenas, em ordem de nome, independentemente da
+            // ordem da coleção.
+            List<Weapon> variety = new ArrayList<>(weaponsVariety);
+            variety.sort(Catalogs.BY_NAME.thenComparingDouble(e -> ((Weapon) e).getSigma()));
+            out.writeInt(variety.size());
+            for (Weapon w : variety)
+                write(out, w);
+            out.writeInt(width);
+            out.writeInt(length);
+            out.writeInt(height);
+            for (String name : SimParams.NAMES)
+                out.writeDouble(params.get(name));
+            out.writeLong(seed);
+            out.writeInt(matches);
+            out.writeInt(maxActions);
+            ByteBuffer digest = ByteBuffer.wrap(md.digest(bytes.toByteArray()));
+            return new Key(digest.getLong(), digest.getLong());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    private static void write(DataOutputStream out, Weapon w) throws IOException {
+        out.writeUTF(w.getName());
+        out.writeDouble(w.getSigma());
+    }
+
+    /**
+     * Obtém um resultado, da memória ou do disco.
+     *
+     * @return o resultado, ou <tt>null</tt> caso ele não esteja no cache
+     *
+     * @throws UncheckedIOException caso o arquivo não possa ser lido
+     */
+    synchronized Result get(Key key) {
+        Result r = memory.get(key);
+        if (r != null) {
+            hits++;
+            Metrics.increment(Metrics.RESULT_CACHE_HITS);
+            return r;
+        }
+        Long pos = index.get(key);
+        if (pos == null) {
+            misses++;
+            Metrics.increment(Metrics.RESULT_CACHE_MISSES);
+            return null;
+        }
+        try {
+            ByteBuffer b = ByteBuffer.allocate(RECORD);
+            readFully(b, pos, RECORD);
+            b.position(16);
+            r = new Result(b.getInt(), b.getInt(), b.getInt(), b.getInt(), b.getDouble(), b.getDouble());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        memory.put(key, r);
+        diskHits++;
+        Metrics.increment(Metrics.RESULT_CACHE_DISK_HITS);
+        return r;
+    }
+
+    /**
+     * Guarda um resultado, na memória e, caso ainda não esteja lá, no disco.
+     *
+     * @throws UncheckedIOException caso o arquivo não possa ser escrito
+     */
+    synchronized void put(Key key, Result r) {
+        memory.put(key, r);
+        if (file == null || index.containsKey(key))
+            return;
+        ByteBuffer b = ByteBuffer.allocate(RECORD);
+        b.putLong(key.hi).putLong(key.lo).putInt(r.matches).putInt(r.p1Wins).putInt(r.p2Wins)
+                .putInt(r.unfinished).putDouble(r.turns).putDouble(r.winnerHp);
+        b.flip();
+        try {
+            while (b.hasRemaining())
+                file.write(b, end + b.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        index.put(key, end);
+        end += RECORD;
+    }
+
+    /**
+     * Obtém um resultado do cache ou, caso ele não esteja no cache, calcula-o
+     * e guarda-o. O cálculo é feito fora do bloqueio do cache, de modo que
+     * duas threads podem calcular o mesmo resultado ao mesmo tempo.
+     */
+    Result get(Key key, Supplier<Result> compute) {
+        Result r = get(key);
+        if (r == null) {
+            r = compute.get();
+            put(key, r);
+        }
+        return r;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return a fração das consultas encontradas no cache, em memória ou em
+     *         disco, ou NaN caso não tenha havido consultas
+     */
+    synchronized double getHitRate() {
+        return (double) (hits + diskHits) / (hits + diskHits + misses);
+    }
+
+    /**
+     * @return a quantidade de resultados em memória
+     */
+    synchronized int size() {
+        return memory.size();
+    }
+
+    /**
+     * @return a quantidade de resultados em disco
+     */
+    synchronized int diskSize() {
+        return index.size();
+    }
+
+    /**
+     * @return uma estimativa da memória ocupada pelo cache, em bytes
+     */
+    synchronized long getMemoryBytes() {
+        return (long) memory.size() * ENTRY_BYTES + (long) index.size() * INDEX_BYTES;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: <Memória %d/%d, %d KB> <Disco %d> <Acertos %d + %d em disco> <Faltas %d>",
+                getClass().getSimpleName(), memory.size(), MAX_ENTRIES, getMemoryBytes() / 1024, index.size(),
+                hits, diskHits, misses);
+    }
+
+    /**
+     * Fecha o arquivo, caso haja um, liberando seu bloqueio; os resultados já
+     * estão gravados.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (file != null)
+            file.close();
+    }
+
+}
@@ -15,6 +15,11 @@ class Robot extends ArenaEntity implements Cloneable, Nameable {
     private Virus virus;
     private final int MOVE_LIMIT;
 
+    /**
+     * Coeficientes do cálculo do limite de movimento (veja {@link #calcMoveLimit}).
+     */
+    static final double MOVE_HP_COEF = 9000, MOVE_ARMOR_COEF = 600;
+
     /**
      * Constrói este robô, desarmado e fora da arena (situado no OUTLIER_POINT).
      *
@@ -59,8 +64,17 @@ class Robot extends ArenaEntity implements Cloneable, Nameable {
      *
      * @return o valor do cálculo descrito acima
      */
-    private int calcMoveLimit(double hp, double armor) {
-        return (int) (9000/hp + 600/armor);
+    static int calcMoveLimit(double hp, double armor) {
+        return calcMoveLimit(hp, armor, MOVE_HP_COEF, MOVE_ARMOR_COEF);
+    }
+
+    /**
+     * Variante de {@link #calcMoveLimit(double, double)} com coeficientes
+     * arbitrários no lugar de 9000 e 600, utilizada em simulações de
+     * balanceamento.
+     */
+    static int calcMoveLimit(double hp, double armor, double hpCoef, double armorCoef) {
+        return (int) (hpCoef/hp + armorCoef/armor);
     }
 
     /**
@@ -120,16 +134,70 @@ class Robot extends ArenaEntity implements Cloneable, Nameable {
         double rand1 = Math.random(), rand2 = Math.random();
         double defense = target.armor;
 
-        double damage = (sigma/dist)*rand1 - defense*rand2;
+        double damage = calcDamage(sigma, dist, defense, rand1, rand2);
+
+        if (damage > 0)
+            target.receiveDamage(damage);
+
+        return damage;
+    }
+
+    /**
+     * Executa a ação de atacar do robô no modo de combate com linha de visada
+     * (veja {@link LineOfSight}).
+     *
+     * O disparo percorre as posições entre os dois robôs. Caso uma bomba ou
+     * uma arma esteja no caminho, o disparo é bloqueado e nenhum dano é
+     * causado; a bomba atingida é detonada e deixa a arena. Caso contrário, o
+     * dano é calculado como em {@link #attack(Robot)}, com a quantidade de
+     * posições percorridas no lugar da distância euclidiana.
+     *
+     * @param target    o robô alvo do ataque
+     * @param arena     a arena em que os robôs estão
+     * @param ray       onde o percurso do disparo é gravado; não é alterado
+     *                  caso nenhum disparo seja feito
+     *
+     * @return o dano do ataque
+     */
+    double attack(Robot target, Arena arena, LineOfSight.Ray ray) {
+
+        if (!isArmed())
+            return 0;
+        if (position.equals(OUTLIER_POINT) || target.position.equals(OUTLIER_POINT))
+            return 0;
 
-        if (damage < 0)
-            damage = 0; // Não deve existir número negativo de dano.
-        else
+        if (!LineOfSight.trace(arena, position, target.position, ray)) {
+            Metrics.increment(Metrics.SHOTS_BLOCKED);
+            LineOfSight.detonate(arena, ray);
+            return 0;
+        }
+        double damage = calcDamage(weapon.getSigma(), ray.getCells(), target.armor,
+                Math.random(), Math.random());
+
+        if (damage > 0)
             target.receiveDamage(damage);
 
         return damage;
     }
 
+    /**
+     * Fórmula de dano utilizada por {@link #attack(Robot)}, isolada para que
+     * outros caminhos de cálculo (por exemplo, {@link DamageKernel}) produzam
+     * exatamente o mesmo resultado para os mesmos números aleatórios.
+     *
+     * @param sigma     o coeficiente de dano da arma do atacante
+     * @param dist      a distância entre os dois robôs
+     * @param defense   o valor de armadura do robô alvo
+     * @param rand1     um número aleatório entre 0 e 1
+     * @param rand2     um número aleatório entre 0 e 1
+     *
+     * @return o dano calculado, nunca negativo
+     */
+    static double calcDamage(double sigma, double dist, double defense, double rand1, double rand2) {
+        double damage = (sigma/dist)*rand1 - defense*rand2;
+        return damage < 0 ? 0 : damage; // Não deve existir número negativo de dano.
+    }
+
     /**
      * Infecta este robô com um vírus
      *
@@ -158,6 +226,16 @@ class Robot extends ArenaEntity implements Cloneable, Nameable {
         hp = 0;
     }
 
+    /**
+     * Altera a armadura deste robô, por exemplo, por um bônus temporário (veja
+     * {@link TickScheduler#buffArmor}). O limite de movimento não é alterado.
+     *
+     * @param amount o valor somado à armadura (negativo para reduzi-la)
+     */
+    void addArmor(double amount) {
+        armor += amount;
+    }
+
     /**
      * Recebe um valor de dano do vírus atachado a este robô, caso exista.
      *
@@ -225,6 +303,27 @@ class Robot extends ArenaEntity implements Cloneable, Nameable {
         return MOVE_LIMIT;
     }
 
+    /**
+     * Verifica se um deslocamento respeita o limite de movimento deste robô
+     * (veja {@link #calcMoveLimit(double, double)}).
+     *
+     * @return <tt>true</tt> caso o comprimento do deslocamento (veja
+     *         {@link #moveLength}) não ultrapasse o limite
+     */
+    boolean canMove(int dx, int dy, int dz) {
+        return moveLength(dx, dy, dz) <= MOVE_LIMIT;
+    }
+
+    /**
+     * Obtém o comprimento de um deslocamento, em unidades de movimento: a
+     * soma dos deslocamentos absolutos nos três eixos. Deslocamentos em
+     * sentidos opostos não se anulam, e a soma é feita em long, sem
+     * transbordamento para deslocamentos enormes.
+     */
+    static long moveLength(int dx, int dy, int dz) {
+        return Math.abs((long) dx) + Math.abs((long) dy) + Math.abs((long) dz);
+    }
+
     /**
      * Obtém uma deep copy deste robô.
      *
@@ -0,0 +1,318 @@
+package com.bside89.poo.tp;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gravação assíncrona de registros (por exemplo, as ações de uma partida) em
+ * um arquivo binário compactado, sem bloquear a thread do jogo.
+ *
+ * Os registros são colocados em uma fila limitada por {@link #submit} e
+ * gravados por uma thread própria, em lotes: a cada lote, os registros são
+ * serializados em um único {@link ObjectOutputStream}, compactados com GZIP e
+ * descarregados no arquivo. Caso a fila esteja cheia (o disco não acompanha o
+ * jogo), {@link #submit} aguarda até que haja espaço.
+ *
+ * O {@link ObjectOutputStream} é reiniciado (veja
+ * {@link ObjectOutputStream#reset()}) ao final do lote em que a quantidade de
+ * registros gravados desde o último reinício alcança {@link #RESET_INTERVAL}:
+ * caso contrário, ele manteria uma referência a cada objeto já gravado, e a
+ * memória usada cresceria com a quantidade de registros, mesmo que eles já
+ * tenham deixado a fila. Cada reinício grava novamente a descrição das
+ * classes dos registros, por isso não é feito a cada lote.
+ *
+ * Um registro não deve ser alterado depois de submetido, já que é serializado
+ * mais tarde, por outra thread.
+ *
+ * Uma falha de gravação não encerra o jogo: ela é informada uma única vez ao
+ * callback de falha, e os registros seguintes são descartados.
+ * {@link #close()} aguarda a gravação de todos os registros já submetidos e
+ * fecha o arquivo.
+ *
+ * O arquivo pode ser lido com {@link #readAll(String)}.
+ *
+ * @author Bruno Santos
+ *
+ * @see MechaWars
+ */
+final class SaveWriter implements Closeable {
+
+    static final int DEFAULT_CAPACITY = 1024;
+    static final int DEFAULT_BATCH_SIZE = 64;
+    static final int RESET_INTERVAL = 4096;
+
+    /**
+     * Marca o fim da fila.
+     */
+    private static final Object EOF = new Object();
+
+    private final String path;
+    private final OutputStream sink;
+    private final BlockingQueue<Object> queue;
+    private final int batchSize;
+    private final Consumer<? super IOException> onFailure;
+    private final Thread worker;
+    private volatile boolean closed, failed;
+
+    /**
+     * @param path      o caminho do arquivo, aberto (e substituído, caso
+     *                  exista) pela thread de gravação
+     * @param onFailure recebe o erro, caso a gravação falhe
+     */
+    SaveWriter(String path, Consumer<? super IOException> onFailure) {
+        this(path, null, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, onFailure);
+    }
+
+    /**
+     * @param out       o fluxo de saída, fechado por {@link #close()}
+     * @param capacity  a quantidade máxima de registros aguardando gravação
+     * @param batchSize a quantidade máxima de registros por lote
+     * @param onFailure recebe o erro, caso a gravação falhe
+     */
+    SaveWriter(OutputStream out, int capacity, int batchSize, Consumer<? super IOException> onFailure) {
+        this(null, out, capacity, batchSize, onFailure);
+    }
+
+    private SaveWriter(String path, OutputStream out, int capacity, int batchSize,
+                       Consumer<? super IOException> onFailure) {
+
+        if (capacity <= 0 || batchSize <= 0)
+            throw new IllegalArgumentException();
+        assert (onFailure != null && (path != null || out != null));
+        this.path = path;
+        this.sink = out;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.onFailure = onFailure;
+        this.worker = new Thread(this::run, "mechawars-save");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Submete um registro para gravação. Aguarda caso a fila esteja cheia.
+     *
+     * @return <tt>false</tt> caso o registro tenha sido descartado, porque a
+     *         gravação falhou ou este objeto já foi fechado
+     */
+    boolean submit(Serializable record) {
+        assert (record != null);
+        if (closed || failed)
+            return false;
+        long t0 = Metrics.now();
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        Metrics.SAVE_SUBMIT.record(t0);
+        return true;
+    }
+
+    /**
+     * @return a quantidade de registros aguardando gravação
+     */
+    int pending() {
+        return queue.size();
+    }
+
+    /**
+     * @return <tt>true</tt> caso a gravação tenha falhado
+     */
+    boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Aguarda a gravação de todos os registros submetidos e fecha o arquivo.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(EOF);
+                worker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void run() {
+        List<Object> batch = new ArrayList<>(batchSize);
+        boolean eof = false;
+        int unreset = 0;
+        try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(
+                sink != null ? sink : new FileOutputStream(path)));
+             ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(counter, true))) {
+
+            while (!eof) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                long t0 = Metrics.now();
+                GameEvents.Save event = new GameEvents.Save();
+                event.begin();
+                int records = 0;
+                for (Object e : batch) {
+                    if (e == EOF) {
+                        eof = true;
+                        break;
+                    }
+                    out.writeObject(e);
+                    records++;
+                }
+                unreset += records;
+                if (unreset >= RESET_INTERVAL) {
+                    out.reset();
+                    unreset = 0;
+                }
+                out.flush();
+                batch.clear();
+                Metrics.SAVE_STATE.record(t0);
+                if (event.shouldCommit()) {
+                    event.path = path;
+                    event.records = records;
+                    event.bytes = counter.count;
+                    event.commit();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            return;
+        } catch (Throwable e) {
+            // Inclusive um Error durante a serialização: sem isso, a thread
+            // terminaria em silêncio, e submit e close aguardariam para sempre.
+            fail(new IOException(e));
+        }
+        // Após uma falha, descarta os registros restantes, liberando quem
+        // aguarda espaço na fila, até o fechamento. A marca de fim pode já
+        // ter sido retirada da fila, no lote interrompido pela falha.
+        eof |= batch.contains(EOF);
+        while (!eof) {
+            try {
+                eof = queue.take() == EOF;
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        failed = true;
+        Metrics.increment(Metrics.SAVE_FAILURES);
+        onFailure.accept(e);
+    }
+
+    /**
+     * Lê todos os registros de um arquivo gravado por esta classe.
+     *
+     * O fim do arquivo só é aceito entre dois registros, e depois do final
+     * do fluxo GZIP (gravado por {@link #close()}); um arquivo truncado, por
+     * exemplo porque o jogo foi encerrado durante a gravação, não é tomado
+     * como completo.
+     *
+     * @throws EOFException caso o arquivo esteja truncado
+     * @throws IOException  caso o arquivo não possa ser lido
+     */
+    static List<Object> readAll(String path) throws IOException {
+        List<Object> records = new ArrayList<>();
+        try (EndInputStream end = new EndInputStream(new GZIPInputStream(
+                new BufferedInputStream(new FileInputStream(path))));
+             ObjectInputStream in = new ObjectInputStream(end)) {
+            while (true) {
+                long position = end.count;
+                try {
+                    records.add(in.readObject());
+                } catch (EOFException e) {
+                    if (end.ended && end.count == position)
+                        return records;
+                    EOFException truncated = new EOFException("Arquivo truncado: " + path
+                            + " (" + records.size() + " registros lidos)");
+                    truncated.initCause(e);
+                    throw truncated;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+    }
+
+    /**
+     * Conta os bytes lidos (já descompactados), e indica se o fim do fluxo
+     * foi alcançado. O {@link GZIPInputStream} só informa o fim do fluxo
+     * depois de ler (e conferir) o final do arquivo compactado; caso este
+     * esteja ausente, ele lança uma {@link EOFException}.
+     */
+    private static final class EndInputStream extends FilterInputStream {
+
+        private long count;
+        private boolean ended;
+
+        EndInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) ended = true;
+            else count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n < 0) ended = true;
+            else count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Conta os bytes gravados (já compactados).
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
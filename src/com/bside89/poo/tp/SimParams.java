@@ -0,0 +1,123 @@
+package com.bside89.poo.tp;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Conjunto imutável dos parâmetros de balanceamento do jogo, utilizado em
+ * simulações automáticas ({@link MatchBatch}).
+ *
+ * No jogo interativo estes valores são constantes ({@link Bomb#SIGMA},
+ * {@link Virus#M}, {@link Virus#N}, os coeficientes de
+ * {@link Robot#calcMoveLimit}) ou configurações globais
+ * ({@link GameConfigs}). Aqui eles podem ser variados livremente, por nome,
+ * sem afetar o jogo.
+ *
+ * Nomes dos parâmetros (veja {@link #NAMES}):
+ *  - arenaMinDimension: dimensão (largura, comprimento e altura) das arenas;
+ *  - arenaFillCoefficient: coeficiente de quantidade de itens especiais;
+ *  - bombSigma: coeficiente de dano das bombas;
+ *  - virusM: coeficiente de dano dos vírus;
+ *  - virusN: coeficiente de duração dos vírus, em ações;
+ *  - moveHpCoef e moveArmorCoef: coeficientes do limite de movimento.
+ *
+ * @author Bruno Santos
+ *
+ * @see ParameterSweep
+ */
+final class SimParams implements Serializable {
+
+    static final List<String> NAMES = Collections.unmodifiableList(Arrays.asList("arenaMinDimension",
+            "arenaFillCoefficient", "bombSigma", "virusM", "virusN", "moveHpCoef", "moveArmorCoef"));
+
+    private final double[] values;
+
+    private SimParams(double[] values) {
+        this.values = values;
+    }
+
+    /**
+     * @return os parâmetros atuais do jogo
+     */
+    static SimParams defaults() {
+        return new SimParams(new double[]{GameConfigs.getArenaMinDimension(),
+                GameConfigs.getArenaFillCoefficient(), Bomb.SIGMA, Virus.M, Virus.N,
+                Robot.MOVE_HP_COEF, Robot.MOVE_ARMOR_COEF});
+    }
+
+    /**
+     * Obtém uma cópia destes parâmetros com um valor alterado.
+     *
+     * @param name  o nome do parâmetro
+     * @param value o novo valor
+     *
+     * @return a cópia alterada
+     *
+     * @throws IllegalArgumentException caso o nome seja desconhecido ou o valor
+     *                                  seja inválido para o parâmetro
+     */
+    SimParams with(String name, double value) throws IllegalArgumentException {
+        int i = NAMES.indexOf(name);
+        if (i < 0 || !(value >= 0) || (i != 1 && value == 0) || (i == 1 && value > 1))
+            throw new IllegalArgumentException(name + "=" + value);
+        double[] v = values.clone();
+        v[i] = value;
+        return new SimParams(v);
+    }
+
+    double get(String name) {
+        int i = NAMES.indexOf(name);
+        if (i < 0)
+            throw new IllegalArgumentException(name);
+        return values[i];
+    }
+
+    int getArenaDimension() {
+        return (int) values[0];
+    }
+
+    double getFillCoefficient() {
+        return values[1];
+    }
+
+    double getBombSigma() {
+        return values[2];
+    }
+
+    double getVirusM() {
+        return values[3];
+    }
+
+    int getVirusN() {
+        return (int) values[4];
+    }
+
+    int calcMoveLimit(double hp, double armor) {
+        return Robot.calcMoveLimit(hp, armor, values[5], values[6]);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        return Arrays.equals(values, ((SimParams) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(getClass().getSimpleName()).append(':');
+        for (int i = 0; i < values.length; i++)
+            s.append(String.format(" <%s %s>", NAMES.get(i), values[i]));
+        return s.toString();
+    }
+
+}
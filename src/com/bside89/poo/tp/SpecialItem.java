@@ -36,7 +36,8 @@ abstract class SpecialItem extends ArenaEntity {
      * Instancia um novo item especial aleatório.
      * Este novo item pode ser uma bomba, arma ou vírus.
      * Caso este seja uma arma, uma nova seleção aleatória de uma coleção de
-     * armas deve ser
+     * armas deve ser feita; a arma devolvida é uma cópia, já que cada arma da
+     * arena ocupa a própria posição.
      *
      * A probabilidade é aproximadamente a mesma para cada item especial.
      *
@@ -52,7 +53,7 @@ abstract class SpecialItem extends ArenaEntity {
             case 1:
                 return new Virus();
             default:
-                return Weapons.random(weaponsVariety);
+                return (Weapon) Weapons.random(weaponsVariety).clone();
         }
     }
 
@@ -0,0 +1,571 @@
+package com.bside89.poo.tp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Teste de estresse e de longa duração de {@link Action}, com comandos
+ * sorteados.
+ *
+ * Várias threads jogam partidas automáticas em paralelo, cada uma com um
+ * único objeto {@link Action}. A maior parte dos comandos é inválida ou
+ * hostil: movimentos além do limite do robô (inclusive com deslocamentos em
+ * sentidos opostos, que se anulariam em uma soma simples) ou para fora da
+ * arena, deslocamentos enormes, que transbordariam a aritmética de int,
+ * movimentos para a posição do robô adversário (veja
+ * {@link FreeCellResolver}), comandos malformados, em texto e em binário, e
+ * encerramentos logo no início da partida. Após cada ação, as invariantes do
+ * jogo são verificadas:
+ *  - os pontos de vida dos robôs nunca são negativos (nem NaN);
+ *  - os robôs estão dentro da arena, em posições diferentes;
+ *  - um movimento inválido é punido como infração, sem deslocar o robô, e
+ *    um movimento válido leva o robô ao destino ou, caso o destino esteja
+ *    ocupado pelo adversário, a outra posição;
+ *  - um comando malformado é rejeitado sem consumar a ação;
+ *  - apenas o comando "exit" devolve o sinal de encerramento;
+ *  - cada item ocupa uma única posição da arena, a que consta no próprio
+ *    item, e não é também a arma de um robô (verificado a cada
+ *    {@value #ITEM_CHECK_INTERVAL} ações e ao final de cada partida).
+ *
+ * Uma thread de vigilância informa as ações que não terminam dentro do prazo
+ * (por exemplo, uma correção de posição que não termina), com a pilha da
+ * thread que a executa. O progresso é informado periodicamente e, ao final,
+ * a vazão, a distribuição das latências das ações e as ações mais lentas.
+ *
+ * Uso:
+ * <pre>
+ *   java com.bside89.poo.tp.StressHarness [threads]
+ * </pre>
+ * Sem argumentos, uma thread por núcleo. A duração, em horas, é lida de
+ * {@code mechawars.stress.hours} (1, por padrão) e o prazo de cada ação, em
+ * milissegundos, de {@code mechawars.stress.stallMillis} (1000, por
+ * padrão). A semente dos sorteios é lida de {@code mechawars.stress.seed}
+ * (sorteada, por padrão) e impressa no relatório; cada violação informa
+ * também a semente da thread em que ocorreu. O código de saída é 1 caso
+ * alguma invariante tenha sido violada ou alguma ação tenha excedido o
+ * prazo.
+ *
+ * As mensagens de infração que {@link Action} imprime na saída de erro são
+ * descartadas durante a execução.
+ *
+ * @author Bruno Santos
+ *
+ * @see Action
+ */
+final class StressHarness {
+
+    /**
+     * Limite de ações por partida: com comandos sorteados, uma partida pode
+     * não terminar.
+     */
+    static final int MAX_ACTIONS = 4096;
+
+    static final int ITEM_CHECK_INTERVAL = 64;
+
+    /**
+     * Quantidade de violações descritas no relatório e de ações mais lentas
+     * listadas.
+     */
+    private static final int REPORTED = 20, OUTLIERS = 10;
+
+    private static final long PROGRESS_NANOS = 60_000_000_000L;
+
+    /**
+     * Comandos textuais sempre malformados.
+     */
+    private static final String[] MALFORMED = {"", "   ", "move", "move 1", "move 1 2", "move 1 2 3 4",
+            "move a b c", "move 1 2 x", "move 2147483648 0 0", "move 0 -2147483649 0", "move - 0 0",
+            "move +-1 0 0", "attack!", "Attack", "EXIT", "mover 1 1 1", "exit-now", "\u0000"};
+
+    private final List<Robot> robots;
+    private final List<Weapon> weapons;
+    private final long stallNanos;
+    private final Histogram latencies = new Histogram("stress/action");
+    private final LongAdder actions = new LongAdder(), matches = new LongAdder(), rejected = new LongAdder(),
+            fouls = new LongAdder(), exits = new LongAdder();
+    private final List<String> violations = new ArrayList<>();
+    private long violationCount, stalls;
+
+    /**
+     * @param robots    os robôs sorteados para as partidas
+     * @param weapons   as armas sorteadas para os robôs e para as arenas
+     * @param stallNanos o prazo de cada ação
+     */
+    StressHarness(Collection<Robot> robots, Collection<Weapon> weapons, long stallNanos) {
+        if (robots.isEmpty() || weapons.isEmpty() || stallNanos <= 0)
+            throw new IllegalArgumentException();
+        this.robots = new ArrayList<>(robots);
+        this.weapons = new ArrayList<>(weapons);
+        this.stallNanos = stallNanos;
+    }
+
+    /**
+     * Executa o teste até o prazo, imprimindo o progresso e o relatório final
+     * na saída padrão.
+     *
+     * @param threads   a quantidade de partidas simultâneas
+     * @param nanos     a duração do teste
+     * @param seed      a semente da qual são derivadas as sementes das
+     *                  threads
+     *
+     * @return <tt>true</tt> caso nenhuma invariante tenha sido violada e
+     *         nenhuma ação tenha excedido o prazo
+     */
+    boolean run(int threads, long nanos, long seed) throws InterruptedException {
+
+        if (threads <= 0 || nanos <= 0)
+            throw new IllegalArgumentException();
+        long t0 = System.nanoTime(), deadline = t0 + nanos;
+        SplittableRandom seeds = new SplittableRandom(seed);
+        Worker[] workers = new Worker[threads];
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        try {
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Worker(seeds.nextLong(), deadline);
+                workers[i].setName("mechawars-stress-" + i);
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+            long progress = t0 + PROGRESS_NANOS;
+            while (isAlive(workers)) {
+                Thread.sleep(Math.max(1, Math.min(stallNanos / 4_000_000, 250)));
+                long now = System.nanoTime();
+                for (Worker w : workers)
+                    w.watch(now);
+                if (now >= progress) {
+                    printProgress(now - t0);
+                    progress += PROGRESS_NANOS;
+                }
+            }
+            for (Worker w : workers)
+                w.join();
+        } finally {
+            System.setErr(err);
+        }
+        printReport(System.nanoTime() - t0, seed, workers);
+        synchronized (this) {
+            return violationCount == 0 && stalls == 0;
+        }
+    }
+
+    private static boolean isAlive(Worker[] workers) {
+        for (Worker w : workers)
+            if (w.isAlive())
+                return true;
+        return false;
+    }
+
+    private synchronized void violation(String message) {
+        if (violationCount++ < REPORTED)
+            violations.add(message);
+    }
+
+    private synchronized void stall(Worker w, long nanos, String action, StackTraceElement[] stack) {
+        stalls++;
+        StringBuilder s = new StringBuilder(String.format("stress: %s executa há %,d ms: %s\n", w.getName(),
+                nanos / 1_000_000, action));
+        for (int i = 0; i < Math.min(stack.length, 12); i++)
+            s.append("\tat ").append(stack[i]).append('\n');
+        System.out.print(s);
+    }
+
+    private synchronized void printProgress(long nanos) {
+        long n = actions.sum();
+        System.out.printf("stress: %,.0f s, %,d ações (%,.0f/s), %,d partidas, %,d violações, %,d travamentos\n",
+                nanos / 1e9, n, n * 1e9 / nanos, matches.sum(), violationCount, stalls);
+    }
+
+    private synchronized void printReport(long nanos, long seed, Worker[] workers) {
+        long n = actions.sum();
+        System.out.printf("stress: %d threads, %.1f s, semente %d\n", workers.length, nanos / 1e9, seed);
+        System.out.printf("stress/actions: %,d (%,.0f ações/s); %,d partidas, %,d encerradas por exit\n", n,
+                n * 1e9 / nanos, matches.sum(), exits.sum());
+        System.out.printf("stress/rejected: %,d comandos malformados; %,d infrações\n", rejected.sum(),
+                fouls.sum());
+        System.out.printf("%-24s p50 %,9d ns  p99 %,9d ns  p99.9 %,11d ns  máx %,11d ns\n", latencies.getName(),
+                latencies.percentile(50), latencies.percentile(99), latencies.percentile(99.9),
+                latencies.getMax());
+
+        List<Outlier> slowest = new ArrayList<>();
+        for (Worker w : workers)
+            slowest.addAll(w.slowest);
+        slowest.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+        System.out.println("stress/slowest:");
+        for (Outlier e : slowest.subList(0, Math.min(OUTLIERS, slowest.size())))
+            System.out.printf("  %,11d ns  %s\n", e.nanos, e.action);
+
+        System.out.printf("stress/violations: %,d; travamentos: %,d\n", violationCount, stalls);
+        for (String e : violations)
+            System.out.println("  " + e);
+    }
+
+    /**
+     * Uma das ações mais lentas de uma thread.
+     */
+    private static final class Outlier {
+
+        final long nanos;
+        final String action;
+
+        Outlier(long nanos, String action) {
+            this.nanos = nanos;
+            this.action = action;
+        }
+    }
+
+    /**
+     * Thread que joga partidas até o prazo.
+     */
+    private final class Worker extends Thread {
+
+        private final long seed;
+        private final SplittableRandom random;
+        private final long deadline;
+        private final int[] args = new int[3];
+        private final ByteBuffer buf = ByteBuffer.allocate(Command.MAX_ENCODED_LENGTH + 8);
+
+        /**
+         * As ações mais lentas desta thread, a mais rápida primeiro.
+         */
+        private final PriorityQueue<Outlier> slowest = new PriorityQueue<>((a, b) -> Long.compare(a.nanos, b.nanos));
+
+        /**
+         * O início e a descrição da ação em execução (0 quando não há ação
+         * em execução), lidos pela thread de vigilância, e o início da última
+         * ação informada como travada.
+         */
+        private volatile long started;
+        private volatile String current;
+        private long reported;
+
+        /**
+         * A partida em andamento.
+         */
+        private Arena arena;
+        private Player p1, p2;
+        private int turn, num;
+
+        Worker(long seed, long deadline) {
+            this.seed = seed;
+            this.random = new SplittableRandom(seed);
+            this.deadline = deadline;
+            // A saída de erro é descartada durante o teste: uma thread
+            // encerrada por uma exceção fora de make (por exemplo, ao criar a
+            // arena) deve ser registrada como violação.
+            setUncaughtExceptionHandler((t, e) -> {
+                started = 0;
+                StackTraceElement[] stack = e.getStackTrace();
+                violation(String.format("thread encerrada por %s%s (%s, semente %d)", e,
+                        stack.length > 0 ? " em " + stack[0] : "", getName(), seed));
+            });
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                play();
+                matches.increment();
+            }
+        }
+
+        /**
+         * Chamado pela thread de vigilância.
+         */
+        void watch(long now) {
+            long t = started;
+            if (t != 0 && t != reported && now - t > stallNanos) {
+                reported = t;
+                stall(this, now - t, current, getStackTrace());
+            }
+        }
+
+        private void play() {
+
+            int dim = GameConfigs.getArenaMinDimension();
+            arena = new Arena(dim + random.nextInt(dim), dim + random.nextInt(dim), dim + random.nextInt(dim),
+                    weapons);
+            p1 = newPlayer(1, null);
+            p2 = newPlayer(2, p1.getRobot().getPosition());
+            Action action = new Action(arena, p1, p2, w -> random.nextBoolean());
+            // Um oitavo das partidas termina logo no início.
+            int exitAt = random.nextInt(8) == 0 ? 1 + random.nextInt(4) : -1;
+            turn = 0;
+            num = 0;
+
+            for (int n = 1; n <= MAX_ACTIONS && !p1.isDefeated() && !p2.isDefeated(); n++) {
+                if (num % 2 == 0) turn++;
+                num = num % 2 + 1;
+                action.reset(turn, num);
+                while (random.nextInt(4) == 0)
+                    makeMalformed(action);
+
+                Player a = num == 1 ? p1 : p2, b = num == 1 ? p2 : p1;
+                Command command = n == exitAt || random.nextInt(1000) == 0 ? Command.EXIT
+                        : randomCommand(a.getRobot(), b.getRobot());
+                Point3D before = a.getRobot().getPosition();
+                int foulsBefore = a.getFouls();
+                boolean signal;
+                long t0 = System.nanoTime();
+                current = command.toString();
+                started = t0;
+                try {
+                    signal = make(action, command);
+                } catch (Throwable e) {
+                    // Inclusive um Error, como as asserções de Action.
+                    started = 0;
+                    violation(describe(command, "exceção " + e));
+                    return;
+                }
+                long t = System.nanoTime() - t0;
+                started = 0;
+                latencies.recordValue(t);
+                actions.increment();
+                if (slowest.size() < OUTLIERS || t > slowest.peek().nanos) {
+                    slowest.add(new Outlier(t, describe(command, String.format("posição %s -> %s",
+                            before, a.getRobot().getPosition()))));
+                    if (slowest.size() > OUTLIERS)
+                        slowest.poll();
+                }
+
+                if (signal != (command.getOp() == Command.OP_EXIT))
+                    violation(describe(command, "sinal de encerramento " + signal));
+                if (signal) {
+                    exits.increment();
+                    a.getRobot().kill();
+                }
+                if (a.getFouls() != foulsBefore)
+                    fouls.increment();
+                checkAction(command, a, b, before, foulsBefore);
+                if (n % ITEM_CHECK_INTERVAL == 0)
+                    checkItems(command);
+            }
+            checkItems(null);
+        }
+
+        private Player newPlayer(int id, Point3D occupied) {
+            Robot model = robots.get(random.nextInt(robots.size()));
+            Robot r = new Robot(model.getName(), model.getHp(), model.getArmor());
+            r.setWeapon((Weapon) weapons.get(random.nextInt(weapons.size())).clone());
+            Point3D p;
+            do p = arena.randomPoint(); while (p.equals(occupied));
+            r.setPosition(p);
+            return new Player(id, r);
+        }
+
+        /**
+         * Executa um comando, em uma das três formas aceitas por
+         * {@link Action}.
+         */
+        private boolean make(Action action, Command command) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    return action.make(command);
+                case 1:
+                    buf.clear();
+                    command.encode(buf);
+                    buf.flip();
+                    return action.make(buf);
+                default:
+                    if (command.getOp() != Command.OP_MOVE)
+                        return action.make(command.getOpName() + (random.nextBoolean() ? "" : "  \t"));
+                    return action.make(String.format("%s %d\t%d  %d", command.getOpName(), command.getDx(),
+                            command.getDy(), command.getDz()));
+            }
+        }
+
+        /**
+         * Tenta executar um comando malformado, que deve ser rejeitado sem
+         * consumar a ação.
+         */
+        private void makeMalformed(Action action) {
+            String description;
+            try {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        description = MALFORMED[random.nextInt(MALFORMED.length)];
+                        action.make(description);
+                        break;
+                    case 1:
+                        // Opcode inválido.
+                        buf.clear();
+                        buf.put((byte) (Command.OP_EXIT + 1 + random.nextInt(250)));
+                        buf.put((byte) random.nextInt(256));
+                        buf.flip();
+                        description = "opcode " + buf.get(0);
+                        action.make(buf);
+                        break;
+                    case 2:
+                        // Movimento truncado.
+                        buf.clear();
+                        int length = Command.move(random.nextInt(), random.nextInt(), random.nextInt()).encode(buf);
+                        buf.flip();
+                        buf.limit(1 + random.nextInt(length - 1));
+                        description = "movimento truncado em " + buf.limit() + " bytes";
+                        action.make(buf);
+                        break;
+                    default:
+                        // Número longo demais.
+                        buf.clear();
+                        buf.put(Command.OP_MOVE);
+                        for (int i = 0; i < 5; i++)
+                            buf.put((byte) 0xFF);
+                        buf.put((byte) 0).put((byte) 0).put((byte) 0);
+                        buf.flip();
+                        description = "número longo demais";
+                        action.make(buf);
+                        break;
+                }
+            } catch (IllegalArgumentException e) {
+                rejected.increment();
+                return;
+            } catch (RuntimeException e) {
+                violation(describe(null, "comando malformado causou " + e));
+                return;
+            }
+            violation(describe(null, "comando malformado aceito: \"" + description + "\""));
+        }
+
+        /**
+         * Sorteia um comando sintaticamente válido, em geral um movimento
+         * inválido ou hostil.
+         */
+        private Command randomCommand(Robot a, Robot b) {
+            Point3D p = a.getPosition(), q = b.getPosition();
+            int limit = a.getMoveLimit();
+            switch (random.nextInt(10)) {
+                case 0:
+                case 1:
+                case 2:
+                    return Command.ATTACK;
+                case 3:
+                case 4:
+                    // Um passo, que pode deixar a arena nas bordas.
+                    return Command.move(random.nextInt(3) - 1, random.nextInt(3) - 1, random.nextInt(3) - 1);
+                case 5:
+                    // Para a posição do adversário.
+                    return Command.move(q.getX() - p.getX(), q.getY() - p.getY(), q.getZ() - p.getZ());
+                case 6:
+                    // Para fora da arena.
+                    return Command.move(-p.getX() - 1 - random.nextInt(3), random.nextInt(3) - 1,
+                            arena.getHeight() - p.getZ() + random.nextInt(3));
+                case 7:
+                    // Deslocamentos enormes, que se anulariam em uma soma de int.
+                    int huge = random.nextBoolean() ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+                    int[] d = {huge, ~huge, random.nextInt(3) - 1};
+                    shuffle(d);
+                    return Command.move(d[0], d[1], d[2]);
+                case 8:
+                    // Além do limite, em sentidos opostos.
+                    int k = limit / 2 + 1 + random.nextInt(3);
+                    int[] e = {k, -k, random.nextInt(3) - 1};
+                    shuffle(e);
+                    return Command.move(e[0], e[1], e[2]);
+                default:
+                    int r = Math.min(limit, 64) + 2;
+                    return Command.move(random.nextInt(2 * r + 1) - r, random.nextInt(2 * r + 1) - r,
+                            random.nextInt(2 * r + 1) - r);
+            }
+        }
+
+        private void shuffle(int[] a) {
+            for (int i = a.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1), t = a[i];
+                a[i] = a[j];
+                a[j] = t;
+            }
+        }
+
+        private void checkAction(Command command, Player a, Player b, Point3D before, int foulsBefore) {
+
+            for (Player p : new Player[]{p1, p2}) {
+                Robot r = p.getRobot();
+                if (!(r.getHp() >= 0))
+                    violation(describe(command, String.format("HP %s do Player %d", r.getHp(), p.getID())));
+                if (!contains(r.getPosition()))
+                    violation(describe(command, String.format("Player %d fora da arena, em %s", p.getID(),
+                            r.getPosition())));
+            }
+            Point3D after = a.getRobot().getPosition(), other = b.getRobot().getPosition();
+            if (after.equals(other))
+                violation(describe(command, "robôs na mesma posição " + after));
+            if (command.getOp() != Command.OP_MOVE)
+                return;
+
+            long x = (long) before.getX() + command.getDx();
+            long y = (long) before.getY() + command.getDy();
+            long z = (long) before.getZ() + command.getDz();
+            boolean valid = a.getRobot().canMove(command.getDx(), command.getDy(), command.getDz())
+                    && contains(x, y, z);
+            if (!valid) {
+                if (!after.equals(before) || a.getFouls() != foulsBefore + 1)
+                    violation(describe(command, String.format("movimento inválido de %s executado: %s, %d"
+                            + " infração(ões)", before, after, a.getFouls() - foulsBefore)));
+            } else if (a.getFouls() != foulsBefore) {
+                violation(describe(command, "movimento válido punido como infração"));
+            } else if (!(after.getX() == x && after.getY() == y && after.getZ() == z)
+                    && !(other.getX() == x && other.getY() == y && other.getZ() == z)) {
+                violation(describe(command, String.format("movimento de %s levou a %s", before, after)));
+            }
+        }
+
+        private void checkItems(Command command) {
+            Map<Point3D, SpecialItem> items = arena.getItems();
+            Set<SpecialItem> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Map.Entry<Point3D, SpecialItem> e : items.entrySet()) {
+                SpecialItem item = e.getValue();
+                if (!seen.add(item))
+                    violation(describe(command, "item duplicado na arena: " + item));
+                if (!contains(e.getKey()) || !e.getKey().equals(item.getPosition()))
+                    violation(describe(command, String.format("item %s em %s, mas com posição %s", item,
+                            e.getKey(), item.getPosition())));
+            }
+            if (items.size() != arena.getItemCount())
+                violation(describe(command, String.format("%d itens na arena, mas contagem %d", items.size(),
+                        arena.getItemCount())));
+            for (Player p : new Player[]{p1, p2})
+                if (p.getRobot().getWeapon() != null && seen.contains(p.getRobot().getWeapon()))
+                    violation(describe(command, String.format("arma do Player %d também está na arena",
+                            p.getID())));
+        }
+
+        private boolean contains(Point3D p) {
+            return contains(p.getX(), p.getY(), p.getZ());
+        }
+
+        private boolean contains(long x, long y, long z) {
+            return x >= 0 && y >= 0 && z >= 0 && x < arena.getWidth() && y < arena.getLength()
+                    && z < arena.getHeight();
+        }
+
+        private String describe(Command command, String problem) {
+            return String.format("%s (comando %s, turno %d, ação %d, arena %dx%dx%d, %s, semente %d)", problem,
+                    command == null ? "malformado" : command, turn, num, arena.getWidth(), arena.getLength(),
+                    arena.getHeight(), getName(), seed);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        long nanos = (long) (Double.parseDouble(System.getProperty("mechawars.stress.hours", "1")) * 3.6e12);
+        long stallNanos = Long.getLong("mechawars.stress.stallMillis", 1000) * 1_000_000;
+        Long seed = Long.getLong("mechawars.stress.seed");
+        GameConfigs.loadConfigs(String.format("datafiles%sconfig.txt", File.separator));
+        Catalogs.Lazy catalogs = new Catalogs.Lazy(String.format("datafiles%srobots.txt", File.separator),
+                String.format("datafiles%sweapons.txt", File.separator));
+        StressHarness harness = new StressHarness(catalogs.robots(), catalogs.weapons(), stallNanos);
+        System.exit(harness.run(threads, nanos, seed != null ? seed : new SplittableRandom().nextLong()) ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.bside89.poo.tp;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Armazenamento de itens especiais que pode ser usado por várias threads ao
+ * mesmo tempo, para arenas compartilhadas por muitos robôs que agem
+ * simultaneamente (veja {@link Arena#concurrent}).
+ *
+ * O espaço da arena é dividido em regiões cúbicas de
+ * 2<sup>{@link #REGION_BITS}</sup> posições de lado, e as regiões são
+ * distribuídas entre uma quantidade fixa de faixas. Cada faixa tem o próprio
+ * mapa de itens, protegido pelo próprio monitor; assim, robôs em regiões
+ * diferentes quase nunca disputam o mesmo monitor, e o desempenho cresce com
+ * a quantidade de threads. Posições próximas ficam na mesma faixa, então uma
+ * operação sobre uma posição bloqueia apenas a faixa dela.
+ *
+ * As operações sobre uma posição, inclusive {@link #replace}, são atômicas;
+ * {@link #replace} compara o próprio objeto do item esperado, então um item
+ * removido e substituído por outro do mesmo tipo não é confundido com ele.
+ * {@link #size()} e {@link #toMap()} percorrem as faixas uma a uma e, com
+ * alterações simultâneas, não representam um instante único.
+ *
+ * @author Bruno Santos
+ *
+ * @see ItemStore
+ */
+final class StripedItemStore implements ItemStore {
+
+    /**
+     * Lado, em bits, de cada região: regiões de 16 x 16 x 16 posições.
+     */
+    static final int REGION_BITS = 4;
+
+    static final int DEFAULT_STRIPES = 64;
+
+    private final Stripe[] stripes;
+
+    private static final class Stripe implements Serializable {
+        final Map<Point3D, SpecialItem> items = new HashMap<>();
+    }
+
+    StripedItemStore() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes a quantidade de faixas, que deve ser uma potência de 2
+     *                (com uma única faixa, todas as operações disputam o
+     *                mesmo monitor)
+     */
+    StripedItemStore(int stripes) {
+        if (stripes <= 0 || Integer.bitCount(stripes) != 1)
+            throw new IllegalArgumentException();
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++)
+            this.stripes[i] = new Stripe();
+    }
+
+    private Stripe stripe(Point3D p) {
+        int h = (p.getX() >> REGION_BITS) * 73856093 ^ (p.getY() >> REGION_BITS) * 19349663
+                ^ (p.getZ() >> REGION_BITS) * 83492791;
+        return stripes[(h ^ h >>> 16) & (stripes.length - 1)];
+    }
+
+    @Override
+    public SpecialItem get(Point3D p) {
+        Stripe s = stripe(p);
+        synchronized (s) {
+            return s.items.get(p);
+        }
+    }
+
+    @Override
+    public boolean contains(Point3D p) {
+        Stripe s = stripe(p);
+        synchronized (s) {
+            return s.items.containsKey(p);
+        }
+    }
+
+    @Override
+    public void put(Point3D p, SpecialItem item) {
+        Stripe s = stripe(p);
+        synchronized (s) {
+            s.items.put(p, item);
+        }
+    }
+
+    @Override
+    public SpecialItem remove(Point3D p) {
+        Stripe s = stripe(p);
+        synchronized (s) {
+            return s.items.remove(p);
+        }
+    }
+
+    @Override
+    public boolean replace(Point3D p, SpecialItem expected, SpecialItem replacement) {
+        Stripe s = stripe(p);
+        synchronized (s) {
+            SpecialItem current = s.items.get(p);
+            if (current != expected)
+                return false;
+            if (replacement == null)
+                s.items.remove(p);
+            else
+                s.items.put(p, replacement);
+            return true;
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Stripe s : stripes)
+            synchronized (s) {
+                size += s.items.size();
+            }
+        return size;
+    }
+
+    /**
+     * @return uma cópia dos itens, indexados por posição
+     */
+    @Override
+    public Map<Point3D, SpecialItem> toMap() {
+        Map<Point3D, SpecialItem> map = new HashMap<>();
+        for (Stripe s : stripes)
+            synchronized (s) {
+                map.putAll(s.items);
+            }
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        return toMap().equals(((StripedItemStore) o).toMap());
+    }
+
+    @Override
+    public int hashCode() {
+        return toMap().hashCode();
+    }
+
+}
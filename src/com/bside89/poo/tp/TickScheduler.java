@@ -0,0 +1,503 @@
+package com.bside89.poo.tp;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.bside89.poo.tp.CellMap.key;
+
+/**
+ * Escalonador de ações em tempo real, para partidas com muitos robôs (por
+ * exemplo, em um servidor).
+ *
+ * Ao contrário de {@link MechaWars#runGame()}, em que os jogadores agem
+ * alternadamente, aqui o tempo é dividido em ciclos (ticks) de duração fixa.
+ * Durante um ciclo, cada robô pode submeter um comando ({@link #submit}), de
+ * qualquer thread; o último comando submetido antes do fim do ciclo é o que
+ * vale. Ao fim do ciclo, os comandos de todos os robôs são resolvidos juntos,
+ * em uma ordem determinística:
+ *
+ *  1. Ataques: os danos são calculados em lote ({@link DamageKernel}), com
+ *     as posições do início do ciclo, e aplicados todos ao mesmo tempo; dois
+ *     robôs podem se derrotar no mesmo ciclo.
+ *  2. Movimentos: em uma ordem que começa por um robô diferente a cada ciclo
+ *     (o robô {@code tick % n}), para que nenhum robô tenha prioridade
+ *     permanente. Um robô não pode entrar em uma posição ocupada por outro
+ *     robô naquele momento da resolução: quando dois robôs disputam a mesma
+ *     posição (ou a mesma arma), o primeiro na ordem a ocupa e o outro fica
+ *     onde está. Um movimento inválido é uma infração, punida como em
+ *     {@link Action}. O robô que entra em uma posição com um item especial
+ *     sofre o efeito do item (armas são sempre pegas).
+ *  3. Efeitos com hora marcada ({@link EffectScheduler}): o dano do vírus
+ *     nos robôs infectados, a explosão das bombas de detonação retardada
+ *     ({@link #setBombFuse}) e o fim dos bônus de armadura
+ *     ({@link #buffArmor}). No modo de epidemia ({@link #startEpidemic}),
+ *     o vírus também passa de um robô a outro e contamina posições (veja
+ *     {@link Epidemic}).
+ *
+ * Os números aleatórios dos ataques vêm de um gerador inicializado a partir
+ * da semente e do número do ciclo; assim, a ordem de resolução e os danos
+ * dos ataques dependem apenas dos comandos (o dano das bombas e do vírus
+ * continua sorteado pelos próprios itens).
+ *
+ * {@link #start()} executa os ciclos em uma thread própria, na frequência
+ * informada. Cada ciclo tem como prazo o início do ciclo seguinte: um ciclo
+ * cuja resolução ultrapassa o prazo é contado como atrasado, e, caso o atraso
+ * acumulado passe de um ciclo inteiro, os ciclos perdidos são descartados (e
+ * contados) em vez de executados em rajada, mantendo a frequência estável.
+ * As contagens estão em {@link Metrics} e nos métodos desta classe.
+ *
+ * @author Bruno Santos
+ *
+ * @see Command
+ * @see DamageKernel
+ */
+final class TickScheduler implements Closeable {
+
+    static final int DEFAULT_RATE = 60;
+
+    private final Arena arena;
+    private final Robot[] robots;
+    private final int[] fouls;
+    private final long tickNanos, seed;
+
+    /**
+     * O comando submetido por cada robô no ciclo corrente.
+     */
+    private final AtomicReferenceArray<Order> pending;
+
+    /**
+     * Os robôs em cada posição (codificada por {@link CellMap#key}).
+     */
+    private final CellMap occupied;
+
+    private final Order[] orders;
+    private final int[] attackers, targets;
+    private final int[] ax, ay, az, tx, ty, tz;
+    private final double[] sigma, armor, rand1, rand2, damage;
+
+    private Epidemic epidemic;
+
+    /**
+     * Os efeitos com hora marcada, o efeito do vírus de cada robô e os
+     * bônus de armadura ainda não aplicados.
+     */
+    private final EffectScheduler effects;
+    private final long[] virusEffects;
+    private final ConcurrentLinkedQueue<Buff> buffs = new ConcurrentLinkedQueue<>();
+    private volatile int bombFuse;
+
+    private volatile int tick;
+    private volatile long late, skipped;
+    private Thread worker;
+    private volatile boolean running;
+
+    /**
+     * Um comando submetido.
+     */
+    private static final class Order {
+        final Command command;
+        final int target;
+
+        Order(Command command, int target) {
+            this.command = command;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Um bônus de armadura submetido.
+     */
+    private static final class Buff {
+        final int robot, ticks;
+        final double amount;
+
+        Buff(int robot, double amount, int ticks) {
+            this.robot = robot;
+            this.amount = amount;
+            this.ticks = ticks;
+        }
+    }
+
+    /**
+     * @param arena     a arena, com os robôs já posicionados em posições
+     *                  distintas
+     * @param robots    os robôs, identificados pela posição na lista
+     * @param rate      a quantidade de ciclos por segundo
+     * @param seed      a semente dos números aleatórios
+     */
+    TickScheduler(Arena arena, List<Robot> robots, int rate, long seed) {
+        if (robots.isEmpty() || rate <= 0)
+            throw new IllegalArgumentException();
+        assert (arena != null);
+        int n = robots.size();
+        this.arena = arena;
+        this.robots = robots.toArray(new Robot[0]);
+        this.fouls = new int[n];
+        this.tickNanos = 1_000_000_000L / rate;
+        this.seed = seed;
+        this.pending = new AtomicReferenceArray<>(n);
+        this.orders = new Order[n];
+        this.attackers = new int[n];
+        this.targets = new int[n];
+        this.ax = new int[n];
+        this.ay = new int[n];
+        this.az = new int[n];
+        this.tx = new int[n];
+        this.ty = new int[n];
+        this.tz = new int[n];
+        this.sigma = new double[n];
+        this.armor = new double[n];
+        this.rand1 = new double[n];
+        this.rand2 = new double[n];
+        this.damage = new double[n];
+        this.occupied = new CellMap(n);
+        this.effects = new EffectScheduler();
+        this.virusEffects = new long[n];
+        Arrays.fill(virusEffects, EffectScheduler.NONE);
+        for (int i = 0; i < n; i++) {
+            if (!occupied.putIfAbsent(key(this.robots[i].getPosition()), i))
+                throw new IllegalArgumentException("Posição ocupada por dois robôs: "
+                        + this.robots[i].getPosition());
+            scheduleVirus(i, 1);
+        }
+    }
+
+    /**
+     * Submete um comando de movimento ou de encerramento (o robô abandona a
+     * partida) para o ciclo corrente, substituindo o comando anterior do
+     * robô no mesmo ciclo.
+     *
+     * @param robot o número do robô
+     *
+     * @throws IllegalArgumentException caso o comando seja um ataque (veja
+     *                                  {@link #submitAttack})
+     */
+    void submit(int robot, Command command) throws IllegalArgumentException {
+        if (command.getOp() == Command.OP_ATTACK)
+            throw new IllegalArgumentException(InGameText.ERR_INVALID_COMMAND);
+        pending.set(robot, new Order(command, -1));
+    }
+
+    /**
+     * Submete um ataque para o ciclo corrente, substituindo o comando
+     * anterior do robô no mesmo ciclo.
+     *
+     * @param robot     o número do robô atacante
+     * @param target    o número do robô alvo
+     */
+    void submitAttack(int robot, int target) {
+        if (target < 0 || target >= robots.length || target == robot)
+            throw new IllegalArgumentException();
+        pending.set(robot, new Order(Command.ATTACK, target));
+    }
+
+    /**
+     * Submete um bônus temporário de armadura, aplicado no início do próximo
+     * ciclo e retirado após uma quantidade de ciclos.
+     *
+     * @param robot     o número do robô
+     * @param amount    o valor somado à armadura
+     * @param ticks     a duração do bônus, em ciclos
+     */
+    void buffArmor(int robot, double amount, int ticks) {
+        if (robot < 0 || robot >= robots.length || ticks <= 0)
+            throw new IllegalArgumentException();
+        buffs.add(new Buff(robot, amount, ticks));
+    }
+
+    /**
+     * Define o retardo das bombas: uma bomba encontrada por um robô deixa a
+     * arena e explode após essa quantidade de ciclos, atingindo o robô que
+     * estiver na posição dela nesse momento (possivelmente nenhum).
+     *
+     * @param ticks o retardo, em ciclos, ou 0 para que as bombas explodam
+     *              imediatamente (o padrão)
+     */
+    void setBombFuse(int ticks) {
+        if (ticks < 0)
+            throw new IllegalArgumentException();
+        bombFuse = ticks;
+    }
+
+    /**
+     * Resolve os comandos submetidos e encerra o ciclo corrente.
+     */
+    void step() {
+        long t0 = System.nanoTime();
+        int n = robots.length, t = ++tick;
+        int attacks = 0;
+        for (Buff b; (b = buffs.poll()) != null; ) {
+            Robot r = robots[b.robot];
+            double amount = b.amount;
+            r.addArmor(amount);
+            effects.schedule(t + b.ticks, now -> {
+                r.addArmor(-amount);
+                return -1;
+            });
+        }
+        for (int i = 0; i < n; i++) {
+            Order o = pending.getAndSet(i, null);
+            orders[i] = o != null && robots[i].getHp() > 0 ? o : null;
+            if (orders[i] != null && o.command.getOp() == Command.OP_ATTACK && robots[o.target].getHp() > 0
+                    && robots[i].isArmed()) {
+                attackers[attacks] = i;
+                targets[attacks++] = o.target;
+            }
+        }
+
+        resolveAttacks(attacks, t);
+
+        for (int k = 0; k < n; k++) {
+            int i = (k + t) % n;
+            Order o = orders[i];
+            if (robots[i].getHp() <= 0) {
+                occupied.remove(key(robots[i].getPosition()), i);
+                continue;
+            }
+            if (o == null)
+                continue;
+            if (o.command.getOp() == Command.OP_MOVE)
+                move(i, o.command);
+            else if (o.command.getOp() == Command.OP_EXIT) {
+                robots[i].kill();
+                occupied.remove(key(robots[i].getPosition()), i);
+            }
+        }
+
+        effects.runUntil(t);
+        if (epidemic != null)
+            epidemic.step(t);
+        Metrics.increment(Metrics.TICKS);
+        Metrics.TICK.recordValue(System.nanoTime() - t0);
+    }
+
+    private void resolveAttacks(int attacks, int t) {
+        for (int j = 0; j < attacks; j++) {
+            Robot a = robots[attackers[j]], b = robots[targets[j]];
+            ax[j] = a.getPosition().getX();
+            ay[j] = a.getPosition().getY();
+            az[j] = a.getPosition().getZ();
+            tx[j] = b.getPosition().getX();
+            ty[j] = b.getPosition().getY();
+            tz[j] = b.getPosition().getZ();
+            sigma[j] = a.getWeapon().getSigma();
+            armor[j] = b.getArmor();
+        }
+        DamageKernel.resolve(attacks, sigma, ax, ay, az, tx, ty, tz, armor,
+                new SplittableRandom(seed ^ t * 0x9E3779B97F4A7C15L), rand1, rand2, damage);
+        for (int j = 0; j < attacks; j++)
+            if (damage[j] > 0)
+                robots[targets[j]].receiveDamage(damage[j]);
+        Metrics.add(Metrics.ACTIONS, attacks);
+    }
+
+    private void move(int i, Command command) {
+        Robot r = robots[i];
+        Metrics.increment(Metrics.ACTIONS);
+        Point3D p = r.getPosition();
+        int x = p.getX() + command.getDx(), y = p.getY() + command.getDy(), z = p.getZ() + command.getDz();
+        if (!r.canMove(command.getDx(), command.getDy(), command.getDz())
+                || x < 0 || y < 0 || z < 0
+                || x >= arena.getWidth() || y >= arena.getLength() || z >= arena.getHeight()) {
+            // Infração, punida como em Action.
+            Metrics.increment(Metrics.FOULS);
+            r.receiveDamage(Math.pow(2, ++fouls[i]));
+            return;
+        }
+        long to = key(x, y, z);
+        if (to == key(p))
+            return;
+        if (!occupied.putIfAbsent(to, i)) {
+            Metrics.increment(Metrics.MOVE_CONFLICTS);
+            return;
+        }
+        occupied.remove(key(p), i);
+        Point3D q = new Point3D(x, y, z);
+        SpecialItem item = arena.at(q);
+        if (item instanceof Bomb && bombFuse > 0) {
+            if (arena.swapItem(q, item, null))
+                effects.schedule(tick + bombFuse, now -> explode(to));
+        } else if (item != null) {
+            item.effect(r, arena);
+            if (item instanceof Bomb)
+                Metrics.increment(Metrics.BOMBS);
+            else if (item instanceof Virus) {
+                Metrics.increment(Metrics.INFECTIONS);
+                if (epidemic == null) scheduleVirus(i, tick);
+            } else
+                Metrics.increment(Metrics.PICKUPS);
+        }
+        r.setPosition(q);
+        if (epidemic != null) epidemic.entered(i, to);
+    }
+
+    /**
+     * Explode uma bomba de detonação retardada, atingindo o robô que estiver
+     * na posição dela.
+     */
+    private long explode(long cell) {
+        int i = occupied.get(cell);
+        if (i != CellMap.NONE && robots[i].getHp() > 0) {
+            robots[i].receiveDamage(Bomb.SIGMA * Math.random());
+            Metrics.increment(Metrics.BOMBS);
+        }
+        return -1;
+    }
+
+    /**
+     * Agenda o dano do vírus de um robô infectado, a cada ciclo, até que o
+     * robô seja curado ou derrotado. Não faz nada caso o robô não esteja
+     * infectado, ou caso o dano já esteja agendado.
+     *
+     * @param tick o primeiro ciclo com dano
+     */
+    private void scheduleVirus(int i, int tick) {
+        Robot r = robots[i];
+        if (!r.isInfected() || effects.isPending(virusEffects[i]))
+            return;
+        virusEffects[i] = effects.schedule(tick, now -> {
+            if (r.getHp() <= 0 || !r.isInfected())
+                return -1;
+            r.receiveVirusDamage();
+            Metrics.increment(Metrics.VIRUS_TICKS);
+            return r.isInfected() ? now + 1 : -1;
+        });
+    }
+
+    /**
+     * Ativa o modo de epidemia, em que o vírus passa dos robôs infectados
+     * aos robôs vizinhos e às posições por onde passam (veja
+     * {@link Epidemic}). Deve ser chamado antes de {@link #start()}.
+     *
+     * @param contactRate   a probabilidade de contágio, por ciclo, de um robô
+     *                      vizinho de um robô infectado
+     * @param cellRate      a probabilidade de contágio de um robô que entra
+     *                      em uma posição contaminada
+     * @param cellTtl       a quantidade de ciclos que uma posição permanece
+     *                      contaminada
+     *
+     * @return a epidemia, ainda sem nenhum robô infectado além dos que já
+     *         estavam
+     */
+    synchronized Epidemic startEpidemic(double contactRate, double cellRate, int cellTtl) {
+        if (running || epidemic != null)
+            throw new IllegalStateException();
+        // A partir de agora, o dano do vírus é aplicado pela epidemia.
+        for (long e : virusEffects)
+            effects.cancel(e);
+        epidemic = new Epidemic(arena, robots, occupied, contactRate, cellRate, cellTtl, seed);
+        return epidemic;
+    }
+
+    /**
+     * Executa os ciclos em uma thread própria, até {@link #close()}.
+     */
+    synchronized void start() {
+        if (running)
+            throw new IllegalStateException();
+        running = true;
+        worker = new Thread(this::run, "mechawars-tick");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void run() {
+        long deadline = System.nanoTime() + tickNanos;
+        while (running) {
+            long now = System.nanoTime();
+            if (now < deadline) {
+                LockSupport.parkNanos(deadline - now);
+                continue;
+            }
+            GameEvents.Tick event = new GameEvents.Tick();
+            event.begin();
+            step();
+            long end = System.nanoTime();
+            deadline += tickNanos;
+            boolean overrun = end > deadline;
+            if (overrun) {
+                late++;
+                Metrics.increment(Metrics.TICK_OVERRUNS);
+                // Descarta os ciclos perdidos, em vez de executá-los em rajada.
+                long lost = (end - deadline) / tickNanos;
+                if (lost > 0) {
+                    skipped += lost;
+                    Metrics.add(Metrics.TICKS_SKIPPED, lost);
+                    deadline += lost * tickNanos;
+                }
+            }
+            if (event.shouldCommit()) {
+                event.tick = tick;
+                event.overrun = overrun;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Interrompe a execução dos ciclos, aguardando o fim do ciclo corrente.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (worker == null)
+            return;
+        LockSupport.unpark(worker);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                worker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        worker = null;
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return a quantidade de ciclos já resolvidos
+     */
+    int getTick() {
+        return tick;
+    }
+
+    /**
+     * @return a quantidade de ciclos cuja resolução ultrapassou o prazo
+     */
+    long getLateTicks() {
+        return late;
+    }
+
+    /**
+     * @return a quantidade de ciclos descartados devido ao atraso
+     */
+    long getSkippedTicks() {
+        return skipped;
+    }
+
+    long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * @param robot o número do robô
+     *
+     * @return o robô
+     */
+    Robot getRobot(int robot) {
+        return robots[robot];
+    }
+
+    int getRobotCount() {
+        return robots.length;
+    }
+
+}
@@ -19,13 +19,13 @@ class Virus extends SpecialItem implements Comparable<Virus> {
     /**
      * Coeficiente de dano de um <tt>Virus</tt>.
      */
-    private static final double M = 100;
+    static final double M = 100;
 
     /**
      * Coeficiente de quantidade de turnos, a ser multiplicado por um
      * número aleatório entre 0 e 1.
      */
-    private static final int N = 5;
+    static final int N = 5;
 
     /**
      * Quantidade de turnos ativos de um <tt>Virus</tt>, baseado no cálculo
@@ -42,6 +42,16 @@ class Virus extends SpecialItem implements Comparable<Virus> {
         life = (int) Math.floor(N * Math.random());
     }
 
+    /**
+     * @param life a quantidade de turnos ativos, maior que zero
+     */
+    Virus(Point3D position, int life) {
+        super(position);
+        if (life <= 0)
+            throw new IllegalArgumentException();
+        this.life = life;
+    }
+
     /**
      * Diminui em uma unidade a quantidade de vida (turnos)
      * deste <tt>Virus</tt>.
@@ -84,8 +94,10 @@ class Virus extends SpecialItem implements Comparable<Virus> {
      */
     @Override
     void effect(Robot r, Arena a) {
-        r.getInfectionBy(this);
-        a.removeItem(this.position); // Vírus deixa de existir na arena
+        // Vírus deixa de existir na arena. Caso outro robô já o tenha
+        // removido, apenas este outro robô é infectado.
+        if (a.swapItem(this.position, this, null))
+            r.getInfectionBy(this);
     }
 
     @Override
@@ -24,12 +24,18 @@ class Weapon extends SpecialItem implements Comparable<Weapon>, Cloneable, Namea
         this.SIGMA = sigma;
     }
 
+    /**
+     * O robô pega esta arma e deixa, na posição dela, a arma que possuía.
+     * A troca é atômica: caso outro robô tenha pego esta arma antes, nada
+     * acontece.
+     */
     @Override
     void effect(Robot r, Arena a) {
-        Weapon old = r.getWeapon();
-        r.setWeapon(this);
-        a.removeItem(this.position);
-        a.putItem(old);
+        Point3D p = this.position;
+        Weapon old = r.getWeapon() != null ? (Weapon) r.getWeapon().clone() : null;
+        if (old != null) old.setPosition(p);
+        if (a.swapItem(p, this, old))
+            r.setWeapon(this);
     }
 
     @Override